@@ -36,7 +36,7 @@ import org.slf4j.LoggerFactory;
  */
 public class AirSensEURDataAggregator {
     
-    static final String VERSION = "AirSensEURDataAggregator R2.1.1";
+    static final String VERSION = "AirSensEURDataAggregator R2.2.0";
     static final Logger log = LoggerFactory.getLogger(AirSensEURDataAggregator.class);
     
     /**
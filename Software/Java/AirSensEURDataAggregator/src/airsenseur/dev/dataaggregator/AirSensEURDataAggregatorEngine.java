@@ -29,8 +29,9 @@ import airsenseur.dev.dataaggregator.collectors.GPSDataCollector;
 import airsenseur.dev.exceptions.PersisterException;
 import airsenseur.dev.helpers.TaskScheduler;
 import airsenseur.dev.json.BoardInfo;
-import airsenseur.dev.json.ChemSensorClient;
+import airsenseur.dev.json.ChemSensorAsyncClient;
 import airsenseur.dev.json.HostStatus;
+import airsenseur.dev.json.LastSamples;
 import airsenseur.dev.json.SampleData;
 import airsenseur.dev.json.SensorConfig;
 import airsenseur.dev.persisters.SampleDataContainer;
@@ -50,7 +51,7 @@ import org.slf4j.LoggerFactory;
 public class AirSensEURDataAggregatorEngine extends TaskScheduler {
     
     private final GPSDataCollector gpsDataCollector = new GPSDataCollector();
-    private final ChemSensorClient sensorDataCollector = new ChemSensorClient();
+    private final ChemSensorAsyncClient sensorDataCollector = new ChemSensorAsyncClient();
     private final SamplesPersister dataPersister = new SamplePersisterFile(Configuration.getConfig().getPersisterPath());
     private final SensorConfigPersisterSQL sqlDataPersister = new SensorConfigPersisterSQL(Configuration.getConfig().getPersisterPath());
     
@@ -63,7 +64,6 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
     
     static final Logger LOG = LoggerFactory.getLogger(AirSensEURDataAggregatorEngine.class);
     
-    private int cumulatedPollsWithValidHostConnection = 0;  // Periodically reconnect to sensor server seems improve the sensor server stability
     private boolean applyTimestampCorrection = true;
     
     /**
@@ -78,6 +78,10 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
         
         applyTimestampCorrection = config.applyTimestampCorrection();
         
+        // A stuck host fails the pending requests and the connection is reopened
+        sensorDataCollector.setTimeout(config.getSensorRequestTimeout());
+        sensorDataCollector.setPipelining(config.getSensorRequestPipelining());
+        
         boolean result = true;
         result &= gpsDataCollector.connect(config.getGPSHostname(), config.getGPSPort());
         result &= sensorDataCollector.connect(config.getSensorHostname(), config.getSensorPort());
@@ -131,10 +135,8 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
             // Initialize the sensors dataset
             initializeSampleContainers(numOfSensors);
                                     
-            sensorDataCollector.startSampling();
+            sensorDataCollector.startSampling().getResult();
         }
-
-        cumulatedPollsWithValidHostConnection = 0;
         
         return result;
     }
@@ -145,16 +147,9 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
     @Override
     public void taskMain() {
         
-        // Check and connect/reconnect to Host Server
-        if (!checkAndConnectToHostServer()) {
-            return;
-        }
-        
-        // Check and connect/reconnect to GPS Server
-        checkAndConnectToGPSServer();
-        
-        // Retrieve samples from the remote sensorDataCollector process
-        boolean restartSamplingNeeded = false;
+        // Select the channels to be polled, based on the known sensor periodicity
+        long now = System.currentTimeMillis();
+        List<Integer> channelsToPoll = new ArrayList<>();
         for (int channel = 0; channel < numOfSensors; channel++) {
             
             // Thake the proper channelData 
@@ -165,26 +160,47 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
                 continue;
             }
             
-            // Check if it's time to poll this sensor, based on the known sensor periodicity
-            long now = System.currentTimeMillis();
-            
             // It's not time to poll this sensor
             if ((now - channelData.getLastPollTimestamp()) < channelData.getPollPeriod()) {
                 continue;
             }
             
-            // Ok. It's time to poll this sensor
+            channelsToPoll.add(channel);
+        }
+        
+        // Retrieve the host status and samples from the remote sensorDataCollector process
+        LastSamples lastSamples = getLastSamples(channelsToPoll);
+        
+        // Check and connect/reconnect to Host Server
+        if (!checkAndConnectToHostServer((lastSamples != null)? lastSamples.hostStatus : null)) {
+            return;
+        }
+        
+        // Check and connect/reconnect to GPS Server
+        checkAndConnectToGPSServer();
+        
+        // Host has been reconnected. Samples will be retrieved on next poll
+        if (lastSamples == null) {
+            return;
+        }
+        
+        boolean restartSamplingNeeded = false;
+        for (int n = 0; n < channelsToPoll.size(); n++) {
+            
+            int channel = channelsToPoll.get(n);
+            ChannelDataContainer channelData = channels.get(channel);
+            
+            // Ok. This sensor has been polled
             channelData.setLastPollTimestamp(now);            
             
-            SampleData remoteSample = sensorDataCollector.getLastSample(channel);
+            SampleData remoteSample = (n < lastSamples.samples.size())? lastSamples.samples.get(n) : null;
             if (remoteSample == null) {
                 
                 // Log this error. 
-                // This is probaly due to a loss of host connection.
-                // We expect a host connection handling on next poll.
+                // This is probaly due to a sensor no more available on the host.
                 Date date = new Date();
                 LOG.info(date.toString() + ": Error retrieving data for sensor " + channel);
-                break;
+                continue;
             }
             
             // Valid samples have timestamp different than zero.
@@ -206,13 +222,46 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
         
         // If at least one sample with zero timestamp has been found
         if (restartSamplingNeeded) {
-            sensorDataCollector.startSampling();
+            sensorDataCollector.startSampling().getResult();
                                             
             Date date = new Date();
             LOG.info(date.toString() + ": Asking sensor server for start sampling due to repeated samples with empty timestamp found");
         } 
     }
 
+    // Host status and samples are retrieved in a single call. Hosts older than R2.2.0
+    // don't implement it: then they're retrieved with a call for each one, as before
+    private LastSamples getLastSamples(List<Integer> channelsToPoll) {
+        
+        if (sensorDataCollector.isLastSamplesSupported()) {
+            LastSamples lastSamples = sensorDataCollector.getLastSamples(channelsToPoll).getResult();
+            if ((lastSamples != null) || sensorDataCollector.isLastSamplesSupported()) {
+                return lastSamples;
+            }
+            
+            Date date = new Date();
+            LOG.info(date.toString() + ": Sensor server doesn't support getLastSamples. Samples will be retrieved one by one");
+        }
+        
+        HostStatus hostStatus = sensorDataCollector.getHostStatus().getResult();
+        if (hostStatus == null) {
+            return null;
+        }
+        
+        List<ChemSensorAsyncClient.Response<SampleData>> responses = new ArrayList<>();
+        for (Integer channel:channelsToPoll) {
+            responses.add(sensorDataCollector.getLastSample(channel));
+        }
+        
+        LastSamples lastSamples = new LastSamples(hostStatus);
+        for (int n = 0; n < channelsToPoll.size(); n++) {
+            lastSamples.sensorIds.add(channelsToPoll.get(n));
+            lastSamples.samples.add(responses.get(n).getResult());
+        }
+        
+        return lastSamples;
+    }
+
     private void processAndStoreSample(SampleData readSample, int channel, long now) {
         
         // Update sample value for that channel
@@ -281,7 +330,11 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
     private boolean checkAndConnectToHostServer() {
         
         // Check connection validity with host process and readyness 
-        HostStatus hostStatus = sensorDataCollector.getHostStatus();
+        return checkAndConnectToHostServer(sensorDataCollector.getHostStatus().getResult());
+    }
+    
+    private boolean checkAndConnectToHostServer(HostStatus hostStatus) {
+        
         if (hostStatus == null) {
             
             // Something goes wrong. Try to reconnect to sensor board
@@ -296,14 +349,6 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
             }
         }
         
-        // Periodically release the host connection seems increasing
-        // the host sensor stability
-        cumulatedPollsWithValidHostConnection++;
-        if (cumulatedPollsWithValidHostConnection > 3600) {
-            LOG.info((new Date()).toString() + ": Periodically reconnecting to sensor server");
-            reconnectToHostServer();
-        }
-        
         return true;
     }
 
@@ -316,7 +361,6 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
             return false;
         }
         
-        cumulatedPollsWithValidHostConnection = 0;
         return true;
     }
 
@@ -355,7 +399,7 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
         
         stop();
         
-        sensorDataCollector.stopSampling();
+        sensorDataCollector.stopSampling().getResult();
         gpsDataCollector.disconnect();
         sensorDataCollector.disconnect();
         dataPersister.stop();
@@ -365,7 +409,7 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
     private boolean getNumberOfConnectedSensors() {
         
         // Retrieve the number of sensors configured on remote sensorDataCollector process
-        numOfSensors = sensorDataCollector.getNumSensors();
+        numOfSensors = sensorDataCollector.getNumSensors().getResult();
         if ((numOfSensors == null) || (numOfSensors == 0)) {
             Date date = new Date();
             LOG.info(date.toString() + ": Error retrieving the number of configured sensors ");
@@ -378,7 +422,7 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
     private void getSensorBoardsInfo() {
         
         // Retrieve information about the connected sensor boards
-        boardInfo = sensorDataCollector.getSensorBoardsInfo();
+        boardInfo = sensorDataCollector.getSensorBoardsInfo().getResult();
         if ((boardInfo == null) || boardInfo.isEmpty()) {
             Date date = new Date();
             LOG.info(date.toString() + ": Error retrieving board information from the host. Board info will not be persisted ");
@@ -387,9 +431,15 @@ public class AirSensEURDataAggregatorEngine extends TaskScheduler {
 
     private void getSensorsConfigurationInfo() {
         
-        // Retrieve information about connected sensors
+        // Retrieve information about connected sensors. 
+        // All requests are queued at once; answers are collected in order
+        List<ChemSensorAsyncClient.Response<SensorConfig>> responses = new ArrayList<>();
+        for (int sensorId = 0; sensorId < numOfSensors; sensorId++) {
+            responses.add(sensorDataCollector.getSensorConfig(sensorId));
+        }
+        
         for (int sensorId = 0; sensorId < numOfSensors; sensorId++) {
-            SensorConfig sensorData = sensorDataCollector.getSensorConfig(sensorId);
+            SensorConfig sensorData = responses.get(sensorId).getResult();
             if (sensorData == null) {
                 Date date = new Date();
                 LOG.info(date.toString() + ": Error retrieving sensor information from the host. Sensor info for sensor Id " + sensorId + " will not be persisted ");
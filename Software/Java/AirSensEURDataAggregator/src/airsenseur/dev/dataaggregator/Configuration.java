@@ -80,6 +80,19 @@ public class Configuration extends Properties{
         return Integer.valueOf(port);
     }
     
+    // Max time (in ms) to wait for an answer from the sensor server
+    public long getSensorRequestTimeout() {
+        String timeout = getProperty("sensorRequestTimeout", "5000");
+        return Long.valueOf(timeout);
+    }
+    
+    // Send requests to the sensor server without waiting for the previous answers.
+    // Supported only by AirSensEURHost R2.2.0, or newer, with jsonServerType=MULTIPLEXED
+    public boolean getSensorRequestPipelining() {
+        String valString = getProperty("sensorRequestPipelining", "false");
+        return getBooleanValue(valString);
+    }
+    
     public String getGPSHostname() {
         return getProperty("gpshost", "localhost");
     }
@@ -24,6 +24,7 @@ package airsenseur.dev.dataaggregator.collectors;
 
 import airsenseur.dev.json.ChemSensorClient;
 import airsenseur.dev.json.HostStatus;
+import airsenseur.dev.json.LastSamples;
 import airsenseur.dev.json.SampleData;
 
 /**
@@ -48,5 +49,7 @@ public class SensorsDataCollectorTester {
         sample = collector.getLastSample(4);
         sample = collector.getLastSample(5);
         sample = collector.getLastSample(6);
+        
+        LastSamples lastSamples = collector.getLastSamples(null);
     }
 }
@@ -28,6 +28,7 @@ import airsenseur.dev.chemsensorhost.engine.ChemSensorHostEngine;
 import airsenseur.dev.chemsensorhost.exceptions.ConfigurationException;
 import airsenseur.dev.chemsensorhost.exceptions.JSONServerException;
 import airsenseur.dev.chemsensorhost.json.JSONServer;
+import airsenseur.dev.chemsensorhost.json.SampleStreamServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,7 +38,7 @@ import org.slf4j.LoggerFactory;
  */
 public class ChemSensorHostMain {
     
-    private static final String VERSION = "AirSensEUR Host R2.1.1";
+    private static final String VERSION = "AirSensEUR Host R2.2.0";
     
     /**
      * @param args the command line arguments
@@ -76,6 +77,19 @@ public class ChemSensorHostMain {
             return;
         }
         
+        // Start the sample stream service, if enabled
+        SampleStreamServer sampleStreamServer = new SampleStreamServer();
+        if (config.getSampleStreamPort() != 0) {
+            try {
+                sampleStreamServer.init(chemSensorHostEngine, 
+                                        config.getJSONBindAddress(), 
+                                        config.getSampleStreamPort());
+            } catch (JSONServerException ex) {
+                log.error(ex.getErrorMessage());
+                return;
+            }
+        }
+        
         // Loop in background (do nothing. All operations are made through callback)
         boolean bContinue = true;
         while (bContinue) {
@@ -87,6 +101,7 @@ public class ChemSensorHostMain {
         }
         
         // Exit gracefully
+        sampleStreamServer.stop();
         jsonServer.stop();        
         chemSensorHostEngine.exit();
         
@@ -25,7 +25,10 @@
 package airsenseur.dev.chemsensorhost;
 
 import airsenseur.dev.chemsensorhost.exceptions.ConfigurationException;
+import airsenseur.dev.chemsensorhost.json.JSONServer;
+import airsenseur.dev.chemsensorhost.sensors.SensorHistory;
 import airsenseur.dev.comm.AppDataMessage;
+import airsenseur.dev.comm.AppDataMessageQueue;
 import expr.Parser;
 import expr.SyntaxException;
 import java.io.FileInputStream;
@@ -65,6 +68,9 @@ public class Configuration extends Properties{
             String mathExpression = getMathExpressionForSensor(sensor);
             checkMathExpression(mathExpression);
         }
+        for (int sensor = 0; sensor < getNumHostSensors(); sensor++) {
+            checkMathExpression(getHostSensorMathExpression(sensor));
+        }
     }
     
     public boolean debugEnabled() {
@@ -106,6 +112,63 @@ public class Configuration extends Properties{
     }
     
     
+    public JSONServer.JSONServerType getJSONServerType() {
+        String valString = getProperty("jsonServerType", "MULTIPLEXED");
+        try {
+            return JSONServer.JSONServerType.valueOf(valString.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return JSONServer.JSONServerType.MULTIPLEXED;
+        }
+    }
+    
+    public int getJSONWorkerThreads() {
+        String valString = getProperty("jsonWorkerThreads", "10");
+        try {
+            return Integer.parseInt(valString);
+        } catch (NumberFormatException e) {
+            return 10;
+        }
+    }
+    
+    // Threads handling calls waiting for the sensor bus (sendRawData, for example)
+    public int getJSONBlockingWorkerThreads() {
+        String valString = getProperty("jsonBlockingWorkerThreads", "4");
+        try {
+            return Integer.parseInt(valString);
+        } catch (NumberFormatException e) {
+            return 4;
+        }
+    }
+    
+    public int getJSONMaxConnections() {
+        String valString = getProperty("jsonMaxConnections", "64");
+        try {
+            return Integer.parseInt(valString);
+        } catch (NumberFormatException e) {
+            return 64;
+        }
+    }
+    
+    // In seconds. Zero never closes idle connections
+    public int getJSONConnectionTimeout() {
+        String valString = getProperty("jsonConnectionTimeout", "900");
+        try {
+            return Integer.parseInt(valString);
+        } catch (NumberFormatException e) {
+            return 900;
+        }
+    }
+    
+    // Zero, the default, disables the sample stream server
+    public int getSampleStreamPort() {
+        String port = getProperty("sampleStreamPort", "0");
+        try {
+            return Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
     public String getMathExpressionForSensor(int sensor) {
         String key = String.format("sensorexpression_%02d", sensor);
         return getProperty(key, "");
@@ -172,6 +235,48 @@ public class Configuration extends Properties{
         return getBooleanValue(valString);
     }
     
+    // Additional host channels read from files (i.e. sysfs or hwmon attributes)
+    public int getNumHostSensors() {
+        String valString = getProperty("numHostSensors", "0");
+        try {
+            return Integer.parseInt(valString);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    public String getHostSensorPath(int sensor) {
+        String key = String.format("hostsensorpath_%02d", sensor);
+        return getProperty(key, "");
+    }
+    
+    public String getHostSensorName(int sensor) {
+        String key = String.format("hostsensorname_%02d", sensor);
+        return getProperty(key, String.format("HOST%02d", sensor));
+    }
+    
+    public String getHostSensorUnits(int sensor) {
+        String key = String.format("hostsensorunits_%02d", sensor);
+        return getProperty(key, "");
+    }
+    
+    public String getHostSensorMathExpression(int sensor) {
+        String key = String.format("hostsensorexpression_%02d", sensor);
+        return getProperty(key, "x");
+    }
+    
+    // In milliseconds
+    public int getHostSensorSamplingPeriod(int sensor) {
+        String key = String.format("hostsensorperiod_%02d", sensor);
+        String valString = getProperty(key, "60000");
+        try {
+            int period = Integer.parseInt(valString);
+            return (period > 0)? period : 60000;
+        } catch (NumberFormatException e) {
+            return 60000;
+        }
+    }
+    
     public boolean getHiResSample(int sensor) {
         String key = String.format("sensorhires_%02d", sensor);
         String valString = getProperty(key, "false");
@@ -184,6 +289,55 @@ public class Configuration extends Properties{
         return getBooleanValue(valString);
     }
     
+    public boolean useSensorBusReaderThread() {
+        String valString = getProperty("sensorBusReaderThread", "false");
+        return getBooleanValue(valString);
+    }
+    
+    public int getSensorBusRequestWindow() {
+        String valString = getProperty("sensorBusRequestWindow", "1");
+        try {
+            return Integer.parseInt(valString);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+    
+    public AppDataMessageQueue.waitStrategies getSensorBusWaitStrategy() {
+        String valString = getProperty("sensorBusWaitStrategy", "BLOCKING");
+        try {
+            return AppDataMessageQueue.waitStrategies.valueOf(valString.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return AppDataMessageQueue.waitStrategies.BLOCKING;
+        }
+    }
+    
+    // In seconds. Zero disables the periodic summary
+    public int getSensorBusStatisticsPeriod() {
+        String valString = getProperty("sensorBusStatisticsPeriod", "900");
+        try {
+            return Integer.parseInt(valString);
+        } catch (NumberFormatException e) {
+            return 900;
+        }
+    }
+    
+    // Number of samples kept in memory for each sensor
+    public int getSensorHistorySize() {
+        String valString = getProperty("sensorHistorySize", "" + SensorHistory.DEFAULT_SIZE);
+        try {
+            int size = Integer.parseInt(valString);
+            return (size > 0)? size : SensorHistory.DEFAULT_SIZE;
+        } catch (NumberFormatException e) {
+            return SensorHistory.DEFAULT_SIZE;
+        }
+    }
+    
+    // File keeping boards and sensors information between restarts. Empty disables warm starts
+    public String getDiscoverySnapshotFile() {
+        return getProperty("discoverySnapshotFile", "").trim();
+    }
+    
     private boolean getBooleanValue(String valString) {
         if ((valString.compareToIgnoreCase("true") == 0) || (valString.compareToIgnoreCase("yes") == 0)) {
             return true;
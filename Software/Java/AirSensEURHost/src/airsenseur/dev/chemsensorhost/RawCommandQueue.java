@@ -22,114 +22,356 @@
  * ===========================================================================
  */
 
+
 package airsenseur.dev.chemsensorhost;
 
 import airsenseur.dev.comm.AppDataMessage;
+import airsenseur.dev.comm.PendingRequests;
 import airsenseur.dev.comm.ShieldProtocolLayer;
 import airsenseur.dev.exceptions.SensorBusException;
 import airsenseur.dev.json.RawCommand;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Communications within SensorBus are asynchronous. 
  * When an external application wants to read parameters stored on SensorBus 
  * connected boards, a logic to match requests and answers is needed.
  * This is what RawCommandQueue implements.
+ * Commands are pipelined: each one is rendered to the bus without waiting for 
+ * the previous answer, up to MAX_IN_FLIGHT unanswered commands. Commands lists 
+ * submitted by concurrent callers are served round robin.
+ * Answers are correlated with the oldest pending command with the same 
+ * board, answer identifier and channel.
+ * Commands are selected with the queue lock held, but rendered to the bus 
+ * by the callers' threads after releasing it, one thread at a time and in order, 
+ * so a full bus queue never blocks the processing of incoming answers.
  * @author marco
  */
 public class RawCommandQueue {
     
-    private static class MessageContainer {
+    // Max time (in ms) a command waits for its answer once it became
+    // the oldest unanswered command sent to its board
+    private static final long ANSWER_TIMEOUT = 1000;
+    
+    // Max number of commands rendered to the bus and still waiting for an answer
+    private static final int MAX_IN_FLIGHT = 16;
+    
+    /**
+     * Completion of a single raw command.
+     * It completes with the answered command or with null if the board did not answer in time.
+     */
+    public class PendingCommand implements Future<RawCommand> {
         
-        private AppDataMessage dataMessage = null;
-        private boolean acknowledged = false;
+        private final AppDataMessage dataMessage;
+        private final long correlationKey;
+        private CommandStream stream;
+        private boolean sent = false;
+        private boolean done = false;
+        private boolean cancelled = false;
+        private RawCommand result = null;
         
-        public void setDataMessage(AppDataMessage dataMessage) {
-            this.dataMessage = dataMessage;
-            acknowledged = false;
+        private PendingCommand(RawCommand command, CommandStream stream) {
+            this.dataMessage = new AppDataMessage(command.boardId, command.commandString, command.commandString);
+            this.correlationKey = ShieldProtocolLayer.getCorrelationKey(command.boardId, command.commandString);
+            this.stream = stream;
         }
         
-        public AppDataMessage getDataMessage() {
-            return dataMessage;
+        private void complete(RawCommand result) {
+            this.result = result;
+            this.done = true;
+            this.stream = null;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized(RawCommandQueue.this) {
+                if (done || sent) {
+                    return false;
+                }
+                
+                stream.remove(this);
+                cancelled = true;
+                complete(null);
+                RawCommandQueue.this.notifyAll();
+                
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized(RawCommandQueue.this) {
+                return cancelled;
+            }
+        }
+
+        @Override
+        public boolean isDone() {
+            synchronized(RawCommandQueue.this) {
+                return done;
+            }
+        }
+
+        // Commands selected while waiting are rendered before leaving
+        @Override
+        public RawCommand get() throws InterruptedException {
+            boolean completed = false;
+            while (!completed) {
+                render();
+                synchronized(RawCommandQueue.this) {
+                    completed = waitFor(this, 0);
+                }
+            }
+            render();
+            return getResult();
+        }
+
+        @Override
+        public RawCommand get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            long endTime = System.currentTimeMillis() + unit.toMillis(timeout);
+            boolean completed = false;
+            while (!completed) {
+                render();
+                synchronized(RawCommandQueue.this) {
+                    completed = waitFor(this, endTime);
+                }
+                if (!completed && (System.currentTimeMillis() >= endTime)) {
+                    render();
+                    throw new TimeoutException();
+                }
+            }
+            render();
+            return getResult();
         }
         
-        public void setAcknowledged() {
-            acknowledged = true;
-            this.dataMessage = null;
+        // Should be called once completed
+        private RawCommand getResult() {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            return result;
         }
+    }
+    
+    // Commands submitted together, sent in order
+    private static class CommandStream {
+        private final Deque<PendingCommand> toBeSent = new ArrayDeque<>();
         
-        public boolean isAcknowledged() {
-            return acknowledged;
+        private void remove(PendingCommand command) {
+            toBeSent.remove(command);
         }
     }
 
-    private final Semaphore mutex = new Semaphore(1);    
     private final ShieldProtocolLayer protocolHelper;
-    private final MessageContainer messageContainer = new MessageContainer();
+    
+    // Streams with commands to be sent, served round robin
+    private final Deque<CommandStream> streams = new ArrayDeque<>();
+    
+    // Commands sent and waiting for an answer
+    private final PendingRequests<PendingCommand> inFlight = new PendingRequests<>(ANSWER_TIMEOUT);
+    
+    // Commands selected to be sent, waiting to be rendered to the bus, 
+    // and the rendering status (only one thread renders at a time)
+    private final Deque<PendingCommand> toBeRendered = new ArrayDeque<>();
+    private boolean rendering = false;
+    
+    private final Logger log = LoggerFactory.getLogger(RawCommandQueue.class);
     
     public RawCommandQueue(ShieldProtocolLayer protocolHelper) {
         this.protocolHelper = protocolHelper;
     }
     
-    public List<RawCommand> sendCommandList(List<RawCommand> list) throws InterruptedException, SensorBusException {
+    // Queue a command. It's sent as soon as the pipeline allows it
+    public Future<RawCommand> submitCommand(RawCommand command) {
+        return submit(Collections.singletonList(command)).get(0);
+    }
+    
+    // Queue a commands list. Commands are sent in order and interleaved
+    // with commands lists submitted by other callers
+    public List<Future<RawCommand>> submitCommandList(List<RawCommand> list) {
+        return new ArrayList<Future<RawCommand>>(submit(list));
+    }
+    
+    // Send a commands list and wait for all answers. 
+    // Commands not answered in time are not reported in the result
+    public List<RawCommand> sendCommandList(List<RawCommand> list) throws InterruptedException {
         
         List<RawCommand> result = new ArrayList<>();
         
-        // Wait if previous list has not completed
-        mutex.tryAcquire(10, TimeUnit.SECONDS);
+        for (PendingCommand command:submit(list)) {
+            RawCommand answer = command.get();
+            if (answer != null) {
+                result.add(answer);
+            }
+        }
+        
+        return result;
+    }    
+    
+    
+    // Handle messages coming from the SensorBus. 
+    // Further commands are selected here, but rendered by the waiting callers
+    public synchronized boolean onNewMessageReady(AppDataMessage dataMessage) {
         
-        // Loop on all messages to be sent
+        if (inFlight.isEmpty()) {
+            return false;
+        }
+        
+        // Commands sent to an undefined board are answered by any board
+        PendingCommand pending = inFlight.complete(ShieldProtocolLayer.getCorrelationKey(dataMessage.getBoardId(), dataMessage.getCommandData()));
+        if ((pending == null) && (dataMessage.getBoardId() != AppDataMessage.BOARD_ID_UNDEFINED)) {
+            pending = inFlight.complete(ShieldProtocolLayer.getCorrelationKey(AppDataMessage.BOARD_ID_UNDEFINED, dataMessage.getCommandData()));
+        }
+        
+        if (pending == null) {
+            return false;
+        }
+        
+        AppDataMessage pivot = pending.dataMessage;
+        pivot.setCommandString(dataMessage.getCommandString());
+        pending.complete(new RawCommand(pivot.getBoardId(), pivot.getCommandString(), pivot.getCommandComment()));
+        
+        sendPending();
+        notifyAll();
+        
+        return true;
+    }
+    
+    private List<PendingCommand> submit(List<RawCommand> list) {
+        
+        CommandStream stream = new CommandStream();
+        List<PendingCommand> result = new ArrayList<>(list.size());
         for (RawCommand command:list) {
-            AppDataMessage dataMessage = new AppDataMessage(command.boardId, command.commandString, command.commandString);
-            
-            // Send current message and wait for answer
-            synchronized(messageContainer) {
-                messageContainer.setDataMessage(dataMessage);
-                protocolHelper.renderRawData(dataMessage);
-                
-                // Wait for acknowledge
-                long curTime = System.currentTimeMillis();
-                while (!messageContainer.isAcknowledged() && (System.currentTimeMillis() - curTime) < 1000) {
-                    messageContainer.wait(100);
-                }
-                
-                // If message has been acknowledged, generate a result
-                if (messageContainer.isAcknowledged()) {
-                    RawCommand rawCommand = new RawCommand(dataMessage.getBoardId(), dataMessage.getCommandString(), dataMessage.getCommandComment());
-                    result.add(rawCommand);
-                }
+            PendingCommand pending = new PendingCommand(command, stream);
+            stream.toBeSent.add(pending);
+            result.add(pending);
+        }
+        
+        synchronized(this) {
+            if (!stream.toBeSent.isEmpty()) {
+                streams.addLast(stream);
             }
+
+            expireAndSend(System.currentTimeMillis());
         }
         
-        // Release mutex 
-        mutex.release();
+        render();
         
         return result;
-    }    
+    }
     
+    // Wait for command completion, driving the pipeline while waiting. 
+    // It returns true when completed, false if woken up before completion
+    // or if selected commands should be rendered by the caller.
+    // Should be called with the queue lock held
+    private boolean waitFor(PendingCommand command, long endTime) throws InterruptedException {
+        
+        long now = System.currentTimeMillis();
+        expireAndSend(now);
+        if (command.done) {
+            return true;
+        }
+        if (!rendering && !toBeRendered.isEmpty()) {
+            return false;
+        }
+        
+        long waitUntil = inFlight.getNextDeadline(now + ANSWER_TIMEOUT);
+        if ((endTime != 0) && (endTime < waitUntil)) {
+            waitUntil = endTime;
+        }
+        if (waitUntil > now) {
+            wait(waitUntil - now);
+        }
+        
+        return command.done;
+    }
     
-    // Handle messages coming from the SensorBus
-    public boolean onNewMessageReady(AppDataMessage dataMessage) {
+    // Drop commands that have not been answered in time, then fill the pipeline
+    private void expireAndSend(long now) {
+        
+        for (PendingCommand expired:inFlight.expire(now)) {
+            log.info("Raw command " + expired.dataMessage.getCommandString() + " to board " + expired.dataMessage.getBoardId() + " not answered");
+            expired.complete(null);
+        }
         
-        boolean result = false;
+        sendPending();
+    }
+    
+    // Select queued commands, one per stream, until the pipeline is full
+    private void sendPending() {
         
-        AppDataMessage pivot;
-        synchronized(messageContainer) {
+        while ((inFlight.size() < MAX_IN_FLIGHT) && !streams.isEmpty()) {
+            
+            CommandStream stream = streams.pollFirst();
+            PendingCommand command = stream.toBeSent.pollFirst();
+            if (!stream.toBeSent.isEmpty()) {
+                streams.addLast(stream);
+            }
             
-            pivot = messageContainer.getDataMessage();
-            if ((pivot != null) && pivot.compareDataMessages(dataMessage)) {
+            if (command != null) {
+                send(command);
+            }
+        }
+    }
+    
+    // Track the command before rendering it so the answer can't be missed
+    private void send(PendingCommand command) {
+        
+        command.sent = true;
+        inFlight.add(command.dataMessage.getBoardId(), command.correlationKey, command);
+        toBeRendered.addLast(command);
+    }
+    
+    // Render the selected commands, in order, without holding the queue lock. 
+    // If another thread is already rendering, it will take care of them.
+    // Should be called without the queue lock held
+    private void render() {
+        
+        synchronized(this) {
+            if (rendering || toBeRendered.isEmpty()) {
+                return;
+            }
+            rendering = true;
+        }
+        
+        try {
+            while (true) {
                 
-                pivot.setCommandString(dataMessage.getCommandString());
-                messageContainer.setAcknowledged();
-                messageContainer.notify();
+                PendingCommand command;
+                synchronized(this) {
+                    command = toBeRendered.pollFirst();
+                    if (command == null) {
+                        rendering = false;
+                        return;
+                    }
+                }
 
-                result = true;
+                try {
+                    protocolHelper.renderRawData(command.dataMessage);
+                } catch (SensorBusException ex) {
+                    synchronized(this) {
+                        inFlight.remove(command.correlationKey, command);
+                        command.complete(null);
+                        sendPending();
+                        notifyAll();
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            synchronized(this) {
+                rendering = false;
             }
+            throw ex;
         }
-        
-        return result;
     }
 }
@@ -32,7 +32,9 @@ import airsenseur.dev.comm.AppDataMessage;
 import airsenseur.dev.comm.ShieldProtocolLayer;
 import airsenseur.dev.exceptions.GenericException;
 import airsenseur.dev.exceptions.SensorBusException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,17 +47,16 @@ public class ChemSensorEngineStateAutodiscover implements ChemSensorEngineState
 
     private final Logger log = LoggerFactory.getLogger(ChemSensorEngineStateAutodiscover.class);
     
-    private final static int WAIT_BOARDID_ANSWERS_TIMEOUT = 5000; /* in milliseconds */
-    private final static int WAIT_BOARDID_INQUIRY_TIMEOUT = 20000;  /* in milliseconds */
-    private final static int WAIT_CHANNEL_INQUIRY_TIMEOUT = 35000; /* in milliseconds */
+    private final static int WAIT_SBUS_ANSWERS_TIMEOUT = 60000; /* in milliseconds */
+    private final static int MAX_INQUIRY_RETRIES = 2;
+    private final static int MIN_IDLE_STEPS = 2;
+    private final static int NUM_SBUS_BOARD_IDS = AppDataMessage.MAX_VALID_BOARD_ID_ON_SBUS - AppDataMessage.MIN_VALID_BOARD_ID_ON_SBUS + 1;
 
     private enum Substate {
+        START_VALIDATING_SNAPSHOT,
+        WAIT_SNAPSHOT_ANSWERS,
         START_DISCOVERING_BOARDS, 
-        WAIT_BOARD_ANSWERS,
-        INQUIRY_SBUS_BOARDS_INFO,
-        WAIT_SBUS_BOARDS_INFO_ANSWERS,
-        INQUIRY_SBUS_CHANNELS,
-        WAIT_SBUS_CHANNELS_ANSWERS,
+        WAIT_SBUS_ANSWERS,
         COLLECTION_READY,
         TERMINATED,
     };
@@ -64,6 +65,16 @@ public class ChemSensorEngineStateAutodiscover implements ChemSensorEngineState
     private Substate substate = Substate.START_DISCOVERING_BOARDS;
     private long timer = 0;
     
+    // Boards found but not inquired yet
+    private final List<SensorBoardInfo> newBoards = new ArrayList<>();
+    
+    // Boards found when validating the warm start snapshot
+    private final HashMap<Integer, SensorBoardInfo> foundBoards = new HashMap<>();
+    
+    // Consecutive steps with no pending requests on the sensor bus and inquiry retries
+    private int idleSteps = 0;
+    private int retries = 0;
+    
     @Override
     public void init(ChemSensorHostEngine parent) {
         this.parent = parent;
@@ -76,95 +87,124 @@ public class ChemSensorEngineStateAutodiscover implements ChemSensorEngineState
     }
     
     @Override
-    public boolean enter() throws GenericException {
+    public synchronized boolean enter() throws GenericException {
         
         // Clear all collected board and sensors info
         parent.getBoards().clear();
         parent.getSensors().clear();
+        newBoards.clear();
+        foundBoards.clear();
         
-        // Start with discovery
-        substate = Substate.START_DISCOVERING_BOARDS;
+        // Start with discovery, or with a cheap validation of the last discovery results, if available
+        DiscoverySnapshot snapshot = parent.getDiscoverySnapshot();
+        if ((snapshot != null) && snapshot.load()) {
+            substate = Substate.START_VALIDATING_SNAPSHOT;
+        } else {
+            substate = Substate.START_DISCOVERING_BOARDS;
+        }
         
         return true;
     }
 
+    // Boards are inquired as soon as they answer to the discovery, so information
+    // from the first boards is collected while the others are still being probed.
+    // The discovery completes when all information is available and all requests 
+    // (including the probes to missing boards) have been answered or expired. 
+    // Missing information is asked again a few times before giving up.
     @Override
     public synchronized boolean inquirySensors() throws GenericException {
         
         switch (substate) {
-            case START_DISCOVERING_BOARDS: {
+            case START_VALIDATING_SNAPSHOT: {
                 
-                discoverBoardsOnSensorBus();
+                validateSnapshotOnSensorBus();
                 
                 // Wait for all answers or timeout
-                timer = System.currentTimeMillis();                
-                substate = Substate.WAIT_BOARD_ANSWERS;
-            }
-            break;
-            
-            case WAIT_BOARD_ANSWERS: {
-
-                if (((System.currentTimeMillis() - timer) > WAIT_BOARDID_ANSWERS_TIMEOUT) ||
-                        parent.getBoards().size() == (AppDataMessage.MAX_VALID_BOARD_ID_ON_SBUS - AppDataMessage.MIN_VALID_BOARD_ID_ON_SBUS)) {
-                    
-                    // Timeout occurred or the maximum number of availabe boards on Sensor Bus have been detected
-                    timer = System.currentTimeMillis();
-                    substate = Substate.INQUIRY_SBUS_BOARDS_INFO;
-                }
+                timer = System.currentTimeMillis();
+                idleSteps = 0;
+                substate = Substate.WAIT_SNAPSHOT_ANSWERS;
             }
             break;
             
-            
-            case INQUIRY_SBUS_BOARDS_INFO: {
+            case WAIT_SNAPSHOT_ANSWERS: {
                 
-                inquiryBoardsOnSensorBus();
+                idleSteps = (parent.isSensorBusIdle())? idleSteps + 1 : 0;
+                boolean busIdle = (idleSteps >= MIN_IDLE_STEPS);
+                boolean allBoardsFound = (foundBoards.size() == NUM_SBUS_BOARD_IDS);
                 
-                // Wait for all answers or timeout
-                timer = System.currentTimeMillis();
-                substate = Substate.WAIT_SBUS_BOARDS_INFO_ANSWERS;
-            }
-            break;
-            
-            case WAIT_SBUS_BOARDS_INFO_ANSWERS: {
+                Boolean valid = checkSnapshotValidity(busIdle || allBoardsFound);
+                if ((valid == null) && ((System.currentTimeMillis() - timer) > WAIT_SBUS_ANSWERS_TIMEOUT)) {
+                    valid = false;
+                }
                 
-                // Handle timeout
-                if ((System.currentTimeMillis() - timer) > WAIT_BOARDID_INQUIRY_TIMEOUT) {
-
-                    log.info("Timeout occurred when inquirying board information. Board info-set may not be completed.");
-                    timer = System.currentTimeMillis();
-                    substate = Substate.INQUIRY_SBUS_CHANNELS;
-                } 
+                if (valid == null) {
+                    break;
+                }
                 
-                // Check for all data availability in order to proceed on next step
-                if (checkBoardInfoValidity()) {
+                if (valid) {
+                    log.info("Discovery snapshot validated in " + (System.currentTimeMillis() - timer) + " ms");
+                    restoreFromSnapshot();
+                    
+                    // Inquiry what is missing in the snapshot, if any
                     timer = System.currentTimeMillis();
-                    substate = Substate.INQUIRY_SBUS_CHANNELS;
+                    idleSteps = 0;
+                    retries = 0;
+                    discoverChannelsOnSensorBus();
+                    substate = Substate.WAIT_SBUS_ANSWERS;
+                    
+                } else {
+                    log.info("Boards on Sensor Bus don't match the discovery snapshot. Discovering again");
+                    substate = Substate.START_DISCOVERING_BOARDS;
                 }
             }
             break;
             
-            case INQUIRY_SBUS_CHANNELS: {
+            case START_DISCOVERING_BOARDS: {
                 
-                discoverChannelsOnSensorBus();
+                discoverBoardsOnSensorBus();
                 
                 // Wait for all answers or timeout
                 timer = System.currentTimeMillis();
-                substate = Substate.WAIT_SBUS_CHANNELS_ANSWERS;
+                idleSteps = 0;
+                retries = 0;
+                substate = Substate.WAIT_SBUS_ANSWERS;
             }
             break;
             
-            case WAIT_SBUS_CHANNELS_ANSWERS : {
+            case WAIT_SBUS_ANSWERS: {
                 
-                if ((System.currentTimeMillis() - timer) > WAIT_CHANNEL_INQUIRY_TIMEOUT) {
-                    log.info("Timeout occurred when inquirying channel information. Channel info-set may not be completed.");
-
-                    // Proceed with collected data analysis
-                    substate = Substate.COLLECTION_READY;
-                } 
+                // Inquiry boards found since last step
+                inquiryNewBoardsOnSensorBus();
                 
-                // Check for all data availability in order to proceed on next step
-                if (checkChannelInfoValidity()) {
+                idleSteps = (parent.isSensorBusIdle())? idleSteps + 1 : 0;
+                boolean busIdle = (idleSteps >= MIN_IDLE_STEPS);
+                boolean allBoardsFound = (parent.getBoards().size() == NUM_SBUS_BOARD_IDS);
+                boolean infoValid = checkBoardInfoValidity() && checkChannelInfoValidity();
+                
+                if (infoValid && (busIdle || allBoardsFound)) {
+                    
+                    // All boards on Sensor Bus have been probed and all answers are available
+                    log.info("Sensor Bus discovery completed in " + (System.currentTimeMillis() - timer) + " ms");
+                    substate = Substate.COLLECTION_READY;
+                    
+                } else if ((System.currentTimeMillis() - timer) > WAIT_SBUS_ANSWERS_TIMEOUT) {
+                    
+                    log.info("Timeout occurred when inquirying boards and channel information. Info-set may not be completed.");
                     substate = Substate.COLLECTION_READY;
+                    
+                } else if (busIdle && !infoValid) {
+                    
+                    // Some answers are missing. Ask them again, if worth it
+                    if (retries < MAX_INQUIRY_RETRIES) {
+                        retries++;
+                        log.info("Some boards and channel information are missing. Inquiry again");
+                        inquiryBoardsOnSensorBus();
+                        discoverChannelsOnSensorBus();
+                        idleSteps = 0;
+                    } else {
+                        log.info("No answers for some boards and channel information. Info-set may not be completed.");
+                        substate = Substate.COLLECTION_READY;
+                    }
                 }
             }
             break;
@@ -189,22 +229,11 @@ public class ChemSensorEngineStateAutodiscover implements ChemSensorEngineState
     @Override
     public synchronized boolean evaluateAnswer(AppDataMessage rxMessage) throws GenericException {
         
-        switch (substate) {
-            case WAIT_BOARD_ANSWERS: {
-
-                evaluateBoardIDAnswerOnSensorBus(rxMessage);
-                
-            }
-            break;
-            
-            case WAIT_SBUS_BOARDS_INFO_ANSWERS: {
-                
-                evaluateInquiryBoardsOnSensorBus(rxMessage);
-            }
-            break;
+        if (substate == Substate.WAIT_SNAPSHOT_ANSWERS) {
+            evaluateSnapshotAnswerOnSensorBus(rxMessage);
             
-            case WAIT_SBUS_CHANNELS_ANSWERS: {
-                
+        } else if (substate == Substate.WAIT_SBUS_ANSWERS) {
+            if (!evaluateBoardIDAnswerOnSensorBus(rxMessage) && !evaluateInquiryBoardsOnSensorBus(rxMessage)) {
                 evaluateInquiryChannelsOnSensorBus(rxMessage);
             }
         }
@@ -217,6 +246,105 @@ public class ChemSensorEngineStateAutodiscover implements ChemSensorEngineState
     }
     
     
+    // Boards are asked for their type, serial number and firmware version only
+    private void validateSnapshotOnSensorBus() throws GenericException {
+        
+        log.info("Validating the discovery snapshot on Sensor Bus");
+        
+        foundBoards.clear();
+        discoverBoardsOnSensorBus();
+        
+        ShieldProtocolLayer sensorBus = parent.getSensorBusProtocolLayer();
+        for (Integer boardId : parent.getDiscoverySnapshot().getBoards().keySet()) {
+            sensorBus.renderReadFirmwareVersion(boardId);
+            sensorBus.renderReadBoardSerialNumber(boardId);
+        }
+    }
+    
+    private void evaluateSnapshotAnswerOnSensorBus(AppDataMessage rxMessage) {
+        
+        ShieldProtocolLayer sensorBus = parent.getSensorBusProtocolLayer();
+        
+        for (int boardId = AppDataMessage.MIN_VALID_BOARD_ID_ON_SBUS; 
+                boardId <= AppDataMessage.MAX_VALID_BOARD_ID_ON_SBUS; boardId++) {
+            
+            List<Integer> result = sensorBus.evalReadBoardType(rxMessage, boardId);
+            if ((result != null) && (result.size() == 2)) {
+                if (!foundBoards.containsKey(boardId)) {
+                    foundBoards.put(boardId, new SensorBoardInfo(boardId, result.get(0), result.get(1)));
+                }
+                return;
+            }
+        }
+        
+        for (SensorBoardInfo board : foundBoards.values()) {
+            
+            int boardId = board.getBoardId();
+            
+            String firmwareVersion = sensorBus.evalReadFirmwareVersion(rxMessage, boardId);
+            if (firmwareVersion != null) {
+                board.getFirmware().autodiscoveredValue(firmwareVersion);
+                return;
+            } 
+            
+            String boardSerialNumber = sensorBus.evalReadBoardSerialNumber(rxMessage, boardId);
+            if (boardSerialNumber != null) {
+                board.getSerial().autodiscoveredValue(boardSerialNumber);
+                return;
+            }
+        }
+    }
+    
+    // Returns false as soon as a board differs from the snapshot, true when all answers 
+    // have been received and only the boards in the snapshot have been identified, 
+    // null if not decided yet
+    private Boolean checkSnapshotValidity(boolean allAnswersReceived) {
+        
+        DiscoverySnapshot snapshot = parent.getDiscoverySnapshot();
+        for (SensorBoardInfo board : foundBoards.values()) {
+            if (!snapshot.matches(board)) {
+                return false;
+            }
+        }
+        
+        if (!allAnswersReceived) {
+            return null;
+        }
+        
+        boolean complete = (foundBoards.size() == snapshot.getBoards().size());
+        for (SensorBoardInfo board : foundBoards.values()) {
+            complete &= board.getSerial().isSet() && board.getFirmware().isSet();
+        }
+        
+        return complete;
+    }
+    
+    // Fill the boards and sensors information with values found in the snapshot
+    private void restoreFromSnapshot() {
+        
+        DiscoverySnapshot snapshot = parent.getDiscoverySnapshot();
+        for (SensorBoardInfo board : snapshot.getBoards().values()) {
+            
+            int boardId = board.getBoardId();
+            parent.getBoards().put(boardId, board);
+            
+            for (int channel = 0; channel < board.getNumOfChannels(); channel++) {
+                SensorInfo sensorInfo = new SensorInfo();
+                SensorConfig sensorConfig = sensorInfo.getSensorConfig();
+                sensorConfig.init(boardId, channel);
+                
+                for (SensorConfig snapshotSensor : snapshot.getSensors()) {
+                    if ((snapshotSensor.getBoardId() == boardId) && (snapshotSensor.getChannel() == channel)) {
+                        DiscoverySnapshot.restore(snapshotSensor, sensorConfig);
+                        break;
+                    }
+                }
+                
+                parent.getSensors().add(sensorInfo);
+            }
+        }
+    }
+    
     private void discoverBoardsOnSensorBus() throws GenericException {
         
         log.info("Discovering boards on Sensor Bus");
@@ -229,7 +357,7 @@ public class ChemSensorEngineStateAutodiscover implements ChemSensorEngineState
     }
     
     
-    private void evaluateBoardIDAnswerOnSensorBus(AppDataMessage rxMessage) {
+    private boolean evaluateBoardIDAnswerOnSensorBus(AppDataMessage rxMessage) {
     
         for (int boardId = AppDataMessage.MIN_VALID_BOARD_ID_ON_SBUS; 
                 boardId <= AppDataMessage.MAX_VALID_BOARD_ID_ON_SBUS; boardId++) {
@@ -239,8 +367,15 @@ public class ChemSensorEngineStateAutodiscover implements ChemSensorEngineState
                 Integer boardType = result.get(0);
                 Integer numChannels = result.get(1);
                 
+                // Ignore duplicated answers
+                if (parent.getBoards().containsKey(boardId)) {
+                    return true;
+                }
+                
                 // Update the list of known boards
-                parent.getBoards().put(boardId, new SensorBoardInfo(boardId, boardType, numChannels));
+                SensorBoardInfo board = new SensorBoardInfo(boardId, boardType, numChannels);
+                parent.getBoards().put(boardId, board);
+                newBoards.add(board);
                 log.info("Found board " + ShieldProtocolLayer.getBoardTypeString(boardType) + "  with ID " + boardId + " and num channels " + numChannels);
                 
                 // Add the required number of channels in the sensors list
@@ -249,9 +384,34 @@ public class ChemSensorEngineStateAutodiscover implements ChemSensorEngineState
                     sensorInfo.getSensorConfig().init(boardId, channel);
                     parent.getSensors().add(sensorInfo);
                 }
-                break;
+                return true;
             }
         }
+        
+        return false;
+    }
+    
+    private void inquiryNewBoardsOnSensorBus() throws SensorBusException {
+        
+        ShieldProtocolLayer sensorBus = parent.getSensorBusProtocolLayer();
+        
+        for (SensorBoardInfo board : newBoards) {
+            
+            int boardId = board.getBoardId();
+            
+            sensorBus.renderReadFirmwareVersion(boardId);
+            sensorBus.renderReadBoardSerialNumber(boardId);
+            
+            for (int channel = 0; channel < board.getNumOfChannels(); channel++) {
+                sensorBus.renderSensorInquiry(boardId, channel);
+                sensorBus.renderReadSensorSerialNumber(boardId, channel);
+                sensorBus.renderReadSamplePeriod(boardId, channel);
+                sensorBus.renderReadUnits(boardId, channel);
+                sensorBus.renderReadChannelEnable(boardId, channel);
+            }
+        }
+        
+        newBoards.clear();
     }
     
     
@@ -35,6 +35,7 @@ import airsenseur.dev.comm.AppDataMessage;
 import airsenseur.dev.comm.ShieldProtocolLayer;
 import airsenseur.dev.exceptions.GenericException;
 import airsenseur.dev.exceptions.SensorBusException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -48,6 +49,8 @@ import org.slf4j.LoggerFactory;
 public class ChemSensorEngineStateReadConfig implements ChemSensorEngineState {
     
     private final static int WAIT_CHANNEL_INQUIRY_TIMEOUT = 20000; /* in milliseconds */
+    private final static int MAX_INQUIRY_RETRIES = 2;
+    private final static int MIN_IDLE_STEPS = 2;
     
     private ChemSensorHostEngine parent;
     private final Logger log = LoggerFactory.getLogger(ChemSensorEngineStateReadConfig.class);
@@ -60,6 +63,13 @@ public class ChemSensorEngineStateReadConfig implements ChemSensorEngineState {
     };
     private Substate substate = Substate.INQUIRY_SBUS_CHANNELS;
     private long timer = 0;
+    private int idleSteps = 0;
+    private int retries = 0;
+    
+    // Boards whose channel information has been restored from the discovery snapshot,
+    // waiting to be validated, and boards found different from the snapshot
+    private final List<Integer> restoredBoards = new ArrayList<>();
+    private final List<Integer> changedBoards = new ArrayList<>();
 
     @Override
     public void init(ChemSensorHostEngine parent) {
@@ -121,6 +131,9 @@ public class ChemSensorEngineStateReadConfig implements ChemSensorEngineState {
         // Sort the sensors list by boardId and channel
         Collections.sort(sensors, new SensorInfoSorter());
         
+        // Warm start, if possible
+        restoreFromSnapshot();
+        
         // Start inquirying names and serials
         substate = Substate.INQUIRY_SBUS_CHANNELS;
         timer = System.currentTimeMillis();
@@ -140,19 +153,41 @@ public class ChemSensorEngineStateReadConfig implements ChemSensorEngineState {
                 
                 // Wait for all answers or timeout
                 timer = System.currentTimeMillis();                
+                idleSteps = 0;
+                retries = 0;
                 substate = Substate.WAIT_SBUS_CHANNELS_ANSWERS;
             }
             break;
             
             case WAIT_SBUS_CHANNELS_ANSWERS: {
                 
-                if (!checkChannelInfoValidity()) {
+                // Boards not matching the snapshot should be inquired as usual
+                inquiryChangedBoardsOnSensorBus();
+                
+                if (!checkChannelInfoValidity() || !checkRestoredBoardsValidity()) {
                     
+                    // Don't wait for the timeout if all requests have been answered or expired.
+                    // Ask missing information again a few times, then proceed with what collected
+                    idleSteps = (parent.isSensorBusIdle())? idleSteps + 1 : 0;
                     if ((System.currentTimeMillis() - timer) > WAIT_CHANNEL_INQUIRY_TIMEOUT) {
                         log.info("Timeout occurred when inquirying channel information. Channel info-set may not be completed.");
                         
                         // Proceed with collected data analysis
+                        discardRestoredBoards();
                         substate = Substate.SBUS_COLLECTION_READY;
+                        
+                    } else if (idleSteps >= MIN_IDLE_STEPS) {
+                        
+                        if (retries < MAX_INQUIRY_RETRIES) {
+                            retries++;
+                            idleSteps = 0;
+                            inquiryBoardsOnSensorBus();
+                            discoverChannelsOnSensorBus();
+                        } else {
+                            log.info("No answers for some channel information. Channel info-set may not be completed.");
+                            discardRestoredBoards();
+                            substate = Substate.SBUS_COLLECTION_READY;
+                        }
                     }
                 } else {
                     
@@ -165,6 +200,12 @@ public class ChemSensorEngineStateReadConfig implements ChemSensorEngineState {
             
             case SBUS_COLLECTION_READY: {
                 
+                // Keep what read from the Sensor Bus for the next start
+                DiscoverySnapshot snapshot = parent.getDiscoverySnapshot();
+                if (snapshot != null) {
+                    snapshot.save(parent.getBoards().values(), parent.getSensors());
+                }
+                
                 // Append host related sensors list, if any
                 appendHostBoardInfo();
                 appendHostSensors();
@@ -242,18 +283,134 @@ public class ChemSensorEngineStateReadConfig implements ChemSensorEngineState {
             String firmwareVersion = sensorBus.evalReadFirmwareVersion(rxMessage, boardId);
             if (firmwareVersion != null) {
                 board.getFirmware().autodiscoveredValue(firmwareVersion);
+                validateRestoredBoard(board);
                 return true;
             } 
             
             String boardSerialNumber = sensorBus.evalReadBoardSerialNumber(rxMessage, boardId);
             if (boardSerialNumber != null) {
                 board.getSerial().autodiscoveredValue(boardSerialNumber);
+                validateRestoredBoard(board);
                 return true;
             }
         }
         
         return false;
     }
+    
+    // Take channel information from the discovery snapshot for boards not identified yet 
+    // (i.e. not auto-discovered). Information is kept only if boards answer with 
+    // the same serial number and firmware version found in the snapshot
+    private void restoreFromSnapshot() {
+        
+        restoredBoards.clear();
+        changedBoards.clear();
+        
+        DiscoverySnapshot snapshot = parent.getDiscoverySnapshot();
+        if ((snapshot == null) || !snapshot.load()) {
+            return;
+        }
+        
+        for (SensorBoardInfo board : parent.getBoards().values()) {
+            int boardId = board.getBoardId();
+            if (!board.getFirmware().isSet() && !board.getSerial().isSet() && snapshot.getBoards().containsKey(boardId)) {
+                restoredBoards.add(boardId);
+            }
+        }
+        
+        for (SensorInfo sensorInfo : parent.getSensors()) {
+            SensorConfig sensorConfig = sensorInfo.getSensorConfig();
+            if (!restoredBoards.contains(sensorConfig.getBoardId())) {
+                continue;
+            }
+            
+            for (SensorConfig snapshotSensor : snapshot.getSensors()) {
+                if ((snapshotSensor.getBoardId() == sensorConfig.getBoardId()) && (snapshotSensor.getChannel() == sensorConfig.getChannel())) {
+                    DiscoverySnapshot.restore(snapshotSensor, sensorConfig);
+                    break;
+                }
+            }
+        }
+        
+        if (!restoredBoards.isEmpty()) {
+            log.info("Channel information for " + restoredBoards.size() + " boards restored from the discovery snapshot");
+        }
+    }
+    
+    private void validateRestoredBoard(SensorBoardInfo board) {
+        
+        Integer boardId = board.getBoardId();
+        if (!restoredBoards.contains(boardId)) {
+            return;
+        }
+        
+        SensorBoardInfo snapshotBoard = parent.getDiscoverySnapshot().getBoards().get(boardId);
+        boolean serialMatches = !board.getSerial().isSet() || board.getSerial().getValue().equals(snapshotBoard.getSerial().getValue());
+        boolean firmwareMatches = !board.getFirmware().isSet() || board.getFirmware().getValue().equals(snapshotBoard.getFirmware().getValue());
+        if (!serialMatches || !firmwareMatches) {
+            log.info("Board " + boardId + " doesn't match the discovery snapshot");
+            restoredBoards.remove(boardId);
+            forgetChannelsInfo(boardId);
+            changedBoards.add(boardId);
+        }
+    }
+    
+    // Restored boards are validated when both serial number and firmware version have been received
+    private boolean checkRestoredBoardsValidity() {
+        
+        for (Integer boardId : restoredBoards) {
+            SensorBoardInfo board = parent.getBoards().get(boardId);
+            if (!board.getFirmware().isSet() || !board.getSerial().isSet()) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    // Boards not answering can't be validated
+    private void discardRestoredBoards() {
+        
+        for (Integer boardId : restoredBoards) {
+            SensorBoardInfo board = parent.getBoards().get(boardId);
+            if (!board.getFirmware().isSet() || !board.getSerial().isSet()) {
+                forgetChannelsInfo(boardId);
+            }
+        }
+        restoredBoards.clear();
+    }
+    
+    private void forgetChannelsInfo(int boardId) {
+        
+        for (SensorInfo sensorInfo : parent.getSensors()) {
+            SensorConfig sensorConfig = sensorInfo.getSensorConfig();
+            if (sensorConfig.getBoardId() == boardId) {
+                sensorConfig.getName().markForAutodiscover();
+                sensorConfig.getSerial().markForAutodiscover();
+                sensorConfig.getMeasurementUnits().markForAutodiscover();
+                sensorConfig.getSamplingPeriod().markForAutodiscover();
+                sensorConfig.getEnabled().markForAutodiscover();
+            }
+        }
+    }
+    
+    private void inquiryChangedBoardsOnSensorBus() throws SensorBusException {
+        
+        if (changedBoards.isEmpty()) {
+            return;
+        }
+        
+        ShieldProtocolLayer sensorBus = parent.getSensorBusProtocolLayer();
+        for (SensorInfo sensorInfo : parent.getSensors()) {
+            SensorConfig sensorConfig = sensorInfo.getSensorConfig();
+            if (changedBoards.contains(sensorConfig.getBoardId())) {
+                sensorBus.renderSensorInquiry(sensorConfig.getBoardId(), sensorConfig.getChannel());
+                sensorBus.renderReadSensorSerialNumber(sensorConfig.getBoardId(), sensorConfig.getChannel());
+            }
+        }
+        
+        changedBoards.clear();
+    }
        
     
     private boolean discoverChannelsOnSensorBus() throws SensorBusException {
@@ -371,7 +528,7 @@ public class ChemSensorEngineStateReadConfig implements ChemSensorEngineState {
         HostSensorBoard hostSensorBoardHandler = new HostSensorBoard();
         SensorBoardInfo hostBoard = new SensorBoardInfo(hostSensorBoardHandler.getBoardId(), 
                                                         hostSensorBoardHandler.boardType(),
-                                                        hostSensorBoardHandler.numChannels());
+                                                        parent.getHostSensorProtocolLayer().size());
         hostBoard.getSerial().autodiscoveredValue(hostSensorBoardHandler.getSerial());
         hostBoard.getFirmware().autodiscoveredValue(hostSensorBoardHandler.getFirmware());
         
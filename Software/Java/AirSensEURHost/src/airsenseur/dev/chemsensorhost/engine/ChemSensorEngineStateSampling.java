@@ -27,17 +27,12 @@ package airsenseur.dev.chemsensorhost.engine;
 import airsenseur.dev.chemsensorhost.Configuration;
 import airsenseur.dev.chemsensorhost.sensors.SensorConfig;
 import airsenseur.dev.chemsensorhost.sensors.SensorInfo;
-import airsenseur.dev.chemsensorhost.sensors.SensorValue;
 import airsenseur.dev.chemsensorhost.sensors.hostsensors.HostSensor;
 import airsenseur.dev.chemsensorhost.sensors.hostsensors.HostSensorBoard;
 import airsenseur.dev.comm.AppDataMessage;
-import airsenseur.dev.comm.ShieldProtocolLayer;
+import airsenseur.dev.comm.SampleAnswer;
 import airsenseur.dev.exceptions.GenericException;
-import airsenseur.dev.helpers.Pair;
-import expr.Expr;
-import expr.Parser;
-import expr.SyntaxException;
-import expr.Variable;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
 import org.slf4j.Logger;
@@ -50,8 +45,18 @@ import org.slf4j.LoggerFactory;
 public class ChemSensorEngineStateSampling implements ChemSensorEngineState {
     
     private final static int POLLPERIOD_OVERSAMPLING = 3;
+    private final static int MAX_BOARD_ID = 0xFF;
     
     private ChemSensorHostEngine parent;
+    
+    // Sensor IDs indexed by board ID and channel, rebuilt when entering this status
+    private volatile int[][] sensorsIndex = new int[MAX_BOARD_ID + 1][];
+    
+    // Fires sensors polls at their due time
+    private final SensorPollScheduler pollScheduler = new SensorPollScheduler();
+    
+    // Decoded sample answer. Reused, as answers are evaluated by the sensor bus rx thread only
+    private final SampleAnswer sampleAnswer = new SampleAnswer();
     private final Logger log = LoggerFactory.getLogger(ChemSensorEngineStateSampling.class);
     
     @Override
@@ -70,143 +75,207 @@ public class ChemSensorEngineStateSampling implements ChemSensorEngineState {
         // Initialize all data structures (i.e. sampling poll-time)
         // When not auto-discovered, force all sampling poll time to the general poll-time
         int pollTime = Configuration.getConfig().getPollPeriod();
-        for (SensorInfo sensor : parent.getSensors()) {
+        List<SensorInfo> sensors = parent.getSensors();
+        long[] pollPeriods = new long[sensors.size()];
+        for (int sensorId = 0; sensorId < sensors.size(); sensorId++) {
             
+            SensorInfo sensor = sensors.get(sensorId);
             int sensorPollPeriod = pollTime;            
             if (sensor.getSensorConfig().getSamplingPeriod().isSet()) {
                 sensorPollPeriod = sensor.getSensorConfig().getSamplingPeriod().getValue() / POLLPERIOD_OVERSAMPLING;
             }
+            sensorPollPeriod = Math.max(sensorPollPeriod, SensorPollScheduler.MIN_POLL_PERIOD);
+            
             sensor.getSensorValue().setPollPeriod(sensorPollPeriod);
             sensor.getSensorValue().setLastPollTimestamp(0);
+            pollPeriods[sensorId] = sensorPollPeriod;
         }
+        
+        buildSensorsIndex();
+        
+        // Each sensor is polled at its own due time
+        pollScheduler.start(pollPeriods, new SensorPollScheduler.PollHandler() {
+            @Override
+            public void onPollDue(int sensorId) {
+                try {
+                    pollSensor(sensorId);
+                } catch (GenericException ex) {
+                    log.error(ex.getErrorMessage());
+                }
+            }
+        });
                 
         return true;
     }
+    
+    // Stop polling sensors (i.e. when the engine exits)
+    public void stopPolling() {
+        pollScheduler.stop();
+    }
 
     @Override
     public boolean inquirySensors() throws GenericException {
         
-        // Poll Sensors based on each specific sensor's sampling time
-        long now = System.currentTimeMillis();
-        for (SensorInfo sensor : parent.getSensors()) {
-            
-            SensorConfig sensorConfig = sensor.getSensorConfig();
+        // Sensors are polled by the poll scheduler at their own due time
+        return true;
+    }
+    
+    private void pollSensor(int sensorId) throws GenericException {
+        
+        // If someone else took the ownership, skip this poll
+        if (parent.isOwnershipTaken()) {
+            return;
+        }
+        
+        List<SensorInfo> sensors = parent.getSensors();
+        if (sensorId >= sensors.size()) {
+            return;
+        }
+        
+        SensorInfo sensor = sensors.get(sensorId);
+        SensorConfig sensorConfig = sensor.getSensorConfig();
 
-            // Skip disabled sensors
-            if (Objects.equals(sensorConfig.getEnabled().getValue(), Boolean.FALSE)) {
-                continue;
+        // Skip disabled sensors
+        if (Objects.equals(sensorConfig.getEnabled().getValue(), Boolean.FALSE)) {
+            return;
+        }
+
+        // Ok. It's time to poll this sensor
+        sensor.getSensorValue().setLastPollTimestamp(System.currentTimeMillis());
+
+        // Handle Sensor Bus/Host sensors
+        if (sensorConfig.getBoardId() == HostSensorBoard.HOST_BOARD_ID) {
+
+            // Host sensors. Read the value cached by the host sensors poller
+            HostSensor hostSensor = parent.getHostSensorProtocolLayer(sensorConfig.getChannel());
+            HostSensor.Reading reading = (hostSensor != null)? hostSensor.getLastReading() : null;
+            if (reading != null) {
+                loadSample(sensorId, sensor, reading.getValue(), reading.getTimestamp());
+            }
+        } else {
+
+            // Sensor Bus sensors.
+            // All sensors with no math expressions will be evaluated with the High Resolution GetLastSample.
+            // Sensors with defined math expression will be evaluate with the legacy 16bitwise GetLastSample.
+            if(sensorConfig.getMathExpression().isSet()) {
+                parent.getSensorBusProtocolLayer().renderGetLastSample(sensorConfig.getBoardId(), sensorConfig.getChannel());
+            } else {
+                parent.getSensorBusProtocolLayer().renderGetLastSampleHRes(sensorConfig.getBoardId(), sensorConfig.getChannel());
+            }
+        }
+    }
+
+    @Override
+    public boolean evaluateAnswer(AppDataMessage rxMessage) throws GenericException {
+        
+        // Decode the answer once, then find the associated sensor
+        if (!parent.getSensorBusProtocolLayer().evalLastSample(rxMessage, sampleAnswer)) {
+            return false;
+        }
+        
+        int sensorId = findSensorId(sampleAnswer.getBoardId(), sampleAnswer.getChannel());
+        List<SensorInfo> sensors = parent.getSensors();
+        if ((sensorId < 0) || (sensorId >= sensors.size())) {
+            return false;
+        }
+        SensorInfo sensor = sensors.get(sensorId);
+        
+        // All sensors with no math expressions are evaluated with the High Resolution GetLastSample.
+        // Sensors with defined math expression are evaluated with the legacy 16bitwise GetLastSample.
+        SensorConfig sensorConfig = sensor.getSensorConfig();
+        if (sensorConfig.getMathExpression().isSet()) {
+            if (sampleAnswer.isHighResolution()) {
+                return false;
             }
             
-            SensorValue sensorValue = sensor.getSensorValue();
+            loadSample(sensorId, sensor, sampleAnswer.getSample(), sampleAnswer.getTimestamp());
             
-            // It's not time to poll this sensor
-            if ((now - sensorValue.getLastPollTimestamp()) < sensorValue.getPollTime()) {
-                continue;
+        } else {
+            if (!sampleAnswer.isHighResolution()) {
+                return false;
             }
             
-            // Ok. It's time to poll this sensor
-            sensor.getSensorValue().setLastPollTimestamp(now);
-            
-            // Handle Sensor Bus/Host sensors
-            if (sensorConfig.getBoardId() == HostSensorBoard.HOST_BOARD_ID) {
-                
-                // Host sensors
-                HostSensor hostSensor = parent.getHostSensorProtocolLayer(sensorConfig.getChannel());
-                if (hostSensor != null) {
-                    loadSample(sensor, hostSensor.getValue(), hostSensor.getTimestamp());
-                }
-            } else {
-                
-                // Sensor Bus sensors.
-                // All sensors with no math expressions will be evaluated with the High Resolution GetLastSample.
-                // Sensors with defined math expression will be evaluate with the legacy 16bitwise GetLastSample.
-                if(sensorConfig.getMathExpression().isSet()) {
-                    parent.getSensorBusProtocolLayer().renderGetLastSample(sensorConfig.getBoardId(), sensorConfig.getChannel());
-                } else {
-                    parent.getSensorBusProtocolLayer().renderGetLastSampleHRes(sensorConfig.getBoardId(), sensorConfig.getChannel());
-                }
+            if (sensor.getSensorValue().isNewSample(sampleAnswer.getTimestamp())) {
+                publishSample(sensorId, sensor, 0, sampleAnswer.getTimestamp(), sampleAnswer.getValue());
             }
         }
         
         return true;
     }
-
-    @Override
-    public boolean evaluateAnswer(AppDataMessage rxMessage) throws GenericException {
+    
+    private int findSensorId(int boardId, int channel) {
+        
+        if ((boardId < 0) || (boardId > MAX_BOARD_ID) || (channel < 0)) {
+            return -1;
+        }
         
-        // Loop on each known sensor and evaluate the received message
-        ShieldProtocolLayer sensorBus = parent.getSensorBusProtocolLayer();
-        for (SensorInfo sensor : parent.getSensors()) {
+        int[] boardSensors = sensorsIndex[boardId];
+        if ((boardSensors == null) || (channel >= boardSensors.length)) {
+            return -1;
+        }
+        
+        return boardSensors[channel];
+    }
+    
+    // Index sensors by board ID and channel. Host sensors are not on the sensor bus so they're skipped.
+    // If the same board and channel are found twice, the first sensor wins
+    private void buildSensorsIndex() {
+        
+        int[][] index = new int[MAX_BOARD_ID + 1][];
+        List<SensorInfo> sensors = parent.getSensors();
+        for (int sensorId = 0; sensorId < sensors.size(); sensorId++) {
             
-            SensorConfig sensorConfig = sensor.getSensorConfig();
+            SensorConfig sensorConfig = sensors.get(sensorId).getSensorConfig();
+            int boardId = sensorConfig.getBoardId();
+            int channel = sensorConfig.getChannel();
+            if ((boardId < 0) || (boardId >= HostSensorBoard.HOST_BOARD_ID) || (channel < 0)) {
+                continue;
+            }
             
-            // All sensors with no math expressions will be evaluated with the High Resolution GetLastSample.
-            // Sensors with defined math expression will be evaluate with the legacy 16bitwise GetLastSample.
-            if(sensorConfig.getMathExpression().isSet()) {
-                List<Integer> result = sensorBus.evalLastSampleInquiry(rxMessage, sensorConfig.getBoardId(), sensorConfig.getChannel());
-                if ((result != null) && (result.size() == 2)) {
-
-                    int sample = result.get(0);
-                    int timeStamp = result.get(1);
-                    loadSample(sensor, sample, timeStamp);
-
-                    return true;
-                }
-            } else {
-                Pair<Integer, Float> result = sensorBus.evalLastSampleHResInquiry(rxMessage, sensorConfig.getBoardId(), sensorConfig.getChannel());
-                if ((result != null) && (result.first != null) && (result.second != null)) {
-                    
-                    SensorValue sensorValue = sensor.getSensorValue();
-                    if (sensorValue.load(0, result.first)) {
-                        sensorValue.setEvalSampleVal(result.second);
-                    }
-                }
+            int[] boardSensors = index[boardId];
+            if ((boardSensors == null) || (channel >= boardSensors.length)) {
+                int oldLength = (boardSensors == null)? 0 : boardSensors.length;
+                boardSensors = (boardSensors == null)? new int[channel + 1] : Arrays.copyOf(boardSensors, channel + 1);
+                Arrays.fill(boardSensors, oldLength, boardSensors.length, -1);
+                index[boardId] = boardSensors;
+            }
+            
+            if (boardSensors[channel] < 0) {
+                boardSensors[channel] = sensorId;
             }
         }
         
-        return false;
+        sensorsIndex = index;
     }
 
     // Load sample with value and evaluate the math expression, if any
-    private void loadSample(SensorInfo sensor, int sample, int timeStamp) {
+    private void loadSample(int sensorId, SensorInfo sensor, int sample, int timeStamp) {
         
-        SensorValue sensorValue = sensor.getSensorValue();
-        if (sensorValue.load(sample, timeStamp)) {
-            
-            SensorConfig sensorConfig = sensor.getSensorConfig();
-            
-            // Evaluate the math expression, if any
-            if (sensorConfig.getMathExpression().isSet()) {
-                
-                String mathExpression = sensorConfig.getMathExpression().getValue();
-                double evalSampleVal = evaluateMath(mathExpression, sample);
-                sensorValue.setEvalSampleVal(evalSampleVal);
-            }
+        if (!sensor.getSensorValue().isNewSample(timeStamp)) {
+            return;
+        }
+        
+        // Evaluate the math expression, if any
+        double evalSampleVal = sample;
+        if (sensor.getSensorConfig().getMathExpression().isSet()) {
+            evalSampleVal = sensor.getMathExpression().evaluate(sample);
         }
+        
+        publishSample(sensorId, sensor, sample, timeStamp, evalSampleVal);
+    }
+    
+    // Keep track of a new sample in the sensor's history, make it available 
+    // as the sensor's last sample, then notify it to the sample consumers. 
+    // The sample is published only when completely evaluated
+    private void publishSample(int sensorId, SensorInfo sensor, int value, int timeStamp, double evalSampleVal) {
+        
+        long collectedTimestamp = sensor.getSensorHistory().add(value, timeStamp, evalSampleVal, System.currentTimeMillis());
+        sensor.getSensorValue().publish(value, timeStamp, evalSampleVal, collectedTimestamp);
+        parent.onNewSample(sensorId, value, timeStamp, evalSampleVal, collectedTimestamp);
     }
 
     @Override
     public boolean terminated() {
         return false;
     }
-    
-    /** 
-     * Evaluate a mathematical expression
-     * @param mathExpression
-     * @param rawData
-     * @return 
-     */
-    private double evaluateMath(String mathExpression, int rawData) {
-        
-        Expr expr;
-        try {
-            expr = Parser.parse(mathExpression);
-        } catch (SyntaxException ex) {
-            return rawData;
-        }
-        
-        Variable x = Variable.make("x");
-        x.setValue(rawData);
-        return expr.value();
-    }         
 }
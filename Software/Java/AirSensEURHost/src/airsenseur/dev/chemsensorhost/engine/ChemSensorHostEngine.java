@@ -33,9 +33,13 @@ import airsenseur.dev.chemsensorhost.sensors.hostsensors.HostSensor;
 import airsenseur.dev.chemsensorhost.sensors.hostsensors.HostSensorBatteryChargerStatus;
 import airsenseur.dev.chemsensorhost.sensors.hostsensors.HostSensorBatteryCoulombCounter;
 import airsenseur.dev.chemsensorhost.sensors.hostsensors.HostSensorBatteryVoltage;
+import airsenseur.dev.chemsensorhost.sensors.hostsensors.HostSensorPoller;
+import airsenseur.dev.chemsensorhost.sensors.hostsensors.HostSensorSysfs;
 import airsenseur.dev.comm.AppDataMessage;
 import airsenseur.dev.comm.CommChannelFactory;
+import airsenseur.dev.comm.CommChannelSimulator;
 import airsenseur.dev.comm.SensorBus;
+import airsenseur.dev.comm.SensorBusStatistics;
 import airsenseur.dev.comm.ShieldProtocolLayer;
 import airsenseur.dev.comm.TransportLogicFactory;
 import airsenseur.dev.exceptions.GenericException;
@@ -45,6 +49,7 @@ import airsenseur.dev.json.RawCommand;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -54,6 +59,12 @@ import org.slf4j.LoggerFactory;
  */
 public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.SensorBusMessageConsumer {
     
+    // Defines a callback for new samples read from sensors. 
+    // It's called by the sensor bus rx thread or by the engine thread so it should return quickly
+    public static interface NewSampleConsumer {
+        public void onNewSample(int sensorId, int value, int timeStamp, double evalSampleVal, long collectedTimestamp);
+    }
+    
     // All sensors connected to this system
     private final List<SensorInfo> sensors = new ArrayList<>();
     
@@ -76,13 +87,28 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
     
     // Host Sensor Handlers. The list should be sorted by relative sensor channel
     private final List<HostSensor> hostSensorsHandlers = new ArrayList<>();
+    private final HostSensorPoller hostSensorPoller = new HostSensorPoller(hostSensorsHandlers);
+    
+    // Boards and sensors information kept between restarts, if enabled
+    private DiscoverySnapshot discoverySnapshot = null;
     
     // Start or last configuration discovery timestamp
     private long lastConfigurationTimestamp;
     
+    // While configuring, the state machine is stepped at this pace within each engine tick
+    // so that each phase proceeds as soon as all the expected answers are available
+    private final static long CONFIGURATION_STEP_PERIOD = 50; /* in milliseconds */
+    private long pollPeriod = CONFIGURATION_STEP_PERIOD;
+    
     // Ownership timeout and timer
     private final long OWNERSHIP_AUTOFALLBACK_TIMEOUT = 120000;
-    private long ownershipTimestamp = 0;
+    private volatile long ownershipTimestamp = 0;
+    
+    // New sample consumers (i.e. sample stream subscribers)
+    private final List<NewSampleConsumer> sampleConsumers = new CopyOnWriteArrayList<>();
+    
+    // Sensor bus statistics summary timer
+    private long lastStatisticsTimestamp = System.currentTimeMillis();
     
     private final Logger log = LoggerFactory.getLogger(ChemSensorHostEngine.class);
     
@@ -134,6 +160,25 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
         hostSensorsHandlers.add(new HostSensorBatteryChargerStatus());
         hostSensorsHandlers.add(new HostSensorBatteryCoulombCounter());
         hostSensorsHandlers.add(new HostSensorBatteryVoltage());
+        
+        // Additional host channels declared in the configuration
+        Configuration config = Configuration.getConfig();
+        for (int n = 0; n < config.getNumHostSensors(); n++) {
+            String path = config.getHostSensorPath(n);
+            if (path.isEmpty()) {
+                log.info("No path defined for host sensor " + n + ". Skipped");
+                continue;
+            }
+            hostSensorsHandlers.add(new HostSensorSysfs(hostSensorsHandlers.size(), config.getHostSensorName(n), 
+                                                        config.getHostSensorUnits(n), config.getHostSensorMathExpression(n),
+                                                        path, config.getHostSensorSamplingPeriod(n)));
+        }
+        
+        // Initialize the warm start snapshot
+        String snapshotFile = Configuration.getConfig().getDiscoverySnapshotFile();
+        if (!snapshotFile.isEmpty()) {
+            discoverySnapshot = new DiscoverySnapshot(snapshotFile);
+        }
     }
     
     // Returns false for fatal exceptions
@@ -146,7 +191,22 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
                 log.info("Inizializing Sensor Bus with CRC enabled");
             }
             
-            sensorBusHandler.init(this, CommChannelFactory.commChannelType.SERIAL, TransportLogicFactory.transportLogicType.POINT_TO_MULTIPOINT, Configuration.getConfig().useCRCInSensorBus());
+            CommChannelFactory.commChannelType channelType = (Configuration.getConfig().useSensorBusReaderThread())? 
+                                                                CommChannelFactory.commChannelType.SERIAL_READER : 
+                                                                CommChannelFactory.commChannelType.SERIAL;
+            if (CommChannelSimulator.isSimulatedPort(Configuration.getConfig().serialPort())) {
+                log.info("Inizializing Sensor Bus with simulated boards");
+                channelType = CommChannelFactory.commChannelType.SIMULATOR;
+            }
+            sensorBusHandler.init(this, channelType, TransportLogicFactory.transportLogicType.POINT_TO_MULTIPOINT, Configuration.getConfig().useCRCInSensorBus());
+            
+            // Allow multiple outstanding requests to different boards, if configured
+            int requestWindow = Configuration.getConfig().getSensorBusRequestWindow();
+            if (requestWindow > 1) {
+                log.info("Inizializing Sensor Bus with a request window of " + requestWindow);
+            }
+            sensorBusHandler.setRequestWindowSize(requestWindow);
+            sensorBusHandler.setQueueWaitStrategy(Configuration.getConfig().getSensorBusWaitStrategy());
             sensorBusHandler.connectToBus(Configuration.getConfig().serialPort());
         
             stateAutodiscover.init(this);       
@@ -165,6 +225,12 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
             return false;
         }
         
+        // Host sensors are read in background
+        if (!Configuration.getConfig().skipHostSensors()) {
+            hostSensorPoller.start();
+        }
+        
+        pollPeriod = pollMs;
         startPeriodic(pollMs);
         
         return true;
@@ -172,6 +238,8 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
     
     public void exit() {
         
+        stateSampling.stopPolling();
+        hostSensorPoller.stop();
         stop();
         sensorBusHandler.disConnectFromBus();
     }
@@ -195,7 +263,9 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
     public void onNewMessageReady(AppDataMessage message) {
         
         // Debug
-        log.debug("R> [" + message.getBoardId() + "] (" + message.getCommandString() + ")" );
+        if (log.isDebugEnabled()) {
+            log.debug("R> [" + message.getBoardId() + "] (" + message.getCommandString() + ")" );
+        }
         
         // Messages received from sensor bus may have been generated by JSON clients. For this reason,
         // rawCommandQueue should evaluate all incoming Sensor Bus messages.
@@ -217,18 +287,22 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
     @Override
     public void taskMain() {
         
+        // Periodically dump sensor bus statistics
+        logBusStatistics();
+        
         // If someone else tooks ownership, does nothing
-        if ((ownershipTimestamp != 0) && ((System.currentTimeMillis() - ownershipTimestamp) < OWNERSHIP_AUTOFALLBACK_TIMEOUT)) {
+        if (isOwnershipTaken()) {
             return;
         }
-        
-        // Ownership elapsed, reset the timestamp flag
-        ownershipTimestamp = 0;
                 
         try {
             
+            long stepDeadline = System.currentTimeMillis() + pollPeriod - CONFIGURATION_STEP_PERIOD;
+            
+            // Executions of this task never overlap, since a restart waits for the running one.
+            // A stopped execution leaves before stepping the engine state again
             ChemSensorEngineState currentStatus = engineStatuses.get(currentStatusId).statusHandler;
-            if (currentStatus != null) {
+            while ((currentStatus != null) && !isShutdown()) {
                 currentStatus.inquirySensors();
 
                 if (currentStatus.terminated()) {
@@ -242,10 +316,22 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
                     // Move to next status
                     goToNextStatus();
                 }
+                
+                // Sampling is driven by its own scheduler. Other states are stepped 
+                // again up to the next engine tick
+                currentStatus = engineStatuses.get(currentStatusId).statusHandler;
+                if ((currentStatus == stateSampling) || isOwnershipTaken() ||
+                        ((System.currentTimeMillis() - stepDeadline) >= 0)) {
+                    break;
+                }
+                
+                Thread.sleep(CONFIGURATION_STEP_PERIOD);
             }
             
         } catch (GenericException ex) {
             log.error(ex.getErrorMessage());
+        } catch (InterruptedException ex) {
+            log.debug("Interrupted while configuring");
         }
         
     }
@@ -275,19 +361,60 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
         
         try {
             return sensorBusRawCommandQueue.sendCommandList(data);
-        } catch (InterruptedException | SensorBusException ex) {
+        } catch (InterruptedException ex) {
             return null;
         }
     }
     
     public void takeOwnership() {
         ownershipTimestamp = System.currentTimeMillis();
+        
+        // Boards may be reconfigured by the new owner
+        if (discoverySnapshot != null) {
+            discoverySnapshot.invalidate();
+        }
     }
 
     public void releaseOwnership() {
         ownershipTimestamp = 0;
     } 
     
+    // Returns true if someone else took the ownership and it's not elapsed yet
+    public boolean isOwnershipTaken() {
+        
+        long timestamp = ownershipTimestamp;
+        return (timestamp != 0) && ((System.currentTimeMillis() - timestamp) < OWNERSHIP_AUTOFALLBACK_TIMEOUT);
+    }
+    
+    public void addNewSampleConsumer(NewSampleConsumer consumer) {
+        sampleConsumers.add(consumer);
+    }
+    
+    public void removeNewSampleConsumer(NewSampleConsumer consumer) {
+        sampleConsumers.remove(consumer);
+    }
+    
+    // Called by the sampling state each time a new sample is stored in a sensor history
+    public void onNewSample(int sensorId, int value, int timeStamp, double evalSampleVal, long collectedTimestamp) {
+        for (NewSampleConsumer consumer : sampleConsumers) {
+            consumer.onNewSample(sensorId, value, timeStamp, evalSampleVal, collectedTimestamp);
+        }
+    }
+    
+    // Returns null if warm starts are disabled
+    DiscoverySnapshot getDiscoverySnapshot() {
+        return discoverySnapshot;
+    }
+    
+    // Returns true if all requests sent through the sensor bus have been answered (or expired)
+    public boolean isSensorBusIdle() {
+        return sensorBusHandler.isIdle();
+    }
+    
+    public SensorBusStatistics getSensorBusStatistics() {
+        return sensorBusHandler.getStatistics();
+    }
+    
     public boolean getIsReady() {
         return (engineStatuses.get(currentStatusId).statusHandler == stateSampling);
     }
@@ -307,6 +434,17 @@ public class ChemSensorHostEngine extends TaskScheduler implements SensorBus.Sen
         engineStatuses.get(currentStatusId).statusHandler.enter();
     }
     
+    private void logBusStatistics() {
+        
+        long period = Configuration.getConfig().getSensorBusStatisticsPeriod() * 1000L;
+        if ((period <= 0) || ((System.currentTimeMillis() - lastStatisticsTimestamp) < period)) {
+            return;
+        }
+        
+        lastStatisticsTimestamp = System.currentTimeMillis();
+        log.info(sensorBusHandler.getStatistics().getSummary());
+    }
+    
     private void dumpConfiguration() {
         
         // Dump all boards information
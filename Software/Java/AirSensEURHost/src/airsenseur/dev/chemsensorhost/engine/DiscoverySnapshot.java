@@ -0,0 +1,286 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost.engine;
+
+import airsenseur.dev.chemsensorhost.sensors.FieldConfig;
+import airsenseur.dev.chemsensorhost.sensors.SensorBoardInfo;
+import airsenseur.dev.chemsensorhost.sensors.SensorConfig;
+import airsenseur.dev.chemsensorhost.sensors.SensorInfo;
+import airsenseur.dev.comm.AppDataMessage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local copy of boards and sensor information read from the sensor bus.
+ * It allows a warm start: boards are only asked for their type, serial number 
+ * and firmware version and, if nothing changed, the remaining information 
+ * is taken from the snapshot instead of being read again from each channel.
+ * Only values read from the boards are stored; values overridden by the
+ * configuration are applied on top of them on each start.
+ * @author marco
+ */
+class DiscoverySnapshot {
+    
+    private final static String SNAPSHOT_VERSION = "1";
+    
+    private final static String KEY_VERSION = "version";
+    private final static String KEY_BOARDS = "boards";
+    private final static String KEY_SENSORS = "sensors";
+    
+    private final String fileName;
+    private final HashMap<Integer, SensorBoardInfo> boards = new HashMap<>();
+    private final List<SensorConfig> sensors = new ArrayList<>();
+    private Properties stored = null;
+    
+    private final Logger log = LoggerFactory.getLogger(DiscoverySnapshot.class);
+    
+    public DiscoverySnapshot(String fileName) {
+        this.fileName = fileName;
+    }
+    
+    // Returns true if a valid snapshot has been loaded
+    public synchronized boolean load() {
+        
+        boards.clear();
+        sensors.clear();
+        stored = null;
+        
+        File file = new File(fileName);
+        if (!file.exists()) {
+            return false;
+        }
+        
+        Properties properties = new Properties();
+        try (InputStream input = new FileInputStream(file)) {
+            properties.load(input);
+        } catch (IOException ex) {
+            log.info("Unable to read the discovery snapshot " + fileName);
+            return false;
+        }
+        
+        try {
+            if (!SNAPSHOT_VERSION.equals(properties.getProperty(KEY_VERSION))) {
+                throw new NumberFormatException();
+            }
+            
+            int numBoards = Integer.parseInt(properties.getProperty(KEY_BOARDS, "0"));
+            for (int n = 0; n < numBoards; n++) {
+                String prefix = "board." + n + ".";
+                SensorBoardInfo board = new SensorBoardInfo(getInt(properties, prefix + "id"), 
+                                                            getInt(properties, prefix + "type"), 
+                                                            getInt(properties, prefix + "channels"));
+                loadString(properties, prefix + "serial", board.getSerial());
+                loadString(properties, prefix + "firmware", board.getFirmware());
+                
+                // Boards can't be validated without their serial and firmware
+                if (!board.getSerial().isSet() || !board.getFirmware().isSet()) {
+                    throw new NumberFormatException();
+                }
+                boards.put(board.getBoardId(), board);
+            }
+            
+            int numSensors = Integer.parseInt(properties.getProperty(KEY_SENSORS, "0"));
+            for (int n = 0; n < numSensors; n++) {
+                String prefix = "sensor." + n + ".";
+                SensorConfig sensor = new SensorConfig();
+                sensor.init(getInt(properties, prefix + "board"), getInt(properties, prefix + "channel"));
+                loadString(properties, prefix + "name", sensor.getName());
+                loadString(properties, prefix + "serial", sensor.getSerial());
+                loadString(properties, prefix + "units", sensor.getMeasurementUnits());
+                String samplingPeriod = properties.getProperty(prefix + "samplingPeriod");
+                if (samplingPeriod != null) {
+                    sensor.getSamplingPeriod().autodiscoveredValue(Integer.parseInt(samplingPeriod));
+                }
+                String enabled = properties.getProperty(prefix + "enabled");
+                if (enabled != null) {
+                    sensor.getEnabled().autodiscoveredValue(Boolean.parseBoolean(enabled));
+                }
+                sensors.add(sensor);
+            }
+            
+        } catch (NumberFormatException ex) {
+            log.info("Discovery snapshot " + fileName + " is not valid. Discarded");
+            boards.clear();
+            sensors.clear();
+            return false;
+        }
+        
+        stored = properties;
+        return true;
+    }
+    
+    // Store information read from the sensor bus boards. 
+    // Boards not completely identified are not stored. The file is written only if something changed
+    public synchronized boolean save(Collection<SensorBoardInfo> busBoards, List<SensorInfo> busSensors) {
+        
+        Properties properties = new Properties();
+        properties.setProperty(KEY_VERSION, SNAPSHOT_VERSION);
+        
+        List<Integer> boardIds = new ArrayList<>();
+        for (SensorBoardInfo board : busBoards) {
+            if (!isSensorBusBoard(board.getBoardId()) || !board.getSerial().isSet() || !board.getFirmware().isSet()) {
+                continue;
+            }
+            
+            String prefix = "board." + boardIds.size() + ".";
+            properties.setProperty(prefix + "id", "" + board.getBoardId());
+            properties.setProperty(prefix + "type", "" + board.getBoardType());
+            properties.setProperty(prefix + "channels", "" + board.getNumOfChannels());
+            saveValue(properties, prefix + "serial", board.getSerial());
+            saveValue(properties, prefix + "firmware", board.getFirmware());
+            boardIds.add(board.getBoardId());
+        }
+        properties.setProperty(KEY_BOARDS, "" + boardIds.size());
+        
+        int numSensors = 0;
+        for (SensorInfo sensorInfo : busSensors) {
+            SensorConfig sensor = sensorInfo.getSensorConfig();
+            if (!boardIds.contains(sensor.getBoardId())) {
+                continue;
+            }
+            
+            String prefix = "sensor." + numSensors + ".";
+            properties.setProperty(prefix + "board", "" + sensor.getBoardId());
+            properties.setProperty(prefix + "channel", "" + sensor.getChannel());
+            saveValue(properties, prefix + "name", sensor.getName());
+            saveValue(properties, prefix + "serial", sensor.getSerial());
+            saveValue(properties, prefix + "units", sensor.getMeasurementUnits());
+            saveValue(properties, prefix + "samplingPeriod", sensor.getSamplingPeriod());
+            saveValue(properties, prefix + "enabled", sensor.getEnabled());
+            numSensors++;
+        }
+        properties.setProperty(KEY_SENSORS, "" + numSensors);
+        
+        if (properties.equals(stored)) {
+            return true;
+        }
+        
+        // Write to a temporary file first, so a reboot never leaves an incomplete snapshot
+        File file = new File(fileName);
+        File tmpFile = new File(fileName + ".tmp");
+        try {
+            try (OutputStream output = new FileOutputStream(tmpFile)) {
+                properties.store(output, "AirSensEUR Host discovery snapshot");
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            log.info("Unable to write the discovery snapshot " + fileName);
+            return false;
+        }
+        
+        stored = properties;
+        log.info("Discovery snapshot updated with " + boardIds.size() + " boards and " + numSensors + " sensors");
+        return true;
+    }
+    
+    // Discard the snapshot. Next start will read all information from the boards
+    public synchronized void invalidate() {
+        
+        boards.clear();
+        sensors.clear();
+        stored = null;
+        
+        File file = new File(fileName);
+        if (file.exists() && !file.delete()) {
+            log.info("Unable to delete the discovery snapshot " + fileName);
+        }
+    }
+    
+    // Boards found in the snapshot, keyed by boardId
+    public synchronized HashMap<Integer, SensorBoardInfo> getBoards() {
+        return boards;
+    }
+    
+    // Sensors found in the snapshot
+    public synchronized List<SensorConfig> getSensors() {
+        return sensors;
+    }
+    
+    // Returns true if the board answered with the same identification found in the snapshot
+    public synchronized boolean matches(SensorBoardInfo board) {
+        
+        SensorBoardInfo snapshotBoard = boards.get(board.getBoardId());
+        if (snapshotBoard == null) {
+            return false;
+        }
+        
+        return (snapshotBoard.getBoardType() == board.getBoardType()) && 
+                (snapshotBoard.getNumOfChannels() == board.getNumOfChannels()) &&
+                (!board.getSerial().isSet() || snapshotBoard.getSerial().getValue().equals(board.getSerial().getValue())) &&
+                (!board.getFirmware().isSet() || snapshotBoard.getFirmware().getValue().equals(board.getFirmware().getValue()));
+    }
+    
+    // Copy the snapshot values not yet known into a sensor configuration
+    public static void restore(SensorConfig from, SensorConfig to) {
+        
+        restoreValue(from.getName(), to.getName());
+        restoreValue(from.getSerial(), to.getSerial());
+        restoreValue(from.getMeasurementUnits(), to.getMeasurementUnits());
+        restoreValue(from.getSamplingPeriod(), to.getSamplingPeriod());
+        restoreValue(from.getEnabled(), to.getEnabled());
+    }
+    
+    // Host sensors are not stored
+    public static boolean isSensorBusBoard(int boardId) {
+        return (boardId >= AppDataMessage.MIN_VALID_BOARD_ID_ON_SBUS) && (boardId <= AppDataMessage.MAX_VALID_BOARD_ID_ON_SBUS);
+    }
+    
+    private static <T> void restoreValue(FieldConfig<T> from, FieldConfig<T> to) {
+        if (from.isSet() && !to.isSet()) {
+            to.autodiscoveredValue(from.getValue());
+        }
+    }
+    
+    private static int getInt(Properties properties, String key) {
+        return Integer.parseInt(properties.getProperty(key, ""));
+    }
+    
+    private static void loadString(Properties properties, String key, FieldConfig<String> field) {
+        String value = properties.getProperty(key);
+        if (value != null) {
+            field.autodiscoveredValue(value);
+        }
+    }
+    
+    private static void saveValue(Properties properties, String key, FieldConfig<?> field) {
+        if (field.isSet() && (field.getValue() != null)) {
+            properties.setProperty(key, field.getValue().toString());
+        }
+    }
+}
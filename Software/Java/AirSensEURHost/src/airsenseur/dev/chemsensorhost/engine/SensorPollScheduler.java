@@ -0,0 +1,188 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost.engine;
+
+import airsenseur.dev.helpers.TaskSchedulerRuntime;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fires each sensor poll at its own due time.
+ * Deadlines are kept ordered so only the earliest one is waited for.
+ * First polls are spread along each sensor's period, so polls with the same 
+ * period don't reach the sensor bus all together. Missed polls (i.e. when 
+ * the handler was too slow) are skipped, keeping each sensor on its time grid.
+ * @author marco
+ */
+class SensorPollScheduler {
+    
+    public final static int MIN_POLL_PERIOD = 50;   /* in milliseconds */
+    
+    // Defines a callback for sensors to be polled
+    public static interface PollHandler {
+        public void onPollDue(int sensorId);
+    }
+    
+    private static class Deadline {
+        public final int sensorId;
+        public final long period;
+        public long due;
+
+        public Deadline(int sensorId, long period, long due) {
+            this.sensorId = sensorId;
+            this.period = period;
+            this.due = due;
+        }
+    }
+    
+    private final Object lock = new Object();
+    private final PriorityQueue<Deadline> deadlines = new PriorityQueue<>(16, new Comparator<Deadline>() {
+        @Override
+        public int compare(Deadline o1, Deadline o2) {
+            return Long.compare(o1.due, o2.due);
+        }
+    });
+    
+    private PollHandler handler;
+    private ScheduledFuture<?> timer = null;
+    private int[] dueSensors = new int[0];
+    private boolean running = false;
+    
+    private final Runnable fire = new Runnable() {
+        @Override
+        public void run() {
+            fire();
+        }
+    };
+    
+    /**
+     * Start polling sensors
+     * @param periods: poll period, in ms, for each sensor ID. Zero for sensors not to be polled
+     * @param handler 
+     */
+    public void start(long[] periods, PollHandler handler) {
+        
+        synchronized (lock) {
+            stop();
+            
+            int numPolled = 0;
+            for (long period : periods) {
+                if (period > 0) {
+                    numPolled++;
+                }
+            }
+            
+            long now = System.nanoTime();
+            int rank = 0;
+            for (int sensorId = 0; sensorId < periods.length; sensorId++) {
+                if (periods[sensorId] > 0) {
+                    long period = TimeUnit.MILLISECONDS.toNanos(Math.max(periods[sensorId], MIN_POLL_PERIOD));
+                    long offset = (period / numPolled) * rank;
+                    deadlines.add(new Deadline(sensorId, period, now + offset));
+                    rank++;
+                }
+            }
+            
+            this.handler = handler;
+            dueSensors = new int[deadlines.size()];
+            running = true;
+            scheduleNext();
+        }
+    }
+    
+    public void stop() {
+        
+        synchronized (lock) {
+            running = false;
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            deadlines.clear();
+        }
+    }
+    
+    public boolean isRunning() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+    
+    private void fire() {
+        
+        // Collect due sensors and move their deadlines ahead
+        int numDue = 0;
+        int[] due;
+        PollHandler pollHandler;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            
+            long now = System.nanoTime();
+            while (!deadlines.isEmpty() && (deadlines.peek().due - now <= 0)) {
+                
+                Deadline deadline = deadlines.poll();
+                dueSensors[numDue++] = deadline.sensorId;
+                
+                deadline.due += deadline.period;
+                if (deadline.due - now <= 0) {
+                    deadline.due += ((now - deadline.due) / deadline.period + 1) * deadline.period;
+                }
+                deadlines.add(deadline);
+            }
+            
+            due = dueSensors;
+            pollHandler = handler;
+        }
+        
+        // Poll them out of the lock, then wait for the next deadline
+        try {
+            for (int n = 0; n < numDue; n++) {
+                pollHandler.onPollDue(due[n]);
+            }
+        } finally {
+            synchronized (lock) {
+                if (running && (due == dueSensors)) {
+                    scheduleNext();
+                }
+            }
+        }
+    }
+    
+    private void scheduleNext() {
+        
+        if (deadlines.isEmpty()) {
+            timer = null;
+            return;
+        }
+        
+        long delay = Math.max(0, deadlines.peek().due - System.nanoTime());
+        timer = TaskSchedulerRuntime.getRuntime().schedule(fire, delay, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,90 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost.helpers;
+
+import expr.Expr;
+import expr.Parser;
+import expr.SyntaxException;
+import expr.Variable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A sensor math expression compiled once and evaluated on each new sample.
+ * The expr library binds variables by name in a process wide table, so the 
+ * sample variable "x" is renamed to a name private to the specified scope 
+ * (i.e. the sensor). Expressions with different scopes can be evaluated 
+ * concurrently; evaluations in the same scope are serialized.
+ * Invalid expressions evaluate to the sample itself.
+ * @author marco
+ */
+public class MathExpression {
+    
+    private final static Pattern SAMPLE_VARIABLE = Pattern.compile("(?<![A-Za-z0-9_])x(?![A-Za-z0-9_])");
+    private final static String SCOPED_VARIABLE_PREFIX = "xscope";
+    
+    private final String expression;
+    private final Variable variable;
+    private final Expr compiled;
+    
+    public MathExpression(String expression, String scope) {
+        
+        this.expression = expression;
+        
+        String variableName = SCOPED_VARIABLE_PREFIX + scope;
+        variable = Variable.make(variableName);
+        
+        Expr result = null;
+        if ((expression != null) && !expression.isEmpty()) {
+            try {
+                result = Parser.parse(SAMPLE_VARIABLE.matcher(expression).replaceAll(Matcher.quoteReplacement(variableName)));
+            } catch (SyntaxException ex) {
+                result = null;
+            }
+        }
+        compiled = result;
+    }
+    
+    public String getExpression() {
+        return expression;
+    }
+    
+    public boolean isValid() {
+        return compiled != null;
+    }
+    
+    public double evaluate(double sample) {
+        
+        if (compiled == null) {
+            return sample;
+        }
+        
+        synchronized (variable) {
+            variable.setValue(sample);
+            return compiled.value();
+        }
+    }
+}
@@ -26,14 +26,20 @@ package airsenseur.dev.chemsensorhost.json;
 
 import airsenseur.dev.chemsensorhost.sensors.SensorBoardInfo;
 import airsenseur.dev.chemsensorhost.sensors.SensorConfig;
+import airsenseur.dev.chemsensorhost.sensors.SensorHistory;
 import airsenseur.dev.chemsensorhost.sensors.SensorInfo;
 import airsenseur.dev.chemsensorhost.sensors.SensorValue;
 import airsenseur.dev.chemsensorhost.engine.ChemSensorHostEngine;
+import airsenseur.dev.comm.AppDataMessage;
+import airsenseur.dev.comm.SensorBusStatistics;
 import airsenseur.dev.exceptions.SensorBusException;
+import airsenseur.dev.json.BoardBusStatus;
 import airsenseur.dev.json.BoardInfo;
+import airsenseur.dev.json.BusStatus;
 import airsenseur.dev.json.ChemSensorService;
 import airsenseur.dev.json.HostStatus;
 import airsenseur.dev.json.JsonFieldsUtils;
+import airsenseur.dev.json.LastSamples;
 import airsenseur.dev.json.RawCommand;
 import airsenseur.dev.json.SampleData;
 import java.util.ArrayList;
@@ -120,15 +126,61 @@ public class ChemSensorServiceImpl implements ChemSensorService {
     @Override
     public SampleData getLastSample(int sensorId) {
         
-        if (sensorId < sensorHost.getSensors().size()) {
+        if ((sensorId >= 0) && (sensorId < sensorHost.getSensors().size())) {
             SensorInfo sensorInfo = sensorHost.getSensors().get(sensorId);
             SensorConfig sensorConfig = sensorInfo.getSensorConfig();
-            SensorValue sensorValue = sensorInfo.getSensorValue();
+            
+            // Take a consistent copy of the last sample
+            SensorValue.Sample sample = sensorInfo.getSensorValue().getSample();
             
             String name = sensorConfig.getName().isSet()? sensorConfig.getName().getValue() : "";
             String serial = sensorConfig.getSerial().isSet()? sensorConfig.getSerial().getValue() : "";
                         
-            return JsonFieldsUtils.safeCheck(new SampleData(name, serial, sensorValue.getValue(), sensorValue.getTimeStamp(), sensorValue.getEvalSampleVal()));
+            return JsonFieldsUtils.safeCheck(new SampleData(name, serial, sample.getValue(), sample.getTimeStamp(), sample.getEvalSampleVal(), sample.getCollectedTimestamp()));
+        }
+        
+        return null;
+    }
+
+    @Override
+    public LastSamples getLastSamples(List<Integer> sensorIds) {
+        
+        LastSamples result = new LastSamples(getHostStatus());
+        
+        if (sensorIds == null) {
+            int numSensors = sensorHost.getSensors().size();
+            for (int sensorId = 0; sensorId < numSensors; sensorId++) {
+                result.sensorIds.add(sensorId);
+                result.samples.add(getLastSample(sensorId));
+            }
+        } else {
+            for (Integer sensorId : sensorIds) {
+                result.sensorIds.add(sensorId);
+                result.samples.add((sensorId != null)? getLastSample(sensorId) : null);
+            }
+        }
+        
+        return result;
+    }
+
+    @Override
+    public List<SampleData> getSamplesSince(int sensorId, long collectedTimestamp) {
+        
+        if ((sensorId >= 0) && (sensorId < sensorHost.getSensors().size())) {
+            SensorInfo sensorInfo = sensorHost.getSensors().get(sensorId);
+            SensorConfig sensorConfig = sensorInfo.getSensorConfig();
+            SensorHistory.Samples samples = sensorInfo.getSensorHistory().getSince(collectedTimestamp);
+            
+            String name = sensorConfig.getName().isSet()? sensorConfig.getName().getValue() : "";
+            String serial = sensorConfig.getSerial().isSet()? sensorConfig.getSerial().getValue() : "";
+            
+            List<SampleData> result = new ArrayList<>(samples.size());
+            for (int n = 0; n < samples.size(); n++) {
+                result.add(JsonFieldsUtils.safeCheck(new SampleData(name, serial, samples.values[n], samples.timeStamps[n], 
+                                                                    samples.evalSampleVals[n], samples.collectedTimestamps[n])));
+            }
+            
+            return result;
         }
         
         return null;
@@ -140,6 +192,38 @@ public class ChemSensorServiceImpl implements ChemSensorService {
         return sensorHost.sendRawData(rawData);
     }
 
+    @Override
+    public BusStatus getBusStatus() {
+        
+        SensorBusStatistics statistics = sensorHost.getSensorBusStatistics();
+        
+        BusStatus result = new BusStatus();
+        result.since = statistics.getSince();
+        result.timestamp = System.currentTimeMillis();
+        result.framingErrors = statistics.getFramingErrors();
+        result.unsolicitedAnswers = statistics.getUnsolicitedAnswers();
+        result.txQueueDepth = statistics.getTxQueueDepth();
+        result.txQueueMaxDepth = statistics.getTxQueueMaxDepth();
+        result.txParkedMessages = statistics.getTxParkedMessages();
+        result.txParkedMaxMessages = statistics.getTxParkedMaxMessages();
+        result.rxQueueDepth = statistics.getRxQueueDepth();
+        result.rxQueueMaxDepth = statistics.getRxQueueMaxDepth();
+        result.rttHistogramBounds = SensorBusStatistics.RTT_HISTOGRAM_BOUNDS.clone();
+        
+        for (int boardId = AppDataMessage.MIN_VALID_BOARD_ID_ON_SBUS; boardId <= AppDataMessage.BOARD_ID_UNDEFINED; boardId++) {
+            SensorBusStatistics.BoardStatistics board = statistics.getBoardStatistics(boardId);
+            if (board != null) {
+                result.boards.add(new BoardBusStatus(boardId, board.getRequests(), board.getAnswers(), board.getTimeouts(), 
+                                                        board.getCrcErrors(), board.getRetransmissions(), 
+                                                        board.getDiscarded(), board.getCoalesced(), board.getAnswerTimeout(), 
+                                                        board.getRttMin(), board.getRttAverage(), board.getRttMax(), 
+                                                        board.getRttHistogram()));
+            }
+        }
+        
+        return result;
+    }
+
     @Override
     public int getNumSensors() {
         return sensorHost.getSensors().size();
@@ -0,0 +1,502 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost.json;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.googlecode.jsonrpc4j.JsonRpcServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JSON-RPC server multiplexing all client connections on a single selector thread.
+ * Requests are framed on the selector thread (one JSON object or array each) 
+ * and handled by a pool of worker threads, so the number of threads 
+ * doesn't depend on the number of connected clients.
+ * Calls to blocking methods (waiting for the sensor bus, for example) are handled 
+ * by a dedicated pool, so they can't starve the other clients.
+ * Requests on the same connection are handled one at a time, in order.
+ * Connections are kept open between requests (TCP keep-alive enabled) and 
+ * are closed when idle for more than the configured timeout.
+ * @author marco
+ */
+public class JSONMultiplexedServer {
+    
+    private final static int MAX_REQUEST_SIZE = 1024 * 1024;
+    private final static int READ_BUFFER_SIZE = 8192;
+    private final static int SELECT_TIMEOUT = 1000;    /* in milliseconds */
+    private final static int ACCEPT_RETRY_DELAY = 100; /* in milliseconds */
+    
+    private final JsonRpcServer jsonRpcServer;
+    private final int workerThreads;
+    private final int blockingWorkerThreads;
+    private final Set<String> blockingMethods = new HashSet<>();
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final int maxConnections;
+    private final long idleTimeout;
+    
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey serverKey;
+    private long acceptResumeTime = 0;
+    private ThreadPoolExecutor workers;
+    private ThreadPoolExecutor blockingWorkers;
+    private volatile boolean running = false;
+    
+    // All connections are handled by the selector thread only
+    private final List<Connection> connections = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    
+    // Connections with a response ready to be sent, filled by worker threads
+    private final ConcurrentLinkedQueue<Connection> responsesReady = new ConcurrentLinkedQueue<>();
+    
+    private final AtomicInteger numConnections = new AtomicInteger();
+    
+    private final Logger log = LoggerFactory.getLogger(JSONMultiplexedServer.class);
+    
+    /**
+     * @param jsonRpcServer
+     * @param workerThreads: number of threads handling requests
+     * @param blockingWorkerThreads: number of threads handling calls to blocking methods
+     * @param maxConnections: further connections are refused
+     * @param idleTimeout: in seconds. Zero never closes idle connections
+     */
+    public JSONMultiplexedServer(JsonRpcServer jsonRpcServer, int workerThreads, int blockingWorkerThreads, int maxConnections, int idleTimeout) {
+        this.jsonRpcServer = jsonRpcServer;
+        this.workerThreads = (workerThreads > 0)? workerThreads : 1;
+        this.blockingWorkerThreads = (blockingWorkerThreads > 0)? blockingWorkerThreads : 1;
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout * 1000L;
+    }
+    
+    // Methods handled by the blocking workers pool. Should be called before start
+    public void setBlockingMethods(Collection<String> methods) {
+        blockingMethods.clear();
+        blockingMethods.addAll(methods);
+    }
+    
+    public void start(InetAddress bindAddress, int port) throws IOException {
+        
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(bindAddress, port));
+        serverChannel.configureBlocking(false);
+        serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        
+        workers = newWorkers(workerThreads, "JSONServerWorker-");
+        blockingWorkers = newWorkers(blockingWorkerThreads, "JSONServerBlockingWorker-");
+        
+        // The selector loop never ends while running: it has its own thread
+        running = true;
+        Thread selectorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectorLoop();
+            }
+        }, "JSONServerSelector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+    
+    public void stop() {
+        
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        if (blockingWorkers != null) {
+            blockingWorkers.shutdownNow();
+        }
+    }
+    
+    public int getNumConnections() {
+        return numConnections.get();
+    }
+    
+    private static ThreadPoolExecutor newWorkers(int numThreads, final String namePrefix) {
+        
+        return new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS, 
+                                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    // Returns true if the request (or one in a batch) calls a blocking method
+    private boolean isBlocking(byte[] request) {
+        
+        if (blockingMethods.isEmpty()) {
+            return false;
+        }
+        
+        try (JsonParser parser = jsonFactory.createParser(request)) {
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                if ((token == JsonToken.FIELD_NAME) && "method".equals(parser.getCurrentName())) {
+                    if ((parser.nextToken() == JsonToken.VALUE_STRING) && blockingMethods.contains(parser.getText())) {
+                        return true;
+                    }
+                } else if ((token == JsonToken.FIELD_NAME) && "params".equals(parser.getCurrentName())) {
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException ex) {
+            // Malformed requests are answered by the JSON-RPC server
+        }
+        
+        return false;
+    }
+    
+    private void selectorLoop() {
+        
+        try {
+            while (running) {
+                
+                selector.select((acceptResumeTime != 0)? ACCEPT_RETRY_DELAY : SELECT_TIMEOUT);
+                resumeAccept();
+                
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException ex) {
+                            
+                            // Persistent errors (out of file descriptors, for example) should 
+                            // neither stop the server nor spin: stop accepting for a while
+                            log.error("JSON server: " + ex.getMessage());
+                            serverKey.interestOps(0);
+                            acceptResumeTime = System.currentTimeMillis() + ACCEPT_RETRY_DELAY;
+                        }
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                connection.write();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException ex) {
+                            connection.close();
+                        }
+                    }
+                }
+                
+                // Send responses completed by the worker threads
+                Connection connection;
+                while ((connection = responsesReady.poll()) != null) {
+                    try {
+                        connection.onResponseReady();
+                    } catch (IOException ex) {
+                        connection.close();
+                    }
+                }
+                
+                closeIdleConnections();
+            }
+        } catch (IOException ex) {
+            log.error("JSON server: " + ex.getMessage());
+        } finally {
+            for (Connection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+    
+    private void accept() throws IOException {
+        
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        
+        if ((maxConnections > 0) && (connections.size() >= maxConnections)) {
+            log.warn("Too many JSON connections. Refusing " + channel.socket().getRemoteSocketAddress());
+            channel.close();
+            return;
+        }
+        
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setKeepAlive(true);
+            channel.socket().setTcpNoDelay(true);
+
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            numConnections.set(connections.size());
+            
+        } catch (IOException ex) {
+            log.warn("JSON server: " + ex.getMessage());
+            channel.close();
+        }
+    }
+    
+    private void resumeAccept() {
+        
+        if ((acceptResumeTime != 0) && (System.currentTimeMillis() - acceptResumeTime >= 0)) {
+            acceptResumeTime = 0;
+            serverKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+    
+    private void closeIdleConnections() {
+        
+        if (idleTimeout <= 0) {
+            return;
+        }
+        
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<>(connections)) {
+            if (!connection.busy && ((now - connection.lastActivity) > idleTimeout)) {
+                connection.close();
+            }
+        }
+    }
+    
+    private class Connection {
+        
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private long lastActivity = System.currentTimeMillis();
+        
+        // Request framing status
+        private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+        private int depth = 0;
+        private boolean inString = false;
+        private boolean escaped = false;
+        
+        // Framed requests waiting to be handled, and the one being handled
+        private final ArrayDeque<byte[]> requests = new ArrayDeque<>();
+        private volatile boolean busy = false;
+        
+        // Response being sent, and the one provided by the worker thread
+        private ByteBuffer output = null;
+        private volatile byte[] response = null;
+
+        public Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+        
+        public void read() throws IOException {
+            
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            
+            lastActivity = System.currentTimeMillis();
+            for (int n = 0; n < read; n++) {
+                frame(readBuffer.get(n));
+            }
+            
+            handleNextRequest();
+        }
+        
+        public void write() throws IOException {
+            
+            if (output != null) {
+                channel.write(output);
+                if (!output.hasRemaining()) {
+                    output = null;
+                }
+                lastActivity = System.currentTimeMillis();
+            }
+            
+            handleNextRequest();
+        }
+        
+        public void onResponseReady() throws IOException {
+            
+            if (!channel.isOpen()) {
+                return;
+            }
+            
+            byte[] result = response;
+            response = null;
+            busy = false;
+            if ((result != null) && (result.length != 0)) {
+                output = ByteBuffer.wrap(result);
+            }
+            
+            write();
+        }
+        
+        public void close() {
+            
+            if (connections.remove(this)) {
+                numConnections.set(connections.size());
+            }
+            
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+            }
+        }
+        
+        // Pass the next request to the workers when the previous one has been completely answered.
+        // Reading is suspended in the meantime, so clients can't queue requests without limits
+        private void handleNextRequest() {
+            
+            if (!busy && (output == null) && !requests.isEmpty()) {
+                
+                final byte[] nextRequest = requests.poll();
+                busy = true;
+                ThreadPoolExecutor executor = isBlocking(nextRequest)? blockingWorkers : workers;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ByteArrayOutputStream result = new ByteArrayOutputStream();
+                        try {
+                            jsonRpcServer.handle(new ByteArrayInputStream(nextRequest), result);
+                        } catch (IOException ex) {
+                            log.debug("JSON server: error handling a request (" + ex.getMessage() + ")");
+                        } catch (RuntimeException ex) {
+                            log.error("JSON server: error handling a request", ex);
+                        }
+                        
+                        response = result.toByteArray();
+                        responsesReady.add(Connection.this);
+                        selector.wakeup();
+                    }
+                });
+            }
+            
+            if (key.isValid()) {
+                int interest = (output != null)? SelectionKey.OP_WRITE : 0;
+                if (!busy && (output == null) && requests.isEmpty()) {
+                    interest |= SelectionKey.OP_READ;
+                }
+                key.interestOps(interest);
+            }
+        }
+        
+        // Split the input stream in JSON objects (or arrays of objects)
+        private void frame(byte data) throws IOException {
+            
+            if (depth == 0) {
+                
+                // Skip spaces between requests
+                if ((data == ' ') || (data == '\t') || (data == '\r') || (data == '\n')) {
+                    return;
+                }
+                
+                if ((data != '{') && (data != '[')) {
+                    throw new IOException("Invalid JSON request");
+                }
+            }
+            
+            request.write(data);
+            if (request.size() > MAX_REQUEST_SIZE) {
+                throw new IOException("JSON request too long");
+            }
+            
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (data == '\\') {
+                    escaped = true;
+                } else if (data == '"') {
+                    inString = false;
+                }
+                return;
+            }
+            
+            switch (data) {
+                case '"':
+                    inString = true;
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    if (depth == 0) {
+                        requests.add(request.toByteArray());
+                        request.reset();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@
 
 package airsenseur.dev.chemsensorhost.json;
 
+import airsenseur.dev.chemsensorhost.Configuration;
 import airsenseur.dev.chemsensorhost.engine.ChemSensorHostEngine;
 import airsenseur.dev.chemsensorhost.exceptions.JSONServerException;
 import airsenseur.dev.json.ChemSensorService;
@@ -32,6 +33,8 @@ import com.googlecode.jsonrpc4j.StreamServer;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  *
@@ -39,20 +42,44 @@ import java.net.UnknownHostException;
  */
 public class JSONServer {
     
+    public static enum JSONServerType {
+        MULTIPLEXED,
+        STREAM
+    }
+    
+    // Methods waiting for the sensor bus
+    private static final List<String> BLOCKING_METHODS = Arrays.asList("sendRawData", "startSampling", "stopSampling");
+    
     private final ChemSensorServiceImpl sensorService = new ChemSensorServiceImpl();
     private final JsonRpcServer jsonRpcServer = new JsonRpcServer(sensorService, ChemSensorService.class);
     private StreamServer streamServer = null;
+    private JSONMultiplexedServer multiplexedServer = null;
     
     public boolean init(ChemSensorHostEngine sensorHost, String address, int port) throws JSONServerException {
         
         try {
-            int maxThreads = 10;
-            int backlog = 10;
             InetAddress bindAddress = InetAddress.getByName(address);
-            
             sensorService.setSensorHost(sensorHost);
-            streamServer = new StreamServer(jsonRpcServer, maxThreads, port, backlog, bindAddress);
-            streamServer.start();
+            
+            Configuration config = Configuration.getConfig();
+            if (config.getJSONServerType() == JSONServerType.STREAM) {
+                
+                // Legacy server: one thread for each connected client
+                int maxThreads = 10;
+                int backlog = 10;
+                streamServer = new StreamServer(jsonRpcServer, maxThreads, port, backlog, bindAddress);
+                streamServer.start();
+                
+            } else {
+                
+                // All connections are handled by a single thread, requests by a pool of workers.
+                // Calls waiting for the sensor bus have their own workers
+                multiplexedServer = new JSONMultiplexedServer(jsonRpcServer, config.getJSONWorkerThreads(), 
+                                                                config.getJSONBlockingWorkerThreads(),
+                                                                config.getJSONMaxConnections(), config.getJSONConnectionTimeout());
+                multiplexedServer.setBlockingMethods(BLOCKING_METHODS);
+                multiplexedServer.start(bindAddress, port);
+            }
             
         } catch (UnknownHostException ex) {
             throw new JSONServerException(ex.getMessage());
@@ -64,6 +91,10 @@ public class JSONServer {
     }
     
     public void stop() {
+        if (multiplexedServer != null) {
+            multiplexedServer.stop();
+        }
+        
         if (streamServer != null) {
             try {
                 streamServer.stop();
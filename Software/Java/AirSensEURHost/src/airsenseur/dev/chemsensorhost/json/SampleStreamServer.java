@@ -0,0 +1,365 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost.json;
+
+import airsenseur.dev.chemsensorhost.engine.ChemSensorHostEngine;
+import airsenseur.dev.chemsensorhost.exceptions.JSONServerException;
+import airsenseur.dev.chemsensorhost.sensors.SensorConfig;
+import airsenseur.dev.chemsensorhost.sensors.SensorHistory;
+import airsenseur.dev.chemsensorhost.sensors.SensorInfo;
+import airsenseur.dev.json.JsonFieldsUtils;
+import airsenseur.dev.json.SampleData;
+import airsenseur.dev.json.SampleStreamRequest;
+import airsenseur.dev.json.StreamedSample;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Push new samples to the subscribed clients, as soon as they're read from sensors.
+ * Clients connect and send a SampleStreamRequest line; the server then sends
+ * a StreamedSample line for each new sample, and an heartbeat when idle.
+ * Each subscriber has a bounded queue: when a slow subscriber fills it, 
+ * queued samples are dropped and the subscriber is fed again from the
+ * sensors history, starting from the last sample sent for each sensor.
+ * The acceptor and each subscriber run on their own daemon thread, since they 
+ * block for the whole life of the server or of the subscription.
+ * @author marco
+ */
+public class SampleStreamServer implements ChemSensorHostEngine.NewSampleConsumer {
+    
+    private final static int MAX_SUBSCRIBERS = 8;
+    private final static int MAX_QUEUED_SAMPLES = 1024;
+    private final static int HEARTBEAT_PERIOD = 10000;  /* in milliseconds */
+    private final static int SUBSCRIBE_TIMEOUT = 5000;  /* in milliseconds */
+    private final static int ACCEPT_RETRY_DELAY = 1000; /* in milliseconds */
+    
+    private ChemSensorHostEngine sensorHost;
+    private ServerSocket serverSocket = null;
+    private volatile boolean running = false;
+    
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    
+    // Accepted connections, including the ones not subscribed yet
+    private final AtomicInteger connections = new AtomicInteger();
+    private final ObjectMapper mapper = new ObjectMapper();
+    
+    private final Logger log = LoggerFactory.getLogger(SampleStreamServer.class);
+    
+    // A sample waiting to be sent to a subscriber
+    private static class QueuedSample {
+        
+        public final int sensorId;
+        public final int value;
+        public final int timeStamp;
+        public final double evalSampleVal;
+        public final long collectedTimestamp;
+
+        public QueuedSample(int sensorId, int value, int timeStamp, double evalSampleVal, long collectedTimestamp) {
+            this.sensorId = sensorId;
+            this.value = value;
+            this.timeStamp = timeStamp;
+            this.evalSampleVal = evalSampleVal;
+            this.collectedTimestamp = collectedTimestamp;
+        }
+    }
+    
+    public boolean init(ChemSensorHostEngine sensorHost, String address, int port) throws JSONServerException {
+        
+        try {
+            InetAddress bindAddress = InetAddress.getByName(address);
+            serverSocket = new ServerSocket(port, MAX_SUBSCRIBERS, bindAddress);
+            
+        } catch (UnknownHostException ex) {
+            throw new JSONServerException(ex.getMessage());
+        } catch (IOException ex) {
+            throw new JSONServerException(ex.getMessage());
+        }
+        
+        this.sensorHost = sensorHost;
+        running = true;
+        sensorHost.addNewSampleConsumer(this);
+        
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                acceptSubscribers();
+            }
+        }, "SampleStreamServer");
+        
+        return true;
+    }
+    
+    public void stop() {
+        
+        running = false;
+        if (sensorHost != null) {
+            sensorHost.removeNewSampleConsumer(this);
+        }
+        
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException ex) {
+            }
+        }
+        
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+    
+    public int getNumSubscribers() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void onNewSample(int sensorId, int value, int timeStamp, double evalSampleVal, long collectedTimestamp) {
+        
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(sensorId, value, timeStamp, evalSampleVal, collectedTimestamp);
+        }
+    }
+    
+    private void acceptSubscribers() {
+        
+        while (running) {
+            
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                if (!running || serverSocket.isClosed()) {
+                    break;
+                }
+                
+                // Persistent errors (out of file descriptors, for example) should not spin
+                log.error("Sample stream server: " + ex.getMessage());
+                try {
+                    Thread.sleep(ACCEPT_RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                continue;
+            }
+            
+            // Connections are counted before starting their thread, so clients 
+            // not sending the subscription request can't pile up threads either
+            if (connections.incrementAndGet() > MAX_SUBSCRIBERS) {
+                connections.decrementAndGet();
+                log.warn("Too many sample stream subscribers. Rejecting " + socket.getRemoteSocketAddress());
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                }
+                continue;
+            }
+            
+            startThread(new Subscriber(socket), "SampleStreamSubscriber " + socket.getRemoteSocketAddress());
+        }
+    }
+    
+    private static void startThread(Runnable task, String name) {
+        
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private class Subscriber implements Runnable {
+        
+        private final Socket socket;
+        
+        // Samples to be sent. When full, samples are dropped and the 
+        // subscriber is fed from the sensors history (overflow)
+        private final ArrayDeque<QueuedSample> queue = new ArrayDeque<>();
+        private boolean overflow = false;
+        
+        // Last collected timestamp sent for each sensor, and the one to start from
+        private final Map<Integer, Long> lastSent = new HashMap<>();
+        private long resumeFrom;
+
+        public Subscriber(Socket socket) {
+            this.socket = socket;
+        }
+        
+        public void offer(int sensorId, int value, int timeStamp, double evalSampleVal, long collectedTimestamp) {
+            
+            synchronized (queue) {
+                if (overflow) {
+                    return;
+                }
+                
+                if (queue.size() >= MAX_QUEUED_SAMPLES) {
+                    queue.clear();
+                    overflow = true;
+                } else {
+                    queue.add(new QueuedSample(sensorId, value, timeStamp, evalSampleVal, collectedTimestamp));
+                }
+                queue.notify();
+            }
+        }
+        
+        public void close() {
+            
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+            
+            synchronized (queue) {
+                queue.notify();
+            }
+        }
+
+        @Override
+        public void run() {
+            
+            try {
+                // Wait for the subscription request
+                socket.setSoTimeout(SUBSCRIBE_TIMEOUT);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line = reader.readLine();
+                if (line == null) {
+                    return;
+                }
+                SampleStreamRequest request = mapper.readValue(line, SampleStreamRequest.class);
+                
+                socket.setTcpNoDelay(true);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                
+                // Start queueing new samples before looking into the history, so nothing is lost. 
+                // Duplicated samples are filtered out when sent
+                resumeFrom = (request.resumeFrom < 0)? System.currentTimeMillis() : request.resumeFrom;
+                subscribers.add(this);
+                log.info("New sample stream subscriber " + socket.getRemoteSocketAddress());
+                
+                if (request.resumeFrom >= 0) {
+                    sendHistory(writer);
+                    writer.flush();
+                }
+                
+                while (running && !socket.isClosed()) {
+                    
+                    QueuedSample sample;
+                    boolean fromHistory;
+                    boolean lastOne;
+                    synchronized (queue) {
+                        if (queue.isEmpty() && !overflow) {
+                            queue.wait(HEARTBEAT_PERIOD);
+                        }
+                        
+                        fromHistory = overflow;
+                        overflow = false;
+                        sample = queue.poll();
+                        lastOne = queue.isEmpty();
+                    }
+                    
+                    if (fromHistory) {
+                        sendHistory(writer);
+                        writer.flush();
+                    } else if (sample != null) {
+                        send(writer, sample.sensorId, sample.value, sample.timeStamp, sample.evalSampleVal, sample.collectedTimestamp);
+                        if (lastOne) {
+                            writer.flush();
+                        }
+                    } else {
+                        writeLine(writer, new StreamedSample());
+                        writer.flush();
+                    }
+                }
+                
+            } catch (IOException ex) {
+                log.info("Sample stream subscriber " + socket.getRemoteSocketAddress() + " disconnected");
+            } catch (InterruptedException ex) {
+            } finally {
+                subscribers.remove(this);
+                close();
+                connections.decrementAndGet();
+            }
+        }
+        
+        // Send samples, newer than the last ones sent, found in the sensors history
+        private void sendHistory(Writer writer) throws IOException {
+            
+            List<SensorInfo> sensors = sensorHost.getSensors();
+            for (int sensorId = 0; sensorId < sensors.size(); sensorId++) {
+                
+                SensorHistory.Samples samples = sensors.get(sensorId).getSensorHistory().getSince(getLastSent(sensorId));
+                for (int n = 0; n < samples.size(); n++) {
+                    send(writer, sensorId, samples.values[n], samples.timeStamps[n], samples.evalSampleVals[n], samples.collectedTimestamps[n]);
+                }
+            }
+        }
+        
+        private void send(Writer writer, int sensorId, int value, int timeStamp, double evalSampleVal, long collectedTimestamp) throws IOException {
+            
+            if (collectedTimestamp <= getLastSent(sensorId)) {
+                return;
+            }
+            lastSent.put(sensorId, collectedTimestamp);
+            
+            String name = "";
+            String serial = "";
+            List<SensorInfo> sensors = sensorHost.getSensors();
+            if (sensorId < sensors.size()) {
+                SensorConfig sensorConfig = sensors.get(sensorId).getSensorConfig();
+                name = sensorConfig.getName().isSet()? sensorConfig.getName().getValue() : "";
+                serial = sensorConfig.getSerial().isSet()? sensorConfig.getSerial().getValue() : "";
+            }
+            
+            SampleData sample = JsonFieldsUtils.safeCheck(new SampleData(name, serial, value, timeStamp, evalSampleVal, collectedTimestamp));
+            writeLine(writer, new StreamedSample(sensorId, sample));
+        }
+        
+        private long getLastSent(int sensorId) {
+            Long last = lastSent.get(sensorId);
+            return (last != null)? last : resumeFrom;
+        }
+        
+        private void writeLine(Writer writer, StreamedSample streamed) throws IOException {
+            writer.write(mapper.writeValueAsString(streamed));
+            writer.write('\n');
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost.sensors;
+
+/**
+ * Bounded ring of the most recent samples read from a sensor.
+ * Samples are stored in primitive arrays, so no objects are allocated 
+ * when a new sample is added. Each sample is tagged with the host time 
+ * it has been collected at; collected timestamps are strictly increasing 
+ * so they can be used by clients to ask for newer samples only.
+ * @author marco
+ */
+public class SensorHistory {
+    
+    public final static int DEFAULT_SIZE = 64;
+    
+    private final int[] values;
+    private final int[] timeStamps;
+    private final double[] evalSampleVals;
+    private final long[] collectedTimestamps;
+    
+    private int head = 0;   // Next position to be written
+    private int size = 0;
+    private long lastCollectedTimestamp = 0;
+    
+    /**
+     * Samples returned by a range query
+     */
+    public static class Samples {
+        
+        public final int[] values;
+        public final int[] timeStamps;
+        public final double[] evalSampleVals;
+        public final long[] collectedTimestamps;
+        
+        private Samples(int size) {
+            values = new int[size];
+            timeStamps = new int[size];
+            evalSampleVals = new double[size];
+            collectedTimestamps = new long[size];
+        }
+        
+        public int size() {
+            return values.length;
+        }
+    }
+    
+    public SensorHistory(int capacity) {
+        
+        if (capacity <= 0) {
+            capacity = 1;
+        }
+        
+        values = new int[capacity];
+        timeStamps = new int[capacity];
+        evalSampleVals = new double[capacity];
+        collectedTimestamps = new long[capacity];
+    }
+    
+    /**
+     * Add a new sample. The oldest one is dropped when the history is full.
+     * @param value
+     * @param timeStamp
+     * @param evalSampleVal
+     * @param now: host time, in ms
+     * @return the collected timestamp associated to the sample
+     */
+    public synchronized long add(int value, int timeStamp, double evalSampleVal, long now) {
+        
+        long collectedTimestamp = (now > lastCollectedTimestamp)? now : lastCollectedTimestamp + 1;
+        lastCollectedTimestamp = collectedTimestamp;
+        
+        values[head] = value;
+        timeStamps[head] = timeStamp;
+        evalSampleVals[head] = evalSampleVal;
+        collectedTimestamps[head] = collectedTimestamp;
+        
+        head = (head + 1) % values.length;
+        if (size < values.length) {
+            size++;
+        }
+        
+        return collectedTimestamp;
+    }
+    
+    /**
+     * Return the samples collected after the specified timestamp, oldest first
+     * @param collectedTimestamp: host time, in ms
+     * @return 
+     */
+    public synchronized Samples getSince(long collectedTimestamp) {
+        
+        // Samples are sorted by collected timestamp: walk back from the newest one
+        int count = 0;
+        while ((count < size) && (collectedTimestamps[indexOf(size - count - 1)] > collectedTimestamp)) {
+            count++;
+        }
+        
+        Samples result = new Samples(count);
+        for (int n = 0; n < count; n++) {
+            int index = indexOf(size - count + n);
+            result.values[n] = values[index];
+            result.timeStamps[n] = timeStamps[index];
+            result.evalSampleVals[n] = evalSampleVals[index];
+            result.collectedTimestamps[n] = collectedTimestamps[index];
+        }
+        
+        return result;
+    }
+    
+    public synchronized long getLastCollectedTimestamp() {
+        return lastCollectedTimestamp;
+    }
+    
+    public synchronized int size() {
+        return size;
+    }
+    
+    public int capacity() {
+        return values.length;
+    }
+    
+    public synchronized void clear() {
+        head = 0;
+        size = 0;
+    }
+    
+    // Position in the arrays of the n-th sample, starting from the oldest one
+    private int indexOf(int n) {
+        return (head - size + n + values.length) % values.length;
+    }
+}
@@ -24,6 +24,9 @@
 
 package airsenseur.dev.chemsensorhost.sensors;
 
+import airsenseur.dev.chemsensorhost.Configuration;
+import airsenseur.dev.chemsensorhost.helpers.MathExpression;
+
 /**
  * Information about each generic sensor available on the system (i.e. sensor bus or host only sensors)
  * @author marco
@@ -32,6 +35,8 @@ public class SensorInfo {
 
     private final SensorValue value = new SensorValue();
     private final SensorConfig config = new SensorConfig();
+    private final SensorHistory history = new SensorHistory(Configuration.getConfig().getSensorHistorySize());
+    private volatile MathExpression mathExpression = null;
     
     public SensorValue getSensorValue() {
         return value;
@@ -40,4 +45,22 @@ public class SensorInfo {
     public SensorConfig getSensorConfig() {
         return config;
     }
+    
+    public SensorHistory getSensorHistory() {
+        return history;
+    }
+    
+    // Returns the compiled math expression for this sensor. 
+    // It's compiled again only when the configured expression changes
+    public MathExpression getMathExpression() {
+        
+        String expression = config.getMathExpression().getValue();
+        MathExpression compiled = mathExpression;
+        if ((compiled == null) || !compiled.getExpression().equals(expression)) {
+            compiled = new MathExpression(expression, "b" + config.getBoardId() + "c" + config.getChannel());
+            mathExpression = compiled;
+        }
+        
+        return compiled;
+    }
 }
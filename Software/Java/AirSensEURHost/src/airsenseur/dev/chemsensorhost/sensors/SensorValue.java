@@ -25,48 +25,100 @@
 package airsenseur.dev.chemsensorhost.sensors;
 
 /**
- *
+ * Last sample read from a sensor.
+ * Each sample is published as an immutable object through a single volatile reference, 
+ * so readers always get value and timestamps belonging to the same sample without locking. 
+ * Each sensor is written by a single thread at a time (sensor bus rx thread or host sensors poller).
  * @author marco
  */
 public class SensorValue {
     
-    private int value;
-    private int timeStamp;
-    private double evalSampleVal;
+    public static class Sample {
+        
+        private final int value;
+        private final int timeStamp;
+        private final double evalSampleVal;
+        private final long collectedTimestamp;
+
+        public Sample(int value, int timeStamp, double evalSampleVal, long collectedTimestamp) {
+            this.value = value;
+            this.timeStamp = timeStamp;
+            this.evalSampleVal = evalSampleVal;
+            this.collectedTimestamp = collectedTimestamp;
+        }
+
+        /**
+         * @return the value
+         */
+        public int getValue() {
+            return value;
+        }
+
+        /**
+         * @return the timeStamp
+         */
+        public int getTimeStamp() {
+            return timeStamp;
+        }
+
+        /**
+         * @return the evalSampleVal
+         */
+        public double getEvalSampleVal() {
+            return evalSampleVal;
+        }
+
+        /**
+         * @return the collectedTimestamp
+         */
+        public long getCollectedTimestamp() {
+            return collectedTimestamp;
+        }
+    }
+    
+    private volatile Sample sample = new Sample(0, 0, 0.0, 0);
     
     private long pollPeriod;
     private long lastPollTimestamp;
     
-    public boolean load(int value, int timestamp) {
-        if (this.getTimeStamp() != timestamp) {
-            this.timeStamp = timestamp;
-            this.value = value;
-            this.setEvalSampleVal(value);
-            return true;
-        }
-
-        return false;
+    // Returns true if timestamp refers to a sample not yet published
+    public boolean isNewSample(int timestamp) {
+        return sample.getTimeStamp() != timestamp;
+    }
+    
+    // Make a new sample available to the readers
+    public Sample publish(int value, int timeStamp, double evalSampleVal, long collectedTimestamp) {
+        Sample newSample = new Sample(value, timeStamp, evalSampleVal, collectedTimestamp);
+        sample = newSample;
+        return newSample;
+    }
+    
+    /**
+     * @return the last published sample
+     */
+    public Sample getSample() {
+        return sample;
     }
 
     /**
      * @return the value
      */
     public int getValue() {
-        return value;
+        return sample.getValue();
     }
 
     /**
      * @return the timeStamp
      */
     public int getTimeStamp() {
-        return timeStamp;
+        return sample.getTimeStamp();
     }
 
     /**
      * @return the evalSampleVal
      */
     public double getEvalSampleVal() {
-        return evalSampleVal;
+        return sample.getEvalSampleVal();
     }
 
     /**
@@ -83,13 +135,6 @@ public class SensorValue {
         this.lastPollTimestamp = lastPollTimestamp;
     }
 
-    /**
-     * @param evalSampleVal the evalSampleVal to set
-     */
-    public void setEvalSampleVal(double evalSampleVal) {
-        this.evalSampleVal = evalSampleVal;
-    }
-
     /**
      * @return the pollPeriod
      */
@@ -39,7 +39,29 @@ public interface HostSensor {
     public String getMathExpression();
     public Integer getSamplingPeriod();
     
-    // Value related methods
-    public int getValue();
-    public int getTimestamp();
+    // Value related methods.
+    // Sensors are read in background by the host sensors poller, when due. 
+    // The last reading is cached so it's available in constant time
+    public void refresh(long now);
+    public Reading getLastReading();
+    
+    // Last value read from a sensor. Timestamp is in seconds
+    public static class Reading {
+        
+        private final int value;
+        private final int timestamp;
+
+        public Reading(int value, int timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public int getTimestamp() {
+            return timestamp;
+        }
+    }
 }
@@ -24,115 +24,39 @@
 
 package airsenseur.dev.chemsensorhost.sensors.hostsensors;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /**
  *
  * @author marco
  */
-public class HostSensorBatteryChargerStatus implements HostSensor {
+public class HostSensorBatteryChargerStatus extends HostSensorSysfs {
     
     private final static int SAMPLING_PERIOD = 600000;  /* 600 seconds */
     
     private final static String BATTERYSTATUSFILE = "/sys/class/power_supply/ltc4156-charger-0/status";
-    private Integer lastReadValue = null;
-    private long lastSampleTimestamp = 0;
-    
-    private static final Logger LOG = LoggerFactory.getLogger(HostSensorBatteryChargerStatus.class);
-    private boolean logEnabled = true;
-
-    @Override
-    public int getBoardId() {
-        return HostSensorBoard.HOST_BOARD_ID;
-    }
 
-    @Override
-    public int getChannel() {
-        return HostSensorBoard.CHANNEL_BATTERY_L4156_STATUS;
-    }
-
-    @Override
-    public String getName() {
-        return "L4156STA";
-    }
-
-    @Override
-    public String getSerial() {
-        return "NA";
-    }
-
-    @Override
-    public String getMeasurementUnits() {
-        return "enum";
-    }
-
-    @Override
-    public String getMathExpression() {
-        return "x";
-    }
-
-    @Override
-    public Integer getSamplingPeriod() {
-        return SAMPLING_PERIOD;
-    }
-
-    @Override
-    public int getValue() {
-        if((System.currentTimeMillis() - lastSampleTimestamp) > SAMPLING_PERIOD) {
-
-            lastSampleTimestamp = System.currentTimeMillis();
-            lastReadValue = getBatteryChargeStatus();
-
-            if (lastReadValue != null) {
-                return lastReadValue;
-            }
-        }
-                
-        return 0;
-    }
-
-    @Override
-    public int getTimestamp() {
-        
-        return (int) (lastSampleTimestamp / 1000);
+    public HostSensorBatteryChargerStatus() {
+        super(HostSensorBoard.CHANNEL_BATTERY_L4156_STATUS, "L4156STA", "enum", "x", BATTERYSTATUSFILE, SAMPLING_PERIOD);
     }
 
     /**
      * 
      * @return 0 -> Full, 1 -> Charging, 2 -> Discharging, or null 
     */
-    private Integer getBatteryChargeStatus() {
+    @Override
+    protected Integer parseValue(String contents) {
         
-        try {
-            String contents = new String(Files.readAllBytes(Paths.get(BATTERYSTATUSFILE)));
-            
-            if (contents.startsWith("Full")) {
-                return 0;
-            }
-            
-            if (contents.startsWith("Charging")) {
-                return 1;
-            }
-            
-            if (contents.startsWith("Discharging")) {
-                return 2;
-            }
-            
-        } catch (IOException e) {
-            if (logEnabled) {
-                
-                LOG.error("Input/Output exception when reading " + BATTERYSTATUSFILE);
+        if (contents.startsWith("Full")) {
+            return 0;
+        }
 
-                // Prevent flooding logs when no sensor is available on the board
-                logEnabled = false;
-            }
+        if (contents.startsWith("Charging")) {
+            return 1;
+        }
+
+        if (contents.startsWith("Discharging")) {
+            return 2;
         }
         
         return null;
-    }        
-
+    }
 }
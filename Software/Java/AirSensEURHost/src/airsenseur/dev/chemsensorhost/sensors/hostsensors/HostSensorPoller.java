@@ -0,0 +1,73 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost.sensors.hostsensors;
+
+import airsenseur.dev.helpers.TaskScheduler;
+import java.util.List;
+
+/**
+ * Reads host sensors in background, at low priority, so that slow file 
+ * system accesses never delay the engine and the sensor bus polls.
+ * @author marco
+ */
+public class HostSensorPoller extends TaskScheduler {
+    
+    private final static int POLL_PERIOD = 1000; /* in milliseconds */
+    
+    private final List<HostSensor> hostSensors;
+
+    public HostSensorPoller(List<HostSensor> hostSensors) {
+        this.hostSensors = hostSensors;
+    }
+    
+    public void start() {
+        startPeriodic(POLL_PERIOD);
+    }
+
+    @Override
+    public void taskMain() {
+        
+        Thread thread = Thread.currentThread();
+        int priority = thread.getPriority();
+        thread.setPriority(Thread.MIN_PRIORITY);
+        
+        try {
+            for (HostSensor hostSensor : hostSensors) {
+                if (isShutdown()) {
+                    break;
+                }
+                hostSensor.refresh(System.currentTimeMillis());
+            }
+        } finally {
+            thread.setPriority(priority);
+        }
+    }
+
+    @Override
+    public String getTaskName() {
+        return "HostSensorPoller";
+    }
+}
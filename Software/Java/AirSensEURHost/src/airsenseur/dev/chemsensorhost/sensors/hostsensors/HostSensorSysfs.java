@@ -0,0 +1,152 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost.sensors.hostsensors;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Host sensor reading a numeric value from a file (i.e. sysfs or hwmon attributes).
+ * Files are read by the host sensors poller thread, once each sampling period.
+ * Sensors providing non numeric values should override parseValue.
+ * @author marco
+ */
+public class HostSensorSysfs implements HostSensor {
+    
+    private final static int ERRORLOGMAXTHRESHOLD = 10;
+    private static final Logger LOG = LoggerFactory.getLogger(HostSensorSysfs.class);
+    
+    private final int channel;
+    private final String name;
+    private final String measurementUnits;
+    private final String mathExpression;
+    private final String path;
+    private final int samplingPeriod;
+    
+    private volatile Reading lastReading = null;
+    private long lastSampleTimestamp = 0;
+    private int errorLogCounter = 0;
+
+    public HostSensorSysfs(int channel, String name, String measurementUnits, String mathExpression, String path, int samplingPeriod) {
+        this.channel = channel;
+        this.name = name;
+        this.measurementUnits = measurementUnits;
+        this.mathExpression = mathExpression;
+        this.path = path;
+        this.samplingPeriod = samplingPeriod;
+    }
+
+    @Override
+    public int getBoardId() {
+        return HostSensorBoard.HOST_BOARD_ID;
+    }
+
+    @Override
+    public int getChannel() {
+        return channel;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getSerial() {
+        return "NA";
+    }
+
+    @Override
+    public String getMeasurementUnits() {
+        return measurementUnits;
+    }
+
+    @Override
+    public String getMathExpression() {
+        return mathExpression;
+    }
+
+    @Override
+    public Integer getSamplingPeriod() {
+        return samplingPeriod;
+    }
+    
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public void refresh(long now) {
+        
+        if ((lastSampleTimestamp != 0) && ((now - lastSampleTimestamp) < samplingPeriod)) {
+            return;
+        }
+        
+        lastSampleTimestamp = now;
+        
+        try {
+            String contents = new String(Files.readAllBytes(Paths.get(path)));
+            Integer value = parseValue(contents.replace("\r", "").replace("\n", "").trim());
+            if (value != null) {
+                lastReading = new Reading(value, (int) (now / 1000));
+            } else {
+                logError("Invalid value read from " + path);
+            }
+            
+        } catch (IOException e) {
+            logError("Input/Output exception when reading " + path);
+        }
+    }
+
+    @Override
+    public Reading getLastReading() {
+        return lastReading;
+    }
+    
+    /**
+     * @param contents the file contents, trimmed
+     * @return the sensor value or null if not valid
+     */
+    protected Integer parseValue(String contents) {
+        
+        try {
+            return (int) Math.round(Double.parseDouble(contents));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    private void logError(String error) {
+        
+        if (errorLogCounter < ERRORLOGMAXTHRESHOLD) {
+            errorLogCounter++;
+            LOG.error(error);
+        }
+    }
+}
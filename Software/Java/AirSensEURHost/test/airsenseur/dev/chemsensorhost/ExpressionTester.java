@@ -22,6 +22,7 @@
 
 package airsenseur.dev.chemsensorhost;
 
+import airsenseur.dev.chemsensorhost.helpers.MathExpression;
 import expr.Expr;
 import expr.Parser;
 import expr.SyntaxException;
@@ -74,6 +75,41 @@ public class ExpressionTester {
             }
         }
         
+        // Check for compiled expressions evaluated concurrently in different scopes
+        final MathExpression offset = new MathExpression("x + 1", "offset");
+        final MathExpression twoComplements = new MathExpression("if(x>32767,x-32768,x+32768)", "twocomplements");
+        final int[] errors = new int[2];
+        Thread[] threads = new Thread[2];
+        for (int n = 0; n < threads.length; n++) {
+            final int scope = n;
+            threads[n] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 65536; i++) {
+                        double expected = (scope == 0)? i + 1 : convertTwoComplements(i);
+                        double value = (scope == 0)? offset.evaluate(i) : twoComplements.evaluate(i);
+                        if (value != expected) {
+                            errors[scope]++;
+                        }
+                    }
+                }
+            });
+            threads[n].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+        System.out.println("Scoped expressions errors: " + (errors[0] + errors[1]));
+        
+        // Invalid expressions return the sample itself
+        MathExpression invalid = new MathExpression("x +* 2", "invalid");
+        if (invalid.isValid() || (invalid.evaluate(1234) != 1234)) {
+            System.out.println("Error evaluating an invalid expression");
+        }
     }
     
     public static double convertTwoComplements(double sample) {
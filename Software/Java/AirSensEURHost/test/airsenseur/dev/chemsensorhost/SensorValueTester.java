@@ -0,0 +1,90 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost;
+
+import airsenseur.dev.chemsensorhost.sensors.SensorValue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that readers always get consistent samples while a writer 
+ * publishes new ones. Each sample is built so that its fields can be cross checked.
+ * @author marco
+ */
+public class SensorValueTester {
+    
+    private final static int NUM_SAMPLES = 5000000;
+    private final static int NUM_READERS = 3;
+    
+    public static void main(String[] argc) throws InterruptedException {
+        
+        final SensorValue sensorValue = new SensorValue();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        
+        Thread[] readers = new Thread[NUM_READERS];
+        for (int n = 0; n < readers.length; n++) {
+            readers[n] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int lastTimeStamp = 0;
+                    while (!done.get()) {
+                        SensorValue.Sample sample = sensorValue.getSample();
+                        int timeStamp = sample.getTimeStamp();
+                        if ((sample.getValue() != timeStamp) || 
+                                (sample.getEvalSampleVal() != timeStamp * 2.0) || 
+                                (sample.getCollectedTimestamp() != timeStamp) ||
+                                (timeStamp < lastTimeStamp)) {
+                            errors.incrementAndGet();
+                        }
+                        lastTimeStamp = timeStamp;
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+            readers[n].start();
+        }
+        
+        long startTime = System.currentTimeMillis();
+        for (int timeStamp = 1; timeStamp <= NUM_SAMPLES; timeStamp++) {
+            if (sensorValue.isNewSample(timeStamp)) {
+                sensorValue.publish(timeStamp, timeStamp, timeStamp * 2.0, timeStamp);
+            }
+        }
+        long elapsed = System.currentTimeMillis() - startTime;
+        
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        
+        System.out.println("Published " + NUM_SAMPLES + " samples in " + elapsed + " ms. Reads: " + reads.get() + ", inconsistent reads: " + errors.get());
+        if (sensorValue.isNewSample(NUM_SAMPLES)) {
+            System.out.println("Error: last sample not published");
+        }
+    }
+}
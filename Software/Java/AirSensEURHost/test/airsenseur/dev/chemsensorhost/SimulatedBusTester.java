@@ -0,0 +1,197 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost;
+
+import airsenseur.dev.chemsensorhost.engine.ChemSensorHostEngine;
+import airsenseur.dev.chemsensorhost.exceptions.JSONServerException;
+import airsenseur.dev.chemsensorhost.json.SampleStreamServer;
+import airsenseur.dev.chemsensorhost.sensors.SensorInfo;
+import airsenseur.dev.chemsensorhost.sensors.SensorValue;
+import airsenseur.dev.comm.CommChannelSimulator;
+import airsenseur.dev.json.SampleStreamClient;
+import airsenseur.dev.json.SampleStreamRequest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the sensor host engine against a simulated sensor bus and reports
+ * the number of polls per second and the age of each new sample when 
+ * it becomes available to the host (end to end sample latency).
+ * New samples are also received through the sample stream and counted.
+ * Usage: SimulatedBusTester [seconds] [simulated port] [request window] [discovery snapshot file]
+ * @author marco
+ */
+public class SimulatedBusTester {
+    
+    private final static String DEFAULT_PORT = "sim:boards=CHEM_SHIELD_R3X,EXP1,EXP2,ENV1;latency=5;jitter=2;drop=0.01;crcErrors=0.01;seed=42";
+    private final static int DEFAULT_DURATION = 30;     /* in seconds */
+    private final static int READY_TIMEOUT = 120;       /* in seconds */
+    private final static int SCAN_PERIOD = 5;           /* in milliseconds */
+    private final static int MAX_LATENCIES = 1000000;
+    private final static int SAMPLE_STREAM_PORT = 18001;
+    
+    public static void main(String[] argc) throws InterruptedException {
+        
+        runTest(argc);
+        
+        // Sensor bus threads are not daemons
+        System.exit(0);
+    }
+    
+    private static void runTest(String[] argc) throws InterruptedException {
+        
+        int duration = (argc.length > 0)? Integer.parseInt(argc[0]) : DEFAULT_DURATION;
+        String port = (argc.length > 1)? argc[1] : DEFAULT_PORT;
+        String requestWindow = (argc.length > 2)? argc[2] : "1";
+        String snapshotFile = (argc.length > 3)? argc[3] : "";
+        
+        Configuration config = Configuration.getConfig();
+        config.setProperty("port", port);
+        config.setProperty("pollPeriod", "1000");
+        config.setProperty("numSensors", "0");
+        config.setProperty("enableAutoDiscovery", "true");
+        config.setProperty("skipHostSensors", "true");
+        config.setProperty("useCRCInSensorBus", "true");
+        config.setProperty("sensorBusRequestWindow", requestWindow);
+        config.setProperty("discoverySnapshotFile", snapshotFile);
+        
+        ChemSensorHostEngine engine = new ChemSensorHostEngine();
+        if (!engine.start(1000)) {
+            System.out.println("Unable to start the engine on " + port);
+            return;
+        }
+        
+        CommChannelSimulator simulator = CommChannelSimulator.getSimulator(port);
+        
+        // Wait for autodiscovery and configuration read
+        long discoveryStart = System.currentTimeMillis();
+        long deadline = System.currentTimeMillis() + (READY_TIMEOUT * 1000L);
+        while (!engine.getIsReady() && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(100);
+        }
+        if (!engine.getIsReady()) {
+            System.out.println("Engine not ready after " + READY_TIMEOUT + " seconds. Polls: " + simulator.getRequests() + 
+                                ", answers: " + simulator.getAnswers() + ", unanswered: " + simulator.getUnanswered());
+            engine.exit();
+            return;
+        }
+        
+        List<SensorInfo> sensors = engine.getSensors();
+        System.out.println("Engine ready in " + (System.currentTimeMillis() - discoveryStart) + " ms with " + sensors.size() + " sensors. Sampling for " + duration + " seconds");
+        
+        // Count samples pushed through the sample stream
+        SampleStreamServer streamServer = new SampleStreamServer();
+        final SampleStreamClient streamClient = new SampleStreamClient();
+        final AtomicInteger streamedSamples = new AtomicInteger();
+        try {
+            streamServer.init(engine, "localhost", SAMPLE_STREAM_PORT);
+        } catch (JSONServerException ex) {
+            System.out.println("Unable to start the sample stream server: " + ex.getErrorMessage());
+        }
+        if (streamClient.connect("localhost", SAMPLE_STREAM_PORT, SampleStreamRequest.LIVE_ONLY)) {
+            Thread streamReader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (streamClient.readSample() != null) {
+                        streamedSamples.incrementAndGet();
+                    }
+                }
+            });
+            streamReader.setDaemon(true);
+            streamReader.start();
+        }
+        
+        int[] lastTimestamps = new int[sensors.size()];
+        for (int n = 0; n < lastTimestamps.length; n++) {
+            lastTimestamps[n] = sensors.get(n).getSensorValue().getTimeStamp();
+        }
+        
+        long[] latencies = new long[MAX_LATENCIES];
+        int numLatencies = 0;
+        
+        long startRequests = simulator.getRequests();
+        long startAnswers = simulator.getAnswers();
+        long startTime = System.currentTimeMillis();
+        deadline = startTime + (duration * 1000L);
+        
+        while (System.currentTimeMillis() < deadline) {
+            
+            Thread.sleep(SCAN_PERIOD);
+            
+            int now = (int)System.currentTimeMillis();
+            for (int n = 0; n < lastTimestamps.length; n++) {
+                SensorValue value = sensors.get(n).getSensorValue();
+                int timestamp = value.getTimeStamp();
+                if ((timestamp != lastTimestamps[n]) && (timestamp != 0)) {
+                    lastTimestamps[n] = timestamp;
+                    if (numLatencies < MAX_LATENCIES) {
+                        latencies[numLatencies++] = now - timestamp;
+                    }
+                }
+            }
+        }
+        
+        double elapsed = (System.currentTimeMillis() - startTime) / 1000.0;
+        long requests = simulator.getRequests() - startRequests;
+        long answers = simulator.getAnswers() - startAnswers;
+        
+        // Samples collected during the test and still available in the sensors history
+        int historySamples = 0;
+        for (SensorInfo sensor : sensors) {
+            historySamples += sensor.getSensorHistory().getSince(startTime).size();
+        }
+        
+        String busSummary = engine.getSensorBusStatistics().getSummary();
+        streamClient.disconnect();
+        streamServer.stop();
+        engine.exit();
+        
+        System.out.println(busSummary);
+        System.out.println(String.format("Polls: %d (%.1f/s), answers: %d (%.1f/s)", 
+                            requests, requests / elapsed, answers, answers / elapsed));
+        System.out.println(String.format("Dropped: %d, CRC errors: %d, unanswered: %d", 
+                            simulator.getDropped(), simulator.getCrcErrors(), simulator.getUnanswered()));
+        
+        if (numLatencies == 0) {
+            System.out.println("No new samples received");
+            return;
+        }
+        
+        Arrays.sort(latencies, 0, numLatencies);
+        long total = 0;
+        for (int n = 0; n < numLatencies; n++) {
+            total += latencies[n];
+        }
+        
+        System.out.println(String.format("New samples: %d (%.1f/s), in history: %d, streamed: %d", 
+                            numLatencies, numLatencies / elapsed, historySamples, streamedSamples.get()));
+        System.out.println(String.format("Sample latency (ms): min %d, avg %.1f, p50 %d, p95 %d, max %d", 
+                            latencies[0], (double)total / numLatencies, 
+                            latencies[numLatencies / 2], latencies[(numLatencies * 95) / 100], 
+                            latencies[numLatencies - 1]));
+    }
+}
@@ -0,0 +1,163 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.chemsensorhost.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sensor poll scheduler checker
+ * @author marco
+ */
+public class SensorPollSchedulerTester {
+    
+    private final static long TOLERANCE = 40;      /* in milliseconds */
+    
+    // Records when each sensor has been polled (in ms from start). 
+    // The first poll of the slow sensor, if any, lasts slowDelay ms
+    private static class Recorder implements SensorPollScheduler.PollHandler {
+        
+        private final long start = System.nanoTime();
+        private final List<List<Long>> polls = new ArrayList<>();
+        private final int slowSensorId;
+        private final long slowDelay;
+        
+        public Recorder(int numSensors, int slowSensorId, long slowDelay) {
+            for (int n = 0; n < numSensors; n++) {
+                polls.add(new ArrayList<Long>());
+            }
+            this.slowSensorId = slowSensorId;
+            this.slowDelay = slowDelay;
+        }
+        
+        @Override
+        public void onPollDue(int sensorId) {
+            
+            List<Long> sensorPolls = polls.get(sensorId);
+            boolean first;
+            synchronized (this) {
+                first = sensorPolls.isEmpty();
+                sensorPolls.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+            
+            if (first && (sensorId == slowSensorId)) {
+                try {
+                    Thread.sleep(slowDelay);
+                } catch (InterruptedException ex) {
+                }
+            }
+        }
+        
+        public synchronized List<Long> getPolls(int sensorId) {
+            return new ArrayList<>(polls.get(sensorId));
+        }
+    }
+    
+    public static void main(String[] argc) throws InterruptedException {
+        
+        // Check for first polls with the same period spread along the period,
+        // and for next polls on each sensor's time grid. Sensor 2 is not polled
+        long period = 400;
+        SensorPollScheduler scheduler = new SensorPollScheduler();
+        Recorder recorder = new Recorder(5, -1, 0);
+        scheduler.start(new long[] { period, period, 0, period, period }, recorder);
+        Thread.sleep(5 * period);
+        scheduler.stop();
+        
+        int rank = 0;
+        for (int sensorId = 0; sensorId < 5; sensorId++) {
+            
+            List<Long> polls = recorder.getPolls(sensorId);
+            System.out.println("Sensor " + sensorId + " polled at " + polls + " ms");
+            if (sensorId == 2) {
+                if (!polls.isEmpty()) {
+                    System.out.println("Error: sensor without a period polled");
+                }
+                continue;
+            }
+            
+            long offset = (period / 4) * rank++;
+            if (polls.size() < 4) {
+                System.out.println("Error: sensor " + sensorId + " polled only " + polls.size() + " times");
+            }
+            for (int n = 0; n < polls.size(); n++) {
+                long expected = offset + n * period;
+                if (Math.abs(polls.get(n) - expected) > TOLERANCE) {
+                    System.out.println("Error: sensor " + sensorId + " poll " + n + " expected at " + expected + " ms");
+                }
+            }
+        }
+        
+        // Check for no polls fired after stop
+        int numPolls = recorder.getPolls(0).size();
+        Thread.sleep(2 * period);
+        if (scheduler.isRunning() || (recorder.getPolls(0).size() != numPolls)) {
+            System.out.println("Error: polls fired after stop");
+        }
+        
+        // Check for polls missed by a slow handler skipped, not sent in a burst. 
+        // A single late poll is fired, then polls are back on the time grid
+        period = 100;
+        long slowDelay = 450;
+        scheduler = new SensorPollScheduler();
+        recorder = new Recorder(1, 0, slowDelay);
+        scheduler.start(new long[] { period }, recorder);
+        Thread.sleep(1000);
+        scheduler.stop();
+        
+        List<Long> polls = recorder.getPolls(0);
+        System.out.println("Slow sensor polled at " + polls + " ms");
+        long maxPolls = 2 + (1000 - slowDelay) / period + 1;
+        if ((polls.size() < 4) || (polls.size() > maxPolls)) {
+            System.out.println("Error: " + polls.size() + " polls after a slow one, expected at most " + maxPolls);
+        }
+        if ((polls.size() < 2) || (Math.abs(polls.get(1) - slowDelay) > TOLERANCE)) {
+            System.out.println("Error: no late poll just after the slow one");
+        }
+        for (int n = 2; n < polls.size(); n++) {
+            long phase = polls.get(n) % period;
+            if ((phase > TOLERANCE) && (phase < period - TOLERANCE)) {
+                System.out.println("Error: poll at " + polls.get(n) + " ms out of the time grid");
+            }
+            if (polls.get(n) - polls.get(n - 1) < (period / 2) - TOLERANCE) {
+                System.out.println("Error: missed polls sent in a burst");
+            }
+        }
+        
+        // Check for periods never shorter than MIN_POLL_PERIOD
+        scheduler = new SensorPollScheduler();
+        recorder = new Recorder(1, -1, 0);
+        scheduler.start(new long[] { 1 }, recorder);
+        Thread.sleep(500);
+        scheduler.stop();
+        
+        numPolls = recorder.getPolls(0).size();
+        System.out.println("Polled " + numPolls + " times in 500 ms with a 1 ms period");
+        if (numPolls > 500 / SensorPollScheduler.MIN_POLL_PERIOD + 1) {
+            System.out.println("Error: period shorter than " + SensorPollScheduler.MIN_POLL_PERIOD + " ms");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.chemsensorhost.json;
+
+import com.googlecode.jsonrpc4j.JsonRpcServer;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects many clients at the same time to a multiplexed JSON server 
+ * answering with a copy of each request, and checks that all answers are 
+ * received in order, with requests split or pipelined on the socket.
+ * Then checks idle connections are closed by the server, and that clients 
+ * are still served while all the blocking workers are busy.
+ * @author marco
+ */
+public class JSONMultiplexedServerTester {
+    
+    private final static int PORT = 18000;
+    private final static int CLIENTS = 100;
+    private final static int REQUESTS = 50;
+    private final static long BLOCKING_TIME = 2000;    /* in milliseconds */
+    
+    // Answers with a copy of the request. Calls to the "block" method are answered after BLOCKING_TIME
+    private static class EchoServer extends JsonRpcServer {
+
+        public EchoServer() {
+            super(new Object(), Object.class);
+        }
+
+        @Override
+        public void handle(InputStream ips, OutputStream ops) throws IOException {
+            byte[] buffer = new byte[1024];
+            int read;
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            while ((read = ips.read(buffer)) > 0) {
+                request.write(buffer, 0, read);
+            }
+            
+            if (new String(request.toByteArray(), StandardCharsets.UTF_8).contains("\"method\":\"block\"")) {
+                try {
+                    Thread.sleep(BLOCKING_TIME);
+                } catch (InterruptedException ex) {
+                }
+            }
+            ops.write(request.toByteArray());
+        }
+    }
+    
+    public static void main(String[] argc) throws Exception {
+        
+        JSONMultiplexedServer server = new JSONMultiplexedServer(new EchoServer(), 2, 1, CLIENTS + 1, 1);
+        server.setBlockingMethods(Arrays.asList("block"));
+        server.start(InetAddress.getByName("localhost"), PORT);
+        
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicInteger answers = new AtomicInteger();
+        List<Thread> clients = new ArrayList<>();
+        
+        long start = System.currentTimeMillis();
+        for (int n = 0; n < CLIENTS; n++) {
+            final int clientId = n;
+            Thread client = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (Socket socket = new Socket("localhost", PORT)) {
+                        OutputStream out = socket.getOutputStream();
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        
+                        for (int request = 0; request < REQUESTS; request += 2) {
+                            
+                            // Two pipelined requests, the first one split in two writes
+                            byte[] first = makeRequest(clientId, request);
+                            byte[] second = makeRequest(clientId, request + 1);
+                            out.write(first, 0, first.length / 2);
+                            out.flush();
+                            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+                            rest.write(first, first.length / 2, first.length - first.length / 2);
+                            rest.write('\n');
+                            rest.write(second);
+                            out.write(rest.toByteArray());
+                            out.flush();
+                            
+                            for (byte[] expected : new byte[][] { first, second }) {
+                                byte[] answer = new byte[expected.length];
+                                in.readFully(answer);
+                                if (Arrays.equals(answer, expected)) {
+                                    answers.incrementAndGet();
+                                } else {
+                                    errors.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (IOException ex) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            clients.add(client);
+            client.start();
+        }
+        
+        for (Thread client : clients) {
+            client.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        
+        System.out.println("Answers: " + answers.get() + "/" + (CLIENTS * REQUESTS) + ", errors: " + errors.get() + 
+                            ", elapsed: " + elapsed + " ms");
+        
+        // Idle connections should be closed after the timeout
+        Socket idle = new Socket("localhost", PORT);
+        Thread.sleep(200);
+        int connected = server.getNumConnections();
+        Thread.sleep(3000);
+        System.out.println("Idle connection: " + connected + " before, " + server.getNumConnections() + " after the timeout");
+        System.out.println("End of stream on idle connection: " + (idle.getInputStream().read() < 0));
+        idle.close();
+        
+        // Blocking calls wait for each other, but don't delay other calls
+        List<Socket> blocking = new ArrayList<>();
+        for (int n = 0; n < 3; n++) {
+            Socket socket = new Socket("localhost", PORT);
+            socket.getOutputStream().write(makeRequest("block", n, n));
+            blocking.add(socket);
+        }
+        Thread.sleep(100);
+        try (Socket socket = new Socket("localhost", PORT)) {
+            byte[] request = makeRequest(0, 0);
+            start = System.currentTimeMillis();
+            socket.getOutputStream().write(request);
+            new DataInputStream(socket.getInputStream()).readFully(new byte[request.length]);
+            elapsed = System.currentTimeMillis() - start;
+        }
+        System.out.println("Answer with blocking workers busy in " + elapsed + " ms (expected less than " + (BLOCKING_TIME / 2) + " ms): " + 
+                            ((elapsed < (BLOCKING_TIME / 2))? "OK" : "FAILED"));
+        for (Socket socket : blocking) {
+            socket.close();
+        }
+        
+        server.stop();
+    }
+    
+    private static byte[] makeRequest(int clientId, int request) {
+        return makeRequest("echo", clientId, request);
+    }
+    
+    private static byte[] makeRequest(String method, int clientId, int request) {
+        String json = "{\"jsonrpc\":\"2.0\",\"method\":\"" + method + "\",\"params\":[\"client " + clientId + 
+                        " with {braces} and \\\"quotes\\\"\"," + request + "],\"id\":" + request + "}";
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -35,37 +35,92 @@ public class AppDataMessage {
 
     public static final int MIN_VALID_BOARD_ID_ON_SBUS = 0x00;
     public static final int MAX_VALID_BOARD_ID_ON_SBUS = 0x0F;
+    
+    // Traffic classes. Messages with higher priority are sent first
+    public static final int PRIORITY_SAMPLING = 0;
+    public static final int PRIORITY_CONFIGURATION = 1;
+    public static final int PRIORITY_INTERACTIVE = 2;
 
     private int boardId = BOARD_ID_UNDEFINED;
+    private CharSequence commandData = "";
     private String commandString = "";
     private String commandComment = "";
+    private int priority = PRIORITY_CONFIGURATION;
+    
+    // Buffer owned by reusable messages. It holds frames received from the bus
+    private AsciiFrame frame = null;
     
-    private AppDataMessage() {
+    // Reusable messages (i.e. AppDataMessageQueue slots)
+    AppDataMessage() {
     }
 
     public AppDataMessage(String command) {
-        this.commandString = command;
+        setCommandString(command);
     }
 
     public AppDataMessage(String command, String comment) {
-        this.commandString = command;
+        setCommandString(command);
         this.commandComment = comment;
     }
     
     public AppDataMessage(int boardId, String command) {
         this.boardId = boardId;
-        this.commandString = command;
+        setCommandString(command);
     }
 
     public AppDataMessage(int boardId, String command, String comment) {
         this.boardId = boardId;
-        this.commandString = command;
+        setCommandString(command);
         this.commandComment = comment;
     }
     
+    // Messages received from the bus. The String representation 
+    // is generated only if someone asks for it
+    public AppDataMessage(int boardId, AsciiFrame command) {
+        this.boardId = boardId;
+        this.commandData = command;
+        this.commandString = null;
+    }
+    
+    // Copy the specified bytes received from the bus into this message
+    void setFrame(int boardId, byte[] buffer, int offset, int length) {
+        
+        if (frame == null) {
+            frame = new AsciiFrame(buffer, offset, length);
+        } else {
+            frame.set(buffer, offset, length);
+        }
+        
+        this.boardId = boardId;
+        this.commandData = frame;
+        this.commandString = null;
+        this.commandComment = "";
+        this.priority = PRIORITY_CONFIGURATION;
+    }
+    
+    // Copy the contents of another message into this one. 
+    // Received frames are duplicated, immutable strings are shared
+    void copyFrom(AppDataMessage message) {
+        
+        if (message.commandData instanceof AsciiFrame) {
+            AsciiFrame source = (AsciiFrame)message.commandData;
+            setFrame(message.boardId, source.getData(), 0, source.length());
+            this.commandString = message.commandString;
+        } else {
+            this.boardId = message.boardId;
+            this.commandData = message.commandData;
+            this.commandString = message.commandString;
+        }
+        
+        this.commandComment = message.commandComment;
+        this.priority = message.priority;
+    }
+    
     @Override
     public AppDataMessage clone() {
-        return new AppDataMessage(boardId, commandString, commandComment);
+        AppDataMessage result = new AppDataMessage(boardId, getCommandString(), commandComment);
+        result.priority = priority;
+        return result;
     }
 
     public int getBoardId() {
@@ -75,13 +130,30 @@ public class AppDataMessage {
     public String getCommandComment() {
         return commandComment;
     }
+    
+    public int getPriority() {
+        return priority;
+    }
+    
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
 
     public String getCommandString() {
+        if (commandString == null) {
+            commandString = commandData.toString();
+        }
         return commandString;
     }
     
-    public void setCommandString(String commandString) {
+    // Command contents for decoders. It does not require any String conversion
+    public CharSequence getCommandData() {
+        return commandData;
+    }
+    
+    public final void setCommandString(String commandString) {
         this.commandString = commandString;
+        this.commandData = commandString;
     }
 
     public boolean matches(int boardId, char commandId) {
@@ -91,8 +163,8 @@ public class AppDataMessage {
             return false;
         }
                 
-        if (commandString.length() > 1) {
-            return (commandString.charAt(0) == commandId);
+        if (commandData.length() > 1) {
+            return (commandData.charAt(0) == commandId);
         }
         
         return false;
@@ -104,9 +176,13 @@ public class AppDataMessage {
             return false;
         }
         
-        if (commandString.length() >= commandIdLength) {
-            String pivot = commandString.substring(0, commandIdLength);
-            return (commandId.compareTo(pivot) == 0);
+        if ((commandData.length() >= commandIdLength) && (commandId.length() == commandIdLength)) {
+            for (int n = 0; n < commandIdLength; n++) {
+                if (commandData.charAt(n) != commandId.charAt(n)) {
+                    return false;
+                }
+            }
+            return true;
         }
         return false;
     }
@@ -129,6 +205,7 @@ public class AppDataMessage {
             return false;
         }
         
+        String commandString = getCommandString();
         if (commandString.startsWith(r.getCommandString()) ||
                 r.getCommandString().startsWith(commandString)) {
             return true;
@@ -22,17 +22,250 @@
  * ===========================================================================
  */
 
+
 package airsenseur.dev.comm;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- *
+ * Single producer, single consumer ring of preallocated AppDataMessage slots.
+ * Producers fill a claimed slot and publish it; the consumer takes the oldest 
+ * published slot and releases it when done, so that it can be reused. 
+ * No locks are shared between producer and consumer and no objects are 
+ * generated per message.
+ * Multiple producers are allowed only through put(), that serializes them.
  * @author marco
  */
-public class AppDataMessageQueue extends ArrayBlockingQueue<AppDataMessage> {
+public class AppDataMessageQueue {
+    
+    // How producer and consumer wait when the ring is full or empty
+    public enum waitStrategies {
+        BLOCKING,       // Park until signalled. Lowest CPU usage
+        SLEEPING,       // Spin for a while, then periodically sleep for a short time
+        YIELDING,       // Yield the CPU to other threads while waiting
+        BUSY_SPIN,      // Burn a CPU core for lowest latency
+    }
+    
+    private final static int SPIN_TRIES = 100;
+    private final static long SLEEPING_PERIOD = 100000L; /* in nanoseconds */
+    private final static long BLOCKING_MAX_PERIOD = 100000000L; /* in nanoseconds */
+    
+    private final AppDataMessage[] slots;
+    private final int mask;
+    
+    // Next slot to be consumed. It's updated by the consumer and by clear()
+    private final AtomicLong head = new AtomicLong(0);
+    
+    // Next slot to be published. It's updated by the producer only
+    private volatile long tail = 0;
+    
+    // Local copies of the other side index, to limit volatile reads
+    private long producerCachedHead = 0;
+    private long consumerCachedTail = 0;
+    private long takenSlot = -1;
+    
+    private volatile Thread waitingProducer = null;
+    private volatile Thread waitingConsumer = null;
+    private volatile waitStrategies waitStrategy;
+    
+    private final Object producerLock = new Object();
     
     public AppDataMessageQueue(int size) {
-        super(size);
+        this(size, waitStrategies.BLOCKING);
+    }
+    
+    public AppDataMessageQueue(int size, waitStrategies waitStrategy) {
+        
+        // Round the size to the next power of two
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        
+        slots = new AppDataMessage[capacity];
+        for (int n = 0; n < capacity; n++) {
+            slots[n] = new AppDataMessage();
+        }
+        mask = capacity - 1;
+        
+        this.waitStrategy = waitStrategy;
+    }
+    
+    public void setWaitStrategy(waitStrategies waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        
+        // Don't leave anyone parked with the old strategy
+        signal(waitingProducer);
+        signal(waitingConsumer);
+    }
+    
+    public waitStrategies getWaitStrategy() {
+        return waitStrategy;
+    }
+    
+    public int capacity() {
+        return slots.length;
+    }
+    
+    public int size() {
+        long size = tail - head.get();
+        return (size < 0)? 0 : (int)size;
+    }
+    
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    // Producer side.
+    // Return the next free slot, waiting for it if the ring is full. 
+    // The slot should be filled and then made available to the consumer through publish().
+    // Only a single thread is allowed to call claim() and publish().
+    public AppDataMessage claim() throws InterruptedException {
+        
+        long slot = tail;
+        if (slot - producerCachedHead >= slots.length) {
+            
+            int counter = 0;
+            producerCachedHead = head.get();
+            while (slot - producerCachedHead >= slots.length) {
+                
+                if (isWaitTimeToPark(counter++)) {
+                    waitingProducer = Thread.currentThread();
+                    if (slot - head.get() >= slots.length) {
+                        LockSupport.parkNanos(this, BLOCKING_MAX_PERIOD);
+                    }
+                    waitingProducer = null;
+                } else {
+                    idle(counter);
+                }
+                
+                producerCachedHead = head.get();
+            }
+        }
+        
+        return slots[(int)slot & mask];
+    }
+    
+    // Producer side. Make the last claimed slot available to the consumer
+    public void publish() {
+        tail = tail + 1;
+        signal(waitingConsumer);
+    }
+    
+    // Producer side. Copy the message contents into the next available slot.
+    // Multiple threads can safely call this method.
+    public void put(AppDataMessage message) throws InterruptedException {
+        
+        synchronized(producerLock) {
+            claim().copyFrom(message);
+            publish();
+        }
+    }
+    
+    // Consumer side.
+    // Return the oldest published slot, waiting for it if the ring is empty.
+    // The slot contents are valid until release() is called.
+    // Only a single thread is allowed to call take(), poll() and release().
+    public AppDataMessage take() throws InterruptedException {
+        
+        long slot = head.get();
+        if (slot >= consumerCachedTail) {
+            
+            int counter = 0;
+            consumerCachedTail = tail;
+            while (slot >= consumerCachedTail) {
+                
+                if (isWaitTimeToPark(counter++)) {
+                    waitingConsumer = Thread.currentThread();
+                    if (slot >= tail) {
+                        LockSupport.parkNanos(this, BLOCKING_MAX_PERIOD);
+                    }
+                    waitingConsumer = null;
+                } else {
+                    idle(counter);
+                }
+                
+                consumerCachedTail = tail;
+                slot = head.get();
+            }
+        }
+        
+        takenSlot = slot;
+        return slots[(int)slot & mask];
+    }
+    
+    // Consumer side. As take() but it returns null if no messages are available
+    public AppDataMessage poll() {
+        
+        long slot = head.get();
+        if (slot >= consumerCachedTail) {
+            consumerCachedTail = tail;
+            if (slot >= consumerCachedTail) {
+                return null;
+            }
+        }
+        
+        takenSlot = slot;
+        return slots[(int)slot & mask];
+    }
+    
+    // Consumer side. Return the last taken slot to the producer
+    public void release() {
+        
+        // If the ring has been cleared in the meantime, the slot has been already released
+        if (takenSlot >= 0) {
+            head.compareAndSet(takenSlot, takenSlot + 1);
+            takenSlot = -1;
+        }
+        signal(waitingProducer);
+    }
+    
+    // Discard all published messages
+    public void clear() {
+        
+        long current = head.get();
+        while ((current < tail) && !head.compareAndSet(current, tail)) {
+            current = head.get();
+        }
+        signal(waitingProducer);
+    }
+    
+    private boolean isWaitTimeToPark(int counter) throws InterruptedException {
+        
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        
+        return (waitStrategy == waitStrategies.BLOCKING) && (counter >= SPIN_TRIES);
+    }
+    
+    private void idle(int counter) {
+        
+        switch (waitStrategy) {
+            case BUSY_SPIN:
+                break;
+                
+            case YIELDING:
+                Thread.yield();
+                break;
+                
+            case SLEEPING:
+                if (counter >= SPIN_TRIES) {
+                    LockSupport.parkNanos(this, SLEEPING_PERIOD);
+                }
+                break;
+                
+            case BLOCKING:
+            default:
+                // Short spinning before parking
+                break;
+        }
+    }
+    
+    private void signal(Thread waiting) {
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
     }
 }
@@ -0,0 +1,96 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.comm;
+
+/**
+ * ASCII payload of a frame received from the bus exposed as CharSequence.
+ * It lets decoders work directly on received bytes without String conversions.
+ * @author marco
+ */
+public class AsciiFrame implements CharSequence {
+    
+    private byte[] data;
+    private int length;
+    
+    public AsciiFrame(int capacity) {
+        data = new byte[capacity];
+        length = 0;
+    }
+    
+    public AsciiFrame(byte[] buffer, int offset, int length) {
+        this(length);
+        set(buffer, offset, length);
+    }
+    
+    // Copy the specified bytes into this frame, growing the internal buffer if needed
+    public final void set(byte[] buffer, int offset, int length) {
+        
+        if (data.length < length) {
+            data = new byte[length];
+        }
+        System.arraycopy(buffer, offset, data, 0, length);
+        this.length = length;
+    }
+    
+    // Raw frame contents. Only the first length() bytes are meaningful
+    byte[] getData() {
+        return data;
+    }
+    
+    public void clear() {
+        length = 0;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if ((index < 0) || (index >= length)) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of frame length " + length);
+        }
+        return (char)(data[index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if ((start < 0) || (end > length) || (start > end)) {
+            throw new IndexOutOfBoundsException("Invalid range " + start + "-" + end + " on frame length " + length);
+        }
+        return new AsciiFrame(data, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        
+        char[] chars = new char[length];
+        for (int n = 0; n < length; n++) {
+            chars[n] = (char)(data[n] & 0xFF);
+        }
+        return new String(chars);
+    }
+}
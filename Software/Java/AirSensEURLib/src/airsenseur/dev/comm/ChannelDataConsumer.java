@@ -37,6 +37,9 @@ public interface ChannelDataConsumer {
     // For stream based communication channels (like serial lines)
     void onDataReceived(InputStream inputStream) throws InterruptedException;
     
+    // For stream based communication channels reading data on their own
+    void onDataReceived(byte[] buffer, int offset, int length) throws InterruptedException;
+    
     // For packet based communication channels (like JsonRPC)
     void onDataReceived(CommChannelDataMessage message) throws InterruptedException;
 }
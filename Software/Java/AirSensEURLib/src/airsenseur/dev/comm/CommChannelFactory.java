@@ -34,7 +34,9 @@ public class CommChannelFactory {
     
     public static enum commChannelType {
         SERIAL,
+        SERIAL_READER,
         JSON_RPC,
+        SIMULATOR,
     }
     
     public static CommChannel getInstance(commChannelType type) throws SensorBusException {
@@ -44,10 +46,18 @@ public class CommChannelFactory {
                 return new CommChannelSerialPort();
             }
             
+            case SERIAL_READER: {
+                return new CommChannelSerialPortReader();
+            }
+            
             case JSON_RPC: {
                 return new CommChannelJsonRPC();
             }
             
+            case SIMULATOR: {
+                return new CommChannelSimulator();
+            }
+            
             default: {
                 throw new SensorBusException("Invalid communication channel specified");
             }
@@ -30,106 +30,274 @@ import airsenseur.dev.json.ChemSensorClient;
 import airsenseur.dev.json.RawCommand;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- *
+ * Communication channel with a networked host, through JSON-RPC.
+ * Messages are sent to the host as batches of raw commands. Messages are sent 
+ * right away when a connection is idle; while all connections are busy, 
+ * messages are collected and sent together as soon as a connection is available.
+ * Up to MAX_BATCHES_IN_FLIGHT batches are in flight at the same time, each one on 
+ * its own connection. Messages for a board are not sent until the batch holding
+ * previous messages for the same board completes, so their order is preserved.
+ * The port name is the host name, optionally followed by ":port".
  * @author marco
  */
-public class CommChannelJsonRPC extends TaskScheduler implements CommChannel  {
+public class CommChannelJsonRPC implements CommChannel  {
     
-    private final static int TXQUEUE_FLUSH_PERIOD = 3333;
-    private final static int FORCE_FLUSH_QUEUE_SIZE = 20;
+    private final static int DEFAULT_PORT = 8000;
+    private final static int MAX_BATCHES_IN_FLIGHT = 2;
+    private final static int MAX_BATCH_SIZE = 64;
+    private final static long CLOSE_TIMEOUT = 5000;  /* in milliseconds */
+    
+    // Sends batches on its own connection until no more messages can be sent
+    private class BatchSender extends TaskScheduler {
+        
+        private final ChemSensorClient sensorClient = new ChemSensorClient();
+        private final List<RawCommand> batch = new ArrayList<>();
+        private final Set<Integer> boards = new HashSet<>();
+        private boolean connected = false;
+        private boolean busy = false;
+        private final int id;
+        
+        public BatchSender(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void taskMain() {
+            
+            while (takeBatch(this)) {
+                
+                List<RawCommand> results;
+                synchronized (sensorClient) {
+                    results = sensorClient.sendRawData(batch);
+                }
+                if (results == null) {
+                    log.info("Error sending " + batch.size() + " messages to the remote host");
+                } else {
+                    pushResults(results);
+                }
+            }
+        }
+
+        @Override
+        public String getTaskName() {
+            return "CommChannelRPCSender-" + id;
+        }
+    }
     
     private ChannelDataConsumer rxDataConsumer;
-    private final ChemSensorClient sensorClient = new ChemSensorClient();
-    private final static int port = 8000;
+    private final List<BatchSender> senders = new ArrayList<>();
     
+    // Messages waiting for a connection. It also guards senders status
     private final List<RawCommand> txList = new ArrayList<>();
+    
+    private final Logger log = LoggerFactory.getLogger(CommChannelJsonRPC.class);
 
     @Override
     public boolean openPort(String name, int rate, ChannelDataConsumer rxDataConsumer) throws SensorBusException {
         this.rxDataConsumer = rxDataConsumer;
-        if (sensorClient.connect(name, port)) {
-            startPeriodic(TXQUEUE_FLUSH_PERIOD);
-            return true;
+        
+        String hostname = name;
+        int port = DEFAULT_PORT;
+        int separator = name.indexOf(':');
+        if ((separator >= 0) && (separator == name.lastIndexOf(':'))) {
+            hostname = name.substring(0, separator);
+            try {
+                port = Integer.parseInt(name.substring(separator + 1));
+            } catch (NumberFormatException e) {
+                throw new SensorBusException("Invalid port specified in " + name);
+            }
         }
         
-        return false;
+        // Further connections are optional
+        synchronized (txList) {
+            senders.clear();
+            for (int n = 0; n < MAX_BATCHES_IN_FLIGHT; n++) {
+                BatchSender sender = new BatchSender(n);
+                sender.connected = sender.sensorClient.connect(hostname, port);
+                if (!sender.connected) {
+                    break;
+                }
+                senders.add(sender);
+            }
+        }
+        
+        return !senders.isEmpty();
     }
 
     @Override
     public boolean closePort() {
         
-        if (!txList.isEmpty()) {
-            try {
-                flushTxQueue();
-            } catch (IOException e) {
+        // Wait for pending messages to be sent
+        synchronized (txList) {
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+            long remaining = CLOSE_TIMEOUT;
+            while ((!txList.isEmpty() || isBusy()) && (remaining > 0)) {
+                try {
+                    txList.wait(remaining);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            
+            txList.clear();
+            for (BatchSender sender:senders) {
+                sender.connected = false;
             }
         }
         
-        stop();
+        for (BatchSender sender:senders) {
+            sender.stop();
+            synchronized (sender.sensorClient) {
+                sender.sensorClient.disconnect();
+            }
+        }
         
-        sensorClient.disconnect();
         return true;
     }
 
     @Override
     public void writeMessage(CommChannelDataMessage message) throws IOException {
         
-        // Messages are buffered and sent in ckunks to the remote board
         synchronized (txList) {
-            txList.add(new RawCommand(message.getBoardId(), message.getMessage(), ""));
-            
-            if (txList.size() > FORCE_FLUSH_QUEUE_SIZE) {
-                flushTxQueue();
+            if (senders.isEmpty() || !senders.get(0).connected) {
+                throw new IOException("Not connected to the remote host");
             }
-        }
-    }
-
-    private void flushTxQueue() throws IOException {
-        
-        List<RawCommand> results = sensorClient.sendRawData(txList);
-        txList.clear();
-        
-        // Push results in the rx queue
-        if ((results != null) && (rxDataConsumer != null)){
             
-            for (RawCommand result:results) {
-                CommChannelDataMessage resultMessage = new CommChannelDataMessage(result.boardId, result.commandString);
-                try {
-                    rxDataConsumer.onDataReceived(resultMessage);
-                } catch (InterruptedException ex) {
-                    throw new IOException("Error receaving message from network");
-                }
-            }
+            txList.add(new RawCommand(message.getBoardId(), message.getMessage(), ""));
+            startIdleSender();
         }
     }
 
     @Override
     public void takeOwnership() {
-        sensorClient.takeOwnership();
+        
+        BatchSender sender = getControlSender();
+        if (sender != null) {
+            synchronized (sender.sensorClient) {
+                sender.sensorClient.takeOwnership();
+            }
+        }
     }
 
     @Override
     public void releaseOwnership() {
-        sensorClient.releaseOwnership();
+        
+        BatchSender sender = getControlSender();
+        if (sender != null) {
+            synchronized (sender.sensorClient) {
+                sender.sensorClient.releaseOwnership();
+            }
+        }
     }
-
-    @Override
-    public void taskMain() {
+    
+    private BatchSender getControlSender() {
+        
         synchronized (txList) {
-            if (!txList.isEmpty()) {
-                try{
-                    flushTxQueue();
-                } catch (IOException e) {
+            return senders.isEmpty()? null : senders.get(0);
+        }
+    }
+    
+    // Start an idle sender, if any, when there are messages it can send
+    // Should be called with txList lock held
+    private void startIdleSender() {
+        
+        if (!canSendFirstMessage(null)) {
+            return;
+        }
+        
+        for (BatchSender sender:senders) {
+            if (sender.connected && !sender.busy) {
+                sender.busy = true;
+                sender.startNow();
+                return;
+            }
+        }
+    }
+    
+    // Fill the sender batch with the oldest messages it can send.
+    // Returns false, and sets the sender idle, if there's nothing to send
+    private boolean takeBatch(BatchSender sender) {
+        
+        synchronized (txList) {
+            
+            sender.batch.clear();
+            sender.boards.clear();
+            
+            if (sender.connected && canSendFirstMessage(sender)) {
+                
+                // Stop on the first message for a board busy on other senders
+                for (RawCommand command:txList) {
+                    if ((sender.batch.size() == MAX_BATCH_SIZE) || isBoardBusy(command.boardId, sender)) {
+                        break;
+                    }
+                    sender.batch.add(command);
+                    sender.boards.add(command.boardId);
                 }
+                txList.subList(0, sender.batch.size()).clear();
+            }
+            
+            if (sender.batch.isEmpty()) {
+                sender.busy = false;
+                txList.notifyAll();
+                return false;
+            }
+            
+            // Remaining messages may be for other boards
+            startIdleSender();
+            
+            return true;
+        }
+    }
+    
+    private boolean canSendFirstMessage(BatchSender sender) {
+        return !txList.isEmpty() && !isBoardBusy(txList.get(0).boardId, sender);
+    }
+    
+    private boolean isBoardBusy(int boardId, BatchSender except) {
+        
+        for (BatchSender sender:senders) {
+            if ((sender != except) && sender.boards.contains(boardId)) {
+                return true;
             }
         }
+        
+        return false;
     }
-
-    @Override
-    public String getTaskName() {
-        return "CommChannelRPCFlusher";
+    
+    private boolean isBusy() {
+        
+        for (BatchSender sender:senders) {
+            if (sender.busy) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    // Push results in the rx queue
+    private void pushResults(List<RawCommand> results) {
+        
+        if (rxDataConsumer == null) {
+            return;
+        }
+        
+        for (RawCommand result:results) {
+            CommChannelDataMessage resultMessage = new CommChannelDataMessage(result.boardId, result.commandString);
+            try {
+                rxDataConsumer.onDataReceived(resultMessage);
+            } catch (InterruptedException ex) {
+                log.info("Interrupted while receiving messages from network");
+                return;
+            }
+        }
     }
 }
@@ -32,6 +32,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.TooManyListenersException;
+import java.util.concurrent.TimeUnit;
 import purejavacomm.*;
 
 /**
@@ -41,6 +42,15 @@ import purejavacomm.*;
  */
 public class CommChannelSerialPort implements CommChannel {
     
+    // Each char on the line takes a start bit, 8 data bits and a stop bit
+    private final static int BITS_PER_CHAR = 10;
+    
+    // Idle time between two consecutive frames so that devices can process them. 
+    // It gives the same average throughput of the previous 50ms pause every 10 messages, without bursts
+    private final static long INTERFRAME_GAP = 5; /* in milliseconds */
+    
+    private final static int TX_BUFFER_LENGTH = 256;
+    
     private ArrayList<CommPortIdentifier> portsList = new ArrayList<>();
 
     private SerialPort serialPort = null;    
@@ -53,6 +63,11 @@ public class CommChannelSerialPort implements CommChannel {
     private final String appName = "AirSensEURSerialChannel";
 
     private long numOfTxMessages = 0;
+    
+    // Tx pacing
+    private long nanosPerChar = 0;
+    private long lineBusyUntil = 0;
+    private byte[] txBuffer = new byte[TX_BUFFER_LENGTH];
 
     private class SerialReceiverListener implements SerialPortEventListener {
 
@@ -133,11 +148,12 @@ public class CommChannelSerialPort implements CommChannel {
                 serialPort = (SerialPort) portId.open(appName, 2000);
                 inputStream = serialPort.getInputStream();
                 outputStream = serialPort.getOutputStream();
-                serialPort.addEventListener(this.rxListener);
-                serialPort.notifyOnDataAvailable(true);
                 serialPort.setSerialPortParams(baudrate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+                startReceiver();
                 
-                numOfTxMessages = 0;                
+                numOfTxMessages = 0;
+                nanosPerChar = (baudrate > 0)? (TimeUnit.SECONDS.toNanos(1) * BITS_PER_CHAR) / baudrate : 0;
+                lineBusyUntil = System.nanoTime();
                 result = true;
 
             } catch (UnsupportedCommOperationException | PortInUseException | TooManyListenersException | IOException e) {
@@ -153,13 +169,7 @@ public class CommChannelSerialPort implements CommChannel {
         
         try {
             if (serialPort != null) {
-                
-                serialPort.notifyOnDataAvailable(false);
-                serialPort.removeEventListener();
-            }
-                        
-            if (rxListener != null) {
-                rxListener = null;
+                stopReceiver();
             }
                 
             if (inputStream != null) {
@@ -184,6 +194,35 @@ public class CommChannelSerialPort implements CommChannel {
         return true;
     }
     
+    // Start receiving data from the serial port. 
+    // By default, data are read from the purejavacomm event thread
+    protected void startReceiver() throws TooManyListenersException, UnsupportedCommOperationException {
+        
+        rxListener = new SerialReceiverListener();
+        serialPort.addEventListener(rxListener);
+        serialPort.notifyOnDataAvailable(true);
+    }
+    
+    // Stop receiving data from the serial port. The port is still open.
+    protected void stopReceiver() {
+        
+        serialPort.notifyOnDataAvailable(false);
+        serialPort.removeEventListener();
+        rxListener = null;
+    }
+    
+    protected SerialPort getSerialPort() {
+        return serialPort;
+    }
+    
+    protected InputStream getInputStream() {
+        return inputStream;
+    }
+    
+    protected ChannelDataConsumer getRxDataConsumer() {
+        return rxDataConsumer;
+    }
+    
     @Override
     public void takeOwnership() {        
         // Nothing to do with ownership for serial connected boards
@@ -197,15 +236,38 @@ public class CommChannelSerialPort implements CommChannel {
     @Override
     public void writeMessage(CommChannelDataMessage message) throws IOException {
         if (outputStream != null) {
-            outputStream.write(message.getMessage().getBytes());
-            numOfTxMessages++;            
             
-            // Avoid flooding devices with messages
-            if ((numOfTxMessages % 10) == 0) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException ex) {
-                }
+            // ASCII encode the message on a reused buffer
+            String text = message.getMessage();
+            int length = text.length();
+            if (txBuffer.length < length) {
+                txBuffer = new byte[length];
+            }
+            for (int n = 0; n < length; n++) {
+                txBuffer[n] = (byte)text.charAt(n);
+            }
+            
+            // Avoid flooding devices with messages: wait for the previous 
+            // frame to be physically sent, followed by an idle gap
+            waitForLineIdle();
+            
+            outputStream.write(txBuffer, 0, length);
+            numOfTxMessages++;
+            
+            long now = System.nanoTime();
+            lineBusyUntil = Math.max(now, lineBusyUntil) + (length * nanosPerChar) + TimeUnit.MILLISECONDS.toNanos(INTERFRAME_GAP);
+        }
+    }
+    
+    private void waitForLineIdle() {
+        
+        long waitTime = lineBusyUntil - System.nanoTime();
+        if (waitTime > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitTime);
+            } catch (InterruptedException ex) {
+                // Let the caller know it has been interrupted
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -0,0 +1,137 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.comm;
+
+import airsenseur.dev.helpers.TaskScheduler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import purejavacomm.SerialPort;
+import purejavacomm.UnsupportedCommOperationException;
+
+/**
+ * Serial port communication channel with a dedicated reader thread.
+ * Instead of waiting for purejavacomm events, the reader thread performs 
+ * blocking bulk reads into a reused buffer and passes all the received 
+ * bytes at once to the transport logic.
+ * @author marco
+ */
+public class CommChannelSerialPortReader extends CommChannelSerialPort {
+    
+    private final static int READ_TIMEOUT = 100; /* in milliseconds */
+    private final static int READ_BUFFER_LENGTH = 4096;
+    
+    private final byte[] readBuffer = new byte[READ_BUFFER_LENGTH];
+    private SerialReader serialReader = null;
+    
+    private final Logger log = LoggerFactory.getLogger(CommChannelSerialPortReader.class);
+    
+    private class SerialReader extends TaskScheduler {
+        
+        private volatile Thread readerThread = null;
+
+        @Override
+        public void taskMain() {
+            
+            readerThread = Thread.currentThread();
+            log.debug("Starting task " + getTaskName());
+            
+            InputStream inputStream = getInputStream();
+            ChannelDataConsumer rxDataConsumer = getRxDataConsumer();
+            
+            while (!isShutdown()) {
+                try {
+                    // Returns as soon as some data is available or on timeout
+                    int numBytes = inputStream.read(readBuffer, 0, readBuffer.length);
+                    if (numBytes > 0) {
+                        rxDataConsumer.onDataReceived(readBuffer, 0, numBytes);
+                    }
+                    
+                } catch (IOException ex) {
+                    
+                    // The port is being closed or the device has been removed. 
+                    // Don't spin on errors. Tx errors will trigger a reconnection, if needed.
+                    if (!isShutdown()) {
+                        log.debug("Exception occurred in " + getTaskName());
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(READ_TIMEOUT);
+                        } catch (InterruptedException ie) {
+                            break;
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+            
+            log.debug("Terminating task " + getTaskName());
+            readerThread = null;
+        }
+
+        @Override
+        public String getTaskName() {
+            return "CommChannelSerialPort-Reader";
+        }
+    }
+    
+    // From CommChannelSerialPort
+    @Override
+    protected void startReceiver() throws UnsupportedCommOperationException {
+        
+        // Blocking reads should return as soon as some data is available
+        SerialPort serialPort = getSerialPort();
+        serialPort.enableReceiveThreshold(1);
+        serialPort.enableReceiveTimeout(READ_TIMEOUT);
+        
+        serialReader = new SerialReader();
+        serialReader.startNow();
+    }
+    
+    // From CommChannelSerialPort
+    @Override
+    protected void stopReceiver() {
+        
+        if (serialReader == null) {
+            return;
+        }
+        
+        serialReader.stop();
+        
+        // Wait for the pending read, if any, to complete. 
+        // This is not possible when the reader itself is closing the port.
+        if (Thread.currentThread() != serialReader.readerThread) {
+            try {
+                serialReader.waitForTermination(READ_TIMEOUT * 2);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        serialReader = null;
+    }
+}
@@ -0,0 +1,330 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.comm;
+
+import airsenseur.dev.exceptions.SensorBusException;
+import airsenseur.dev.helpers.CRCHelper;
+import airsenseur.dev.helpers.CodecHelper;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simulated point to multi-point sensor bus with several AirSensEUR shields connected.
+ * It's intended for load and regression tests when no hardware is available.
+ * The bus is configured through the port name, with the syntax:
+ * sim:boards=TYPE[@ID],TYPE[@ID],...;latency=ms;jitter=ms;drop=rate;crcErrors=rate;samplePeriod=ms;seed=value
+ * where TYPE is one of SimulatedBoard.boardTypes. When not specified, board IDs are assigned in sequence.
+ * Answers are delivered after the latency (+/- a random jitter) and the time required
+ * to send frames on the line at the requested baudrate. The bus is half duplex, 
+ * so answers never overlap.
+ * Drop and CRC error rates are probabilities (0.0 to 1.0) applied to each answer.
+ * @author marco
+ */
+public class CommChannelSimulator implements CommChannel {
+    
+    public final static String SIMULATOR_PREFIX = "sim:";
+    
+    private final static int BITS_PER_CHAR = 10;
+    private final static int DEFAULT_SAMPLE_PERIOD = 1000; /* in milliseconds */
+    
+    private final static char COMMPROTOCOL_PTM_HOST_HEADER = '[';
+    private final static char COMMPROTOCOL_PTM_HOST_TRAILER = ']';
+    private final static char COMMPROTOCOL_PTM_SLAVE_HEADER = '(';
+    private final static char COMMPROTOCOL_PTM_SLAVE_TRAILER = ')';
+    private final static char COMMPROTOCOL_PTM_VERSION_ZERO = '0';
+    private final static char COMMPROTOCOL_PTM_VERSION_ONE = '1';
+    
+    // Running simulators, by port name. Test harnesses retrieve statistics from here
+    private static final Map<String, CommChannelSimulator> simulators = new ConcurrentHashMap<>();
+    
+    private final SimulatedBoard[] boards = new SimulatedBoard[AppDataMessage.MAX_VALID_BOARD_ID_ON_SBUS + 1];
+    
+    private long latency = 0;
+    private long jitter = 0;
+    private double dropRate = 0.0;
+    private double crcErrorRate = 0.0;
+    private int samplePeriod = DEFAULT_SAMPLE_PERIOD;
+    private Random random = new Random();
+    
+    private String name = null;
+    private long nanosPerChar = 0;
+    private long lineBusyUntil = 0;
+    private ChannelDataConsumer rxDataConsumer = null;
+    private ScheduledExecutorService answerScheduler = null;
+    
+    // Statistics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong answers = new AtomicLong();
+    private final AtomicLong unanswered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong crcErrors = new AtomicLong();
+    
+    private final Logger log = LoggerFactory.getLogger(CommChannelSimulator.class);
+    
+    public static boolean isSimulatedPort(String name) {
+        return (name != null) && name.startsWith(SIMULATOR_PREFIX);
+    }
+    
+    public static CommChannelSimulator getSimulator(String name) {
+        return simulators.get(name);
+    }
+
+    @Override
+    public synchronized boolean openPort(String name, int rate, ChannelDataConsumer rxDataConsumer) throws SensorBusException {
+        
+        closePort();
+        
+        parseParameters(name);
+        
+        this.name = name;
+        this.rxDataConsumer = rxDataConsumer;
+        this.nanosPerChar = (rate > 0)? (TimeUnit.SECONDS.toNanos(1) * BITS_PER_CHAR) / rate : 0;
+        this.lineBusyUntil = System.nanoTime();
+        
+        answerScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CommChannelSimulator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        simulators.put(name, this);
+        
+        return true;
+    }
+
+    @Override
+    public synchronized boolean closePort() {
+        
+        if (answerScheduler != null) {
+            answerScheduler.shutdownNow();
+            answerScheduler = null;
+        }
+        
+        if (name != null) {
+            simulators.remove(name);
+            name = null;
+        }
+        
+        return true;
+    }
+
+    @Override
+    public void takeOwnership() {
+        // Nothing to do with ownership for simulated boards
+    }
+
+    @Override
+    public void releaseOwnership() {
+        // Nothing to do with ownership for simulated boards
+    }
+
+    @Override
+    public void writeMessage(CommChannelDataMessage message) throws IOException {
+        
+        String frame = message.getMessage();
+        long now = System.nanoTime();
+        requests.incrementAndGet();
+        
+        // Unpack the host frame [VBBpayload]
+        int length = frame.length();
+        if ((length < 4) || (frame.charAt(0) != COMMPROTOCOL_PTM_HOST_HEADER) || (frame.charAt(length - 1) != COMMPROTOCOL_PTM_HOST_TRAILER)) {
+            unanswered.incrementAndGet();
+            return;
+        }
+        
+        char version = frame.charAt(1);
+        int boardId = (int)CodecHelper.decodeHex(frame, 2, CodecHelper.CHAR_DIGITS);
+        SimulatedBoard board = ((boardId >= 0) && (boardId < boards.length))? boards[boardId] : null;
+        if ((board == null) || ((version != COMMPROTOCOL_PTM_VERSION_ZERO) && (version != COMMPROTOCOL_PTM_VERSION_ONE))) {
+            unanswered.incrementAndGet();
+            return;
+        }
+        
+        String answer = board.evaluate(frame.subSequence(4, length - 1), System.currentTimeMillis());
+        if (answer == null) {
+            unanswered.incrementAndGet();
+            return;
+        }
+        
+        // Build the slave frame (VBBpayload[CRC])
+        StringBuilder sb = new StringBuilder(answer.length() + 16);
+        sb.append(COMMPROTOCOL_PTM_SLAVE_HEADER).append(version);
+        CodecHelper.appendChar(sb, boardId);
+        sb.append(answer);
+        
+        synchronized (this) {
+            
+            if (version == COMMPROTOCOL_PTM_VERSION_ONE) {
+                byte[] payload = answer.getBytes();
+                int crc = CRCHelper.compute(payload, 0, payload.length);
+                if (random.nextDouble() < crcErrorRate) {
+                    crc = ~crc;
+                    crcErrors.incrementAndGet();
+                }
+                CodecHelper.appendInt(sb, crc);
+            }
+            sb.append(COMMPROTOCOL_PTM_SLAVE_TRAILER);
+            
+            if (random.nextDouble() < dropRate) {
+                dropped.incrementAndGet();
+                return;
+            }
+            
+            // The board starts answering when the request has been received and processed.
+            // The answer is received when it has been completely sent on the line
+            long answerStart = now + (length * nanosPerChar) + TimeUnit.MILLISECONDS.toNanos(latency);
+            if (jitter > 0) {
+                answerStart += (long)(((2 * random.nextDouble()) - 1.0) * TimeUnit.MILLISECONDS.toNanos(jitter));
+            }
+            lineBusyUntil = Math.max(answerStart, lineBusyUntil) + (sb.length() * nanosPerChar);
+            
+            deliver(sb.toString().getBytes(), lineBusyUntil - now);
+        }
+    }
+    
+    private void deliver(final byte[] frame, long delay) {
+        
+        if (answerScheduler == null) {
+            return;
+        }
+        
+        answerScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    answers.incrementAndGet();
+                    rxDataConsumer.onDataReceived(frame, 0, frame.length);
+                } catch (InterruptedException ex) {
+                }
+            }
+        }, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+    }
+    
+    private void parseParameters(String name) throws SensorBusException {
+        
+        if (!isSimulatedPort(name)) {
+            throw new SensorBusException("Invalid simulated port " + name);
+        }
+        
+        for (int n = 0; n < boards.length; n++) {
+            boards[n] = null;
+        }
+        
+        String boardList = "";
+        long seed = System.nanoTime();
+        
+        for (String parameter : name.substring(SIMULATOR_PREFIX.length()).split(";")) {
+            
+            String[] keyValue = parameter.split("=", 2);
+            if (keyValue.length != 2) {
+                continue;
+            }
+            
+            String key = keyValue[0].trim();
+            String value = keyValue[1].trim();
+            try {
+                if (key.equalsIgnoreCase("boards")) {
+                    boardList = value;
+                } else if (key.equalsIgnoreCase("latency")) {
+                    latency = Long.parseLong(value);
+                } else if (key.equalsIgnoreCase("jitter")) {
+                    jitter = Long.parseLong(value);
+                } else if (key.equalsIgnoreCase("drop")) {
+                    dropRate = Double.parseDouble(value);
+                } else if (key.equalsIgnoreCase("crcErrors")) {
+                    crcErrorRate = Double.parseDouble(value);
+                } else if (key.equalsIgnoreCase("samplePeriod")) {
+                    samplePeriod = Integer.parseInt(value);
+                } else if (key.equalsIgnoreCase("seed")) {
+                    seed = Long.parseLong(value);
+                } else {
+                    throw new SensorBusException("Unknown simulator parameter " + key);
+                }
+            } catch (NumberFormatException ex) {
+                throw new SensorBusException("Invalid value for simulator parameter " + key);
+            }
+        }
+        
+        random = new Random(seed);
+        
+        // Populate the bus
+        int nextBoardId = AppDataMessage.MIN_VALID_BOARD_ID_ON_SBUS;
+        for (String boardSpec : boardList.split(",")) {
+            
+            if (boardSpec.trim().isEmpty()) {
+                continue;
+            }
+            
+            String[] typeId = boardSpec.trim().split("@", 2);
+            try {
+                SimulatedBoard.boardTypes boardType = SimulatedBoard.boardTypes.valueOf(typeId[0].toUpperCase());
+                int boardId = (typeId.length > 1)? Integer.parseInt(typeId[1]) : nextBoardId;
+                if ((boardId < AppDataMessage.MIN_VALID_BOARD_ID_ON_SBUS) || (boardId >= boards.length) || (boards[boardId] != null)) {
+                    throw new SensorBusException("Invalid simulated board ID " + boardId);
+                }
+                
+                boards[boardId] = new SimulatedBoard(boardId, boardType, samplePeriod);
+                nextBoardId = boardId + 1;
+                log.info("Simulating " + boardType + " with ID " + boardId);
+                
+            } catch (IllegalArgumentException ex) {
+                throw new SensorBusException("Invalid simulated board " + boardSpec);
+            }
+        }
+    }
+    
+    public long getRequests() {
+        return requests.get();
+    }
+    
+    public long getAnswers() {
+        return answers.get();
+    }
+    
+    public long getUnanswered() {
+        return unanswered.get();
+    }
+    
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    public long getCrcErrors() {
+        return crcErrors.get();
+    }
+}
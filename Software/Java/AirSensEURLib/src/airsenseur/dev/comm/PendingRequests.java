@@ -0,0 +1,214 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.comm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks requests waiting for an answer, indexed by correlation key 
+ * (see ShieldProtocolLayer.getCorrelationKey). Each answer completes the oldest 
+ * request with the same key in constant time.
+ * Boards answer their requests in order, so the answer timeout of a request starts
+ * when it becomes the oldest pending request on its board. Expired requests are 
+ * returned by expire(), so they can be reported.
+ * This class is not thread safe.
+ * @author marco
+ */
+public class PendingRequests<T> {
+    
+    private final static int MAX_BOARD_ID = 0xFF;
+    
+    private static class Entry<T> {
+        
+        private final int boardId;
+        private final long key;
+        private final T request;
+        private long deadline = 0;
+        private boolean completed = false;
+        
+        // Newer requests with the same key. The last one is tracked by the oldest request
+        private Entry<T> next = null;
+        private Entry<T> last = this;
+        
+        private Entry(int boardId, long key, T request) {
+            this.boardId = boardId;
+            this.key = key;
+            this.request = request;
+        }
+    }
+    
+    private final long answerTimeout;
+    
+    // Oldest pending request by correlation key, and pending requests by board in sending order.
+    // Completed requests are removed when they become the oldest ones
+    private final Map<Long, Entry<T>> byKey = new HashMap<>();
+    private final ArrayDeque<Entry<T>>[] byBoard;
+    private int size = 0;
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PendingRequests(long answerTimeout) {
+        this.answerTimeout = answerTimeout;
+        this.byBoard = new ArrayDeque[MAX_BOARD_ID + 1];
+    }
+    
+    // Add a request sent to boardId. It should be called before sending it
+    public void add(int boardId, long key, T request) {
+        
+        boardId = boardId & MAX_BOARD_ID;
+        Entry<T> entry = new Entry<>(boardId, key, request);
+        
+        Entry<T> oldest = byKey.get(key);
+        if (oldest == null) {
+            byKey.put(key, entry);
+        } else {
+            oldest.last.next = entry;
+            oldest.last = entry;
+        }
+        
+        if (byBoard[boardId] == null) {
+            byBoard[boardId] = new ArrayDeque<>();
+        }
+        byBoard[boardId].addLast(entry);
+        size++;
+        
+        startAnswerTimer(boardId, System.currentTimeMillis());
+    }
+    
+    // Complete the oldest request with the specified key. 
+    // Returns the completed request, or null if no request is waiting for that key
+    public T complete(long key) {
+        
+        Entry<T> entry = byKey.get(key);
+        if (entry == null) {
+            return null;
+        }
+        
+        completed(entry, System.currentTimeMillis());
+        
+        return entry.request;
+    }
+    
+    // Remove a request not sent or not worth waiting for anymore
+    public boolean remove(long key, T request) {
+        
+        for (Entry<T> entry = byKey.get(key); entry != null; entry = entry.next) {
+            if (!entry.completed && (entry.request == request)) {
+                completed(entry, System.currentTimeMillis());
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    // Remove the requests not answered in time, and return them
+    public List<T> expire(long now) {
+        
+        List<T> result = new ArrayList<>();
+        if (size == 0) {
+            return result;
+        }
+        
+        for (ArrayDeque<Entry<T>> queue:byBoard) {
+            Entry<T> oldest = (queue != null)? queue.peekFirst() : null;
+            while ((oldest != null) && (oldest.deadline <= now)) {
+                result.add(oldest.request);
+                completed(oldest, now);
+                oldest = queue.peekFirst();
+            }
+        }
+        
+        return result;
+    }
+    
+    // The earliest answer timeout, or defaultDeadline if no timeout is earlier
+    public long getNextDeadline(long defaultDeadline) {
+        
+        long result = defaultDeadline;
+        if (size == 0) {
+            return result;
+        }
+        
+        for (ArrayDeque<Entry<T>> queue:byBoard) {
+            Entry<T> oldest = (queue != null)? queue.peekFirst() : null;
+            if ((oldest != null) && (oldest.deadline < result)) {
+                result = oldest.deadline;
+            }
+        }
+        
+        return result;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    private void completed(Entry<T> entry, long now) {
+        
+        entry.completed = true;
+        size--;
+        
+        // Drop completed requests from the head of the key chain
+        Entry<T> oldest = byKey.get(entry.key);
+        if (oldest.completed) {
+            Entry<T> next = oldest.next;
+            while ((next != null) && next.completed) {
+                next = next.next;
+            }
+            
+            if (next == null) {
+                byKey.remove(entry.key);
+            } else {
+                next.last = oldest.last;
+                byKey.put(entry.key, next);
+            }
+        }
+        
+        // ... and from the head of the board queue
+        ArrayDeque<Entry<T>> queue = byBoard[entry.boardId];
+        while (!queue.isEmpty() && queue.peekFirst().completed) {
+            queue.pollFirst();
+        }
+        
+        startAnswerTimer(entry.boardId, now);
+    }
+    
+    // The oldest request on a board is the one the board is expected to answer
+    private void startAnswerTimer(int boardId, long now) {
+        
+        Entry<T> oldest = byBoard[boardId].peekFirst();
+        if ((oldest != null) && (oldest.deadline == 0)) {
+            oldest.deadline = now + answerTimeout;
+        }
+    }
+}
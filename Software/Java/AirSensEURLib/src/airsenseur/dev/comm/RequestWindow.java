@@ -0,0 +1,401 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.comm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks requests sent on a point to multipoint bus and still waiting for an answer.
+ * At most one request per board can be outstanding, and no more than windowSize
+ * requests can be outstanding on the whole bus. Requests not answered within
+ * the timeout are expired, so a missing board only blocks its own slot.
+ * 
+ * When adaptive, the answer timeout of each board is derived from its smoothed 
+ * round trip time and variance (as in TCP, RFC 6298). Sampling polls and other 
+ * commands (register and configuration reads) are tracked by separate estimators, 
+ * and other commands never time out before the configured timeout. 
+ * Timeouts on a board that answered before double its timeout; retransmitted 
+ * requests are not used as round trip samples. Boards failing several requests 
+ * in a row are put in back-off: requests to them should be discarded until the 
+ * next probe time, and the back-off doubles on each failed probe. 
+ * Any answer, even a late one, restores the board.
+ * @author marco
+ */
+public class RequestWindow {
+    
+    private final static int MAX_BOARD_ID = 0xFF;
+    private final static long NOT_PENDING = -1;
+    private final static double UNKNOWN_RTT = -1.0;
+    
+    // Request classes with their own round trip estimators
+    private final static int SAMPLING = 0;
+    private final static int COMMAND = 1;
+    private final static int NUM_CLASSES = 2;
+    
+    private final static long MIN_TIMEOUT = 50;         /* in milliseconds, for sampling polls */
+    private final static long MAX_TIMEOUT = 1000;       /* in milliseconds */
+    private final static long MIN_RTT_VARIANCE = 10;    /* in milliseconds */
+    private final static double RTT_GAIN = 1.0/8.0;
+    private final static double RTT_VARIANCE_GAIN = 1.0/4.0;
+    
+    private final static int MAX_RETRIES = 1;
+    private final static int FAILURES_BEFORE_BACKOFF = 3;
+    private final static long MIN_BACKOFF = 1000;       /* in milliseconds */
+    private final static long MAX_BACKOFF = 60000;      /* in milliseconds */
+    
+    private final long[] pendingSince = new long[MAX_BOARD_ID + 1];
+    private final boolean[] pendingRetransmission = new boolean[MAX_BOARD_ID + 1];
+    private final int[] pendingClass = new int[MAX_BOARD_ID + 1];
+    private final boolean[] expired = new boolean[MAX_BOARD_ID + 1];
+    private final long[][] timeouts = new long[NUM_CLASSES][MAX_BOARD_ID + 1];
+    private final double[][] smoothedRtt = new double[NUM_CLASSES][MAX_BOARD_ID + 1];
+    private final double[][] rttVariance = new double[NUM_CLASSES][MAX_BOARD_ID + 1];
+    private final int[] consecutiveFailures = new int[MAX_BOARD_ID + 1];
+    private final long[] backoff = new long[MAX_BOARD_ID + 1];
+    private final long[] nextProbe = new long[MAX_BOARD_ID + 1];
+    
+    private final long timeout;
+    private boolean adaptive = true;
+    private int windowSize = 1;
+    private int outstanding = 0;
+    private SensorBusStatistics statistics = null;
+    
+    private final Logger log = LoggerFactory.getLogger(RequestWindow.class);
+    
+    public RequestWindow(long timeout) {
+        this.timeout = timeout;
+        clear();
+    }
+    
+    public synchronized void setWindowSize(int windowSize) {
+        this.windowSize = Math.max(1, windowSize);
+        notifyAll();
+    }
+    
+    // When not adaptive, the timeout is fixed and boards are never retried or put in back-off
+    public synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        clear();
+    }
+    
+    // Report sent requests, round trip times and timeouts to statistics, if not null
+    public synchronized void setStatistics(SensorBusStatistics statistics) {
+        this.statistics = statistics;
+    }
+    
+    public synchronized int getWindowSize() {
+        return windowSize;
+    }
+    
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+    
+    // Current answer timeout for sampling polls (when sampling) or other commands sent to boardId, in milliseconds
+    public synchronized long getTimeout(int boardId, boolean sampling) {
+        return isValidBoardId(boardId)? timeouts[toClass(sampling)][boardId] : timeout;
+    }
+    
+    public synchronized void clear() {
+        for (int n = 0; n < pendingSince.length; n++) {
+            pendingSince[n] = NOT_PENDING;
+            pendingRetransmission[n] = false;
+            pendingClass[n] = COMMAND;
+            expired[n] = false;
+            for (int requestClass = 0; requestClass < NUM_CLASSES; requestClass++) {
+                timeouts[requestClass][n] = timeout;
+                smoothedRtt[requestClass][n] = UNKNOWN_RTT;
+                rttVariance[requestClass][n] = 0.0;
+            }
+            consecutiveFailures[n] = 0;
+            backoff[n] = 0;
+            nextProbe[n] = 0;
+        }
+        outstanding = 0;
+        notifyAll();
+    }
+    
+    // Returns true if a request for boardId can be sent now.
+    // Requests not associated to a specific board need an idle bus
+    public synchronized boolean canSend(int boardId) {
+        
+        if (!isValidBoardId(boardId) || (boardId == AppDataMessage.BOARD_ID_UNDEFINED)) {
+            return outstanding == 0;
+        }
+        
+        return (outstanding < windowSize) && (pendingSince[boardId] == NOT_PENDING);
+    }
+    
+    // Returns true if boardId is in back-off and its sampling polls should be discarded.
+    // A board is polled again, by the first poll sent to it, when the back-off expires
+    public synchronized boolean isBackingOff(int boardId) {
+        
+        if (!isValidBoardId(boardId) || (backoff[boardId] == 0)) {
+            return false;
+        }
+        
+        return (System.currentTimeMillis() - nextProbe[boardId]) < 0;
+    }
+    
+    // Returns true if a request expired on boardId, already retransmitted "retries" times, 
+    // is worth another attempt. Only boards known to answer and not in back-off are retried
+    public synchronized boolean shouldRetry(int boardId, int retries) {
+        
+        if (!adaptive || !isValidBoardId(boardId) || (boardId == AppDataMessage.BOARD_ID_UNDEFINED)) {
+            return false;
+        }
+        
+        return (retries < MAX_RETRIES) && isKnown(boardId) && (backoff[boardId] == 0);
+    }
+    
+    // Register a request sent to boardId. Sampling polls are timed separately from other commands
+    public synchronized void sent(int boardId, boolean retransmission, boolean sampling) {
+        
+        if (!isValidBoardId(boardId)) {
+            return;
+        }
+        
+        if (pendingSince[boardId] == NOT_PENDING) {
+            outstanding++;
+        }
+        pendingSince[boardId] = System.currentTimeMillis();
+        pendingRetransmission[boardId] = retransmission;
+        pendingClass[boardId] = toClass(sampling);
+        
+        if (statistics != null) {
+            statistics.onRequestSent(boardId, retransmission);
+        }
+    }
+    
+    // An answer has been received from boardId. Returns true if it matched an outstanding request
+    public synchronized boolean answered(int boardId) {
+        
+        if (!isValidBoardId(boardId)) {
+            return false;
+        }
+        
+        // The board is alive, even if the answer comes too late
+        consecutiveFailures[boardId] = 0;
+        backoff[boardId] = 0;
+        
+        // Requests not associated to a specific board are answered by any board
+        if (pendingSince[boardId] == NOT_PENDING) {
+            boardId = AppDataMessage.BOARD_ID_UNDEFINED;
+            if (pendingSince[boardId] == NOT_PENDING) {
+                if (statistics != null) {
+                    statistics.onUnsolicitedAnswer();
+                }
+                return false;
+            }
+        }
+        
+        long rtt = System.currentTimeMillis() - pendingSince[boardId];
+        if (statistics != null) {
+            statistics.onAnswerReceived(boardId, rtt);
+        }
+        
+        // Round trip of retransmitted requests is ambiguous (Karn's algorithm)
+        if (!pendingRetransmission[boardId]) {
+            updateTimeout(boardId, rtt);
+        }
+        
+        pendingSince[boardId] = NOT_PENDING;
+        outstanding--;
+        notifyAll();
+        
+        return true;
+    }
+    
+    // Wait until something changes in the window (an answer, an expiration or 
+    // a window resize) or the specified time elapses
+    public synchronized void await(long maxWait) throws InterruptedException {
+        
+        long now = System.currentTimeMillis();
+        expire(now);
+        
+        long waitFor = maxWait;
+        long nextExpiration = nextExpiration();
+        if (nextExpiration != NOT_PENDING) {
+            waitFor = Math.min(waitFor, Math.max(1, nextExpiration - now));
+        }
+        
+        if (waitFor > 0) {
+            wait(waitFor);
+        }
+    }
+    
+    // Expire requests not answered in time. Returns the number of expired requests
+    public synchronized int expire() {
+        return expire(System.currentTimeMillis());
+    }
+    
+    // Returns true if some expired requests have not been collected yet
+    public synchronized boolean hasExpired() {
+        
+        for (int boardId = 0; boardId < expired.length; boardId++) {
+            if (expired[boardId]) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    // Returns the ID of a board with an expired request not yet collected, 
+    // or NOT_PENDING if none. Each expiration is returned once
+    public synchronized int takeExpired() {
+        
+        for (int boardId = 0; boardId < expired.length; boardId++) {
+            if (expired[boardId]) {
+                expired[boardId] = false;
+                return boardId;
+            }
+        }
+        
+        return (int)NOT_PENDING;
+    }
+    
+    private int expire(long now) {
+        
+        int numExpired = 0;
+        if (outstanding == 0) {
+            return numExpired;
+        }
+        
+        for (int boardId = 0; boardId < pendingSince.length; boardId++) {
+            if ((pendingSince[boardId] != NOT_PENDING) && ((now - pendingSince[boardId]) >= pendingTimeout(boardId))) {
+                pendingSince[boardId] = NOT_PENDING;
+                expired[boardId] = true;
+                outstanding--;
+                numExpired++;
+                
+                log.debug("No answer from board " + boardId + " in " + pendingTimeout(boardId) + " ms");
+                if (statistics != null) {
+                    statistics.onTimeout(boardId);
+                }
+                
+                onFailure(boardId, now);
+            }
+        }
+        
+        return numExpired;
+    }
+    
+    private void onFailure(int boardId, long now) {
+        
+        if (!adaptive || (boardId == AppDataMessage.BOARD_ID_UNDEFINED)) {
+            return;
+        }
+        
+        // Exponential timeout back-off for boards known to answer
+        int requestClass = pendingClass[boardId];
+        if (smoothedRtt[requestClass][boardId] != UNKNOWN_RTT) {
+            setTimeout(requestClass, boardId, Math.min(timeouts[requestClass][boardId] * 2, MAX_TIMEOUT));
+        }
+        
+        // Stop polling boards failing too often. Probe them later
+        consecutiveFailures[boardId]++;
+        if (consecutiveFailures[boardId] >= FAILURES_BEFORE_BACKOFF) {
+            
+            backoff[boardId] = (backoff[boardId] == 0)? MIN_BACKOFF : Math.min(backoff[boardId] * 2, MAX_BACKOFF);
+            nextProbe[boardId] = now + backoff[boardId];
+            log.debug("Board " + boardId + " not answering. Next probe in " + backoff[boardId] + " ms");
+        }
+    }
+    
+    private void updateTimeout(int boardId, long rtt) {
+        
+        if (!adaptive || (boardId == AppDataMessage.BOARD_ID_UNDEFINED)) {
+            return;
+        }
+        
+        int requestClass = pendingClass[boardId];
+        double[] srtt = smoothedRtt[requestClass];
+        double[] rttvar = rttVariance[requestClass];
+        if (srtt[boardId] == UNKNOWN_RTT) {
+            srtt[boardId] = rtt;
+            rttvar[boardId] = rtt / 2.0;
+        } else {
+            rttvar[boardId] += RTT_VARIANCE_GAIN * (Math.abs(srtt[boardId] - rtt) - rttvar[boardId]);
+            srtt[boardId] += RTT_GAIN * (rtt - srtt[boardId]);
+        }
+        
+        // Commands other than sampling polls are seldom sent: never go below the configured timeout
+        long minTimeout = (requestClass == SAMPLING)? MIN_TIMEOUT : timeout;
+        long newTimeout = (long)Math.ceil(srtt[boardId] + Math.max(4.0 * rttvar[boardId], MIN_RTT_VARIANCE));
+        setTimeout(requestClass, boardId, Math.max(minTimeout, Math.min(newTimeout, MAX_TIMEOUT)));
+    }
+    
+    // Statistics report the sampling polls timeout
+    private void setTimeout(int requestClass, int boardId, long newTimeout) {
+        
+        timeouts[requestClass][boardId] = newTimeout;
+        if ((statistics != null) && (requestClass == SAMPLING)) {
+            statistics.onAnswerTimeoutChanged(boardId, newTimeout);
+        }
+    }
+    
+    private long pendingTimeout(int boardId) {
+        return timeouts[pendingClass[boardId]][boardId];
+    }
+    
+    // Returns true if boardId answered at least once
+    private boolean isKnown(int boardId) {
+        
+        for (int requestClass = 0; requestClass < NUM_CLASSES; requestClass++) {
+            if (smoothedRtt[requestClass][boardId] != UNKNOWN_RTT) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static int toClass(boolean sampling) {
+        return sampling? SAMPLING : COMMAND;
+    }
+    
+    private long nextExpiration() {
+        
+        long result = NOT_PENDING;
+        if (outstanding == 0) {
+            return result;
+        }
+        
+        for (int boardId = 0; boardId < pendingSince.length; boardId++) {
+            long since = pendingSince[boardId];
+            if ((since != NOT_PENDING) && ((result == NOT_PENDING) || ((since + pendingTimeout(boardId)) < result))) {
+                result = since + pendingTimeout(boardId);
+            }
+        }
+        
+        return result;
+    }
+    
+    private boolean isValidBoardId(int boardId) {
+        return (boardId >= 0) && (boardId <= MAX_BOARD_ID);
+    }
+}
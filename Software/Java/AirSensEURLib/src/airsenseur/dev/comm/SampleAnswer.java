@@ -0,0 +1,78 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.comm;
+
+/**
+ * Last sample answer decoded from a shield frame. 
+ * Instances are meant to be reused: ShieldProtocolLayer.evalLastSample
+ * overwrites all fields on each successful decoding.
+ * @author marco
+ */
+public class SampleAnswer {
+    
+    private int boardId = AppDataMessage.BOARD_ID_UNDEFINED;
+    private int channel;
+    private boolean highResolution;
+    private int sample;
+    private float value;
+    private int timestamp;
+    
+    void set(int boardId, int channel, boolean highResolution, int sample, float value, int timestamp) {
+        this.boardId = boardId;
+        this.channel = channel;
+        this.highResolution = highResolution;
+        this.sample = sample;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    public int getBoardId() {
+        return boardId;
+    }
+
+    public int getChannel() {
+        return channel;
+    }
+
+    // True for high resolution (floating point) samples, false for 16 bits samples
+    public boolean isHighResolution() {
+        return highResolution;
+    }
+
+    // The 16 bits sample. Valid only when not high resolution
+    public int getSample() {
+        return sample;
+    }
+
+    // The high resolution sample. Valid only when high resolution
+    public float getValue() {
+        return value;
+    }
+
+    public int getTimestamp() {
+        return timestamp;
+    }
+}
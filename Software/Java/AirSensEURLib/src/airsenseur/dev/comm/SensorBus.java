@@ -33,7 +33,8 @@ import airsenseur.dev.exceptions.SensorBusException;
 public interface SensorBus {
     
     // Defines a callback for DataMessages received from the bus and flowing
-    // to application layer
+    // to application layer. Messages are recycled when the callback returns:
+    // consumers needing to keep them should store a clone()
     public static interface SensorBusMessageConsumer {
         public void onNewMessageReady(AppDataMessage message);
     }
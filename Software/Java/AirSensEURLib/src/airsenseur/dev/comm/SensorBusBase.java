@@ -38,9 +38,11 @@ import org.slf4j.LoggerFactory;
 public abstract class SensorBusBase extends TaskScheduler implements SensorBus {
     
     private final static int dataMessageQueueSize = 256;
+    private final static long pumpTerminationTimeout = 2000; /* in milliseconds */
     
     private final AppDataMessageQueue rxDataQueue = new AppDataMessageQueue(dataMessageQueueSize);
     private final AppDataMessageQueue txDataQueue = new AppDataMessageQueue(dataMessageQueueSize);
+    private final SensorBusStatistics statistics = new SensorBusStatistics();
     
     private SensorBusMessageConsumer messageConsumer = null; 
     private CommChannel commChannel = null;    
@@ -58,6 +60,7 @@ public abstract class SensorBusBase extends TaskScheduler implements SensorBus {
         this.messageConsumer = messageConsumer;
         commChannel = CommChannelFactory.getInstance(commChannelType);
         transportLogic = TransportLogicFactory.getInstance(type, rxDataQueue, txDataQueue, this, commChannel, useCRCWhenAvailable);
+        transportLogic.setStatistics(statistics);
     }
 
     // From SensorBus
@@ -98,6 +101,11 @@ public abstract class SensorBusBase extends TaskScheduler implements SensorBus {
         // Stop the rx thread message pump
         stop();
         
+        // Wait for both pumps to leave the queues, so they're not cleared while
+        // in use and the pumps started by a reconnection never run together with the old ones
+        waitForPumpTermination(transportLogic);
+        waitForPumpTermination(this);
+        
         // Clear message queues
         rxDataQueue.clear();
         txDataQueue.clear();
@@ -149,6 +157,7 @@ public abstract class SensorBusBase extends TaskScheduler implements SensorBus {
         
         try {
             txDataQueue.put(message);
+            statistics.onTxQueueDepth(txDataQueue.size());
         } catch (InterruptedException ex) {
             log.debug("exception occurred in writeMessageToBus");
         }
@@ -166,9 +175,14 @@ public abstract class SensorBusBase extends TaskScheduler implements SensorBus {
             while (!isShutdown()) {
                 // Extract a message from the rx Data Message Queue
                 AppDataMessage message = rxDataQueue.take();
+                statistics.onRxQueueDepth(rxDataQueue.size());
                 
-                if (this.messageConsumer != null) {
-                    messageConsumer.onNewMessageReady(message);
+                try {
+                    if (this.messageConsumer != null) {
+                        messageConsumer.onNewMessageReady(message);
+                    }
+                } finally {
+                    rxDataQueue.release();
                 }
             }
         } catch (InterruptedException ex) {
@@ -184,7 +198,50 @@ public abstract class SensorBusBase extends TaskScheduler implements SensorBus {
         return "SensorBusBase-BusToApp";
     }
     
+    // A pump disconnecting the bus can't wait for itself. It leaves 
+    // the queues as soon as it returns from the current execution
+    private void waitForPumpTermination(TaskScheduler pump) {
+        
+        if (pump.isCurrentTask()) {
+            return;
+        }
+        
+        try {
+            if (!pump.waitForTermination(pumpTerminationTimeout)) {
+                log.warn("Timeout waiting for " + pump.getTaskName() + " termination");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
     public boolean isConnected() {
         return connected;
     }
+    
+    // Returns true if all messages written to the bus have been sent and answered (or expired)
+    // and all answers have been delivered to the message consumer
+    public boolean isIdle() {
+        return txDataQueue.isEmpty() && rxDataQueue.isEmpty() && 
+                ((transportLogic == null) || transportLogic.isIdle());
+    }
+    
+    // Performance counters collected on this bus
+    public SensorBusStatistics getStatistics() {
+        return statistics;
+    }
+    
+    // Select how the tx and rx message pumps wait for new messages
+    public void setQueueWaitStrategy(AppDataMessageQueue.waitStrategies waitStrategy) {
+        rxDataQueue.setWaitStrategy(waitStrategy);
+        txDataQueue.setWaitStrategy(waitStrategy);
+    }
+    
+    // Set the maximum number of requests waiting for an answer at the same time.
+    // It's effective only on transport logics supporting it (i.e. point to multipoint)
+    public void setRequestWindowSize(int windowSize) {
+        if (transportLogic != null) {
+            transportLogic.setRequestWindowSize(windowSize);
+        }
+    }
 }
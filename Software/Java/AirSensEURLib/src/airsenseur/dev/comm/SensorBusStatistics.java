@@ -0,0 +1,363 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.comm;
+
+/**
+ * Collects performance counters on the sensor bus: per board round trip times, 
+ * timeouts, CRC failures and retransmissions, and the depth of the tx and rx queues.
+ * Retransmissions are requests sent again after a timeout. Discarded requests are 
+ * the ones not sent because the target board was in back-off. Coalesced requests are
+ * sampling polls dropped because an identical one was still waiting to be sent.
+ * All counters are cumulative since the creation or the last reset.
+ * @author marco
+ */
+public class SensorBusStatistics {
+    
+    private final static int MAX_BOARD_ID = 0xFF;
+    
+    // Upper bounds (exclusive) of the round trip time histogram buckets, in milliseconds.
+    // The last bucket collects all round trips longer than the last bound
+    public final static long[] RTT_HISTOGRAM_BOUNDS = { 5, 10, 20, 50, 100, 200, 300, 500, 1000 };
+    
+    /**
+     * Counters collected for a single board
+     */
+    public static class BoardStatistics {
+        
+        private final int boardId;
+        private long requests;
+        private long answers;
+        private long timeouts;
+        private long crcErrors;
+        private long retransmissions;
+        private long discarded;
+        private long coalesced;
+        private long answerTimeout;
+        private long rttSum;
+        private long rttMin = Long.MAX_VALUE;
+        private long rttMax;
+        private final long[] rttHistogram = new long[RTT_HISTOGRAM_BOUNDS.length + 1];
+        
+        private BoardStatistics(int boardId) {
+            this.boardId = boardId;
+        }
+        
+        private BoardStatistics(BoardStatistics other) {
+            this.boardId = other.boardId;
+            this.requests = other.requests;
+            this.answers = other.answers;
+            this.timeouts = other.timeouts;
+            this.crcErrors = other.crcErrors;
+            this.retransmissions = other.retransmissions;
+            this.discarded = other.discarded;
+            this.coalesced = other.coalesced;
+            this.answerTimeout = other.answerTimeout;
+            this.rttSum = other.rttSum;
+            this.rttMin = other.rttMin;
+            this.rttMax = other.rttMax;
+            System.arraycopy(other.rttHistogram, 0, this.rttHistogram, 0, rttHistogram.length);
+        }
+        
+        public int getBoardId() {
+            return boardId;
+        }
+        
+        public long getRequests() {
+            return requests;
+        }
+        
+        public long getAnswers() {
+            return answers;
+        }
+        
+        public long getTimeouts() {
+            return timeouts;
+        }
+        
+        public long getCrcErrors() {
+            return crcErrors;
+        }
+        
+        public long getRetransmissions() {
+            return retransmissions;
+        }
+        
+        public long getDiscarded() {
+            return discarded;
+        }
+        
+        public long getCoalesced() {
+            return coalesced;
+        }
+        
+        // Answer timeout currently applied, in milliseconds. Zero if never changed
+        public long getAnswerTimeout() {
+            return answerTimeout;
+        }
+        
+        public long getRttMin() {
+            return (answers != 0)? rttMin : 0;
+        }
+        
+        public long getRttMax() {
+            return rttMax;
+        }
+        
+        public long getRttAverage() {
+            return (answers != 0)? rttSum / answers : 0;
+        }
+        
+        public long[] getRttHistogram() {
+            return rttHistogram.clone();
+        }
+    }
+    
+    private final BoardStatistics[] boards = new BoardStatistics[MAX_BOARD_ID + 1];
+    
+    private long since = System.currentTimeMillis();
+    private long framingErrors;
+    private long unsolicitedAnswers;
+    private int txQueueDepth;
+    private int txQueueMaxDepth;
+    private int txParkedMessages;
+    private int txParkedMaxMessages;
+    private int rxQueueDepth;
+    private int rxQueueMaxDepth;
+    
+    // A request has been sent to boardId
+    public synchronized void onRequestSent(int boardId, boolean retransmission) {
+        
+        BoardStatistics board = getBoard(boardId);
+        if (board != null) {
+            board.requests++;
+            if (retransmission) {
+                board.retransmissions++;
+            }
+        }
+    }
+    
+    // A request to boardId has been discarded without sending it
+    public synchronized void onRequestDiscarded(int boardId) {
+        
+        BoardStatistics board = getBoard(boardId);
+        if (board != null) {
+            board.discarded++;
+        }
+    }
+    
+    // A sampling request to boardId has been dropped because already waiting to be sent
+    public synchronized void onRequestCoalesced(int boardId) {
+        
+        BoardStatistics board = getBoard(boardId);
+        if (board != null) {
+            board.coalesced++;
+        }
+    }
+    
+    // The answer timeout for boardId has been updated
+    public synchronized void onAnswerTimeoutChanged(int boardId, long timeout) {
+        
+        BoardStatistics board = getBoard(boardId);
+        if (board != null) {
+            board.answerTimeout = timeout;
+        }
+    }
+    
+    // An answer from boardId has been received, rtt milliseconds after the request
+    public synchronized void onAnswerReceived(int boardId, long rtt) {
+        
+        BoardStatistics board = getBoard(boardId);
+        if (board == null) {
+            return;
+        }
+        
+        board.answers++;
+        board.rttSum += rtt;
+        board.rttMin = Math.min(board.rttMin, rtt);
+        board.rttMax = Math.max(board.rttMax, rtt);
+        
+        int bucket = 0;
+        while ((bucket < RTT_HISTOGRAM_BOUNDS.length) && (rtt >= RTT_HISTOGRAM_BOUNDS[bucket])) {
+            bucket++;
+        }
+        board.rttHistogram[bucket]++;
+    }
+    
+    // A request to boardId has not been answered in time
+    public synchronized void onTimeout(int boardId) {
+        
+        BoardStatistics board = getBoard(boardId);
+        if (board != null) {
+            board.timeouts++;
+        }
+    }
+    
+    // A frame coming from boardId has been discarded for a CRC mismatch
+    public synchronized void onCrcError(int boardId) {
+        
+        BoardStatistics board = getBoard(boardId);
+        if (board != null) {
+            board.crcErrors++;
+        }
+    }
+    
+    // An incoming frame has been discarded because malformed
+    public synchronized void onFramingError() {
+        framingErrors++;
+    }
+    
+    // A valid frame has been received when no request was waiting for it
+    public synchronized void onUnsolicitedAnswer() {
+        unsolicitedAnswers++;
+    }
+    
+    public synchronized void onTxQueueDepth(int depth) {
+        txQueueDepth = depth;
+        txQueueMaxDepth = Math.max(txQueueMaxDepth, depth);
+    }
+    
+    public synchronized void onTxParkedMessages(int parked) {
+        txParkedMessages = parked;
+        txParkedMaxMessages = Math.max(txParkedMaxMessages, parked);
+    }
+    
+    public synchronized void onRxQueueDepth(int depth) {
+        rxQueueDepth = depth;
+        rxQueueMaxDepth = Math.max(rxQueueMaxDepth, depth);
+    }
+    
+    public synchronized void reset() {
+        
+        for (int boardId = 0; boardId < boards.length; boardId++) {
+            boards[boardId] = null;
+        }
+        
+        since = System.currentTimeMillis();
+        framingErrors = 0;
+        unsolicitedAnswers = 0;
+        txQueueMaxDepth = txQueueDepth;
+        txParkedMaxMessages = txParkedMessages;
+        rxQueueMaxDepth = rxQueueDepth;
+    }
+    
+    // Returns a copy of the counters for boardId, or null if no traffic has been recorded
+    public synchronized BoardStatistics getBoardStatistics(int boardId) {
+        
+        if (!isValidBoardId(boardId) || (boards[boardId] == null)) {
+            return null;
+        }
+        
+        return new BoardStatistics(boards[boardId]);
+    }
+    
+    public synchronized long getSince() {
+        return since;
+    }
+    
+    public synchronized long getFramingErrors() {
+        return framingErrors;
+    }
+    
+    public synchronized long getUnsolicitedAnswers() {
+        return unsolicitedAnswers;
+    }
+    
+    public synchronized int getTxQueueDepth() {
+        return txQueueDepth;
+    }
+    
+    public synchronized int getTxQueueMaxDepth() {
+        return txQueueMaxDepth;
+    }
+    
+    public synchronized int getTxParkedMessages() {
+        return txParkedMessages;
+    }
+    
+    public synchronized int getTxParkedMaxMessages() {
+        return txParkedMaxMessages;
+    }
+    
+    public synchronized int getRxQueueDepth() {
+        return rxQueueDepth;
+    }
+    
+    public synchronized int getRxQueueMaxDepth() {
+        return rxQueueMaxDepth;
+    }
+    
+    // Returns a human readable summary, one line per board
+    public synchronized String getSummary() {
+        
+        StringBuilder sb = new StringBuilder();
+        long elapsed = Math.max(1, (System.currentTimeMillis() - since) / 1000);
+        sb.append("Sensor Bus statistics over ").append(elapsed).append("s: ");
+        sb.append("tx queue ").append(txQueueDepth).append("/").append(txQueueMaxDepth);
+        sb.append(", tx parked ").append(txParkedMessages).append("/").append(txParkedMaxMessages);
+        sb.append(", rx queue ").append(rxQueueDepth).append("/").append(rxQueueMaxDepth);
+        sb.append(", framing errors ").append(framingErrors);
+        sb.append(", unsolicited answers ").append(unsolicitedAnswers);
+        
+        for (BoardStatistics board : boards) {
+            if (board == null) {
+                continue;
+            }
+            
+            sb.append("\n  board ").append(board.boardId);
+            sb.append(": requests ").append(board.requests);
+            sb.append(" (").append(board.requests / elapsed).append("/s)");
+            sb.append(", answers ").append(board.answers);
+            sb.append(", timeouts ").append(board.timeouts);
+            sb.append(", crc errors ").append(board.crcErrors);
+            sb.append(", retransmissions ").append(board.retransmissions);
+            sb.append(", discarded ").append(board.discarded);
+            sb.append(", coalesced ").append(board.coalesced);
+            sb.append(", rtt min/avg/max ").append(board.getRttMin()).append("/").append(board.getRttAverage()).append("/").append(board.rttMax).append(" ms");
+            if (board.answerTimeout != 0) {
+                sb.append(", timeout ").append(board.answerTimeout).append(" ms");
+            }
+        }
+        
+        return sb.toString();
+    }
+    
+    private BoardStatistics getBoard(int boardId) {
+        
+        if (!isValidBoardId(boardId)) {
+            return null;
+        }
+        
+        if (boards[boardId] == null) {
+            boards[boardId] = new BoardStatistics(boardId);
+        }
+        
+        return boards[boardId];
+    }
+    
+    private boolean isValidBoardId(int boardId) {
+        return (boardId >= 0) && (boardId <= MAX_BOARD_ID);
+    }
+}
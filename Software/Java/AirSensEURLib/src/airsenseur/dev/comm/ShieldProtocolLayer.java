@@ -100,6 +100,26 @@ public class ShieldProtocolLayer {
         put(String.valueOf(COMMPROTOCOL_WRITE_REGISTER), String.valueOf(COMMPROTOCOL_READ_REGISTER));
     }};
     
+    // Answer identifiers indexed by command identifier, and board related (i.e. without channel) commands
+    private static final int MAX_COMMAND_ID = 0x7F;
+    private static final char[] answerIdentifiers = new char[MAX_COMMAND_ID + 1];
+    private static final boolean[] boardCommands = new boolean[MAX_COMMAND_ID + 1];
+    static {
+        for (char commandId = 0; commandId <= MAX_COMMAND_ID; commandId++) {
+            answerIdentifiers[commandId] = commandId;
+        }
+        for (Map.Entry<String, String> entry:fromRequestToAnswerIdentifiers.entrySet()) {
+            answerIdentifiers[entry.getKey().charAt(0)] = entry.getValue().charAt(0);
+        }
+        for (char commandId:new char[] { COMMPROTOCOL_ECHO, COMMPROTOCOL_SAMPLE_ENABLE, COMMPROTOCOL_SAMPLE_DISABLE, 
+                                            COMMPROTOCOL_FREEMEMORY, COMMPROTOCOL_WRITE_BOARDSERIAL, COMMPROTOCOL_READ_BOARDSERIAL, 
+                                            COMMPROTOCOL_READ_FWVERSION, COMMPROTOCOL_READ_BOARDTYPE }) {
+            boardCommands[commandId] = true;
+        }
+    }
+    
+    public static final int CORRELATION_NO_CHANNEL = 0xFFFF;
+    
     private static final List<String> boardTypesString = new ArrayList<String>() {{
         add("Unknown");
         add("Chemical Shield R3.x"); 
@@ -119,10 +139,10 @@ public class ShieldProtocolLayer {
         
         StringBuilder sb = new StringBuilder(10);
         sb.append(COMMPROTOCOL_WRITE_AFE_REG);
-        sb.append(CodecHelper.encodeValue((char)channelId));
-        sb.append(CodecHelper.encodeValue((char)tiaReg));
-        sb.append(CodecHelper.encodeValue((char)refReg));
-        sb.append(CodecHelper.encodeValue((char)modeReg));
+        CodecHelper.appendChar(sb, channelId);
+        CodecHelper.appendChar(sb, tiaReg);
+        CodecHelper.appendChar(sb, refReg);
+        CodecHelper.appendChar(sb, modeReg);
         
         sensorBus.writeMessageToBus(new AppDataMessage(boardId, sb.toString(), "LMP9100 Register Setup for channel " + channelId));
     }
@@ -131,8 +151,8 @@ public class ShieldProtocolLayer {
         
         StringBuilder sb = new StringBuilder(10);
         sb.append(COMMPROTOCOL_WRITE_STP_REG);
-        sb.append(CodecHelper.encodeValue((char)channelId));
-        sb.append(CodecHelper.encodeValue((short)setpoint));
+        CodecHelper.appendChar(sb, channelId);
+        CodecHelper.appendShort(sb, setpoint);
         
         sensorBus.writeMessageToBus(new AppDataMessage(boardId, sb.toString(), "Setpoint Register Setup for channel " + channelId));
     }
@@ -140,8 +160,8 @@ public class ShieldProtocolLayer {
     public void renderSavePresetWithName(int boardId, int channelId, String name) throws SensorBusException {
         StringBuilder sb = new StringBuilder(3+(2*name.length()));
         sb.append(COMMPROTOCOL_SAVEPRESET);
-        sb.append(CodecHelper.encodeValue((char)channelId));
-        sb.append(CodecHelper.encodeString(name));
+        CodecHelper.appendChar(sb, channelId);
+        CodecHelper.appendString(sb, name);
         
         sensorBus.writeMessageToBus(new AppDataMessage(boardId, sb.toString(), "Write Preset Name for channel " + channelId));
     }
@@ -159,10 +179,10 @@ public class ShieldProtocolLayer {
     public void renderDAC5694RegSetup(int boardId, int channelId, int subChannel, int value, int gain) throws SensorBusException {
         StringBuilder sb = new StringBuilder(12);
         sb.append(COMMPROTOCOL_WRITE_DAC_REG);
-        sb.append(CodecHelper.encodeValue((char)channelId));
-        sb.append(CodecHelper.encodeValue((char)subChannel));
-        sb.append(CodecHelper.encodeValue((short)value));
-        sb.append(CodecHelper.encodeValue((char)gain));
+        CodecHelper.appendChar(sb, channelId);
+        CodecHelper.appendChar(sb, subChannel);
+        CodecHelper.appendShort(sb, value);
+        CodecHelper.appendChar(sb, gain);
         
         sensorBus.writeMessageToBus(new AppDataMessage(boardId, sb.toString(), "DAC5694R Register Setup for channel " + channelId + " subchannel " + subChannel));
     }
@@ -245,18 +265,22 @@ public class ShieldProtocolLayer {
     }
     
     public void renderGetLastSample(int boardId, int channelId) throws SensorBusException {
-        sensorBus.writeMessageToBus(new AppDataMessage(boardId, renderChannelCmd(channelId, COMMPROTOCOL_LASTSAMPLE), "Get Last Sample for channel " + channelId));
+        AppDataMessage message = new AppDataMessage(boardId, renderChannelCmd(channelId, COMMPROTOCOL_LASTSAMPLE), "Get Last Sample for channel " + channelId);
+        message.setPriority(AppDataMessage.PRIORITY_SAMPLING);
+        sensorBus.writeMessageToBus(message);
     }
     
     public void renderGetLastSampleHRes(int boardId, int channelId) throws SensorBusException {
-        sensorBus.writeMessageToBus(new AppDataMessage(boardId, renderChannelCmd(channelId, COMMPROTOCOL_LASTSAMPLE_HRES), "Get Last HiRes Sample for channel " + channelId));
+        AppDataMessage message = new AppDataMessage(boardId, renderChannelCmd(channelId, COMMPROTOCOL_LASTSAMPLE_HRES), "Get Last HiRes Sample for channel " + channelId);
+        message.setPriority(AppDataMessage.PRIORITY_SAMPLING);
+        sensorBus.writeMessageToBus(message);
     }
     
     public void renderSaveSensorSerialNumber(int boardId, int channelId, String serialNumber) throws SensorBusException {
         StringBuilder sb = new StringBuilder(3+(2*serialNumber.length()));
         sb.append(COMMPROTOCOL_WRITE_SSERIAL);
-        sb.append(CodecHelper.encodeValue((char)channelId));
-        sb.append(CodecHelper.encodeString(serialNumber));
+        CodecHelper.appendChar(sb, channelId);
+        CodecHelper.appendString(sb, serialNumber);
         
         sensorBus.writeMessageToBus(new AppDataMessage(boardId, sb.toString(), "Write Serial Number for channel " + channelId));
     }
@@ -268,7 +292,7 @@ public class ShieldProtocolLayer {
     public void renderSaveBoardSerialNumber(int boardId, String serialNumber) throws SensorBusException {
         StringBuilder sb = new StringBuilder(3*(2*serialNumber.length()));
         sb.append(COMMPROTOCOL_WRITE_BOARDSERIAL);
-        sb.append(CodecHelper.encodeString(serialNumber));
+        CodecHelper.appendString(sb, serialNumber);
         
         sensorBus.writeMessageToBus(new AppDataMessage(boardId, sb.toString(), "Write board serial number"));
     }
@@ -297,9 +321,9 @@ public class ShieldProtocolLayer {
         
         StringBuilder sb = new StringBuilder(20);
         sb.append(COMMPROTOCOL_WRITE_REGISTER);
-        sb.append(CodecHelper.encodeValue((char)channel));
-        sb.append(CodecHelper.encodeValue(address));
-        sb.append(CodecHelper.encodeValue(value));
+        CodecHelper.appendChar(sb, channel);
+        CodecHelper.appendInt(sb, address);
+        CodecHelper.appendInt(sb, value);
         
         sensorBus.writeMessageToBus(new AppDataMessage(boardId, sb.toString(), "Write generic register for channel " + channel));
     }
@@ -308,13 +332,15 @@ public class ShieldProtocolLayer {
         
         StringBuilder sb = new StringBuilder(20);
         sb.append(COMMPROTOCOL_READ_REGISTER);
-        sb.append(CodecHelper.encodeValue((char)channel));
-        sb.append(CodecHelper.encodeValue(address));
+        CodecHelper.appendChar(sb, channel);
+        CodecHelper.appendInt(sb, address);
         
         sensorBus.writeMessageToBus(new AppDataMessage(boardId, sb.toString(), "Read generic register for channel " + channel));
     }
     
+    // Raw data come from interactive clients and overtake sampling and configuration traffic
     public void renderRawData(AppDataMessage dataMessage) throws SensorBusException {
+        dataMessage.setPriority(AppDataMessage.PRIORITY_INTERACTIVE);
         sensorBus.writeMessageToBus(dataMessage);
     }
     
@@ -336,6 +362,35 @@ public class ShieldProtocolLayer {
         return false;
     }
     
+    // Correlation key of a request or an answer: board, answer identifier and channel, if any.
+    // Requests are identified by the identifier of their answer (i.e. a write 
+    // is answered with the associated read) so both sides get the same key
+    public static long getCorrelationKey(int boardId, CharSequence command) {
+        
+        if (command.length() < COMMPROTOCOL_COMMANDID_LENGTH) {
+            return getCorrelationKey(boardId, (char)0, CORRELATION_NO_CHANNEL);
+        }
+        
+        char commandId = command.charAt(0);
+        if (commandId > MAX_COMMAND_ID) {
+            return getCorrelationKey(boardId, commandId, CORRELATION_NO_CHANNEL);
+        }
+        
+        int channel = CORRELATION_NO_CHANNEL;
+        if (!boardCommands[commandId] && (command.length() >= COMMPROTOCOL_COMMAND_CHANNEL_PATTERNLENGTH)) {
+            int value = CodecHelper.decodeCharAt(command, COMMPROTOCOL_COMMANDID_LENGTH);
+            if (value != CodecHelper.INVALID_VALUE) {
+                channel = value;
+            }
+        }
+        
+        return getCorrelationKey(boardId, answerIdentifiers[commandId], channel);
+    }
+    
+    public static long getCorrelationKey(int boardId, char answerId, int channel) {
+        return ((long)(boardId & 0xFFFF) << 32) | ((long)answerId << 16) | (channel & 0xFFFF);
+    }
+    
     // Convert the board type in a human readable format
     public static String getBoardTypeString(int boardTypeID) {
         if (boardTypeID >= boardTypesString.size()) {
@@ -353,7 +408,7 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        return CodecHelper.decodeShortAt(rxMessage.getCommandString(), 1);
+        return validOrNull(CodecHelper.decodeShortAt(rxMessage.getCommandData(), 1));
     }
     
     // Returns an integer identifying the prescaler on the selected channel if the rxMessage matches the required command and channel
@@ -363,12 +418,12 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        Integer rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandString(), 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        int rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandData(), 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        return CodecHelper.decodeCharAt(rxMessage.getCommandString(), 3);
+        return validOrNull(CodecHelper.decodeCharAt(rxMessage.getCommandData(), 3));
     }
     
     // Returns an integer identifying the postscaler on the selected channel if the rxMessage matches the required command and channel
@@ -378,12 +433,12 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        Integer rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandString(), 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        int rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandData(), 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        return CodecHelper.decodeCharAt(rxMessage.getCommandString(), 3);
+        return validOrNull(CodecHelper.decodeCharAt(rxMessage.getCommandData(), 3));
     }
     
     // Returns an integer identifying the decimation on the selected channel if the rxMessage matches the required command and channel
@@ -393,12 +448,12 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        Integer rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandString(), 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        int rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandData(), 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        return CodecHelper.decodeCharAt(rxMessage.getCommandString(), 3);
+        return validOrNull(CodecHelper.decodeCharAt(rxMessage.getCommandData(), 3));
     }
     
     // Returns a list of two IIR parameters if the rxMessage matches the required command and channel
@@ -408,16 +463,16 @@ public class ShieldProtocolLayer {
             return null;
         }
 
-        Integer rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandString(), 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        int rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandData(), 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
 
-        String rxMsg = rxMessage.getCommandString();
-        Integer denom1 = CodecHelper.decodeCharAt(rxMsg, 3);
-        Integer denom2 = CodecHelper.decodeCharAt(rxMsg, 5);
+        CharSequence rxMsg = rxMessage.getCommandData();
+        int denom1 = CodecHelper.decodeCharAt(rxMsg, 3);
+        int denom2 = CodecHelper.decodeCharAt(rxMsg, 5);
         
-        if ((denom1 == null) || (denom2 == null))
+        if ((denom1 == CodecHelper.INVALID_VALUE) || (denom2 == CodecHelper.INVALID_VALUE))
             return null;
             
         List<Integer> result = new ArrayList<>();
@@ -434,12 +489,12 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        Integer rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandString(), 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        int rxChan = CodecHelper.decodeCharAt(rxMessage.getCommandData(), 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        String sensorName = CodecHelper.decodeStringAt(rxMessage.getCommandString(), 3);
+        String sensorName = CodecHelper.decodeStringAt(rxMessage.getCommandData(), 3);
         return sensorName;
     } 
     
@@ -450,18 +505,18 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        Integer tia = CodecHelper.decodeCharAt(commandString, 3);
-        Integer ref = CodecHelper.decodeCharAt(commandString, 5);
-        Integer mode = CodecHelper.decodeCharAt(commandString, 7);
+        int tia = CodecHelper.decodeCharAt(commandString, 3);
+        int ref = CodecHelper.decodeCharAt(commandString, 5);
+        int mode = CodecHelper.decodeCharAt(commandString, 7);
         
         List<Integer> result = new ArrayList<>();
-        if ((tia != null) && (ref != null) && (mode != null)) {
+        if ((tia != CodecHelper.INVALID_VALUE) && (ref != CodecHelper.INVALID_VALUE) && (mode != CodecHelper.INVALID_VALUE)) {
             result.add(tia);
             result.add(ref);
             result.add(mode);
@@ -477,15 +532,18 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        Integer setpoint = CodecHelper.decodeShortAt(commandString, 3);
+        int setpoint = CodecHelper.decodeShortAt(commandString, 3);
+        if (setpoint == CodecHelper.INVALID_VALUE) {
+            return null;
+        }
         
-        return setpoint.shortValue();
+        return (short)setpoint;
     }
     
     // Returns the result of a write generic register, or null if the rxMessage does not match the command and channel
@@ -495,9 +553,9 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
@@ -513,9 +571,15 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
+            return null;
+        }
+        
+        // Any 32 bit value is legal here, so invalid fields can't be told by the decoded value
+        if (!CodecHelper.isValidAt(commandString, 3, CodecHelper.INT_DIGITS) || 
+                !CodecHelper.isValidAt(commandString, 11, CodecHelper.INT_DIGITS)) {
             return null;
         }
         
@@ -533,18 +597,18 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
 
-        Integer rxSubChan = CodecHelper.decodeCharAt(commandString, 3);
-        Integer rxVal = CodecHelper.decodeShortAt(commandString, 5);
-        Integer rxGain = CodecHelper.decodeCharAt(commandString, 9);
+        int rxSubChan = CodecHelper.decodeCharAt(commandString, 3);
+        int rxVal = CodecHelper.decodeShortAt(commandString, 5);
+        int rxGain = CodecHelper.decodeCharAt(commandString, 9);
         
         List<Integer> result = new ArrayList<>();
-        if ((rxSubChan != null) && (rxVal != null) && (rxGain != null)) {
+        if ((rxSubChan != CodecHelper.INVALID_VALUE) && (rxVal != CodecHelper.INVALID_VALUE) && (rxGain != CodecHelper.INVALID_VALUE)) {
             result.add(rxSubChan);
             result.add(rxVal);
             result.add(rxGain);
@@ -553,29 +617,77 @@ public class ShieldProtocolLayer {
         return result;
     }
     
+    // Decodes a last sample answer, either 16 bits or high resolution, from any board and channel.
+    // Returns true and fills the result if the rxMessage is a valid last sample answer; false otherwise
+    public boolean evalLastSample(AppDataMessage rxMessage, SampleAnswer result) {
+        
+        CharSequence commandString = rxMessage.getCommandData();
+        if (commandString.length() == 0) {
+            return false;
+        }
+        
+        char command = commandString.charAt(0);
+        if ((command != COMMPROTOCOL_LASTSAMPLE) && (command != COMMPROTOCOL_LASTSAMPLE_HRES)) {
+            return false;
+        }
+        
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if (rxChan == CodecHelper.INVALID_VALUE) {
+            return false;
+        }
+        
+        if (command == COMMPROTOCOL_LASTSAMPLE) {
+            
+            int sample = CodecHelper.decodeShortAt(commandString, 3);
+            long timestamp = CodecHelper.decodeLongAt(commandString, 7);
+            if ((sample == CodecHelper.INVALID_VALUE) || (timestamp == CodecHelper.INVALID_VALUE)) {
+                return false;
+            }
+            
+            result.set(rxMessage.getBoardId(), rxChan, false, sample, 0.0f, (int)timestamp);
+            
+        } else {
+            
+            // NaN is a legal sample value, so check the field instead of the decoded value
+            if (!CodecHelper.isValidAt(commandString, 3, CodecHelper.INT_DIGITS)) {
+                return false;
+            }
+            
+            float value = CodecHelper.decodeFloatAt(commandString, 3);
+            long timestamp = CodecHelper.decodeLongAt(commandString, 11);
+            if (timestamp == CodecHelper.INVALID_VALUE) {
+                return false;
+            }
+            
+            result.set(rxMessage.getBoardId(), rxChan, true, 0, value, (int)timestamp);
+        }
+        
+        return true;
+    }
+    
     public List<Integer> evalLastSampleInquiry(AppDataMessage rxMessage, int boardId, int channel) {
         
         if (!rxMessage.matches(boardId, COMMPROTOCOL_LASTSAMPLE)) {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        Integer sample = CodecHelper.decodeShortAt(commandString, 3);
-        if (sample == null)
+        int sample = CodecHelper.decodeShortAt(commandString, 3);
+        if (sample == CodecHelper.INVALID_VALUE)
             return null;
                 
-        Integer timestamp = CodecHelper.decodeIntAt(commandString, 7);
-        if (timestamp == null)
+        long timestamp = CodecHelper.decodeLongAt(commandString, 7);
+        if (timestamp == CodecHelper.INVALID_VALUE)
             return null;
         
         List<Integer> result = new ArrayList<>();
         result.add(sample);
-        result.add(timestamp);
+        result.add((int)timestamp);
         
         return result;
     }
@@ -586,21 +698,22 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        Float sample = CodecHelper.decodeFloatAt(commandString, 3);
-        if (sample == null)
+        if (!CodecHelper.isValidAt(commandString, 3, CodecHelper.INT_DIGITS))
             return null;
         
-        Integer timestamp = CodecHelper.decodeIntAt(commandString, 11);
-        if (timestamp == null) 
+        float sample = CodecHelper.decodeFloatAt(commandString, 3);
+        
+        long timestamp = CodecHelper.decodeLongAt(commandString, 11);
+        if (timestamp == CodecHelper.INVALID_VALUE) 
             return null;
         
-        Pair<Integer, Float> result = new Pair<>(timestamp, sample);
+        Pair<Integer, Float> result = new Pair<>((int)timestamp, sample);
         
         return result;
     }
@@ -612,7 +725,7 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        return CodecHelper.decodeStringAt(rxMessage.getCommandString(), 1);
+        return CodecHelper.decodeStringAt(rxMessage.getCommandData(), 1);
     }
     
     // Returns a string if the rxMessage matches the required command; null otherwise
@@ -622,7 +735,7 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        return CodecHelper.decodeStringAt(rxMessage.getCommandString(), 1);
+        return CodecHelper.decodeStringAt(rxMessage.getCommandData(), 1);
     }
     
     
@@ -633,13 +746,13 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        return CodecHelper.decodeStringAt(rxMessage.getCommandString(), 3);
+        return CodecHelper.decodeStringAt(rxMessage.getCommandData(), 3);
     }
     
     // Returns an Integer if the rxMessage matches the required command and channel; null otherwise
@@ -649,13 +762,18 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
+            return null;
+        }
+        
+        long samplePeriod = CodecHelper.decodeLongAt(commandString, 3);
+        if (samplePeriod == CodecHelper.INVALID_VALUE) {
             return null;
         }
         
-        return CodecHelper.decodeIntAt(commandString, 3);
+        return (int)samplePeriod;
     }
     
     // Returns a string if the rxMessage matches the required command and channel; null otherwise
@@ -665,9 +783,9 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
@@ -683,15 +801,15 @@ public class ShieldProtocolLayer {
         }
         
         List<Integer> result = new ArrayList<>();
-        String commandString = rxMessage.getCommandString();
-        Integer boardType = CodecHelper.decodeShortAt(commandString, 1);
-        if (boardType == null) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int boardType = CodecHelper.decodeShortAt(commandString, 1);
+        if (boardType == CodecHelper.INVALID_VALUE) {
             return null;
         }
         result.add(boardType);
         
-        Integer numChannels = CodecHelper.decodeShortAt(commandString, 5);
-        if (numChannels == null) {
+        int numChannels = CodecHelper.decodeShortAt(commandString, 5);
+        if (numChannels == CodecHelper.INVALID_VALUE) {
             return null;
         }
         
@@ -706,18 +824,23 @@ public class ShieldProtocolLayer {
             return null;
         }
         
-        String commandString = rxMessage.getCommandString();
-        Integer rxChan = CodecHelper.decodeCharAt(commandString, 1);
-        if ((rxChan == null) || (rxChan != channel)) {
+        CharSequence commandString = rxMessage.getCommandData();
+        int rxChan = CodecHelper.decodeCharAt(commandString, 1);
+        if ((rxChan == CodecHelper.INVALID_VALUE) || (rxChan != channel)) {
             return null;
         }
         
-        Integer value = CodecHelper.decodeCharAt(commandString, 3);
-        if (value == null) {
+        int value = CodecHelper.decodeCharAt(commandString, 3);
+        if (value == CodecHelper.INVALID_VALUE) {
             return null;
         }
         
-        return (value.byteValue() != 0)? Boolean.TRUE : Boolean.FALSE;
+        return (value != 0)? Boolean.TRUE : Boolean.FALSE;
+    }
+       
+    // Box a decoded field, mapping decoding errors to null
+    private static Integer validOrNull(int value) {
+        return (value == CodecHelper.INVALID_VALUE)? null : value;
     }
        
     private String renderGenericCmd(char command) {
@@ -729,7 +852,7 @@ public class ShieldProtocolLayer {
         
         StringBuilder sb = new StringBuilder(3);
         sb.append(command);
-        sb.append(CodecHelper.encodeValue((char)channelId));
+        CodecHelper.appendChar(sb, channelId);
         
         return sb.toString();
     }
@@ -738,8 +861,8 @@ public class ShieldProtocolLayer {
         
         StringBuilder sb = new StringBuilder(5);
         sb.append(command);
-        sb.append(CodecHelper.encodeValue((char)channelId));
-        sb.append(CodecHelper.encodeValue(parameter));
+        CodecHelper.appendChar(sb, channelId);
+        CodecHelper.appendChar(sb, parameter);
         
         return sb.toString();
     }
@@ -748,9 +871,9 @@ public class ShieldProtocolLayer {
 
         StringBuilder sb = new StringBuilder(5+(2*parameters.size()));
         sb.append(command);
-        sb.append(CodecHelper.encodeValue((char)channelId));
+        CodecHelper.appendChar(sb, channelId);
         for (int n = 0; n < parameters.size(); n++) {
-            sb.append(CodecHelper.encodeValue((char)parameters.get(n).intValue()));
+            CodecHelper.appendChar(sb, parameters.get(n));
         }
         
         return sb.toString();
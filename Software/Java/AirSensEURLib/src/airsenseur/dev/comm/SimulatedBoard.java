@@ -0,0 +1,367 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.comm;
+
+import airsenseur.dev.helpers.CodecHelper;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Emulates an AirSensEUR shield answering to the ShieldProtocolLayer command set.
+ * Each channel generates a synthetic waveform sampled at the channel sample period.
+ * Sample timestamps are the lower 32 bits of the wall clock (in ms) when the 
+ * sample has been generated, so that clients can evaluate the end to end latency.
+ * @author marco
+ */
+public class SimulatedBoard {
+    
+    public enum boardTypes {
+        CHEM_SHIELD_R3X(ShieldProtocolLayer.CHEM_SHIELD_R3X_TYPE_ID, 10, "CHEM", 
+                        new String[] { "CO-A4", "NO-B4", "NO2-B43F", "OX-A431", "Press", "Ext. Temp", "Ext. Humid", "Int. Temp", "Int. Humid", "Info" },
+                        new String[] { "nA", "nA", "nA", "nA", "hPa", "C", "%", "C", "%", "" }),
+        EXP1(ShieldProtocolLayer.EXP1_SHIELD_R1X_TYPE_ID, 66, "EXP1", 
+                        new String[] { "RD200M", "D300", "PMS5003" }, 
+                        new String[] { "Bq/m3", "ppm", "ug/m3" }),
+        EXP2(ShieldProtocolLayer.EXP2_SHIELD_R1X_TYPE_ID, 30, "EXP2", 
+                        new String[] { "K96" }, 
+                        new String[] { "ppm" }),
+        ENV1(ShieldProtocolLayer.ENV1_SHIELD_R1X_TYPE_ID, 9, "ENV1", 
+                        new String[] { "Audio Fast", "Audio Fast", "Audio Fast", "Audio Slow", "Audio Slow", "Audio Slow", "Temperature", "Humidity", "Light" },
+                        new String[] { "dBA", "dBA", "dBA", "dBA", "dBA", "dBA", "C", "%", "lux" });
+        
+        private final int typeId;
+        private final int numChannels;
+        private final String prefix;
+        private final String[] names;
+        private final String[] units;
+
+        private boardTypes(int typeId, int numChannels, String prefix, String[] names, String[] units) {
+            this.typeId = typeId;
+            this.numChannels = numChannels;
+            this.prefix = prefix;
+            this.names = names;
+            this.units = units;
+        }
+        
+        public int getTypeId() {
+            return typeId;
+        }
+
+        public int getNumChannels() {
+            return numChannels;
+        }
+        
+        private String getName(int channel) {
+            return (channel < names.length)? names[channel] : String.format("%s-%02d", prefix, channel);
+        }
+        
+        private String getUnits(int channel) {
+            return (channel < units.length)? units[channel] : "";
+        }
+    }
+    
+    private final static String FIRMWARE_VERSION = "SIM-1.0.0";
+    private final static int SAMPLE_MIDSCALE = 0x8000;
+    private final static int SAMPLE_AMPLITUDE = 0x3000;
+    private final static int SAMPLE_NOISE = 0x100;
+    private final static double WAVEFORM_PERIOD = 60.0; /* in samples */
+    private final static int DEFAULT_FREE_MEMORY = 0x1000;
+    
+    private final int boardId;
+    private final boardTypes boardType;
+    private String serial;
+    
+    private final String[] sensorNames;
+    private final String[] sensorSerials;
+    private final int[] samplePeriods;
+    private final boolean[] channelEnabled;
+    private final int[] prescalers;
+    private final int[] postscalers;
+    private final int[] decimations;
+    private final int[][] iirDenoms;
+    private final int[][] afeRegisters;
+    private final Map<Long, Integer> genericRegisters = new HashMap<>();
+    
+    private boolean sampling = true;
+    private long stopTime = 0;
+    private final long startTime;
+    
+    public SimulatedBoard(int boardId, boardTypes boardType, int samplePeriod) {
+        
+        this.boardId = boardId;
+        this.boardType = boardType;
+        this.serial = String.format("SIM%s%04d", boardType.prefix, boardId);
+        this.startTime = System.currentTimeMillis();
+        
+        int numChannels = boardType.getNumChannels();
+        sensorNames = new String[numChannels];
+        sensorSerials = new String[numChannels];
+        samplePeriods = new int[numChannels];
+        channelEnabled = new boolean[numChannels];
+        prescalers = new int[numChannels];
+        postscalers = new int[numChannels];
+        decimations = new int[numChannels];
+        iirDenoms = new int[numChannels][2];
+        afeRegisters = new int[numChannels][3];
+        
+        for (int channel = 0; channel < numChannels; channel++) {
+            sensorNames[channel] = boardType.getName(channel);
+            sensorSerials[channel] = String.format("%s-%02d", serial, channel);
+            samplePeriods[channel] = samplePeriod;
+            channelEnabled[channel] = true;
+        }
+    }
+
+    public int getBoardId() {
+        return boardId;
+    }
+
+    public boardTypes getBoardType() {
+        return boardType;
+    }
+    
+    // Evaluate a request and generate the answer. 
+    // Returns null if the board does not answer to the request
+    public synchronized String evaluate(CharSequence request, long now) {
+        
+        if (request.length() < 1) {
+            return null;
+        }
+        
+        char command = request.charAt(0);
+        
+        // Board related commands
+        switch (command) {
+            case 'c':
+                return CodecHelper.appendShort(CodecHelper.appendShort(new StringBuilder("c"), boardType.getTypeId()), boardType.getNumChannels()).toString();
+            case 'Z':
+                return CodecHelper.appendString(new StringBuilder("Z"), FIRMWARE_VERSION).toString();
+            case 'V':
+                return CodecHelper.appendString(new StringBuilder("V"), serial).toString();
+            case 'U':
+                serial = decodeString(request, 1);
+                return CodecHelper.appendString(new StringBuilder("V"), serial).toString();
+            case 'M':
+                return CodecHelper.appendShort(new StringBuilder("M"), DEFAULT_FREE_MEMORY).toString();
+            case 'S':
+                if (!sampling) {
+                    sampling = true;
+                }
+                return request.toString();
+            case 'X':
+                if (sampling) {
+                    sampling = false;
+                    stopTime = now;
+                }
+                return request.toString();
+            case 'E':
+                return request.toString();
+        }
+        
+        // Channel related commands
+        int channel = CodecHelper.decodeCharAt(request, 1);
+        if ((channel == CodecHelper.INVALID_VALUE) || (channel >= boardType.getNumChannels())) {
+            return null;
+        }
+        
+        StringBuilder answer = new StringBuilder(32);
+        switch (command) {
+            case 'G': {
+                long timestamp = getSampleTime(channel, now);
+                CodecHelper.appendChar(answer.append('G'), channel);
+                CodecHelper.appendShort(answer, getSample(channel, timestamp));
+                CodecHelper.appendInt(answer, (int)timestamp);
+            }
+            break;
+                
+            case 'Y': {
+                long timestamp = getSampleTime(channel, now);
+                CodecHelper.appendChar(answer.append('Y'), channel);
+                CodecHelper.appendFloat(answer, (float)getSample(channel, timestamp) / SAMPLE_MIDSCALE);
+                CodecHelper.appendInt(answer, (int)timestamp);
+            }
+            break;
+                
+            case 'I':
+            case 'W': {
+                if (command == 'W') {
+                    sensorNames[channel] = decodeString(request, 3);
+                }
+                CodecHelper.appendChar(answer.append('I'), channel);
+                CodecHelper.appendString(answer, sensorNames[channel]);
+            }
+            break;
+                
+            case 'K':
+            case 'J': {
+                if (command == 'J') {
+                    sensorSerials[channel] = decodeString(request, 3);
+                }
+                CodecHelper.appendChar(answer.append('K'), channel);
+                CodecHelper.appendString(answer, sensorSerials[channel]);
+            }
+            break;
+                
+            case 'a': {
+                CodecHelper.appendChar(answer.append('a'), channel);
+                CodecHelper.appendInt(answer, samplePeriods[channel]);
+            }
+            break;
+                
+            case 'b': {
+                CodecHelper.appendChar(answer.append('b'), channel);
+                CodecHelper.appendString(answer, boardType.getUnits(channel));
+            }
+            break;
+                
+            case 'd':
+            case 'e': {
+                if (command == 'd') {
+                    int value = CodecHelper.decodeCharAt(request, 3);
+                    if (value == CodecHelper.INVALID_VALUE) {
+                        return null;
+                    }
+                    channelEnabled[channel] = (value != 0);
+                }
+                CodecHelper.appendChar(answer.append('e'), channel);
+                CodecHelper.appendChar(answer, channelEnabled[channel]? 1 : 0);
+            }
+            break;
+                
+            case 'P':
+            case 'Q':
+                return evaluateChannelParameter(request, answer.append('Q'), channel, prescalers, command == 'P');
+                
+            case 'O':
+            case 'N':
+                return evaluateChannelParameter(request, answer.append('N'), channel, postscalers, command == 'O');
+                
+            case 'D':
+            case 'F':
+                return evaluateChannelParameter(request, answer.append('F'), channel, decimations, command == 'D');
+                
+            case 'A':
+            case 'B': {
+                if (command == 'A') {
+                    for (int n = 0; n < iirDenoms[channel].length; n++) {
+                        int value = CodecHelper.decodeCharAt(request, 3 + (n * CodecHelper.CHAR_DIGITS));
+                        if (value == CodecHelper.INVALID_VALUE) {
+                            return null;
+                        }
+                        iirDenoms[channel][n] = value;
+                    }
+                }
+                CodecHelper.appendChar(answer.append('B'), channel);
+                for (int value : iirDenoms[channel]) {
+                    CodecHelper.appendChar(answer, value);
+                }
+            }
+            break;
+                
+            case 'R':
+            case 'T': {
+                if (command == 'R') {
+                    for (int n = 0; n < afeRegisters[channel].length; n++) {
+                        int value = CodecHelper.decodeCharAt(request, 3 + (n * CodecHelper.CHAR_DIGITS));
+                        afeRegisters[channel][n] = (value == CodecHelper.INVALID_VALUE)? 0 : value;
+                    }
+                }
+                CodecHelper.appendChar(answer.append('T'), channel);
+                for (int value : afeRegisters[channel]) {
+                    CodecHelper.appendChar(answer, value);
+                }
+            }
+            break;
+                
+            case 'f':
+            case 'g': {
+                if (!CodecHelper.isValidAt(request, 3, CodecHelper.INT_DIGITS) || 
+                        ((command == 'f') && !CodecHelper.isValidAt(request, 11, CodecHelper.INT_DIGITS))) {
+                    return null;
+                }
+                int address = CodecHelper.decodeIntAt(request, 3);
+                long key = ((long)channel << 32) | (address & 0xFFFFFFFFL);
+                if (command == 'f') {
+                    genericRegisters.put(key, CodecHelper.decodeIntAt(request, 11));
+                }
+                Integer value = genericRegisters.get(key);
+                CodecHelper.appendChar(answer.append('g'), channel);
+                CodecHelper.appendInt(answer, address);
+                CodecHelper.appendInt(answer, (value == null)? 0 : value);
+            }
+            break;
+                
+            default:
+                // Unsupported commands are not answered
+                return null;
+        }
+        
+        return answer.toString();
+    }
+    
+    // Generation time of the last sample available on the channel at the specified time
+    private long getSampleTime(int channel, long now) {
+        
+        long sampleTime = (sampling)? now : stopTime;
+        long period = Math.max(samplePeriods[channel], 1);
+        
+        return startTime + (((sampleTime - startTime) / period) * period);
+    }
+    
+    // Synthetic waveform: a sine wave, with a channel dependent phase, plus noise
+    private int getSample(int channel, long timestamp) {
+        
+        long index = (timestamp - startTime) / Math.max(samplePeriods[channel], 1);
+        double sine = Math.sin((2 * Math.PI * (index + (channel * 7))) / WAVEFORM_PERIOD);
+        int noise = (int)(((index * 31) + (channel * 17) + (boardId * 13)) % (2 * SAMPLE_NOISE)) - SAMPLE_NOISE;
+        
+        return SAMPLE_MIDSCALE + (int)(SAMPLE_AMPLITUDE * sine) + noise;
+    }
+    
+    // Decode a string parameter without the zero terminator
+    private static String decodeString(CharSequence request, int start) {
+        
+        String value = CodecHelper.decodeStringAt(request, start);
+        int terminator = value.indexOf('\0');
+        return (terminator < 0)? value : value.substring(0, terminator);
+    }
+    
+    private String evaluateChannelParameter(CharSequence request, StringBuilder answer, int channel, int[] values, boolean write) {
+        
+        if (write) {
+            int value = CodecHelper.decodeCharAt(request, 3);
+            if (value == CodecHelper.INVALID_VALUE) {
+                return null;
+            }
+            values[channel] = value;
+        }
+        
+        CodecHelper.appendChar(answer, channel);
+        CodecHelper.appendChar(answer, values[channel]);
+        
+        return answer.toString();
+    }
+}
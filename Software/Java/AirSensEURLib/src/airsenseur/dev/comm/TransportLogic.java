@@ -34,7 +34,9 @@ public interface TransportLogic extends ChannelDataConsumer {
     // Retrieve the baudrate associated to this protocol
     public int getBaudrate();
 
-    // Evaluate chars incoming from the bus and generate AppDataMessage objects
+    // Evaluate chars incoming from the bus and generate AppDataMessage objects.
+    // Returned messages may be reused by the transport logic, so they're valid
+    // only until the next call
     public AppDataMessage onRxCharReceived(byte value);
     
     // Convert from AppDataMessage objects into CommChannelDataMessage to be sent to the bus
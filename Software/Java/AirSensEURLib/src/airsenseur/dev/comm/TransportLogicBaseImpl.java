@@ -36,10 +36,14 @@ import org.slf4j.LoggerFactory;
  */
 public abstract class TransportLogicBaseImpl extends TaskScheduler implements TransportLogic {
     
+    private final static int READ_BUFFER_LENGTH = 256;
+    
     private final AppDataMessageQueue rxDataQueue;
     private final AppDataMessageQueue txDataQueue;
     private final SensorBus parent;
     private final CommChannel commChannel;
+    private final byte[] readBuffer = new byte[READ_BUFFER_LENGTH];
+    private SensorBusStatistics statistics = null;
     private final Logger log = LoggerFactory.getLogger(TransportLogicBaseImpl.class);
     
     public TransportLogicBaseImpl(AppDataMessageQueue rxDataQueue, AppDataMessageQueue txDataQueue, SensorBus parent, CommChannel commChannel) {
@@ -60,10 +64,14 @@ public abstract class TransportLogicBaseImpl extends TaskScheduler implements Tr
             while (!isShutdown()) {
                 
                 // Take the message
-                AppDataMessage message = getTxDataQueue().take();
+                AppDataMessage message = takeNextTxMessage();
                 
                 // Send through communication channel
-                commChannel.writeMessage(toSerialBusFormat(message));
+                try {
+                    commChannel.writeMessage(toSerialBusFormat(message));
+                } finally {
+                    releaseTxMessage(message);
+                }
             }
         } catch (InterruptedException ex) {
         } catch (IOException io) {
@@ -76,6 +84,38 @@ public abstract class TransportLogicBaseImpl extends TaskScheduler implements Tr
         log.debug("Terminating task " + getTaskName());
     }
 
+    // Extract the next message to be sent through the communication channel.
+    // Transport logics handling multiple outstanding requests may override this 
+    // to select, between the queued messages, the ones that can be sent now
+    protected AppDataMessage takeNextTxMessage() throws InterruptedException {
+        return getTxDataQueue().take();
+    }
+    
+    // Recycle a message returned by takeNextTxMessage when it has been sent
+    protected void releaseTxMessage(AppDataMessage message) {
+        getTxDataQueue().release();
+    }
+    
+    // Returns true if no messages, taken from the tx queue, are waiting to be sent or answered.
+    // Transport logics sending messages as soon as they're available have nothing to wait for
+    public boolean isIdle() {
+        return true;
+    }
+    
+    // Set the maximum number of requests waiting for an answer at the same time.
+    // Transport logics not supporting multiple outstanding requests ignore this
+    public void setRequestWindowSize(int windowSize) {
+    }
+    
+    // Collect performance counters into statistics, if not null
+    public void setStatistics(SensorBusStatistics statistics) {
+        this.statistics = statistics;
+    }
+    
+    public SensorBusStatistics getStatistics() {
+        return statistics;
+    }
+    
     // From TaskScheduler
     @Override
     public String getTaskName() {
@@ -86,21 +126,28 @@ public abstract class TransportLogicBaseImpl extends TaskScheduler implements Tr
     @Override
     public void onDataReceived(InputStream inputStream) throws InterruptedException {
         
-        byte[] readBuffer = new byte[256];
         try {
             int numBytes = inputStream.read(readBuffer);
-            for (int i = 0; i < numBytes; i++) {
-                AppDataMessage dataMessage = onRxCharReceived(readBuffer[i]);
-                if (dataMessage != null) {
-                    getRxDataQueue().put(dataMessage);
-                }
-            }
+            onDataReceived(readBuffer, 0, numBytes);
         } catch (IOException | StringIndexOutOfBoundsException ex) {
             if (getParent() != null) {
                 getParent().reConnectToBus();
             }
         }
     }
+    
+    // From TransportLogic
+    @Override
+    public void onDataReceived(byte[] buffer, int offset, int length) throws InterruptedException {
+        
+        for (int i = offset; i < offset + length; i++) {
+            AppDataMessage dataMessage = onRxCharReceived(buffer[i]);
+            if (dataMessage != null) {
+                getRxDataQueue().claim().copyFrom(dataMessage);
+                getRxDataQueue().publish();
+            }
+        }
+    }
         
     /**
      * (Optional)
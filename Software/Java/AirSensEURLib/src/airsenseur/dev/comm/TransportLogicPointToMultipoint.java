@@ -24,9 +24,12 @@
 
 package airsenseur.dev.comm;
 
+import airsenseur.dev.helpers.CRCHelper;
 import airsenseur.dev.helpers.CodecHelper;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * Implements point to multi-point connections between host and multiple shields
@@ -48,8 +51,13 @@ public class TransportLogicPointToMultipoint extends TransportLogicBaseImpl {
     
     private static final int COMMPROTOCOL_BUFFER_LENGTH = 256;
     
-    private static final int DEFAULT_CRC_INITVALUE = 0xffffffff;
-    private static final int DEFAULT_CRC_POLYNOMIAL = 0x04C11DB7;
+    private static final int COMMPROTOCOL_CRC_LENGTH = CodecHelper.INT_DIGITS;
+    
+    private static final long ANSWER_TIMEOUT = 300; /* in milliseconds */
+    private static final long TXQUEUE_POLL_PERIOD = 10; /* in milliseconds */
+    private static final int MAX_PARKED_MESSAGES = 256;
+    private static final int MAX_BOARD_ID = 0xFF;
+    private static final int NUM_PRIORITIES = AppDataMessage.PRIORITY_INTERACTIVE + 1;
 
     private enum rxStatuses {
         IDLE, HEADER_FOUND, VERSION_FOUND, BOARDID1_FOUND, BOARDID_FOUND,
@@ -58,16 +66,38 @@ public class TransportLogicPointToMultipoint extends TransportLogicBaseImpl {
     private rxStatuses rxStatus = rxStatuses.IDLE;
     private int incomingBoardId = AppDataMessage.BOARD_ID_UNDEFINED;
     
-    private final StringBuilder incomingBuffer = new StringBuilder(COMMPROTOCOL_BUFFER_LENGTH);
+    private final byte[] incomingBuffer = new byte[COMMPROTOCOL_BUFFER_LENGTH];
+    private int incomingLength = 0;
+    private int incomingCRC = CRCHelper.CRC_INITVALUE;
     private final StringBuilder outcomingBuffer = new StringBuilder(COMMPROTOCOL_BUFFER_LENGTH);
     private final char[] boardIdBuffer = { 0x00, 0x00 };
+    private final AppDataMessage rxMessage = new AppDataMessage();
     private final boolean useCRCWhenAvailable;
-    private final Semaphore semaphore = new Semaphore(1);
+    
+    // Requests waiting for an answer and messages waiting for their target board, one lane per priority
+    private final RequestWindow requestWindow = new RequestWindow(ANSWER_TIMEOUT);
+    private final List<ArrayDeque<AppDataMessage>> parkedMessages = new ArrayList<>(NUM_PRIORITIES);
+    private final ArrayDeque<AppDataMessage> freeMessages = new ArrayDeque<>();
+    private volatile int numParkedMessages = 0;
+    
+    // Last request sent to each board, kept for retransmission, and pending retransmissions
+    private final AppDataMessage[] inFlightMessages = new AppDataMessage[MAX_BOARD_ID + 1];
+    private final int[] inFlightRetries = new int[MAX_BOARD_ID + 1];
+    private final AppDataMessage[] retryMessages = new AppDataMessage[MAX_BOARD_ID + 1];
 
     public TransportLogicPointToMultipoint(AppDataMessageQueue rxDataQueue, AppDataMessageQueue txDataQueue, SensorBus parent, CommChannel commChannel, boolean useCRCWhenAvailable) {
         super(rxDataQueue, txDataQueue, parent, commChannel);
         
         this.useCRCWhenAvailable = useCRCWhenAvailable;
+        
+        for (int priority = 0; priority < NUM_PRIORITIES; priority++) {
+            parkedMessages.add(new ArrayDeque<AppDataMessage>());
+        }
+    }
+    
+    // Enable or disable adaptive answer timeouts, retransmissions and back-off of failing boards
+    protected final void setAdaptiveTimeouts(boolean adaptive) {
+        requestWindow.setAdaptive(adaptive);
     }
 
     // From TransportLogic
@@ -87,7 +117,8 @@ public class TransportLogicPointToMultipoint extends TransportLogicBaseImpl {
             case IDLE: {
                 // Searching for an header
                 if (pivotChar == COMMPROTOCOL_PTM_SLAVE_HEADER) {
-                    incomingBuffer.setLength(0);
+                    incomingLength = 0;
+                    incomingCRC = CRCHelper.CRC_INITVALUE;
                     incomingBoardId = AppDataMessage.BOARD_ID_UNDEFINED;
                     rxStatus = rxStatuses.HEADER_FOUND;
                 }
@@ -127,9 +158,9 @@ public class TransportLogicPointToMultipoint extends TransportLogicBaseImpl {
                 if (isValidDigit(pivotChar)) {
                     
                     boardIdBuffer[1] = pivotChar;
-                    Long id = CodecHelper.decodeChars(boardIdBuffer);
-                    if (id != null) {
-                        incomingBoardId = id.intValue();
+                    long id = CodecHelper.decodeHex(boardIdBuffer, 0, CodecHelper.CHAR_DIGITS);
+                    if (id != CodecHelper.INVALID_VALUE) {
+                        incomingBoardId = (int)id;
                         rxStatus = rxStatuses.BOARDID_FOUND;
                     } else {
                         rxStatus = rxStatuses.IDLE;
@@ -146,40 +177,52 @@ public class TransportLogicPointToMultipoint extends TransportLogicBaseImpl {
                     
                     // End of frame found. Evaluate it.
                     boolean packetValid = true;
-                    String incomingMessage = incomingBuffer.toString();
+                    int payloadLength = incomingLength;
                     
-                    // Check for CRC-32 on incoming packet to validate the command
+                    // Check for CRC-32 on incoming packet to validate the command.
+                    // CRC-32 is on the last 8 bytes and the payload CRC has been 
+                    // already evaluated while receiving
                     if (useCRCWhenAvailable) {
-                        
-                        // CRC-32 is on the last 8 bytes. Evaluated it
-                        String strRxCRC = incomingMessage.substring(incomingMessage.length()-8);
-                        incomingMessage = incomingMessage.substring(0, incomingMessage.length()-8);                        
-                        packetValid = checkCRC(incomingMessage, strRxCRC);
+                        payloadLength = incomingLength - COMMPROTOCOL_CRC_LENGTH;
+                        packetValid = (payloadLength >= 0) && checkCRC(payloadLength);
                     }
                     
-                    if (packetValid) {
+                    if (!packetValid) {
                         
-                        // Signal to the sender engine that the bus is not busy anymore
-                        semaphore.drainPermits();
-                        semaphore.release();
+                        // Corrupted frame. Its request will time out
+                        rxStatus = rxStatuses.IDLE;
+                        if (getStatistics() != null) {
+                            getStatistics().onCrcError(incomingBoardId);
+                        }
+                    } else {
+                        
+                        // Signal to the sender engine that the board is not busy anymore
+                        requestWindow.answered(incomingBoardId);
 
-                        // Generate a datamessage with incoming string
+                        // Generate a datamessage with incoming data
                         rxStatus = rxStatuses.IDLE;
-                        return new AppDataMessage(incomingBoardId, incomingMessage);
+                        rxMessage.setFrame(incomingBoardId, incomingBuffer, 0, payloadLength);
+                        return rxMessage;
                     }
                     
                 } else if (pivotChar == COMMPROTOCOL_PTM_SLAVE_HEADER) {
                     // ... We found an header again... discard all
                     rxStatus = rxStatuses.IDLE;
+                    onFramingError();
                 } else {
                     
                     // Handle buffer overflows
-                    if (incomingBuffer.length() == COMMPROTOCOL_BUFFER_LENGTH) {
+                    if (incomingLength == COMMPROTOCOL_BUFFER_LENGTH) {
                         rxStatus = rxStatuses.IDLE;
+                        onFramingError();
                     } else {
                     
-                        // Collecting payload
-                        incomingBuffer.append(pivotChar);
+                        // Collecting payload. We don't know where the payload ends
+                        // so the CRC is updated with the byte received 8 bytes ago
+                        if (useCRCWhenAvailable && (incomingLength >= COMMPROTOCOL_CRC_LENGTH)) {
+                            incomingCRC = CRCHelper.update(incomingCRC, incomingBuffer[incomingLength - COMMPROTOCOL_CRC_LENGTH]);
+                        }
+                        incomingBuffer[incomingLength++] = value;
                     }
                 }
             }
@@ -195,29 +238,242 @@ public class TransportLogicPointToMultipoint extends TransportLogicBaseImpl {
         throw new UnsupportedOperationException("onDataReceived it's not supposed to be available on TransportLogicPointToMultipoint");
     }
 
-    // From TransportLogic
+    // From TransportLogicBaseImpl
     @Override
-    public CommChannelDataMessage toSerialBusFormat(AppDataMessage dataMessage) {
+    public void setRequestWindowSize(int windowSize) {
+        requestWindow.setWindowSize(windowSize);
+    }
+    
+    // From TransportLogicBaseImpl
+    @Override
+    public void setStatistics(SensorBusStatistics statistics) {
+        super.setStatistics(statistics);
+        requestWindow.setStatistics(statistics);
+    }
+    
+    // From TaskScheduler
+    @Override
+    public void taskMain() {
+        
+        // Forget anything left by a previous connection
+        for (ArrayDeque<AppDataMessage> lane:parkedMessages) {
+            freeMessages.addAll(lane);
+            lane.clear();
+        }
+        numParkedMessages = 0;
+        for (int boardId = 0; boardId < inFlightMessages.length; boardId++) {
+            if (inFlightMessages[boardId] != null) {
+                freeMessages.add(inFlightMessages[boardId]);
+                inFlightMessages[boardId] = null;
+            }
+            retryMessages[boardId] = null;
+        }
+        requestWindow.clear();
+        
+        super.taskMain();
+    }
+    
+    // From TransportLogicBaseImpl
+    // Before sending a new packet we must ensure that we're not waiting for 
+    // an answer from the same board and that the request window is not full.
+    // Messages for busy boards are parked, in order, until their board is available
+    // so that a slow or missing board does not stall the others. Interactive messages
+    // are sent before configuration ones, and both before sampling polls. 
+    // The answer timeout prevents deadlocks if no answer is received from the other side of the bus.
+    // Timeouts adapt to each board round trip time. Expired sampling polls to boards known to answer
+    // are retransmitted once, while sampling polls to boards in back-off are discarded. 
+    // Other requests are never retransmitted, since they may not be idempotent, nor discarded.
+    @Override
+    protected AppDataMessage takeNextTxMessage() throws InterruptedException {
+        
+        while (true) {
+            
+            // Collect all messages coming from the application layer.
+            // Don't block while requests are outstanding, so expired ones can be retransmitted
+            if ((numParkedMessages == 0) && (requestWindow.getOutstanding() == 0) && !requestWindow.hasExpired()) {
+                parkMessage(getTxDataQueue().take());
+            }
+            while (numParkedMessages < MAX_PARKED_MESSAGES) {
+                AppDataMessage message = getTxDataQueue().poll();
+                if (message == null) {
+                    break;
+                }
+                parkMessage(message);
+            }
+            
+            if (getStatistics() != null) {
+                getStatistics().onTxParkedMessages(numParkedMessages);
+            }
+            
+            // Send the oldest message that can be sent now, if any
+            requestWindow.expire();
+            handleExpiredRequests();
+            AppDataMessage message = selectSendableMessage();
+            if (message != null) {
+                int boardId = message.getBoardId();
+                boolean retransmission = (boardId <= MAX_BOARD_ID) && (message == retryMessages[boardId]);
+                if (retransmission) {
+                    retryMessages[boardId] = null;
+                } else if (boardId <= MAX_BOARD_ID) {
+                    inFlightRetries[boardId] = 0;
+                }
+                requestWindow.sent(boardId, retransmission, message.getPriority() == AppDataMessage.PRIORITY_SAMPLING);
+                updateParkedMessages();
+                return message;
+            }
+            
+            // Wait for an answer, a timeout or new messages to be queued
+            requestWindow.await(TXQUEUE_POLL_PERIOD);
+        }
+    }
+    
+    // From TransportLogicBaseImpl
+    // Sent messages are kept until the next request to the same board, 
+    // so they can be retransmitted if no answer is received
+    @Override
+    protected void releaseTxMessage(AppDataMessage message) {
+        
+        int boardId = message.getBoardId();
+        if ((boardId < 0) || (boardId >= AppDataMessage.BOARD_ID_UNDEFINED)) {
+            freeMessages.add(message);
+            return;
+        }
+        
+        if (inFlightMessages[boardId] != null) {
+            freeMessages.add(inFlightMessages[boardId]);
+        }
+        inFlightMessages[boardId] = message;
+    }
+    
+    // From TransportLogicBaseImpl
+    // Messages taken from the tx queue are counted as parked before releasing their slot
+    // and requests are counted as outstanding before leaving the parked list, 
+    // so that a message in transit is never missed
+    @Override
+    public boolean isIdle() {
+        return (numParkedMessages == 0) && (requestWindow.getOutstanding() == 0) && !requestWindow.hasExpired();
+    }
+    
+    // Retransmit expired sampling polls, when worth it, before anything else for the same board.
+    // Other requests (i.e. raw or write commands) may have been executed even if the answer
+    // has been lost, so they're never retransmitted
+    private void handleExpiredRequests() {
+        
+        int boardId;
+        while ((boardId = requestWindow.takeExpired()) >= 0) {
+            
+            AppDataMessage message = inFlightMessages[boardId];
+            if (message == null) {
+                continue;
+            }
+            inFlightMessages[boardId] = null;
+            
+            if ((message.getPriority() == AppDataMessage.PRIORITY_SAMPLING) && 
+                    requestWindow.shouldRetry(boardId, inFlightRetries[boardId])) {
+                inFlightRetries[boardId]++;
+                retryMessages[boardId] = message;
+                parkedMessages.get(AppDataMessage.PRIORITY_INTERACTIVE).addFirst(message);
+                updateParkedMessages();
+            } else {
+                freeMessages.add(message);
+            }
+        }
+    }
+    
+    // Copy the message into a local container and release the queue slot.
+    // Sampling polls already waiting for the same board and channel are not duplicated
+    private void parkMessage(AppDataMessage message) {
         
-        // Before sending a new packet we must ensure that we're not 
-        // waiting for an answer. The timeout prevents deadlocks if no answer
-        // has been received from the other side of the bus
-        try {
-            boolean acquired = semaphore.tryAcquire(300, TimeUnit.MILLISECONDS);
-            if (!acquired) {
-                // Timeout occurred. This means there is nobody able to answer
-                // to the previous packet
-                // TBD: Notify parent or log this event
-                SensorBus parent = getParent();
+        ArrayDeque<AppDataMessage> lane = parkedMessages.get(toLane(message.getPriority()));
+        if ((message.getPriority() == AppDataMessage.PRIORITY_SAMPLING) && isParked(lane, message)) {
+            getTxDataQueue().release();
+            
+            if (getStatistics() != null) {
+                getStatistics().onRequestCoalesced(message.getBoardId());
             }
-        } catch (InterruptedException ex) {
+            return;
+        }
+        
+        AppDataMessage parked = freeMessages.poll();
+        if (parked == null) {
+            parked = new AppDataMessage();
+        }
+        parked.copyFrom(message);
+        lane.add(parked);
+        updateParkedMessages();
+        
+        getTxDataQueue().release();
+    }
+    
+    private boolean isParked(ArrayDeque<AppDataMessage> lane, AppDataMessage message) {
+        
+        for (AppDataMessage parked:lane) {
+            if ((parked.getBoardId() == message.getBoardId()) && parked.getCommandString().contentEquals(message.getCommandData())) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private int toLane(int priority) {
+        return Math.max(0, Math.min(NUM_PRIORITIES - 1, priority));
+    }
+    
+    private void updateParkedMessages() {
+        
+        int parked = 0;
+        for (ArrayDeque<AppDataMessage> lane:parkedMessages) {
+            parked += lane.size();
         }
+        numParkedMessages = parked;
+    }
+    
+    // Higher priority lanes are evaluated first
+    private AppDataMessage selectSendableMessage() {
+        
+        for (int priority = NUM_PRIORITIES - 1; priority >= 0; priority--) {
+            
+            Iterator<AppDataMessage> iterator = parkedMessages.get(priority).iterator();
+            while (iterator.hasNext()) {
+
+                AppDataMessage message = iterator.next();
+
+                // Boards not answering are polled only from time to time. 
+                // Other requests are still sent and act as probes
+                if ((message.getPriority() == AppDataMessage.PRIORITY_SAMPLING) && 
+                        requestWindow.isBackingOff(message.getBoardId())) {
+                    iterator.remove();
+                    updateParkedMessages();
+                    discardMessage(message);
+                    continue;
+                }
+
+                if (requestWindow.canSend(message.getBoardId())) {
+                    iterator.remove();
+                    return message;
+                }
+
+                // Messages not associated to a specific board can't be overtaken 
+                // by messages with the same or lower priority
+                if (message.getBoardId() == AppDataMessage.BOARD_ID_UNDEFINED) {
+                    return null;
+                }
+            }
+        }
+        
+        return null;
+    }
+
+    // From TransportLogic
+    @Override
+    public CommChannelDataMessage toSerialBusFormat(AppDataMessage dataMessage) {
         
         // Generate the output string
         outcomingBuffer.setLength(0);
         outcomingBuffer.append(COMMPROTOCOL_PTM_HOST_HEADER);
         outcomingBuffer.append(getProtocolVersion());
-        outcomingBuffer.append(CodecHelper.encodeValue((char)dataMessage.getBoardId()));
+        CodecHelper.appendChar(outcomingBuffer, dataMessage.getBoardId());
         outcomingBuffer.append(dataMessage.getCommandString());
         outcomingBuffer.append(COMMPROTOCOL_PTM_HOST_TRAILER);
         
@@ -230,38 +486,38 @@ public class TransportLogicPointToMultipoint extends TransportLogicBaseImpl {
         return (useCRCWhenAvailable)? COMMPROTOCOL_PTM_VERSION_ONE : COMMPROTOCOL_PTM_VERSION_ZERO;
     }
     
+    private void discardMessage(AppDataMessage message) {
+        
+        int boardId = message.getBoardId();
+        if ((boardId <= MAX_BOARD_ID) && (message == retryMessages[boardId])) {
+            retryMessages[boardId] = null;
+        }
+        freeMessages.add(message);
+        
+        if (getStatistics() != null) {
+            getStatistics().onRequestDiscarded(boardId);
+        }
+    }
+    
+    private void onFramingError() {
+        if (getStatistics() != null) {
+            getStatistics().onFramingError();
+        }
+    }
+    
     private boolean isValidDigit(char pivot) {
         return (((pivot >= 'A') && (pivot <= 'F')) || 
                 ((pivot >= '0') && (pivot <= '9')) ||
                 ((pivot >= 'a') && (pivot <= 'f')) );
     }
     
-    private boolean checkCRC(String buffer, String rxCRC) {
+    private boolean checkCRC(int payloadLength) {
         
-        // Calculate the CRC for the incoming string
-        byte bytes[] = buffer.getBytes();
-        int countCRC = DEFAULT_CRC_INITVALUE;
-
-        for(int j=0; j<bytes.length; j++) {
-            
-            countCRC ^= bytes[j] << 24;
-            for (byte i = 0; i < 8; ++i)
-            {
-                if ( (countCRC & 0x80000000) != 0) {
-                    
-                    countCRC = (countCRC << 1) ^ DEFAULT_CRC_POLYNOMIAL;
-                } else {
-                    
-                    countCRC <<= 1;
-                }
-            }
-        }
-
         // Decode the CRC from ASCII format
-        Long lRxCRC = CodecHelper.decodeLongAt(rxCRC, 0);
+        long lRxCRC = CodecHelper.decodeLongAt(incomingBuffer, payloadLength);
         
         // Compare and return
-        return lRxCRC.intValue() == countCRC;
+        return (lRxCRC != CodecHelper.INVALID_VALUE) && ((int)lRxCRC == incomingCRC);
     }
         
 }
@@ -292,6 +548,8 @@ public class TransportLogicPointToMultipoint extends TransportLogicBaseImpl {
  * NOTES: 
  * 1: frames sent by the host are "echoed" back by the single wire bus so they should be skipped by the rx engine
  * 2: single wire bus is half-duplex by design and, for this reason, the host should wait for slave answer (or timeout) before transmitting next frame
+ *    to the same slave. When the request window is greater than one, frames to different slaves can be 
+ *    sent while previous answers are still pending; answers are matched back by slave Id
  * 3: there is not any error detection/correction procedure implemented, so, transmitted and/or received frames can be lost
  * 
  * Addendum to Protocol Version 1
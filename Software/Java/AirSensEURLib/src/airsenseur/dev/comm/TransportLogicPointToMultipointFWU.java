@@ -34,6 +34,9 @@ public class TransportLogicPointToMultipointFWU extends TransportLogicPointToMul
 
     public TransportLogicPointToMultipointFWU(AppDataMessageQueue rxDataQueue, AppDataMessageQueue txDataQueue, SensorBus parent, CommChannel commChannel, boolean useCRCWhenAvailable) {
         super(rxDataQueue, txDataQueue, parent, commChannel, useCRCWhenAvailable);
+        
+        // Firmware frames are never retransmitted or discarded by the transport
+        setAdaptiveTimeouts(false);
     }
 
     @Override
@@ -0,0 +1,69 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.helpers;
+
+/**
+ * Table driven CRC-32 as used by the SensorBus protocol (polynomial 0x04C11DB7, 
+ * MSB first, initial value 0xFFFFFFFF, no final xor).
+ * The CRC can be evaluated incrementally, one byte at time, as bytes are received.
+ * @author marco
+ */
+public class CRCHelper {
+    
+    public final static int CRC_INITVALUE = 0xffffffff;
+    public final static int CRC_POLYNOMIAL = 0x04C11DB7;
+    
+    private final static int[] crcTable = new int[256];
+    
+    static {
+        for (int n = 0; n < crcTable.length; n++) {
+            int crc = n << 24;
+            for (int i = 0; i < 8; i++) {
+                if ((crc & 0x80000000) != 0) {
+                    crc = (crc << 1) ^ CRC_POLYNOMIAL;
+                } else {
+                    crc <<= 1;
+                }
+            }
+            crcTable[n] = crc;
+        }
+    }
+    
+    // Update the CRC with a new byte
+    public static int update(int crc, byte value) {
+        return (crc << 8) ^ crcTable[((crc >>> 24) ^ value) & 0xFF];
+    }
+    
+    // Evaluate the CRC on a portion of a byte array
+    public static int compute(byte[] buffer, int offset, int length) {
+        
+        int crc = CRC_INITVALUE;
+        for (int n = offset; n < offset + length; n++) {
+            crc = update(crc, buffer[n]);
+        }
+        
+        return crc;
+    }
+}
@@ -24,238 +24,286 @@
 
 package airsenseur.dev.helpers;
 
-import java.nio.BufferUnderflowException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-
 /**
- *
+ * Hex ASCII codec used by the SensorBus protocol.
+ * All encoders write directly into caller supplied buffers and all decoders
+ * return primitive values, so that no garbage is generated on the hot path.
+ * Decoders signal malformed or truncated fields with INVALID_VALUE 
+ * (Float.NaN for floating point fields).
  * @author marco
  */
 public class CodecHelper {
     
-    public final static void main(String[] args) {
-        
-        long startTime = System.currentTimeMillis();
-
-        String dataIn = "00AB8932004500";
-        for (long i = 1; i < 100000000; i++) {
-            String result = decodeStringAt(dataIn, 3);
-        }
-
-        long endTime = System.currentTimeMillis();
-
-        System.out.println("That took " + (endTime - startTime) + " milliseconds");        
-    }
+    public final static int INVALID_VALUE = -1;
+    
+    public final static int CHAR_DIGITS = 2;
+    public final static int SHORT_DIGITS = 4;
+    public final static int INT_DIGITS = 8;
+    public final static int LONG_DIGITS = 16;
     
     private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
+    private final static byte[] hexBytes = { '0', '1', '2', '3', '4', '5', '6', '7', 
+                                             '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
     
-    public static char[] encodeValue(char value) {
-        
-        try {
-            char[] result = { hexArray[value >>> 4], hexArray[value & 0x0F] };
-            return result;
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            System.err.println("Out of bound on received char " + value);
-            char[] result = { 0, 0 };
-            return result;
-        }
+    // Encode 8 bit value. Returns the offset following the last written digit
+    public static int encodeChar(char[] buffer, int offset, int value) {
+        buffer[offset] = hexArray[(value >>> 4) & 0x0F];
+        buffer[offset+1] = hexArray[value & 0x0F];
+        return offset + CHAR_DIGITS;
     }
-        
-    public static char[] encodeValue(short value) {
-        
-        try {
-            char[] result = { hexArray[(value >>> 12) & 0x0F], hexArray[(value >>> 8) & 0x0F], 
-                                hexArray[(value >>> 4) & 0x0F], hexArray[value & 0x0F] }; 
-            return result;
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            System.err.println("Out of bound on received char " + value);
-            char[] result = { 0, 0 };
-            return result;
-        }
+    
+    public static int encodeChar(byte[] buffer, int offset, int value) {
+        buffer[offset] = hexBytes[(value >>> 4) & 0x0F];
+        buffer[offset+1] = hexBytes[value & 0x0F];
+        return offset + CHAR_DIGITS;
+    }
+    
+    // Encode 16 bit value
+    public static int encodeShort(char[] buffer, int offset, int value) {
+        return encodeHex(buffer, offset, value & 0xFFFFL, SHORT_DIGITS);
+    }
+    
+    public static int encodeShort(byte[] buffer, int offset, int value) {
+        return encodeHex(buffer, offset, value & 0xFFFFL, SHORT_DIGITS);
     }
     
     // Encode 32 bit value
-    public static char[] encodeValue(int value) {
-        try {
-    
-            short MSB = (short)((value >>> 16) & 0xFFFF);
-            short LSB = (short)(value & 0xFFFF);
-            
-            StringBuilder sb = new StringBuilder();
-            sb.append(encodeValue(MSB)).append(encodeValue(LSB));
-            return sb.toString().toCharArray();
-            
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            System.err.println("Out of bound on received char " + value);
-            char[] result = { 0, 0 };
-            return result;
-        }        
+    public static int encodeInt(char[] buffer, int offset, int value) {
+        return encodeHex(buffer, offset, value & 0xFFFFFFFFL, INT_DIGITS);
+    }
+    
+    public static int encodeInt(byte[] buffer, int offset, int value) {
+        return encodeHex(buffer, offset, value & 0xFFFFFFFFL, INT_DIGITS);
     }
     
     // Encode 64 bit value
-    public static char[] encodeValue(long value) {
-        try {
-    
-            short MSBH = (short)((value >>> 48) & 0xFFFF);
-            short MSBL = (short)((value >>> 32) & 0xFFFF);
-            short LSBH = (short)((value >>> 16) & 0xFFFF);
-            short LSBL = (short)(value & 0xFFFF);
-            
-            StringBuilder sb = new StringBuilder();
-            sb.append(encodeValue(MSBH)).append(encodeValue(MSBL)).append(encodeValue(LSBH)).append(encodeValue(LSBL));
-            return sb.toString().toCharArray();
-            
-        } catch (ArrayIndexOutOfBoundsException ex) {
-            System.err.println("Out of bound on received char " + value);
-            char[] result = { 0, 0 };
-            return result;
+    public static int encodeLong(char[] buffer, int offset, long value) {
+        return encodeHex(buffer, offset, value, LONG_DIGITS);
+    }
+    
+    public static int encodeLong(byte[] buffer, int offset, long value) {
+        return encodeHex(buffer, offset, value, LONG_DIGITS);
+    }
+    
+    public static int encodeFloat(char[] buffer, int offset, float value) {
+        return encodeInt(buffer, offset, Float.floatToIntBits(value));
+    }
+    
+    public static int encodeFloat(byte[] buffer, int offset, float value) {
+        return encodeInt(buffer, offset, Float.floatToIntBits(value));
+    }
+    
+    public static int encodeDouble(char[] buffer, int offset, double value) {
+        return encodeLong(buffer, offset, Double.doubleToLongBits(value));
+    }
+    
+    public static int encodeDouble(byte[] buffer, int offset, double value) {
+        return encodeLong(buffer, offset, Double.doubleToLongBits(value));
+    }
+    
+    // Encode the "digits" less significant nibbles of value, MSB first
+    public static int encodeHex(char[] buffer, int offset, long value, int digits) {
+        for (int n = digits - 1; n >= 0; n--) {
+            buffer[offset + n] = hexArray[(int)(value & 0x0F)];
+            value >>>= 4;
         }
+        return offset + digits;
     }
     
-    public static char[] encodeValue(float value) {
-        
-        return encodeValue(Float.floatToIntBits(value));
+    public static int encodeHex(byte[] buffer, int offset, long value, int digits) {
+        for (int n = digits - 1; n >= 0; n--) {
+            buffer[offset + n] = hexBytes[(int)(value & 0x0F)];
+            value >>>= 4;
+        }
+        return offset + digits;
     }
     
-    public static char[] encodeValue(double value) {
-        return encodeValue(Double.doubleToLongBits(value));
+    // Append variants. StringBuilder does not allocate while its capacity is sufficient
+    public static StringBuilder appendChar(StringBuilder sb, int value) {
+        return sb.append(hexArray[(value >>> 4) & 0x0F]).append(hexArray[value & 0x0F]);
     }
     
-    public static String encodeString(String value) {
-        
-        // Strip out unprintable chars
-        value = value.replaceAll("[^\\x00-\\x7F]", "");
-        
-        StringBuilder sb = new StringBuilder((value.length()+1)*2);
-        
+    public static StringBuilder appendShort(StringBuilder sb, int value) {
+        return appendHex(sb, value & 0xFFFFL, SHORT_DIGITS);
+    }
+    
+    public static StringBuilder appendInt(StringBuilder sb, int value) {
+        return appendHex(sb, value & 0xFFFFFFFFL, INT_DIGITS);
+    }
+    
+    public static StringBuilder appendLong(StringBuilder sb, long value) {
+        return appendHex(sb, value, LONG_DIGITS);
+    }
+    
+    public static StringBuilder appendFloat(StringBuilder sb, float value) {
+        return appendInt(sb, Float.floatToIntBits(value));
+    }
+    
+    public static StringBuilder appendDouble(StringBuilder sb, double value) {
+        return appendLong(sb, Double.doubleToLongBits(value));
+    }
+    
+    public static StringBuilder appendHex(StringBuilder sb, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(hexArray[(int)((value >>> shift) & 0x0F)]);
+        }
+        return sb;
+    }
+    
+    // Append a zero terminated string. Non ASCII chars are stripped out
+    public static StringBuilder appendString(StringBuilder sb, CharSequence value) {
         for (int n = 0; n < value.length(); n++) {
-            sb.append(encodeValue(value.charAt(n)));
+            char pivot = value.charAt(n);
+            if (pivot <= 0x7F) {
+                appendChar(sb, pivot);
+            }
         }
-        
-        sb.append(encodeValue((char)0x00));
-        
-        return sb.toString();
-    }    
+        return appendChar(sb, 0x00);
+    }
     
-    public static Integer decodeChar(StringBuilder buffer) {
+    public static String encodeString(String value) {
         
-        try {
-            return Integer.valueOf(buffer.toString(), 16);
-        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
-            return null;
+        StringBuilder sb = new StringBuilder((value.length()+1)*2);
+        return appendString(sb, value).toString();
+    }
+    
+    // Returns the nibble value of an hex digit or INVALID_VALUE
+    public static int decodeDigit(int digit) {
+        if ((digit >= '0') && (digit <= '9')) {
+            return digit - '0';
+        } else if ((digit >= 'A') && (digit <= 'F')) {
+            return (digit - 'A') + 10;
+        } else if ((digit >= 'a') && (digit <= 'f')) {
+            return (digit - 'a') + 10;
         }
+        return INVALID_VALUE;
     }
     
-    public static Integer decodeCharAt(String buffer, int start) {
-        
-        char[] data = { 0, 0 };
+    // Decode up to 15 hex digits. Returns INVALID_VALUE on malformed or truncated fields
+    public static long decodeHex(CharSequence buffer, int start, int digits) {
         
-        buffer.getChars(start, start+2, data, 0);
+        if ((start < 0) || ((start + digits) > buffer.length())) {
+            return INVALID_VALUE;
+        }
         
-        Long result = decodeChars(data);
-        return (result == null)? null : result.intValue();
+        long result = 0;
+        for (int i = start; i < start + digits; i++) {
+            int nibble = decodeDigit(buffer.charAt(i));
+            if (nibble < 0) {
+                return INVALID_VALUE;
+            }
+            result = (result << 4) | nibble;
+        }
+        return result;
     }
     
-    public static Integer decodeShortAt(String buffer, int start) {
+    public static long decodeHex(char[] buffer, int start, int digits) {
         
-        char[] data = { 0, 0, 0, 0 };
-        
-        buffer.getChars(start, start+4, data, 0);
+        if ((start < 0) || ((start + digits) > buffer.length)) {
+            return INVALID_VALUE;
+        }
         
-        Long result = decodeChars(data);
-        return (result == null)? null : result.intValue();
+        long result = 0;
+        for (int i = start; i < start + digits; i++) {
+            int nibble = decodeDigit(buffer[i]);
+            if (nibble < 0) {
+                return INVALID_VALUE;
+            }
+            result = (result << 4) | nibble;
+        }
+        return result;
     }
     
-    public static Long decodeLongAt(String buffer, int start) {
-        char[] data = { 0, 0, 0, 0, 0, 0, 0, 0 };
+    public static long decodeHex(byte[] buffer, int start, int digits) {
         
-        buffer.getChars(start, start+8, data, 0);
+        if ((start < 0) || ((start + digits) > buffer.length)) {
+            return INVALID_VALUE;
+        }
         
-        return decodeChars(data);
+        long result = 0;
+        for (int i = start; i < start + digits; i++) {
+            int nibble = decodeDigit(buffer[i]);
+            if (nibble < 0) {
+                return INVALID_VALUE;
+            }
+            result = (result << 4) | nibble;
+        }
+        return result;
     }
     
-    public static Float decodeFloatAt(String buffer, int start) {
-        
-        try {
-            char[] inBuffer = new char[8];
-            
-            buffer.getChars(start, start+8, inBuffer, 0);
-            
-            byte[] bytes = {
-                    decodeChars(inBuffer, 0, 2).byteValue(),
-                    decodeChars(inBuffer, 2, 2).byteValue(),
-                    decodeChars(inBuffer, 4, 2).byteValue(),
-                    decodeChars(inBuffer, 6, 2).byteValue(),
-            };
-
-            float f = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).getFloat();
-            
-            return f;
-            
-        } catch (NullPointerException | StringIndexOutOfBoundsException | BufferUnderflowException e ) {
-            return null;
-        }
+    // Decode an unsigned 8 bit field; INVALID_VALUE on errors
+    public static int decodeCharAt(CharSequence buffer, int start) {
+        return (int)decodeHex(buffer, start, CHAR_DIGITS);
     }
     
-    public static Integer decodeIntAt(String buffer, int start) {
-        
-        char[] inBuffer = new char[8];
-
-        buffer.getChars(start, start+8, inBuffer, 0);
-        return decodeChars(inBuffer).intValue();
+    public static int decodeCharAt(byte[] buffer, int start) {
+        return (int)decodeHex(buffer, start, CHAR_DIGITS);
+    }
+    
+    // Decode an unsigned 16 bit field; INVALID_VALUE on errors
+    public static int decodeShortAt(CharSequence buffer, int start) {
+        return (int)decodeHex(buffer, start, SHORT_DIGITS);
+    }
+    
+    public static int decodeShortAt(byte[] buffer, int start) {
+        return (int)decodeHex(buffer, start, SHORT_DIGITS);
+    }
+    
+    // Decode an unsigned 32 bit field; INVALID_VALUE on errors
+    public static long decodeLongAt(CharSequence buffer, int start) {
+        return decodeHex(buffer, start, INT_DIGITS);
+    }
+    
+    public static long decodeLongAt(byte[] buffer, int start) {
+        return decodeHex(buffer, start, INT_DIGITS);
+    }
+    
+    // Decode a 32 bit field; INVALID_VALUE on errors. It is a legal value too,
+    // so callers should check the field with isValidAt before decoding it
+    public static int decodeIntAt(CharSequence buffer, int start) {
+        return (int)decodeHex(buffer, start, INT_DIGITS);
+    }
+    
+    public static int decodeIntAt(byte[] buffer, int start) {
+        return (int)decodeHex(buffer, start, INT_DIGITS);
+    }
+    
+    // Decode a 32 bit IEEE754 big endian field; Float.NaN on errors. It is a legal value
+    // too, so callers should check the field with isValidAt before decoding it
+    public static float decodeFloatAt(CharSequence buffer, int start) {
+        long bits = decodeHex(buffer, start, INT_DIGITS);
+        return (bits == INVALID_VALUE)? Float.NaN : Float.intBitsToFloat((int)bits);
+    }
+    
+    public static float decodeFloatAt(byte[] buffer, int start) {
+        long bits = decodeHex(buffer, start, INT_DIGITS);
+        return (bits == INVALID_VALUE)? Float.NaN : Float.intBitsToFloat((int)bits);
+    }
+    
+    // Returns true if the buffer contains "digits" valid hex digits starting at start
+    public static boolean isValidAt(CharSequence buffer, int start, int digits) {
+        return decodeHex(buffer, start, digits) != INVALID_VALUE;
     }
     
-    public static String decodeStringAt(String buffer, int start) {
+    // Decode a zero terminated string appending chars to the caller supplied StringBuilder.
+    // The terminator, when found, is appended too (this is what clients always received)
+    public static StringBuilder decodeStringAt(CharSequence buffer, int start, StringBuilder sb) {
         
-        Long rxChar;
-        char[] inBuffer = new char[buffer.length()];
-        buffer.getChars(start, inBuffer.length, inBuffer, start);
-        StringBuilder sb = new StringBuilder(buffer.length()/2);
+        int rxChar;
         do {
-            rxChar = decodeChars(inBuffer, start, 2);
-            if (rxChar != null) {
-                sb.append((char)rxChar.byteValue());
+            rxChar = decodeCharAt(buffer, start);
+            if (rxChar != INVALID_VALUE) {
+                sb.append((char)(byte)rxChar);
             }
-            start = start+2;
-        } while ((start < buffer.length()) && (rxChar != null) && (rxChar != '\0'));
+            start = start + CHAR_DIGITS;
+        } while ((start < buffer.length()) && (rxChar != INVALID_VALUE) && (rxChar != '\0'));
         
-        return sb.toString();
-    }        
+        return sb;
+    }
     
-    public static Long decodeChars(char[] data) {
-        long result = 0;
-        
-        for (int i = 0; i < data.length; i++) {
-            result <<= 4;
-            if ((data[i] >= 'A') && (data[i] <='F')) {
-                result += ((data[i] - 'A') + 10);
-            } else if ((data[i] >= '0') && (data[i] <='9')) {
-                result += (data[i] - '0');
-            } else if ((data[i] >= 'a') && (data[i] <='f')) {
-                result += ((data[i] - 'a') + 10);
-            } else {
-                return null;
-            }
-        }
-        return result;
-    }    
-
-    public static Long decodeChars(char[] data, int start, int length) {
-        long result = 0;
+    public static String decodeStringAt(CharSequence buffer, int start) {
         
-        for (int i = start; i < start+length; i++) {
-            result <<= 4;
-            if ((data[i] >= 'A') && (data[i] <='F')) {
-                result += ((data[i] - 'A') + 10);
-            } else if ((data[i] >= 'a') && (data[i] <='f')) {
-                result += ((data[i] - 'a') + 10);
-            } else if ((data[i] >= '0') && (data[i] <='9')) {
-                result += (data[i] - '0');
-            } else {
-                return null;
-            }
-        }
-        return result;        
-    }    
+        StringBuilder sb = new StringBuilder(Math.max(buffer.length() - start, 0)/2);
+        return decodeStringAt(buffer, start, sb).toString();
+    }
 }
@@ -24,83 +24,181 @@
 
 package airsenseur.dev.helpers;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Implements a NTP-drift aware periodic scheduler
+ * Implements a NTP-drift aware periodic scheduler.
+ * Tasks are executed by the shared TaskSchedulerRuntime instead of owning
+ * a dedicated thread. Periodic ticks are aligned to the start time on the
+ * monotonic clock: a late tick doesn't shift the following ones, and ticks
+ * missed by an overrunning execution are skipped instead of being run in a burst.
+ * Executions of the same task never overlap.
  * @author marco
  */
 public abstract class TaskScheduler implements Runnable {
     
-    private static class TaskSchedulerThreadFactory implements ThreadFactory {
+    // The execution associated to the thread currently running a task, if any
+    private static final ThreadLocal<Execution> currentExecution = new ThreadLocal<>();
+    
+    private class Execution implements Runnable {
         
-        private final String taskName;
+        private final long periodNanos;
+        private long nextTick;
+        private boolean cancelled = false;
+        private Future<?> pending = null;
+        private Thread runner = null;
         
-        private TaskSchedulerThreadFactory() {
-            this.taskName = "AirSensEUR-Thread";
+        public Execution(long periodNanos) {
+            this.periodNanos = periodNanos;
+            this.nextTick = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            
+            synchronized (lock) {
+                if (cancelled) {
+                    terminated();
+                    return;
+                }
+                pending = null;
+                runner = Thread.currentThread();
+            }
+            
+            String threadName = runner.getName();
+            runner.setName(getTaskName());
+            currentExecution.set(this);
+            try {
+                taskMain();
+            } catch (RuntimeException ex) {
+                log.error("Unexpected exception in " + getTaskName(), ex);
+            } finally {
+                currentExecution.remove();
+                runner.setName(threadName);
+                
+                synchronized (lock) {
+                    runner = null;
+                    
+                    // Don't leak interrupts sent by stop() to the next task using this thread
+                    Thread.interrupted();
+                    
+                    if ((periodNanos > 0) && !cancelled) {
+                        scheduleNextTick();
+                    }
+                    
+                    terminated();
+                }
+            }
         }
         
-        public TaskSchedulerThreadFactory(String taskName) {
-            this.taskName = taskName;
+        private void scheduleNextTick() {
+            
+            long now = System.nanoTime();
+            nextTick += periodNanos;
+            if (nextTick - now < 0) {
+                nextTick += ((now - nextTick) / periodNanos + 1) * periodNanos;
+            }
+            
+            active++;
+            pending = TaskSchedulerRuntime.getRuntime().schedule(this, nextTick - now, TimeUnit.NANOSECONDS);
         }
         
-        @Override
-        public Thread newThread(Runnable r) {
-            return new Thread(r, taskName);
+        private TaskScheduler getOwner() {
+            return TaskScheduler.this;
+        }
+        
+        private void cancel() {
+            
+            cancelled = true;
+            
+            // A tick already handed to a worker can't be withdrawn anymore:
+            // it will be discarded by run() when checking the cancelled flag
+            if ((pending != null) && pending.cancel(false)) {
+                pending = null;
+                terminated();
+            }
+            if (runner != null) {
+                runner.interrupt();
+            }
         }
     }
     
-    private ScheduledExecutorService worker;
-    private ScheduledFuture scheduled;
-    private ThreadFactory threadFactory;
+    // Task state is guarded by a private lock, so subclasses are free to synchronize on themselves
+    private final Object lock = new Object();
+    private Execution execution = null;
+    private Execution deferred = null;
+    private boolean shutdown = false;
+    
+    // Number of executions queued on, or running in, a worker thread
+    private int active = 0;
+    
+    private final Logger log = LoggerFactory.getLogger(TaskScheduler.class);
     
     public abstract void taskMain();
     public abstract String getTaskName();
     
     public void startPeriodic(long milliSeconds) {
-        
-        if (scheduled != null) {
-            scheduled.cancel(true);
-        }
-        
-        threadFactory = new TaskSchedulerThreadFactory(getTaskName());
-        worker = Executors.newScheduledThreadPool(1, threadFactory);
-        scheduled = worker.scheduleAtFixedRate(this, 0, milliSeconds, TimeUnit.MILLISECONDS);
+        start(TimeUnit.MILLISECONDS.toNanos(Math.max(1, milliSeconds)));
     }
     
     public void startNow() {
-        if (scheduled != null) {
-            scheduled.cancel(true);
-        }
-        
-        threadFactory = new TaskSchedulerThreadFactory(getTaskName());
-        worker = Executors.newScheduledThreadPool(1, threadFactory);
-        scheduled = worker.schedule(this, 0, TimeUnit.MILLISECONDS);
+        start(0);
     }
     
+    // Wait for the task to be stopped and its last execution to be terminated
     public boolean waitForTermination(long milliSeconds) throws InterruptedException {
-        if (worker != null) {
-            return worker.awaitTermination(milliSeconds, TimeUnit.MILLISECONDS);
+        
+        synchronized (lock) {
+            if (execution == null) {
+                return true;
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(milliSeconds);
+            while (!shutdown || (active != 0)) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                lock.wait(remaining);
+            }
         }
         
         return true;
     }
     
+    // Returns true when the task has been stopped. Long running tasks should check it
+    // periodically. It's true also for executions superseded by a restart
     public boolean isShutdown() {
-        return (worker != null) && worker.isShutdown();
+        
+        Execution current = currentExecution.get();
+        synchronized (lock) {
+            if ((current != null) && (current.getOwner() == this)) {
+                return current.cancelled;
+            }
+            return shutdown;
+        }
     }
     
+    // Returns true when called by an execution of this task
+    public boolean isCurrentTask() {
+        
+        Execution current = currentExecution.get();
+        return (current != null) && (current.getOwner() == this);
+    }
+    
+    // Cancel pending executions and interrupt the running one, if any
     public void stop() {
-        if (scheduled != null) {
-            scheduled.cancel(true);
-        }
         
-        if (worker != null) {
-            worker.shutdown();
+        synchronized (lock) {
+            shutdown = true;
+            if (execution != null) {
+                execution.cancel();
+            }
+
+            lock.notifyAll();
         }
     }
 
@@ -109,4 +207,41 @@ public abstract class TaskScheduler implements Runnable {
         taskMain();
     }
     
+    private void start(long periodNanos) {
+        
+        synchronized (lock) {
+            if (execution != null) {
+                execution.cancel();
+            }
+
+            shutdown = false;
+            execution = new Execution(periodNanos);
+            
+            // The new execution is started when the previous one terminates
+            deferred = execution;
+            if (active == 0) {
+                startDeferred();
+            }
+        }
+    }
+    
+    private void startDeferred() {
+        
+        if ((deferred != null) && !deferred.cancelled) {
+            active++;
+            TaskSchedulerRuntime.getRuntime().execute(deferred);
+        }
+        deferred = null;
+    }
+    
+    // Called with the lock held each time an execution leaves the worker 
+    // thread, or is removed from the timer queue before reaching it
+    private void terminated() {
+        
+        active--;
+        if (active == 0) {
+            startDeferred();
+        }
+        lock.notifyAll();
+    }
 }
@@ -0,0 +1,134 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.helpers;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide runtime shared by all TaskScheduler instances.
+ * A single timer thread triggers periodic and delayed executions, 
+ * while tasks are executed by a bounded pool of worker threads. Workers are 
+ * reused across restarts and released when idle, so the number of threads
+ * follows the number of tasks running at the same time.
+ * The maximum number of workers can be set through the system property
+ * airsenseur.scheduler.maxThreads
+ * @author marco
+ */
+public class TaskSchedulerRuntime {
+    
+    private final static int DEFAULT_MAX_THREADS = 32;
+    private final static long IDLE_THREAD_KEEPALIVE = 30; /* in seconds */
+    private final static long REJECTED_RETRY_DELAY = 100; /* in milliseconds */
+    
+    private static class RuntimeThreadFactory implements ThreadFactory {
+        
+        private final String baseName;
+        private final AtomicInteger counter = new AtomicInteger();
+        
+        public RuntimeThreadFactory(String baseName) {
+            this.baseName = baseName;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            
+            // Applications wait for their main tasks with TaskScheduler.waitForTermination
+            // so shared threads should not prevent the JVM from exiting
+            Thread thread = new Thread(r, baseName + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+    
+    private static final TaskSchedulerRuntime singleton = new TaskSchedulerRuntime(Integer.getInteger("airsenseur.scheduler.maxThreads", DEFAULT_MAX_THREADS));
+    
+    private final ScheduledThreadPoolExecutor timer;
+    private final ThreadPoolExecutor workers;
+    
+    public static TaskSchedulerRuntime getRuntime() {
+        return singleton;
+    }
+    
+    private TaskSchedulerRuntime(int maxThreads) {
+        
+        timer = new ScheduledThreadPoolExecutor(1, new RuntimeThreadFactory("AirSensEUR-Timer"));
+        timer.setRemoveOnCancelPolicy(true);
+        
+        workers = new ThreadPoolExecutor(0, Math.max(1, maxThreads), 
+                                        IDLE_THREAD_KEEPALIVE, TimeUnit.SECONDS, 
+                                        new SynchronousQueue<Runnable>(), 
+                                        new RuntimeThreadFactory("AirSensEUR-Worker"));
+    }
+    
+    // Execute the task on a worker thread as soon as possible.
+    // If all workers are busy, the execution is retried later
+    public Future<?> execute(Runnable task) {
+        
+        try {
+            return workers.submit(task);
+        } catch (RejectedExecutionException ex) {
+            return schedule(task, REJECTED_RETRY_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    // Execute the task on a worker thread after the specified delay.
+    // If all workers are busy at that time, the execution is retried later
+    public ScheduledFuture<?> schedule(final Runnable task, long delay, TimeUnit unit) {
+        
+        return timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    workers.execute(task);
+                } catch (RejectedExecutionException ex) {
+                    timer.schedule(this, REJECTED_RETRY_DELAY, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, delay, unit);
+    }
+    
+    // Number of worker threads currently alive
+    public int getPoolSize() {
+        return workers.getPoolSize();
+    }
+    
+    // Number of worker threads currently running a task
+    public int getActiveCount() {
+        return workers.getActiveCount();
+    }
+    
+    public int getMaximumPoolSize() {
+        return workers.getMaximumPoolSize();
+    }
+}
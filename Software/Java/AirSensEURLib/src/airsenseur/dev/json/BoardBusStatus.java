@@ -0,0 +1,69 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.json;
+
+/**
+ * Sensor bus performance counters for a specific shield.
+ * Round trip times and answer timeout are expressed in milliseconds. The round trip histogram
+ * counts answers in the buckets defined by BusStatus.rttHistogramBounds
+ * @author marco
+ */
+public class BoardBusStatus {
+    
+    public int boardId;
+    public long requests;
+    public long answers;
+    public long timeouts;
+    public long crcErrors;
+    public long retransmissions;
+    public long discarded;
+    public long coalesced;
+    public long answerTimeout;
+    public long rttMin;
+    public long rttAverage;
+    public long rttMax;
+    public long[] rttHistogram = new long[0];
+
+    public BoardBusStatus() {
+    }
+
+    public BoardBusStatus(int boardId, long requests, long answers, long timeouts, long crcErrors, long retransmissions, 
+                            long discarded, long coalesced, long answerTimeout, long rttMin, long rttAverage, long rttMax, long[] rttHistogram) {
+        this.boardId = boardId;
+        this.requests = requests;
+        this.answers = answers;
+        this.timeouts = timeouts;
+        this.crcErrors = crcErrors;
+        this.retransmissions = retransmissions;
+        this.discarded = discarded;
+        this.coalesced = coalesced;
+        this.answerTimeout = answerTimeout;
+        this.rttMin = rttMin;
+        this.rttAverage = rttAverage;
+        this.rttMax = rttMax;
+        this.rttHistogram = rttHistogram;
+    }
+}
@@ -0,0 +1,53 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sensor bus performance counters to be sent via JSON
+ * Counters are cumulative since the "since" timestamp
+ * @author marco
+ */
+public class BusStatus {
+    
+    public long since;
+    public long timestamp;
+    public long framingErrors;
+    public long unsolicitedAnswers;
+    public int txQueueDepth;
+    public int txQueueMaxDepth;
+    public int txParkedMessages;
+    public int txParkedMaxMessages;
+    public int rxQueueDepth;
+    public int rxQueueMaxDepth;
+    public long[] rttHistogramBounds = new long[0];
+    public List<BoardBusStatus> boards = new ArrayList<>();
+
+    public BusStatus() {
+    }
+}
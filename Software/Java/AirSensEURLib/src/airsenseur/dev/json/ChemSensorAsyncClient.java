@@ -0,0 +1,628 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.json;
+
+import airsenseur.dev.helpers.TaskSchedulerRuntime;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Asynchronous client for the JSON remote service.
+ * Calls return immediately with a future. Requests share a single connection 
+ * and, by default, are written one at a time: the next one is sent when the previous 
+ * one has been answered, as expected by all hosts. Hosts serving JSON clients with the 
+ * multiplexed server (jsonServerType=MULTIPLEXED, from AirSensEURHost R2.2.0) read
+ * pipelined requests and answer them in order, so setPipelining(true) can be used 
+ * to send requests as soon as they're called.
+ * Each request has a deadline. A request not answered in time fails with a 
+ * TimeoutException and the connection is closed, since all requests queued after 
+ * it are stuck too. Broken connections are reopened by the next call, no more 
+ * than once every RECONNECT_PERIOD. Connections are opened without holding 
+ * the client lock, so calls fail fast while the host is not reachable.
+ * @author marco
+ */
+public class ChemSensorAsyncClient {
+    
+    private final static long DEFAULT_TIMEOUT = 10000;    /* in milliseconds */
+    private final static long RECONNECT_PERIOD = 2000;    /* in milliseconds */
+    private final static int CONNECT_TIMEOUT = 5000;      /* in milliseconds */
+    private final static int METHOD_NOT_FOUND = -32601;
+    
+    /**
+     * The result of a remote call
+     * @param <T> 
+     */
+    public static class Response<T> implements Future<T> {
+        
+        private final long id;
+        private final String method;
+        private final JavaType resultType;
+        private byte[] request = null;
+        private Future<?> deadline = null;
+        private Connection connection = null;
+        private boolean done = false;
+        private boolean cancelled = false;
+        private T result = null;
+        private Exception failure = null;
+        
+        private Response(long id, String method, JavaType resultType) {
+            this.id = id;
+            this.method = method;
+            this.resultType = resultType;
+        }
+        
+        // The result, or null on errors and timeouts
+        public T getResult() {
+            try {
+                return get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException ex) {
+                return null;
+            }
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                cancelled = true;
+            }
+            
+            fail(new IOException("Request cancelled"));
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        // Deadlines always complete responses, so this never blocks forever
+        @Override
+        public synchronized T get() throws InterruptedException, ExecutionException {
+            
+            while (!done) {
+                wait();
+            }
+            
+            return getValue();
+        }
+
+        @Override
+        public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            
+            long endTime = System.currentTimeMillis() + unit.toMillis(timeout);
+            while (!done) {
+                long remaining = endTime - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new TimeoutException();
+                }
+                wait(remaining);
+            }
+            
+            return getValue();
+        }
+        
+        private T getValue() throws ExecutionException {
+            
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+        
+        private void complete(T value) {
+            
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                result = value;
+                done = true;
+                notifyAll();
+            }
+            
+            terminated();
+        }
+        
+        private void fail(Exception ex) {
+            
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                failure = ex;
+                done = true;
+                notifyAll();
+            }
+            
+            terminated();
+        }
+        
+        private void terminated() {
+            
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (connection != null) {
+                connection.terminated(this);
+            }
+        }
+    }
+    
+    // An open connection, with its outstanding requests and its reader thread
+    private class Connection implements Runnable {
+        
+        private final Socket socket;
+        private final OutputStream outputStream;
+        private final InputStream inputStream;
+        private final boolean pipelining;
+        private final Map<Long, Response<?>> pending = new ConcurrentHashMap<>();
+        private volatile boolean closed = false;
+        
+        // When not pipelining, requests waiting for the outstanding one to be answered
+        private final ArrayDeque<Response<?>> waiting = new ArrayDeque<>();
+        private Response<?> outstanding = null;
+        
+        private Connection(Socket socket, boolean pipelining) throws IOException {
+            this.socket = socket;
+            this.outputStream = socket.getOutputStream();
+            this.inputStream = socket.getInputStream();
+            this.pipelining = pipelining;
+        }
+        
+        private void send(Response<?> response, byte[] request) throws IOException {
+            
+            response.connection = this;
+            response.request = request;
+            pending.put(response.id, response);
+            if (response.isDone()) {
+                terminated(response);
+                return;
+            }
+            
+            synchronized (outputStream) {
+                if (!pipelining && (outstanding != null)) {
+                    waiting.add(response);
+                    return;
+                }
+                write(response);
+            }
+        }
+        
+        // Should be called with the outputStream lock held
+        private void write(Response<?> response) throws IOException {
+            
+            if (!pipelining) {
+                outstanding = response;
+            }
+            
+            byte[] request = response.request;
+            response.request = null;
+            outputStream.write(request);
+            outputStream.flush();
+        }
+        
+        // A request has been answered, or has failed
+        private void terminated(Response<?> response) {
+            
+            pending.remove(response.id);
+            if (!pipelining) {
+                synchronized (outputStream) {
+                    waiting.remove(response);
+                }
+            }
+        }
+        
+        // An answer has been received. When not pipelining, the next request can be sent. 
+        // A cancelled request keeps the connection busy until its answer is received
+        private void answered(long id) {
+            
+            if (pipelining) {
+                return;
+            }
+            
+            try {
+                synchronized (outputStream) {
+                    if ((outstanding == null) || (outstanding.id != id)) {
+                        return;
+                    }
+                    
+                    outstanding = null;
+                    Response<?> next = waiting.poll();
+                    if (next != null) {
+                        write(next);
+                    }
+                }
+            } catch (IOException ex) {
+                close(ex);
+            }
+        }
+        
+        // Fail all outstanding requests. Further calls will open a new connection
+        private void close(Exception cause) {
+            
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ex) {
+            }
+            
+            for (Response<?> response:new ArrayList<>(pending.values())) {
+                response.fail(cause);
+            }
+        }
+
+        @Override
+        public void run() {
+            
+            try {
+                JsonParser parser = mapper.getFactory().createParser(inputStream);
+                JsonNode answer;
+                while ((answer = mapper.readTree(parser)) != null) {
+                    onAnswer(this, answer);
+                }
+                
+                close(new IOException("Connection closed by " + hostname));
+                
+            } catch (IOException ex) {
+                if (!closed) {
+                    log.info("Error reading from " + hostname + ":" + port + " (" + ex.getMessage() + ")");
+                }
+                close(ex);
+            }
+        }
+    }
+    
+    private final ObjectMapper mapper = new ObjectMapper();
+    
+    private String hostname = "localhost";
+    private int port = 8000;
+    private long timeout = DEFAULT_TIMEOUT;
+    
+    private boolean pipelining = false;
+    private boolean lastSamplesSupported = true;
+    
+    private Connection connection = null;
+    private long lastConnectionAttempt = 0;
+    private long nextRequestId = 1;
+    
+    // A connection is being opened. Connections opened by a previous 
+    // generation (i.e. before a connect or disconnect call) are dropped
+    private boolean connecting = false;
+    private int generation = 0;
+    
+    private static final Logger log = LoggerFactory.getLogger(ChemSensorAsyncClient.class);
+    
+    public boolean connect(String hostname, int port) {
+        
+        int connectGeneration;
+        synchronized (this) {
+            this.hostname = hostname;
+            this.port = port;
+            
+            closeConnection();
+            connectGeneration = ++generation;
+            connecting = true;
+            lastConnectionAttempt = System.currentTimeMillis();
+            lastSamplesSupported = true;
+        }
+        
+        return openConnection(connectGeneration) != null;
+    }
+    
+    public synchronized void disconnect() {
+        
+        closeConnection();
+        generation++;
+        connecting = false;
+    }
+    
+    public synchronized boolean isConnected() {
+        return (connection != null) && !connection.closed;
+    }
+    
+    // Default deadline for requests, in milliseconds
+    public synchronized void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+    
+    // Send requests without waiting for the previous answers. Enable it only with 
+    // hosts answering pipelined requests in order. It applies to new connections
+    public synchronized void setPipelining(boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+    
+    // Hosts older than R2.2.0 don't implement getLastSamples. 
+    // This is known after the first answer, and until the next connect
+    public synchronized boolean isLastSamplesSupported() {
+        return lastSamplesSupported;
+    }
+    
+    public Response<HostStatus> getHostStatus() {
+        return call("getHostStatus", HostStatus.class);
+    }
+    
+    public Response<List<BoardInfo>> getSensorBoardsInfo() {
+        return call("getSensorBoardsInfo", listOf(BoardInfo.class), timeout);
+    }
+    
+    public Response<SensorConfig> getSensorConfig(int sensorId) {
+        return call("getSensorConfig", SensorConfig.class, sensorId);
+    }
+    
+    public Response<SampleData> getLastSample(int sensorId) {
+        return call("getLastSample", SampleData.class, sensorId);
+    }
+    
+    /**
+     * Retrieve the last samples for a set of sensors, and the host status, in a single call
+     * @param sensorIds: sensors to be retrieved; null for all sensors
+     * @return samples and host status
+     */
+    public Response<LastSamples> getLastSamples(List<Integer> sensorIds) {
+        return call("getLastSamples", LastSamples.class, sensorIds);
+    }
+    
+    public Response<List<SampleData>> getSamplesSince(int sensorId, long collectedTimestamp) {
+        return call("getSamplesSince", listOf(SampleData.class), timeout, sensorId, collectedTimestamp);
+    }
+    
+    public Response<Boolean> startSampling() {
+        return call("startSampling", Boolean.class);
+    }
+    
+    public Response<Boolean> stopSampling() {
+        return call("stopSampling", Boolean.class);
+    }
+    
+    public Response<List<RawCommand>> sendRawData(List<RawCommand> rawData) {
+        return call("sendRawData", listOf(RawCommand.class), timeout, rawData);
+    }
+    
+    public Response<BusStatus> getBusStatus() {
+        return call("getBusStatus", BusStatus.class);
+    }
+    
+    public Response<Integer> getNumSensors() {
+        return call("getNumSensors", Integer.class);
+    }
+    
+    public Response<Void> takeOwnership() {
+        return call("takeOwnership", Void.class);
+    }
+    
+    public Response<Void> releaseOwnership() {
+        return call("releaseOnwnership", Void.class);
+    }
+    
+    private <T> Response<T> call(String method, Class<T> resultType, Object... params) {
+        return call(method, mapper.getTypeFactory().constructType(resultType), timeout, params);
+    }
+    
+    /**
+     * Call a method on the remote service
+     * @param <T>
+     * @param method: the method name, as in ChemSensorService
+     * @param resultType: the returned type
+     * @param timeout: deadline for the answer, in milliseconds
+     * @param params: method parameters
+     * @return the result
+     */
+    public <T> Response<T> call(String method, JavaType resultType, long timeout, Object... params) {
+        
+        Connection target;
+        final Response<T> response;
+        boolean reconnect = false;
+        int reconnectGeneration = 0;
+        synchronized (this) {
+            response = new Response<>(nextRequestId++, method, resultType);
+            
+            if (!isConnected() && !connecting && ((System.currentTimeMillis() - lastConnectionAttempt) >= RECONNECT_PERIOD)) {
+                closeConnection();
+                reconnect = true;
+                reconnectGeneration = generation;
+                connecting = true;
+                lastConnectionAttempt = System.currentTimeMillis();
+            }
+            target = connection;
+        }
+        
+        if (reconnect) {
+            target = openConnection(reconnectGeneration);
+        }
+        
+        if ((target == null) || target.closed) {
+            response.fail(new IOException("Not connected to " + hostname + ":" + port));
+            return response;
+        }
+        
+        ObjectNode request = mapper.createObjectNode();
+        request.put("jsonrpc", "2.0");
+        request.put("id", response.id);
+        request.put("method", method);
+        request.set("params", mapper.valueToTree(Arrays.asList(params)));
+        
+        final Connection deadlineTarget = target;
+        response.deadline = TaskSchedulerRuntime.getRuntime().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!response.isDone()) {
+                    log.info("No answer from " + hostname + ":" + port + " in time. Closing the connection");
+                    response.fail(new SocketTimeoutException("No answer in time"));
+                    deadlineTarget.close(new IOException("Connection closed after a timeout"));
+                }
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        
+        try {
+            target.send(response, mapper.writeValueAsBytes(request));
+        } catch (IOException ex) {
+            response.fail(ex);
+            target.close(ex);
+        }
+        
+        return response;
+    }
+    
+    public JavaType listOf(Class<?> elementType) {
+        return mapper.getTypeFactory().constructCollectionType(List.class, elementType);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void onAnswer(Connection source, JsonNode answer) {
+        
+        JsonNode id = answer.get("id");
+        if ((id == null) || !id.canConvertToLong()) {
+            return;
+        }
+        
+        source.answered(id.asLong());
+        
+        Response<Object> response = (Response<Object>)source.pending.get(id.asLong());
+        if (response == null) {
+            return;
+        }
+        
+        JsonNode error = answer.get("error");
+        if ((error != null) && !error.isNull()) {
+            JsonNode code = error.get("code");
+            if ((code != null) && (code.asInt() == METHOD_NOT_FOUND) && "getLastSamples".equals(response.method)) {
+                log.info("getLastSamples not available on " + hostname + ":" + port);
+                synchronized (this) {
+                    lastSamplesSupported = false;
+                }
+            }
+            
+            JsonNode message = error.get("message");
+            response.fail(new IOException("Remote error: " + ((message != null)? message.asText() : error.toString())));
+            return;
+        }
+        
+        JsonNode result = answer.get("result");
+        if ((result == null) || result.isNull() || (response.resultType.getRawClass() == Void.class)) {
+            response.complete(null);
+            return;
+        }
+        
+        try {
+            response.complete(mapper.convertValue(result, response.resultType));
+        } catch (IllegalArgumentException ex) {
+            response.fail(ex);
+        }
+    }
+    
+    // Open a new connection for the specified generation. Should be called 
+    // without holding the client lock, since it may block up to CONNECT_TIMEOUT
+    private Connection openConnection(int connectGeneration) {
+        
+        String host;
+        int hostPort;
+        boolean pipelined;
+        synchronized (this) {
+            host = hostname;
+            hostPort = port;
+            pipelined = pipelining;
+        }
+        
+        Connection opened = null;
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getByName(host), hostPort), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            opened = new Connection(socket, pipelined);
+        } catch (IOException ex) {
+            log.error("Input/Output exception when connecting to sensors data server at " + host + ":" + hostPort);
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+        
+        synchronized (this) {
+            if (generation != connectGeneration) {
+                
+                // Superseded by a connect or disconnect call in the meantime
+                if (opened != null) {
+                    opened.close(new IOException("Connection closed"));
+                }
+                return null;
+            }
+            
+            connecting = false;
+            if (opened == null) {
+                return null;
+            }
+            connection = opened;
+        }
+        
+        Thread reader = new Thread(opened, "ChemSensorAsyncClientReader");
+        reader.setDaemon(true);
+        reader.start();
+        
+        return opened;
+    }
+    
+    // Should be called with the client lock held
+    private void closeConnection() {
+        
+        if (connection != null) {
+            connection.close(new IOException("Connection closed"));
+            connection = null;
+        }
+    }
+}
@@ -26,6 +26,7 @@ package airsenseur.dev.json;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.googlecode.jsonrpc4j.JsonRpcClient;
+import com.googlecode.jsonrpc4j.JsonRpcClientException;
 import com.googlecode.jsonrpc4j.ProxyUtil;
 import java.io.IOException;
 import java.lang.reflect.UndeclaredThrowableException;
@@ -42,16 +43,20 @@ import org.slf4j.LoggerFactory;
  */
 public class ChemSensorClient {
     
+    private final static int METHOD_NOT_FOUND = -32601;
+    
     private String hostname = "localhost";
     private int port = 8000;
     private Socket socket;
     private ChemSensorService service;
+    private boolean lastSamplesSupported = true;
     private static final Logger log = LoggerFactory.getLogger(ChemSensorClient.class);
     
     public boolean connect(String hostname, int port) {
         
         this.hostname = hostname;
         this.port = port;
+        lastSamplesSupported = true;
         
         JsonRpcClient client = new JsonRpcClient(new ObjectMapper());
         try {
@@ -126,6 +131,55 @@ public class ChemSensorClient {
         }
     }
     
+    /**
+     * Retrieve the last samples for a set of sensors, and the host status, in a single call
+     * @param sensorIds: sensors to be retrieved; null for all sensors
+     * @return samples and host status, or null on errors
+     */
+    public LastSamples getLastSamples(List<Integer> sensorIds) {
+
+        if (service == null) {
+            return null;
+        }
+
+        try {
+            return service.getLastSamples(sensorIds);
+        } catch (UndeclaredThrowableException ex) {
+            return null;
+        } catch (JsonRpcClientException ex) {
+            if (ex.getCode() == METHOD_NOT_FOUND) {
+                log.info("getLastSamples not available on " + hostname + ":" + port);
+                lastSamplesSupported = false;
+            }
+            return null;
+        }
+    }
+    
+    // Hosts older than R2.2.0 don't implement getLastSamples. 
+    // This is known after the first call, and until the next connection
+    public boolean isLastSamplesSupported() {
+        return lastSamplesSupported;
+    }
+    
+    /**
+     * Retrieve all samples collected by the host after the specified time
+     * @param channel
+     * @param collectedTimestamp: the collectedTimestamp of the last known sample, or 0 
+     * @return samples, oldest first, or null on errors
+     */
+    public List<SampleData> getSamplesSince(int channel, long collectedTimestamp) {
+
+        if (service == null) {
+            return null;
+        }
+
+        try {
+            return service.getSamplesSince(channel, collectedTimestamp);
+        } catch (UndeclaredThrowableException ex) {
+            return null;
+        }
+    }
+    
     public boolean startSampling() {
         
         if (service == null) {
@@ -165,6 +219,19 @@ public class ChemSensorClient {
         }
     }
     
+    public BusStatus getBusStatus() {
+        
+        if (service == null) {
+            return null;
+        }
+        
+        try {
+            return service.getBusStatus();
+        } catch (UndeclaredThrowableException ex) {
+            return null;
+        }
+    }
+    
     public Integer getNumSensors() {
         if (service == null) {
             return null;
@@ -42,6 +42,10 @@ public interface ChemSensorService {
     public boolean startSampling();
     public boolean stopSampling();
     public SampleData getLastSample(int sensorId);
+    public List<SampleData> getSamplesSince(int sensorId, long collectedTimestamp);
+    public LastSamples getLastSamples(List<Integer> sensorIds);
     
     public List<RawCommand> sendRawData(List<RawCommand> rawData);
+    
+    public BusStatus getBusStatus();
 }
@@ -35,6 +35,7 @@ public class SampleData {
     public int value;
     public int timeStamp;
     public double evalSampleVal;
+    public long collectedTimestamp;     // Host time, in ms, when the sample has been read from the sensor
 
     public SampleData() {
     }
@@ -46,4 +47,9 @@ public class SampleData {
         this.timeStamp = timeStamp;
         this.evalSampleVal = evalSampleVal;
     }
+
+    public SampleData(String name, String serial, int value, int timeStamp, double evalSampleVal, long collectedTimestamp) {
+        this(name, serial, value, timeStamp, evalSampleVal);
+        this.collectedTimestamp = collectedTimestamp;
+    }
 }
@@ -0,0 +1,197 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.json;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receive samples pushed by the sensor host sample stream.
+ * The stream is a sequence of JSON encoded StreamedSample, one per line.
+ * The client keeps track of the last sample received for each sensor 
+ * so, when reconnecting, it resumes the stream from where it was interrupted
+ * and duplicated samples are filtered out.
+ * @author marco
+ */
+public class SampleStreamClient {
+    
+    // The host sends an heartbeat every 10 seconds when no samples are available
+    private final static int READ_TIMEOUT = 30000;
+    
+    private String hostname = "localhost";
+    private int port = 8001;
+    private Socket socket;
+    private BufferedReader reader;
+    private final ObjectMapper mapper = new ObjectMapper();
+    
+    // Last collected timestamp received for each sensor
+    private final Map<Integer, Long> lastCollectedTimestamps = new HashMap<>();
+    private long resumeFrom = SampleStreamRequest.LIVE_ONLY;
+    
+    private static final Logger log = LoggerFactory.getLogger(SampleStreamClient.class);
+    
+    /**
+     * Connect and subscribe to the sample stream
+     * @param hostname
+     * @param port
+     * @param resumeFrom: collected timestamp to resume from, or SampleStreamRequest.LIVE_ONLY
+     * @return 
+     */
+    public boolean connect(String hostname, int port, long resumeFrom) {
+        
+        this.hostname = hostname;
+        this.port = port;
+        this.resumeFrom = resumeFrom;
+        lastCollectedTimestamps.clear();
+        
+        return subscribe(resumeFrom);
+    }
+    
+    /**
+     * Connect again and resume the stream from the last samples received
+     * @return 
+     */
+    public boolean reconnect() {
+        
+        closeSocket();
+        return subscribe(getResumeTimestamp());
+    }
+    
+    public void disconnect() {
+        closeSocket();
+    }
+    
+    public boolean isConnected() {
+        return socket != null;
+    }
+    
+    /**
+     * Wait for the next sample. Heartbeats and already received samples are skipped.
+     * @return the sample or null if the connection has been lost
+     */
+    public StreamedSample readSample() {
+        
+        if (reader == null) {
+            return null;
+        }
+        
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                
+                StreamedSample streamed = mapper.readValue(line, StreamedSample.class);
+                if ((streamed.sensorId == StreamedSample.HEARTBEAT_SENSOR_ID) || (streamed.sample == null)) {
+                    continue;
+                }
+                
+                Long last = lastCollectedTimestamps.get(streamed.sensorId);
+                if ((last != null) && (streamed.sample.collectedTimestamp <= last)) {
+                    continue;
+                }
+                lastCollectedTimestamps.put(streamed.sensorId, streamed.sample.collectedTimestamp);
+                
+                JsonFieldsUtils.safeCheck(streamed.sample);
+                return streamed;
+            }
+            
+            log.info("Sample stream closed by " + hostname + ":" + port);
+            
+        } catch (IOException ex) {
+            log.error("Input/Output exception when reading the sample stream from " + hostname + ":" + port);
+        }
+        
+        closeSocket();
+        return null;
+    }
+    
+    /**
+     * @return the collected timestamp the stream should be resumed from 
+     * in order to not lose any sample
+     */
+    public long getResumeTimestamp() {
+        
+        if (lastCollectedTimestamps.isEmpty()) {
+            return resumeFrom;
+        }
+        
+        long result = Long.MAX_VALUE;
+        for (Long last : lastCollectedTimestamps.values()) {
+            result = Math.min(result, last);
+        }
+        
+        return result;
+    }
+    
+    private boolean subscribe(long resumeFrom) {
+        
+        try {
+            socket = new Socket(InetAddress.getByName(hostname), port);
+            socket.setSoTimeout(READ_TIMEOUT);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(mapper.writeValueAsString(new SampleStreamRequest(resumeFrom)));
+            writer.write('\n');
+            writer.flush();
+            
+        } catch (UnknownHostException ex) {
+            log.error("Host " + hostname + " not found when connecting to the sample stream");
+            closeSocket();
+            return false;
+        } catch (IOException ex) {
+            log.error("Input/Output exception when connecting to the sample stream at " + hostname + ":" + port);
+            closeSocket();
+            return false;
+        }
+        
+        return true;
+    }
+    
+    private void closeSocket() {
+        
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException ex) {
+        }
+        
+        socket = null;
+        reader = null;
+    }
+}
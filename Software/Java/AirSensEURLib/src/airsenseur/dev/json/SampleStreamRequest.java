@@ -0,0 +1,47 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.json;
+
+/**
+ * Subscription request sent by clients when connecting to the sample stream.
+ * When resumeFrom is not negative, samples collected by the host after 
+ * resumeFrom (and still available in the host history) are sent before
+ * the new ones.
+ * @author marco
+ */
+public class SampleStreamRequest {
+    
+    public final static long LIVE_ONLY = -1;
+    
+    public long resumeFrom = LIVE_ONLY;
+
+    public SampleStreamRequest() {
+    }
+
+    public SampleStreamRequest(long resumeFrom) {
+        this.resumeFrom = resumeFrom;
+    }
+}
@@ -0,0 +1,48 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.json;
+
+/**
+ * A sample pushed by the host to the sample stream subscribers.
+ * Heartbeats, periodically sent when no new samples are available, 
+ * have HEARTBEAT_SENSOR_ID as sensorId and no sample.
+ * @author marco
+ */
+public class StreamedSample {
+    
+    public final static int HEARTBEAT_SENSOR_ID = -1;
+    
+    public int sensorId = HEARTBEAT_SENSOR_ID;
+    public SampleData sample;
+
+    public StreamedSample() {
+    }
+
+    public StreamedSample(int sensorId, SampleData sample) {
+        this.sensorId = sensorId;
+        this.sample = sample;
+    }
+}
@@ -0,0 +1,145 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.comm;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Stress test for the AppDataMessageQueue ring.
+ * A producer thread publishes frames through the ring while the consumer
+ * checks ordering and contents. For each wait strategy it reports throughput 
+ * and the heap allocated per message by both threads.
+ * Exits with a non zero status on any error.
+ * Usage: AppDataMessageQueueTester [messages]
+ * @author marco
+ */
+public class AppDataMessageQueueTester {
+    
+    private final static int QUEUE_SIZE = 256;
+    private final static int FRAME_LENGTH = 16;
+    
+    private static class Producer extends Thread {
+        
+        private final AppDataMessageQueue queue;
+        private final int messages;
+        private final byte[] frame = new byte[FRAME_LENGTH];
+        private long allocatedBytes = 0;
+        private Exception failure = null;
+        
+        public Producer(AppDataMessageQueue queue, int messages) {
+            this.queue = queue;
+            this.messages = messages;
+        }
+        
+        @Override
+        public void run() {
+            
+            long startAllocation = getAllocatedBytes();
+            try {
+                for (int n = 0; n < messages; n++) {
+                    fillFrame(frame, n);
+                    queue.claim().setFrame(n & 0x0F, frame, 0, FRAME_LENGTH);
+                    queue.publish();
+                }
+            } catch (InterruptedException ex) {
+                failure = ex;
+            }
+            allocatedBytes = getAllocatedBytes() - startAllocation;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        
+        int messages = (args.length > 0)? Integer.parseInt(args[0]) : 2000000;
+        boolean failed = false;
+        
+        for (AppDataMessageQueue.waitStrategies strategy : AppDataMessageQueue.waitStrategies.values()) {
+            
+            // Warmup, then measure
+            runTest(strategy, messages / 10, false);
+            failed |= !runTest(strategy, messages, true);
+        }
+        
+        System.exit(failed? 1 : 0);
+    }
+    
+    private static boolean runTest(AppDataMessageQueue.waitStrategies strategy, int messages, boolean report) throws InterruptedException {
+        
+        AppDataMessageQueue queue = new AppDataMessageQueue(QUEUE_SIZE, strategy);
+        Producer producer = new Producer(queue, messages);
+        byte[] expected = new byte[FRAME_LENGTH];
+        int errors = 0;
+        
+        long startAllocation = getAllocatedBytes();
+        long startTime = System.nanoTime();
+        producer.start();
+        
+        for (int n = 0; n < messages; n++) {
+            AppDataMessage message = queue.take();
+            
+            fillFrame(expected, n);
+            CharSequence data = message.getCommandData();
+            if ((message.getBoardId() != (n & 0x0F)) || (data.length() != FRAME_LENGTH)) {
+                errors++;
+            } else {
+                for (int i = 0; i < FRAME_LENGTH; i++) {
+                    if (data.charAt(i) != expected[i]) {
+                        errors++;
+                        break;
+                    }
+                }
+            }
+            
+            queue.release();
+        }
+        
+        long elapsed = System.nanoTime() - startTime;
+        long consumerAllocation = getAllocatedBytes() - startAllocation;
+        producer.join();
+        
+        if ((producer.failure != null) || !queue.isEmpty()) {
+            errors++;
+        }
+        
+        if (report) {
+            System.out.println(String.format("%-10s %10.0f msg/s  %6.3f bytes/msg (producer)  %6.3f bytes/msg (consumer)  %d errors", 
+                    strategy, messages * 1e9 / elapsed, 
+                    (double)producer.allocatedBytes / messages, (double)consumerAllocation / messages, errors));
+        }
+        
+        return (errors == 0);
+    }
+    
+    private static void fillFrame(byte[] frame, int sequence) {
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte)('0' + ((sequence + i) % 10));
+        }
+    }
+    
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,165 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.comm;
+
+import airsenseur.dev.helpers.CodecHelper;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pending requests checker. Also compares the cost of completing requests 
+ * by correlation key against the linear scan based on compareDataMessages.
+ * Usage: PendingRequestsTester [rounds]
+ * @author marco
+ */
+public class PendingRequestsTester {
+    
+    private final static int NUM_BOARDS = 4;
+    
+    public static void main(String[] argc) {
+        
+        int rounds = (argc.length > 0)? Integer.parseInt(argc[0]) : 20000;
+        
+        // Check for writes keyed as the associated read answer
+        if ((key(1, "P01", "05") != key(1, "Q01", "05")) || (key(1, "W02", "4E4F32") != key(1, "I02", "4E4F32")) 
+                || (key(1, "U", "3132") != key(1, "V", "3132"))) {
+            System.out.println("Error: write commands not correlated to their answers");
+        }
+        
+        // Check for different boards, channels and commands having different keys
+        if ((key(1, "b01", "") == key(1, "b02", "")) || (key(1, "b01", "") == key(2, "b01", "")) 
+                || (key(1, "a01", "") == key(1, "b01", ""))) {
+            System.out.println("Error: different requests with the same key");
+        }
+        
+        // Check for board related commands, with no channel
+        if ((key(1, "Z", "") != key(1, "Z", "312E30")) || (key(1, "V", "") != key(1, "V", "4142"))) {
+            System.out.println("Error evaluating keys for board related commands");
+        }
+        
+        // Check for answers completing requests out of order. 
+        // Requests with the same key are completed oldest first
+        PendingRequests<String> pending = new PendingRequests<>(1000);
+        pending.add(1, key(1, "b01", ""), "first");
+        pending.add(1, key(1, "b02", ""), "second");
+        pending.add(1, key(1, "b01", ""), "third");
+        
+        String completed = pending.complete(key(1, "b02", "6D56")) + " " + pending.complete(key(1, "b01", "6D56")) + " " 
+                + pending.complete(key(1, "b03", "6D56")) + " " + pending.complete(key(1, "b01", "6D56"));
+        System.out.println("Completed: " + completed);
+        if (!completed.equals("second first null third") || !pending.isEmpty()) {
+            System.out.println("Error completing requests");
+        }
+        
+        // Check for expired requests. Only the oldest request on each board is timed
+        pending = new PendingRequests<>(100);
+        long now = System.currentTimeMillis();
+        pending.add(1, key(1, "b01", ""), "lost");
+        pending.add(1, key(1, "b02", ""), "queued");
+        pending.add(2, key(2, "b01", ""), "other board");
+        
+        if (!pending.expire(now).isEmpty()) {
+            System.out.println("Error: requests expired too early");
+        }
+        List<String> expired = pending.expire(now + 1000);
+        System.out.println("Expired: " + expired);
+        if (!expired.contains("lost") || !expired.contains("other board") || expired.contains("queued") || (pending.size() != 1)) {
+            System.out.println("Error expiring the oldest request on each board");
+        }
+        if (pending.getNextDeadline(Long.MAX_VALUE) != now + 1000 + 100) {
+            System.out.println("Error timing the queued request");
+        }
+        if (!pending.remove(key(1, "b02", ""), "queued") || !pending.isEmpty()) {
+            System.out.println("Error removing the queued request");
+        }
+        
+        // Compare with the linear scan
+        benchmark(rounds, 4);
+        benchmark(rounds / 8, 64);
+    }
+    
+    // Requests and answers lifecycle, with numChannels requests per board
+    private static void benchmark(int rounds, int numChannels) {
+        
+        int numRequests = NUM_BOARDS * numChannels;
+        AppDataMessage[] requests = new AppDataMessage[numRequests];
+        AppDataMessage[] answers = new AppDataMessage[numRequests];
+        for (int n = 0; n < numRequests; n++) {
+            int boardId = n % NUM_BOARDS;
+            int channel = n / NUM_BOARDS;
+            requests[n] = new AppDataMessage(boardId, command("g", channel, "0000001000000000"));
+            answers[n] = new AppDataMessage(boardId, command("g", channel, "0000001000001234"));
+        }
+        
+        // Answers are completed in reverse order, the worst case for the linear scan
+        List<AppDataMessage> scanned = new ArrayList<>(numRequests);
+        long startTime = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (AppDataMessage request:requests) {
+                scanned.add(request);
+            }
+            for (int n = numRequests - 1; n >= 0; n--) {
+                for (int i = 0; i < scanned.size(); i++) {
+                    if (scanned.get(i).compareDataMessages(answers[n])) {
+                        scanned.remove(i);
+                        break;
+                    }
+                }
+            }
+        }
+        long scanTime = System.nanoTime() - startTime;
+        
+        PendingRequests<AppDataMessage> pending = new PendingRequests<>(1000);
+        boolean mismatch = false;
+        startTime = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (AppDataMessage request:requests) {
+                pending.add(request.getBoardId(), ShieldProtocolLayer.getCorrelationKey(request.getBoardId(), request.getCommandData()), request);
+            }
+            for (int n = numRequests - 1; n >= 0; n--) {
+                if (pending.complete(ShieldProtocolLayer.getCorrelationKey(answers[n].getBoardId(), answers[n].getCommandData())) != requests[n]) {
+                    mismatch = true;
+                }
+            }
+        }
+        long keyTime = System.nanoTime() - startTime;
+        
+        if (mismatch) {
+            System.out.println("Error: answers completing the wrong request");
+        }
+        
+        long completions = (long)rounds * numRequests;
+        System.out.println(String.format("%d pending requests: linear scan %.0f ns/answer, correlation key %.0f ns/answer", 
+                numRequests, (double)scanTime / completions, (double)keyTime / completions));
+    }
+    
+    private static long key(int boardId, String commandAndChannel, String payload) {
+        return ShieldProtocolLayer.getCorrelationKey(boardId, commandAndChannel + payload);
+    }
+    
+    private static String command(String commandId, int channel, String payload) {
+        return CodecHelper.appendChar(new StringBuilder(commandId), channel).append(payload).toString();
+    }
+}
@@ -0,0 +1,130 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.comm;
+
+/**
+ * RequestWindow checker
+ * @author marco
+ */
+public class RequestWindowTester {
+    
+    private final static long TIMEOUT = 300;       /* in milliseconds */
+    private final static long SHORT_TIMEOUT = 50;  /* in milliseconds */
+    
+    public static void main(String[] argc) throws InterruptedException {
+        
+        // Check for the bus window and the one request per board limit
+        RequestWindow window = new RequestWindow(TIMEOUT);
+        window.setWindowSize(2);
+        
+        window.sent(1, false, true);
+        if (window.canSend(1)) {
+            System.out.println("Error: two requests outstanding on the same board");
+        }
+        window.sent(2, false, true);
+        if (window.canSend(3) || window.canSend(AppDataMessage.BOARD_ID_UNDEFINED)) {
+            System.out.println("Error: window size not respected");
+        }
+        if (!window.answered(1) || !window.canSend(3)) {
+            System.out.println("Error: window slot not released by the answer");
+        }
+        window.answered(2);
+        if ((window.getOutstanding() != 0) || !window.canSend(AppDataMessage.BOARD_ID_UNDEFINED)) {
+            System.out.println("Error: bus not idle after all answers");
+        }
+        if (window.answered(1)) {
+            System.out.println("Error: unsolicited answer matched");
+        }
+        
+        // Check for sampling polls and other commands timed separately: 
+        // fast polls should not shorten the commands timeout
+        window = new RequestWindow(TIMEOUT);
+        for (int n = 0; n < 10; n++) {
+            window.sent(1, false, true);
+            window.answered(1);
+        }
+        System.out.println("Timeouts after fast polls: sampling " + window.getTimeout(1, true) + 
+                            " ms, commands " + window.getTimeout(1, false) + " ms");
+        if ((window.getTimeout(1, true) >= TIMEOUT) || (window.getTimeout(1, false) != TIMEOUT)) {
+            System.out.println("Error adapting the sampling timeout only");
+        }
+        
+        window.sent(1, false, false);
+        Thread.sleep(TIMEOUT / 2);
+        if (window.expire() != 0) {
+            System.out.println("Error: slow command expired with the sampling timeout");
+        }
+        window.answered(1);
+        if ((window.getTimeout(1, false) < TIMEOUT) || (window.getTimeout(1, true) >= TIMEOUT)) {
+            System.out.println("Error: timeouts mixed up by a slow command");
+        }
+        
+        // Check for the timeout doubling on boards known to answer
+        long timeout = window.getTimeout(1, true);
+        window.sent(1, false, true);
+        Thread.sleep(timeout + 10);
+        int expired = window.expire();
+        int expiredBoard = window.takeExpired();
+        if ((expired != 1) || (expiredBoard != 1) || (window.takeExpired() >= 0)) {
+            System.out.println("Error collecting the expired poll");
+        }
+        System.out.println("Sampling timeout after an expiration: " + window.getTimeout(1, true) + " ms");
+        if (window.getTimeout(1, true) != 2 * timeout) {
+            System.out.println("Error: sampling timeout not doubled");
+        }
+        if (!window.shouldRetry(1, 0) || window.shouldRetry(1, 1)) {
+            System.out.println("Error: expired poll not retried exactly once");
+        }
+        
+        // Check for back-off on boards failing too often. Unknown boards 
+        // are never retried and their timeout doesn't grow
+        window = new RequestWindow(SHORT_TIMEOUT);
+        int failures = 0;
+        while (!window.isBackingOff(1) && (failures < 10)) {
+            if (window.shouldRetry(1, 0)) {
+                System.out.println("Error: unknown board retried");
+            }
+            window.sent(1, false, true);
+            Thread.sleep(SHORT_TIMEOUT + 10);
+            window.expire();
+            failures++;
+        }
+        System.out.println("Back-off after " + failures + " failures");
+        if ((failures != 3) || (window.getTimeout(1, true) != SHORT_TIMEOUT)) {
+            System.out.println("Error putting the board in back-off");
+        }
+        
+        // A late answer proves the board is alive, and failures are counted again from zero
+        if (window.answered(1) || window.isBackingOff(1)) {
+            System.out.println("Error: board not restored by a late answer");
+        }
+        window.sent(1, false, true);
+        Thread.sleep(SHORT_TIMEOUT + 10);
+        window.expire();
+        if (window.isBackingOff(1)) {
+            System.out.println("Error: failures not counted again from zero");
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.comm;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TransportLogicPointToMultipoint checker. Messages are taken as the sender 
+ * task does, and answers are simulated by feeding frames to the receiver
+ * @author marco
+ */
+public class TransportLogicPointToMultipointTester {
+    
+    public static void main(String[] argc) throws InterruptedException {
+        
+        // Check for interactive messages sent first, then configuration ones, then sampling polls
+        TransportLogicPointToMultipoint transport = newTransport(3);
+        queue(transport, 1, "b00", AppDataMessage.PRIORITY_SAMPLING);
+        queue(transport, 2, "P01", AppDataMessage.PRIORITY_CONFIGURATION);
+        queue(transport, 3, "R00", AppDataMessage.PRIORITY_INTERACTIVE);
+        
+        String sent = take(transport) + take(transport) + take(transport);
+        System.out.println("Sent by priority: " + sent);
+        if (!sent.equals("3:R00 2:P01 1:b00 ")) {
+            System.out.println("Error sorting messages by priority");
+        }
+        answer(transport, 1, "b00");
+        answer(transport, 2, "Q01");
+        answer(transport, 3, "R00");
+        if (!transport.isIdle()) {
+            System.out.println("Error: not idle when all answered");
+        }
+        
+        // Check for duplicated sampling polls to the same board and channel sent once.
+        // Duplicated configuration messages are always sent
+        transport = newTransport(1);
+        SensorBusStatistics statistics = new SensorBusStatistics();
+        transport.setStatistics(statistics);
+        queue(transport, 1, "b00", AppDataMessage.PRIORITY_SAMPLING);
+        queue(transport, 1, "b00", AppDataMessage.PRIORITY_SAMPLING);
+        queue(transport, 1, "b01", AppDataMessage.PRIORITY_SAMPLING);
+        queue(transport, 2, "P01", AppDataMessage.PRIORITY_CONFIGURATION);
+        queue(transport, 2, "P01", AppDataMessage.PRIORITY_CONFIGURATION);
+        
+        sent = "";
+        for (int n = 0; n < 4; n++) {
+            sent += takeAndAnswer(transport);
+        }
+        System.out.println("Sent with coalescing: " + sent + "(coalesced " + statistics.getBoardStatistics(1).getCoalesced() + ")");
+        if (!sent.equals("2:P01 2:P01 1:b00 1:b01 ") || (statistics.getBoardStatistics(1).getCoalesced() != 1) || !transport.isIdle()) {
+            System.out.println("Error coalescing sampling polls");
+        }
+        
+        // Check for messages not associated to a specific board waiting for an idle bus.
+        // They're not overtaken by messages with the same or lower priority
+        transport = newTransport(3);
+        queue(transport, 2, "b00", AppDataMessage.PRIORITY_SAMPLING);
+        sent = take(transport);
+        queue(transport, AppDataMessage.BOARD_ID_UNDEFINED, "Z", AppDataMessage.PRIORITY_CONFIGURATION);
+        queue(transport, 1, "b00", AppDataMessage.PRIORITY_SAMPLING);
+        queue(transport, 3, "R00", AppDataMessage.PRIORITY_INTERACTIVE);
+        sent += take(transport);
+        answer(transport, 2, "b00");
+        answer(transport, 3, "R00");
+        sent += take(transport);
+        
+        // Any board answers messages not associated to a specific board
+        answer(transport, 5, "Z00");
+        sent += takeAndAnswer(transport);
+        System.out.println("Sent with an undefined board message: " + sent);
+        if (!sent.equals("2:b00 3:R00 " + AppDataMessage.BOARD_ID_UNDEFINED + ":Z 1:b00 ") || !transport.isIdle()) {
+            System.out.println("Error sending the undefined board message");
+        }
+        
+        // Check for expired sampling polls retransmitted to boards known to answer.
+        // Raw commands may have been executed even if not answered, so they're not retransmitted
+        transport = newTransport(1);
+        statistics = new SensorBusStatistics();
+        transport.setStatistics(statistics);
+        queue(transport, 1, "b00", AppDataMessage.PRIORITY_SAMPLING);
+        sent = takeAndAnswer(transport);
+        queue(transport, 1, "b00", AppDataMessage.PRIORITY_SAMPLING);
+        queue(transport, 1, "b01", AppDataMessage.PRIORITY_SAMPLING);
+        sent += take(transport);
+        sent += takeAndAnswer(transport);
+        sent += takeAndAnswer(transport);
+        queue(transport, 1, "R00", AppDataMessage.PRIORITY_INTERACTIVE);
+        queue(transport, 1, "b02", AppDataMessage.PRIORITY_SAMPLING);
+        sent += take(transport);
+        sent += takeAndAnswer(transport);
+        System.out.println("Sent with expirations: " + sent + "(retransmissions " + statistics.getBoardStatistics(1).getRetransmissions() + ")");
+        if (!sent.equals("1:b00 1:b00 1:b00 1:b01 1:R00 1:b02 ") || (statistics.getBoardStatistics(1).getRetransmissions() != 1)) {
+            System.out.println("Error retransmitting expired requests");
+        }
+        
+        // Check for boards failing too often. Their sampling polls are discarded, 
+        // while other messages are still sent
+        transport = newTransport(2);
+        statistics = new SensorBusStatistics();
+        transport.setStatistics(statistics);
+        sent = "";
+        for (int n = 0; n < 3; n++) {
+            queue(transport, 4, "b0" + n, AppDataMessage.PRIORITY_SAMPLING);
+            sent += take(transport);
+        }
+        queue(transport, 5, "P01", AppDataMessage.PRIORITY_CONFIGURATION);
+        queue(transport, 4, "b03", AppDataMessage.PRIORITY_SAMPLING);
+        queue(transport, 4, "R00", AppDataMessage.PRIORITY_INTERACTIVE);
+        Thread.sleep(1000);
+        sent += take(transport);
+        sent += takeAndAnswer(transport);
+        queue(transport, 5, "b00", AppDataMessage.PRIORITY_SAMPLING);
+        sent += takeAndAnswer(transport);
+        System.out.println("Sent with a board not answering: " + sent + "(discarded " + statistics.getBoardStatistics(4).getDiscarded() + ")");
+        if (!sent.equals("4:b00 4:b01 4:b02 4:R00 5:P01 5:b00 ") || (statistics.getBoardStatistics(4).getDiscarded() != 1)) {
+            System.out.println("Error handling a board in back-off");
+        }
+    }
+    
+    private static TransportLogicPointToMultipoint newTransport(int windowSize) {
+        
+        TransportLogicPointToMultipoint transport = new TransportLogicPointToMultipoint(new AppDataMessageQueue(16), 
+                                                                                        new AppDataMessageQueue(16), null, null, false);
+        transport.setRequestWindowSize(windowSize);
+        return transport;
+    }
+    
+    private static void queue(TransportLogicPointToMultipoint transport, int boardId, String command, int priority) throws InterruptedException {
+        
+        AppDataMessage message = new AppDataMessage(boardId, command);
+        message.setPriority(priority);
+        transport.getTxDataQueue().put(message);
+    }
+    
+    // Take the next message to be sent. Returns "boardId:command "
+    private static String take(TransportLogicPointToMultipoint transport) throws InterruptedException {
+        
+        AppDataMessage taken = transport.takeNextTxMessage();
+        String result = taken.getBoardId() + ":" + taken.getCommandString() + " ";
+        transport.releaseTxMessage(taken);
+        return result;
+    }
+    
+    // Take the next message to be sent and simulate its answer
+    private static String takeAndAnswer(TransportLogicPointToMultipoint transport) throws InterruptedException {
+        
+        String result = take(transport);
+        answer(transport, Integer.parseInt(result.substring(0, result.indexOf(':'))), result.substring(result.indexOf(':') + 1).trim());
+        return result;
+    }
+    
+    // Simulate an answer frame coming from boardId
+    private static void answer(TransportLogicPointToMultipoint transport, int boardId, String payload) {
+        
+        String frame = String.format("(0%02X%s)", boardId, payload);
+        for (byte value:frame.getBytes(StandardCharsets.US_ASCII)) {
+            transport.onRxCharReceived(value);
+        }
+    }
+}
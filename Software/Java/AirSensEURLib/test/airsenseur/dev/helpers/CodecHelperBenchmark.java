@@ -0,0 +1,204 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.helpers;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Repeatable micro benchmark for the CodecHelper hot path.
+ * Each scenario is warmed up, then measured for a fixed number of rounds,
+ * reporting the time and the heap allocated per operation on the current thread.
+ * Exits with a non zero status if any scenario allocates on the steady state.
+ * Usage: CodecHelperBenchmark [iterations] [rounds]
+ * @author marco
+ */
+public class CodecHelperBenchmark {
+    
+    private final static int WARMUP_ROUNDS = 5;
+    
+    // Decoded values are accumulated here to prevent dead code elimination
+    private static long blackHole = 0;
+    
+    private interface Scenario {
+        String getName();
+        void run(int iterations);
+    }
+    
+    private final static String LAST_SAMPLE_HRES = "Y0142C80000005C3A1B2F";
+    private final static String LAST_SAMPLE = "G01ABCD5C3A1B2F";
+    private final static byte[] LAST_SAMPLE_BYTES = LAST_SAMPLE.getBytes();
+    
+    private final static char[] charBuffer = new char[64];
+    private final static byte[] byteBuffer = new byte[64];
+    private final static StringBuilder sbBuffer = new StringBuilder(64);
+    
+    private final static Scenario[] scenarios = {
+        new Scenario() {
+            @Override
+            public String getName() { return "decodeCharAt/ShortAt/IntAt (String)"; }
+
+            @Override
+            public void run(int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    blackHole += CodecHelper.decodeCharAt(LAST_SAMPLE, 1);
+                    blackHole += CodecHelper.decodeShortAt(LAST_SAMPLE, 3);
+                    blackHole += CodecHelper.decodeIntAt(LAST_SAMPLE, 7);
+                }
+            }
+        },
+        new Scenario() {
+            @Override
+            public String getName() { return "decodeCharAt/ShortAt/IntAt (byte[])"; }
+
+            @Override
+            public void run(int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    blackHole += CodecHelper.decodeCharAt(LAST_SAMPLE_BYTES, 1);
+                    blackHole += CodecHelper.decodeShortAt(LAST_SAMPLE_BYTES, 3);
+                    blackHole += CodecHelper.decodeIntAt(LAST_SAMPLE_BYTES, 7);
+                }
+            }
+        },
+        new Scenario() {
+            @Override
+            public String getName() { return "decodeFloatAt/LongAt (String)"; }
+
+            @Override
+            public void run(int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    blackHole += Float.floatToRawIntBits(CodecHelper.decodeFloatAt(LAST_SAMPLE_HRES, 3));
+                    blackHole += CodecHelper.decodeLongAt(LAST_SAMPLE_HRES, 11);
+                }
+            }
+        },
+        new Scenario() {
+            @Override
+            public String getName() { return "encodeChar/Short/Int/Float (char[])"; }
+
+            @Override
+            public void run(int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    int offset = CodecHelper.encodeChar(charBuffer, 0, i);
+                    offset = CodecHelper.encodeShort(charBuffer, offset, i);
+                    offset = CodecHelper.encodeInt(charBuffer, offset, i);
+                    offset = CodecHelper.encodeFloat(charBuffer, offset, i);
+                    blackHole += offset + charBuffer[offset - 1];
+                }
+            }
+        },
+        new Scenario() {
+            @Override
+            public String getName() { return "encodeChar/Short/Long (byte[])"; }
+
+            @Override
+            public void run(int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    int offset = CodecHelper.encodeChar(byteBuffer, 0, i);
+                    offset = CodecHelper.encodeShort(byteBuffer, offset, i);
+                    offset = CodecHelper.encodeLong(byteBuffer, offset, i);
+                    blackHole += offset + byteBuffer[offset - 1];
+                }
+            }
+        },
+        new Scenario() {
+            @Override
+            public String getName() { return "appendChar/Short/Int (StringBuilder)"; }
+
+            @Override
+            public void run(int iterations) {
+                for (int i = 0; i < iterations; i++) {
+                    sbBuffer.setLength(0);
+                    CodecHelper.appendChar(sbBuffer, i);
+                    CodecHelper.appendShort(sbBuffer, i);
+                    CodecHelper.appendInt(sbBuffer, i);
+                    blackHole += sbBuffer.length();
+                }
+            }
+        },
+    };
+    
+    public static void main(String[] args) {
+        
+        int iterations = (args.length > 0)? Integer.parseInt(args[0]) : 10000000;
+        int rounds = (args.length > 1)? Integer.parseInt(args[1]) : 5;
+        
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocationBean = null;
+        if ((threadBean instanceof com.sun.management.ThreadMXBean) && 
+                ((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemorySupported()) {
+            allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+            allocationBean.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            System.out.println("Thread allocation counters not available on this JVM. Only timings will be reported.");
+        }
+        
+        boolean allocationFree = true;
+        long threadId = Thread.currentThread().getId();
+        
+        for (Scenario scenario : scenarios) {
+            
+            // Warmup let the JIT compile the whole path before measuring
+            for (int round = 0; round < WARMUP_ROUNDS; round++) {
+                scenario.run(iterations);
+            }
+            
+            long bestTime = Long.MAX_VALUE;
+            long totalAllocated = 0;
+            for (int round = 0; round < rounds; round++) {
+                
+                long allocatedBefore = (allocationBean != null)? allocationBean.getThreadAllocatedBytes(threadId) : 0;
+                long startTime = System.nanoTime();
+                
+                scenario.run(iterations);
+                
+                long elapsed = System.nanoTime() - startTime;
+                long allocatedAfter = (allocationBean != null)? allocationBean.getThreadAllocatedBytes(threadId) : 0;
+                
+                bestTime = Math.min(bestTime, elapsed);
+                totalAllocated += allocatedAfter - allocatedBefore;
+            }
+            
+            double nsPerOp = (double)bestTime / iterations;
+            double bytesPerOp = (double)totalAllocated / ((double)iterations * rounds);
+            
+            // A few bytes can be charged to the measurement itself; anything 
+            // proportional to the number of iterations is a real allocation
+            if (bytesPerOp >= 1.0) {
+                allocationFree = false;
+            }
+            
+            System.out.println(String.format("%-40s %8.2f ns/op %10.4f bytes/op", scenario.getName(), nsPerOp, bytesPerOp));
+        }
+        
+        System.out.println("Checksum " + blackHole);
+        
+        if (!allocationFree) {
+            System.out.println("FAILED: allocation detected on the codec hot path");
+            System.exit(1);
+        }
+        
+        System.out.println("PASSED: no allocation detected on the codec hot path");
+    }
+}
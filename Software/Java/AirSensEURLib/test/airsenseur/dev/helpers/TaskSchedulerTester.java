@@ -0,0 +1,166 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+
+package airsenseur.dev.helpers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TaskScheduler checker
+ * @author marco
+ */
+public class TaskSchedulerTester {
+    
+    private final static int TICK_PERIOD = 50; /* in milliseconds */
+    private final static int NUM_TICKS = 40;
+    private final static int MAX_TICK_DELAY = 20; /* in milliseconds */
+    private final static int NUM_RESTARTS = 200;
+    private final static int MAX_EXTRA_THREADS = 2;
+    
+    private static class PeriodicTask extends TaskScheduler {
+        
+        private final long[] ticks = new long[NUM_TICKS];
+        private volatile int numTicks = 0;
+        
+        @Override
+        public void taskMain() {
+            if (numTicks < ticks.length) {
+                ticks[numTicks++] = System.nanoTime();
+            }
+        }
+
+        @Override
+        public String getTaskName() {
+            return "PeriodicTask";
+        }
+    }
+    
+    private static class LongRunningTask extends TaskScheduler {
+        
+        private final Object event = new Object();
+        private final AtomicInteger running = new AtomicInteger();
+        private volatile int maxRunning = 0;
+        private volatile int executions = 0;
+        
+        @Override
+        public void taskMain() {
+            
+            maxRunning = Math.max(maxRunning, running.incrementAndGet());
+            executions++;
+            try {
+                while (!isShutdown()) {
+                    synchronized (event) {
+                        event.wait();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                
+                // Simulate some cleanup work after the interrupt,
+                // so a restart finds the previous execution still running
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(1);
+                while (System.nanoTime() < deadline) {
+                    Thread.yield();
+                }
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public String getTaskName() {
+            return "LongRunningTask";
+        }
+    }
+    
+    public static void main(String[] argc) throws InterruptedException {
+        
+        // Check for periodic ticks aligned to the grid started by the first tick.
+        // Ticks missed because of a stall are skipped, not run late
+        PeriodicTask periodic = new PeriodicTask();
+        periodic.startPeriodic(TICK_PERIOD);
+        while (periodic.numTicks < NUM_TICKS) {
+            TimeUnit.MILLISECONDS.sleep(TICK_PERIOD);
+        }
+        periodic.stop();
+        if (!periodic.waitForTermination(1000)) {
+            System.out.println("Error: periodic task not terminated");
+        }
+        
+        long period = TimeUnit.MILLISECONDS.toNanos(TICK_PERIOD);
+        long maxDelay = 0;
+        long skipped = 0;
+        for (int n = 1; n < NUM_TICKS; n++) {
+            long elapsed = periodic.ticks[n] - periodic.ticks[0];
+            long delay = elapsed % period;
+            if (delay > period / 2) {
+                delay = delay - period;
+            }
+            maxDelay = Math.max(maxDelay, Math.abs(delay));
+            skipped = Math.round((double)elapsed / period) - n;
+        }
+        System.out.println("Periodic ticks: max offset from the grid " + TimeUnit.NANOSECONDS.toMicros(maxDelay) + 
+                            " us, skipped ticks " + skipped);
+        if (maxDelay > TimeUnit.MILLISECONDS.toNanos(MAX_TICK_DELAY)) {
+            System.out.println("Error: periodic ticks delayed more than " + MAX_TICK_DELAY + " ms");
+        }
+        
+        // Check for stop() terminating a task blocked in a wait
+        int threadsBefore = TaskSchedulerRuntime.getRuntime().getPoolSize();
+        LongRunningTask longRunning = new LongRunningTask();
+        for (int n = 0; n < NUM_RESTARTS; n++) {
+            longRunning.startNow();
+            longRunning.stop();
+            if (!longRunning.waitForTermination(1000)) {
+                System.out.println("Error: long running task not terminated on stop " + n);
+                break;
+            }
+        }
+        
+        // Check for restarts of a running task. The new execution should wait
+        // for the previous one, so neither executions nor threads pile up,
+        // also counting the threads used by the stop and start cycles above
+        LongRunningTask restarted = new LongRunningTask();
+        for (int n = 0; n < NUM_RESTARTS; n++) {
+            restarted.startNow();
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        restarted.stop();
+        if (!restarted.waitForTermination(1000)) {
+            System.out.println("Error: restarted task not terminated");
+        }
+        
+        int threadsAfter = TaskSchedulerRuntime.getRuntime().getPoolSize();
+        System.out.println("Restarts while running: " + NUM_RESTARTS + ", executions " + restarted.executions + 
+                            ", max concurrent executions " + restarted.maxRunning + 
+                            ", worker threads " + threadsBefore + " -> " + threadsAfter);
+        if (restarted.maxRunning > 1) {
+            System.out.println("Error: overlapping executions of the same task");
+        }
+        if (threadsAfter > threadsBefore + MAX_EXTRA_THREADS) {
+            System.out.println("Error: worker threads growing on restarts");
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/* ===========================================================================
+ * Copyright 2015 EUROPEAN UNION
+ *
+ * Licensed under the EUPL, Version 1.1 or subsequent versions of the
+ * EUPL (the "License"); You may not use this work except in compliance
+ * with the License. You may obtain a copy of the License at
+ * http://ec.europa.eu/idabc/eupl
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Date: 02/04/2015
+ * Authors:
+ * - Michel Gerboles, michel.gerboles@jrc.ec.europa.eu, 
+ *   Laurent Spinelle, laurent.spinelle@jrc.ec.europa.eu and 
+ *   Alexander Kotsev, alexander.kotsev@jrc.ec.europa.eu:
+ *			European Commission - Joint Research Centre, 
+ * - Marco Signorini, marco.signorini@liberaintentio.com
+ *
+ * ===========================================================================
+ */
+
+package airsenseur.dev.json;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ChemSensorAsyncClient checker, against a local JSON-RPC server 
+ * answering requests in order
+ * @author marco
+ */
+public class ChemSensorAsyncClientTester {
+    
+    private final static int PORT = 18100;
+    private final static int NUM_REQUESTS = 10;
+    private final static long ANSWER_DELAY = 20;        /* in milliseconds */
+    private final static long DEADLINE = 300;           /* in milliseconds */
+    private final static long RECONNECT_PERIOD = 2000;  /* in milliseconds */
+    
+    // Answers getNumSensors and getHostStatus in order, after ANSWER_DELAY. 
+    // It never answers "stuck", closes the connection on "close" and
+    // answers any other method with a "method not found" error
+    private static class Server implements Runnable {
+        
+        private final ObjectMapper mapper = new ObjectMapper();
+        private final ServerSocket serverSocket;
+        private final AtomicInteger connections = new AtomicInteger();
+        
+        // Requests received on the last connection when sending its first answer
+        private volatile int receivedBeforeFirstAnswer = 0;
+        
+        public Server() throws IOException {
+            serverSocket = new ServerSocket(PORT, 10, InetAddress.getByName("localhost"));
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException ex) {
+            }
+        }
+        
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+        
+        // Requests are read as soon as they arrive and answered one at a time
+        private void serve(final Socket socket) {
+            
+            final LinkedBlockingQueue<JsonNode> requests = new LinkedBlockingQueue<>();
+            final AtomicInteger received = new AtomicInteger();
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        JsonParser parser = mapper.getFactory().createParser(socket.getInputStream());
+                        JsonNode request;
+                        while ((request = mapper.readTree(parser)) != null) {
+                            received.incrementAndGet();
+                            requests.add(request);
+                        }
+                    } catch (IOException ex) {
+                    }
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+            
+            try {
+                OutputStream out = socket.getOutputStream();
+                boolean first = true;
+                while (true) {
+                    JsonNode request = requests.take();
+                    String method = request.get("method").asText();
+                    if (method.equals("stuck")) {
+                        Thread.sleep(Long.MAX_VALUE);
+                    }
+                    if (method.equals("close")) {
+                        socket.close();
+                        return;
+                    }
+                    
+                    Thread.sleep(ANSWER_DELAY);
+                    if (first) {
+                        receivedBeforeFirstAnswer = received.get();
+                        first = false;
+                    }
+                    
+                    ObjectNode answer = mapper.createObjectNode();
+                    answer.put("jsonrpc", "2.0");
+                    answer.set("id", request.get("id"));
+                    if (method.equals("getNumSensors")) {
+                        answer.put("result", 7);
+                    } else if (method.equals("getHostStatus")) {
+                        answer.set("result", mapper.valueToTree(new HostStatus(HostStatus.STATUS_BUSY)));
+                    } else {
+                        ObjectNode error = answer.putObject("error");
+                        error.put("code", -32601);
+                        error.put("message", "Method not found");
+                    }
+                    out.write(mapper.writeValueAsBytes(answer));
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException ex) {
+            }
+        }
+    }
+    
+    public static void main(String[] argc) throws Exception {
+        
+        Server server = new Server();
+        Thread serverThread = new Thread(server);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        
+        ChemSensorAsyncClient client = new ChemSensorAsyncClient();
+        client.setTimeout(DEADLINE);
+        if (!client.connect("localhost", PORT)) {
+            System.out.println("Error connecting to the local server");
+            return;
+        }
+        
+        // Check for requests sent one at a time, as expected by all hosts
+        int answered = countAnswered(client);
+        System.out.println("Requests one at a time: " + answered + "/" + NUM_REQUESTS + " answered, " + 
+                            server.receivedBeforeFirstAnswer + " sent before the first answer");
+        if ((answered != NUM_REQUESTS) || (server.receivedBeforeFirstAnswer != 1)) {
+            System.out.println("Error sending requests one at a time");
+        }
+        
+        // Check for pipelined requests, on a new connection
+        client.setPipelining(true);
+        client.connect("localhost", PORT);
+        answered = countAnswered(client);
+        System.out.println("Pipelined requests: " + answered + "/" + NUM_REQUESTS + " answered, " + 
+                            server.receivedBeforeFirstAnswer + " sent before the first answer");
+        if ((answered != NUM_REQUESTS) || (server.receivedBeforeFirstAnswer != NUM_REQUESTS)) {
+            System.out.println("Error pipelining requests");
+        }
+        
+        HostStatus hostStatus = client.getHostStatus().getResult();
+        if ((hostStatus == null) || (hostStatus.status != HostStatus.STATUS_BUSY)) {
+            System.out.println("Error decoding the host status");
+        }
+        
+        // Check for remote errors failing the request only. The server knows nothing about
+        // getLastSamples, as hosts older than R2.2.0
+        ChemSensorAsyncClient.Response<LastSamples> failed = client.getLastSamples(null);
+        ChemSensorAsyncClient.Response<Integer> next = client.getNumSensors();
+        try {
+            failed.get();
+            System.out.println("Error: remote error not reported");
+        } catch (ExecutionException ex) {
+            System.out.println("Remote error: " + ex.getCause().getMessage());
+        }
+        if ((next.getResult() == null) || !client.isConnected()) {
+            System.out.println("Error: remote errors broke the connection");
+        }
+        if (client.isLastSamplesSupported()) {
+            System.out.println("Error: missing getLastSamples not detected");
+        }
+        
+        // Check for a request not answered in time, failing the ones queued behind it
+        int connections = server.connections.get();
+        long start = System.currentTimeMillis();
+        ChemSensorAsyncClient.Response<Object> stuck = client.call("stuck", TypeFactory.defaultInstance().constructType(Object.class), DEADLINE);
+        ChemSensorAsyncClient.Response<Integer> queued = client.getNumSensors();
+        try {
+            stuck.get();
+            System.out.println("Error: stuck request answered");
+        } catch (ExecutionException ex) {
+            if (!(ex.getCause() instanceof SocketTimeoutException)) {
+                System.out.println("Error: stuck request failed with " + ex.getCause());
+            }
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("Stuck request failed after " + elapsed + " ms");
+        if ((elapsed < DEADLINE) || (elapsed >= DEADLINE + 200)) {
+            System.out.println("Error: deadline not respected");
+        }
+        if ((queued.getResult() != null) || client.isConnected()) {
+            System.out.println("Error: connection not closed after a timeout");
+        }
+        
+        // Check for rate limited reconnections
+        if ((client.getNumSensors().getResult() != null) || (server.connections.get() != connections)) {
+            System.out.println("Error: reconnected before " + RECONNECT_PERIOD + " ms");
+        }
+        Thread.sleep(RECONNECT_PERIOD);
+        Integer result = client.getNumSensors().getResult();
+        if ((result == null) || !client.isConnected() || (server.connections.get() != connections + 1)) {
+            System.out.println("Error: not reconnected by the next call");
+        }
+        
+        // Check for a connection closed by the server, failing the pending 
+        // requests without waiting for their deadline
+        client.setTimeout(10 * DEADLINE);
+        start = System.currentTimeMillis();
+        ChemSensorAsyncClient.Response<Void> closing = client.call("close", TypeFactory.defaultInstance().constructType(Void.class), 10 * DEADLINE);
+        queued = client.getNumSensors();
+        if ((closing.getResult() != null) || (queued.getResult() != null)) {
+            System.out.println("Error: pending requests not failed on close");
+        }
+        elapsed = System.currentTimeMillis() - start;
+        System.out.println("Connection closed by the server detected after " + elapsed + " ms");
+        if ((elapsed >= DEADLINE) || client.isConnected()) {
+            System.out.println("Error: connection closed by the server not detected");
+        }
+        
+        client.disconnect();
+        server.close();
+    }
+    
+    // Call getNumSensors NUM_REQUESTS times without waiting, then count the right answers
+    private static int countAnswered(ChemSensorAsyncClient client) {
+        
+        List<ChemSensorAsyncClient.Response<Integer>> responses = new ArrayList<>();
+        for (int n = 0; n < NUM_REQUESTS; n++) {
+            responses.add(client.getNumSensors());
+        }
+        
+        int answered = 0;
+        for (ChemSensorAsyncClient.Response<Integer> response:responses) {
+            Integer result = response.getResult();
+            if ((result != null) && (result == 7)) {
+                answered++;
+            }
+        }
+        
+        return answered;
+    }
+}
@@ -45,32 +45,32 @@ public class BasicLoRaMessage {
     }
     
     public void append(char value) {
-        this.buffer.append(CodecHelper.encodeValue(value));
+        CodecHelper.appendChar(this.buffer, value);
         this.dirty = true;
     }
     
     public void append(short value) {
-        this.buffer.append(CodecHelper.encodeValue(value));
+        CodecHelper.appendShort(this.buffer, value);
         this.dirty = true;
     }
     
     public void append(int value) {
-        this.buffer.append(CodecHelper.encodeValue(value));
+        CodecHelper.appendInt(this.buffer, value);
         this.dirty = true;
     }
     
     public void append(long value) {
-        this.buffer.append(CodecHelper.encodeValue(value));
+        CodecHelper.appendLong(this.buffer, value);
         this.dirty = true;
     }
     
     public void append(float value) {
-        this.buffer.append(CodecHelper.encodeValue(value));
+        CodecHelper.appendFloat(this.buffer, value);
         this.dirty = true;
     }
     
     public void append(String value) {
-        this.buffer.append(CodecHelper.encodeString(value));
+        CodecHelper.appendString(this.buffer, value);
         this.dirty = true;
     }
     